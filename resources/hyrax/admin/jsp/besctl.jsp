@@ -332,6 +332,28 @@
 </div>
 
 
+<div class="small"
+     style="
+            border: 1px solid rgb(150, 150, 150);
+            padding-left: 5px;
+            padding-right: 5px;
+            padding-top: 5px;
+            padding-bottom: 5px;
+            width: 300px;">
+
+    <div class="small_bold" style="padding-bottom: 4px;">Routing</div>
+    strategy: <strong><%=BesRoutingPolicy.getStrategyName()%></strong><br/>
+    circuit breaker: <strong><%=bes.getHealth().getState()%></strong><br/>
+    times selected: <strong><%=bes.getHealth().getSelections()%></strong><br/>
+    transactions in progress: <strong><%=bes.getHealth().getOutstanding()%></strong><br/>
+    transactions: <strong><%=bes.getHealth().getTransactions()%></strong><br/>
+    failures: <strong><%=bes.getHealth().getFailures()%></strong>
+    (consecutive: <strong><%=bes.getHealth().getConsecutiveFailures()%></strong>,
+    breaker trips: <strong><%=bes.getHealth().getBreakerTrips()%></strong>)<br/>
+    average transaction time: <strong><%=String.format("%.1f", bes.getHealth().getLatencyAverage() / 1000000.0)%> ms</strong><br/>
+</div>
+
+
 <br/>
 
 
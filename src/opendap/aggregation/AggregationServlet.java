@@ -53,9 +53,18 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
@@ -124,8 +133,15 @@ import java.util.zip.ZipOutputStream;
  * testing: MOD04_L2.A2015021.0030.051.NRT.hdf.nc   OK
  * No errors detected in compressed data of data2.zip.
  *
+ * Parallel requests to the BES: When the servlet's GranuleConcurrency init-param
+ * is more than 1, the file, netcdf3, netcdf4 and ascii operations fetch that many
+ * granules at once for each request (see ParallelGranuleWriter). The GranuleThreads
+ * init-param limits the number of granules fetched at once by all requests together.
+ * The zip entries are still written in the order the files were listed. The csv
+ * operation does the same, streaming each granule's rows to the client as they
+ * arrive (see PipelinedTableWriter).
+ *
  * TODO Write a /help response?
- * TODO (Hard) Make  parallel requests to the BES.
  * TODO Add an option to return tar.gz: 
  * http://www.selikoff.net/2010/07/28/creating-a-tar-gz-file-in-java/
  *
@@ -135,7 +151,12 @@ public class AggregationServlet extends HttpServlet {
 	private static final long serialVersionUID = 1L;
 	private Logger _log;
     private BesApi _besApi;
-    private ConcurrentSkipListSet<String> _granuleNames;
+
+    private int _granuleConcurrency;
+    private ExecutorService _granuleExecutor;
+
+    // Granules larger than this are spooled to disk while they wait their turn
+    private static final int granuleMemoryLimit = 4 * 1024 * 1024;
 
     private static final String invocationError =
             "I expected the operation to be one of: version, file, netcdf3, netcdf4, ascii or csv but got: ";
@@ -154,10 +175,29 @@ public class AggregationServlet extends HttpServlet {
 
         _log = LoggerFactory.getLogger(this.getClass());
         _besApi = new BesApi();
-        _granuleNames = new ConcurrentSkipListSet<>(String.CASE_INSENSITIVE_ORDER);
 
         _log.info(versionInfo);
 
+        _granuleConcurrency = getIntInitParameter("GranuleConcurrency", 1);
+        if (_granuleConcurrency > 1) {
+            int threads = getIntInitParameter("GranuleThreads", 16);
+            final AtomicInteger threadNumber = new AtomicInteger(0);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "olfs-aggregation-" + threadNumber.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            _granuleExecutor = executor;
+
+            _log.info("init() - Fetching up to {} granules at once per request, {} in all.", _granuleConcurrency, threads);
+        }
+
         Runtime runtime = Runtime.getRuntime();
 
         NumberFormat format = NumberFormat.getInstance();
@@ -175,6 +215,36 @@ public class AggregationServlet extends HttpServlet {
         _log.info(sb.toString());
     }
 
+    /**
+     * Read an integer init-param.
+     * @param name The name of the init-param
+     * @param defaultValue Use this if the init-param is not set
+     * @return The value of the init-param
+     * @throws ServletException If the init-param is not a positive integer
+     */
+    private int getIntInitParameter(String name, int defaultValue) throws ServletException {
+        String value = getInitParameter(name);
+        if (value == null)
+            return defaultValue;
+
+        try {
+            int i = Integer.parseInt(value.trim());
+            if (i > 0)
+                return i;
+        }
+        catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new ServletException("Aggregation: The init-param " + name + " must be a positive integer, not: " + value);
+    }
+
+    @Override
+    public void destroy() {
+        if (_granuleExecutor != null)
+            _granuleExecutor.shutdownNow();
+        super.destroy();
+    }
+
     /**
      * Given a pathname, split it into two parts, the basename and the
      * directories leading up to that basename.
@@ -210,14 +280,15 @@ public class AggregationServlet extends HttpServlet {
      *
      * @param granule The name of the current granule, which is about
      *                to be added to the Zip file
+     * @param granuleNames The names already used in this request's Zip file
      * @return Use this name for the granule in the Zip file
      */
-    private String getNameForZip(String granule, ResponseFormat format) {
+    private String getNameForZip(String granule, ResponseFormat format, Set<String> granuleNames) {
 
-        if (!_granuleNames.contains(granule)) {
+        if (!granuleNames.contains(granule)) {
             // In the simple case, don't fiddle with the name, just record that
             // it's been used.
-            _granuleNames.add(granule);
+            granuleNames.add(granule);
 
             switch (format) {
                 case netcdf3:
@@ -241,9 +312,9 @@ public class AggregationServlet extends HttpServlet {
         else {
             // In the more complex case, make a new name and try again...
             int i = 1;
-            while (_granuleNames.contains(granule + "_" + i))
+            while (granuleNames.contains(granule + "_" + i))
                 ++i;
-            return getNameForZip(granule + "_" + i, format);
+            return getNameForZip(granule + "_" + i, format, granuleNames);
         }
     }
 
@@ -327,9 +398,11 @@ public class AggregationServlet extends HttpServlet {
      * @param request The HttpServletRequest
      * @param response The HttpServletResponse
      * @param out The ServletOutputStream
+     * @param granuleNames The names already used in this request's Zip file
      * @throws Exception
      */
-    private void writePlainGranules(HttpServletRequest request, HttpServletResponse response, ServletOutputStream out)
+    private void writePlainGranules(HttpServletRequest request, HttpServletResponse response, ServletOutputStream out,
+                                    Set<String> granuleNames)
             throws Exception {
 
         Map<String, String[]> queryParameters = request.getParameterMap();
@@ -339,11 +412,27 @@ public class AggregationServlet extends HttpServlet {
 
         ZipOutputStream zos = new ZipOutputStream(out);
 
-        int N = queryParameters.get("file").length;
+        final String[] granules = queryParameters.get("file");
+        if (_granuleConcurrency > 1) {
+            List<ParallelGranuleWriter.Granule> work = new ArrayList<>(granules.length);
+            for (final String granule : granules) {
+                work.add(new ParallelGranuleWriter.Granule() {
+                    @Override
+                    public void writeTo(OutputStream os) throws Exception {
+                        writeSinglePlainGranule(granule, os);
+                    }
+                });
+            }
+            writeParallelGranules(work, granules, zos, out, ResponseFormat.plain, granuleNames);
+            zos.finish();
+            return;
+        }
+
+        int N = granules.length;
         for (int i = 0; i < N; ++i) {
-            String granule = queryParameters.get("file")[i];
+            String granule = granules[i];
 
-            String granuleName = getNameForZip(basename(granule)[1], ResponseFormat.plain);
+            String granuleName = getNameForZip(basename(granule)[1], ResponseFormat.plain, granuleNames);
             try {
                 zos.putNextEntry(new ZipEntry(granuleName));
                 writeSinglePlainGranule(granule, zos);
@@ -417,10 +506,12 @@ public class AggregationServlet extends HttpServlet {
      * @param request The HttpServletRequest
      * @param response The HttpServletResponse
      * @param out The ServletOutputStream
+     * @param granuleNames The names already used in this request's Zip file
      * @throws Exception
      */
     private void writeFormattedGranules(HttpServletRequest request, HttpServletResponse response,
-                                        ServletOutputStream out, ResponseFormat format)
+                                        ServletOutputStream out, final ResponseFormat format,
+                                        Set<String> granuleNames)
         throws Exception {
 
         // This ctor vets the params and throws an Exception if there are problems
@@ -431,16 +522,35 @@ public class AggregationServlet extends HttpServlet {
         response.setHeader("Content-Disposition", "attachment; filename=netcdf3.zip");
 
         User user = new User(request);
-        int maxResponse = user.getMaxResponseSize();
+        final int maxResponse = user.getMaxResponseSize();
 
         ZipOutputStream zos = new ZipOutputStream(out);
 
+        if (_granuleConcurrency > 1) {
+            String[] granules = new String[N];
+            List<ParallelGranuleWriter.Granule> work = new ArrayList<>(N);
+            for (int i = 0; i < N; ++i) {
+                final String granule = params.getFilename(i);
+                final String ce = params.getArrayCE(i);
+                granules[i] = granule;
+                work.add(new ParallelGranuleWriter.Granule() {
+                    @Override
+                    public void writeTo(OutputStream os) throws Exception {
+                        writeSingleFormattedGranule(granule, ce, os, maxResponse, format);
+                    }
+                });
+            }
+            writeParallelGranules(work, granules, zos, out, format, granuleNames);
+            zos.finish();
+            return;
+        }
+
         for (int i = 0; i < N; ++i) {
             String granule = params.getFilename(i);
             String ce = params.getArrayCE(i);
 
             try {
-                zos.putNextEntry(new ZipEntry(getNameForZip(basename(granule)[1], format)));
+                zos.putNextEntry(new ZipEntry(getNameForZip(basename(granule)[1], format, granuleNames)));
                 writeSingleFormattedGranule(granule, ce, zos, maxResponse, format);
                 zos.closeEntry();
             } catch (ZipException ze) {
@@ -453,6 +563,44 @@ public class AggregationServlet extends HttpServlet {
         zos.finish();
     }
 
+    /**
+     * Fetch granules several at a time and write them to the zip file in the
+     * order given. Each granule is written as soon as it, and every granule
+     * before it, has been fetched.
+     *
+     * @param work The granules' responses
+     * @param granules The granule pathnames, used to name the zip entries
+     * @param zos The zip file
+     * @param out The ServletOutputStream, for error messages
+     * @param format The response format, used to name the zip entries
+     * @param granuleNames The names already used in this request's Zip file
+     * @throws Exception
+     */
+    private void writeParallelGranules(List<ParallelGranuleWriter.Granule> work, final String[] granules,
+                                       final ZipOutputStream zos, final ServletOutputStream out,
+                                       final ResponseFormat format, final Set<String> granuleNames)
+            throws Exception {
+
+        ParallelGranuleWriter writer = new ParallelGranuleWriter(_granuleExecutor, _granuleConcurrency,
+                granuleMemoryLimit);
+
+        writer.write(work, new ParallelGranuleWriter.Sink() {
+            @Override
+            public void write(int i, GranuleSpool granule) throws Exception {
+                try {
+                    zos.putNextEntry(new ZipEntry(getNameForZip(basename(granules[i])[1], format, granuleNames)));
+                    granule.writeTo(zos);
+                    zos.closeEntry();
+                }
+                catch (ZipException ze) {
+                    out.println("Aggregation Error: " + ze.getMessage());
+
+                    logError(ze, "in writeParallelGranules():");
+                }
+            }
+        });
+    }
+
     /**
      * Get the values from a number of data files in a single CSV-format table.
      *
@@ -462,7 +610,7 @@ public class AggregationServlet extends HttpServlet {
      * @throws Exception
      */
     private void writeGranulesSingleTable(HttpServletRequest request, HttpServletResponse response,
-                                          ServletOutputStream out)
+                                          final ServletOutputStream out)
             throws Exception {
 
         // This ctor vets the params and throws an Exception if there are problems
@@ -472,7 +620,33 @@ public class AggregationServlet extends HttpServlet {
         response.setContentType("text/plain");
 
         User user = new User(request);
-        int maxResponse = user.getMaxResponseSize();
+        final int maxResponse = user.getMaxResponseSize();
+
+        if (_granuleConcurrency > 1) {
+            List<ParallelGranuleWriter.Granule> work = new ArrayList<>(N);
+            for (int i = 0; i < N; ++i) {
+                final String granule = params.getFilename(i);
+                final String ce = params.getTableCE(i);
+                work.add(new ParallelGranuleWriter.Granule() {
+                    @Override
+                    public void writeTo(OutputStream os) throws Exception {
+                        writeSingleFormattedGranule(granule, ce, os, maxResponse, ResponseFormat.ascii);
+                    }
+                });
+            }
+
+            PipelinedTableWriter writer = new PipelinedTableWriter(_granuleExecutor, _granuleConcurrency,
+                    granuleMemoryLimit);
+            writer.write(work, out, new PipelinedTableWriter.ErrorHandler() {
+                @Override
+                public void granuleFailed(int index, IOException ioe) throws Exception {
+                    out.println("Aggregation error building table of values: " + ioe.getMessage());
+
+                    logError(ioe, "in writeGranulesSingleTable():");
+                }
+            });
+            return;
+        }
 
         FilterAsciiHeaderStream filter = new FilterAsciiHeaderStream(out);
         filter.set(false);// let the first set of header lines through
@@ -505,8 +679,8 @@ public class AggregationServlet extends HttpServlet {
      * @throws IOException
      */
     private void processRequest(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        // forget the names used in/by previous requests
-        _granuleNames.clear();
+        // The names used in this request's zip file
+        Set<String> granuleNames = new ConcurrentSkipListSet<>(String.CASE_INSENSITIVE_ORDER);
 
         ServletOutputStream out = response.getOutputStream();
 
@@ -525,16 +699,16 @@ public class AggregationServlet extends HttpServlet {
                     writeAggregationVersion(request, response, out);
                     break;
                 case "file":
-                    writePlainGranules(request, response, out);
+                    writePlainGranules(request, response, out, granuleNames);
                     break;
                 case "netcdf3":
-                    writeFormattedGranules(request, response, out, ResponseFormat.netcdf3);
+                    writeFormattedGranules(request, response, out, ResponseFormat.netcdf3, granuleNames);
                     break;
                 case "netcdf4":
-                    writeFormattedGranules(request, response, out, ResponseFormat.netcdf4);
+                    writeFormattedGranules(request, response, out, ResponseFormat.netcdf4, granuleNames);
                     break;
                 case "ascii":
-                    writeFormattedGranules(request, response, out, ResponseFormat.ascii);
+                    writeFormattedGranules(request, response, out, ResponseFormat.ascii, granuleNames);
                     break;
                 case "csv":
                     writeGranulesSingleTable(request, response, out);
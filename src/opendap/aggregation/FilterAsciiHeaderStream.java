@@ -132,21 +132,15 @@ class FilterAsciiHeaderStream extends FilterOutputStream {
      */
     @Override
     public void write(/* @NotNull */ byte[] b) throws IOException {
-        if (_found_header) {
-            _out.write(b, 0, b.length);
-        }
-        else {
-            int i = 0;
-            while (!_found_header && i < b.length) {
-                write(b[i++]);
-            }
-            _out.write(b, i, b.length - i);
-        }
+        write(b, 0, b.length);
     }
 
     /**
      * Write out the byte array, first stripping a two line header
-     * if it has not already been found and removed.
+     * if it has not already been found and removed. The header is found
+     * by scanning the array for newlines in place, so once it has been
+     * passed the rest of the array goes out in one write.
+     *
      * @param b The byte array to send
      * @param off send bytes starting at this offset
      * @param len send this many bytes
@@ -154,16 +148,22 @@ class FilterAsciiHeaderStream extends FilterOutputStream {
      */
     @Override
     public void write(/* @NotNull */  byte[] b, int off, int len) throws IOException {
-        if (_found_header) {
-            _out.write(b, off, len);
-        }
-        else {
-            int end = off+len;
-            while (!_found_header && off < end) {
-                write(b[off++]);
+        if (!_found_header) {
+            int end = off + len;
+            while (off < end) {
+                if (b[off++] == '\n') {
+                    if (_found_first_newline) {
+                        _found_header = true;
+                        break;
+                    }
+                    _found_first_newline = true;
+                }
             }
-            _out.write(b, off, end - off);
+            len = end - off;
         }
+
+        if (len > 0)
+            _out.write(b, off, len);
     }
 }
 
@@ -0,0 +1,284 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2015 OPeNDAP, Inc.
+ * // Author: James Gallagher <jgallagher@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.aggregation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Connects the thread that fetches a granule to the thread that sends it to
+ * the client. Unlike GranuleSpool, the granule can be read while it is still
+ * being written, so the client gets the first rows of a table while the BES is
+ * still producing the rest.
+ *
+ * The data are held in memory until there are more than the memory limit's
+ * worth waiting to be read; after that everything the producer writes goes to a
+ * temporary file, which the reader follows. The writer never waits for the reader.
+ *
+ * @author James Gallagher <jgallagher@opendap.org>
+ */
+public class GranulePipe extends OutputStream {
+
+    private static final int chunkSize = 32 * 1024;
+
+    private final int _memoryLimit;
+
+    // Unread data held in memory: the reader is at _headPos in the first
+    // chunk, the writer at _tailFill in the last one.
+    private final ArrayDeque<byte[]> _chunks;
+    private int _headPos;
+    private int _tailFill;
+    private long _memoryBytes;
+
+    // Once the memory limit is reached, everything else goes here.
+    private File _file;
+    private OutputStream _fileOut;
+    private long _fileLength;
+
+    private boolean _closed;
+    private boolean _deleted;
+    private Exception _failure;
+
+    // Only the reader uses these.
+    private InputStream _fileIn;
+    private long _fileRead;
+
+    /**
+     * @param memoryLimit The most unread data, in bytes, held in memory.
+     */
+    public GranulePipe(int memoryLimit) {
+        _memoryLimit = memoryLimit;
+        _chunks = new ArrayDeque<>();
+        _headPos = 0;
+        _tailFill = 0;
+        _memoryBytes = 0;
+        _file = null;
+        _fileOut = null;
+        _fileLength = 0;
+        _closed = false;
+        _deleted = false;
+        _failure = null;
+        _fileIn = null;
+        _fileRead = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (_deleted)
+            throw new IOException("The granule pipe has been deleted.");
+        if (_closed)
+            throw new IOException("The granule pipe is closed.");
+
+        while (len > 0) {
+            if (_file == null && _memoryBytes + len > _memoryLimit) {
+                _file = File.createTempFile("granule-", ".pipe");
+                _fileOut = new FileOutputStream(_file);
+            }
+
+            if (_file != null) {
+                _fileOut.write(b, off, len);
+                _fileLength += len;
+                break;
+            }
+
+            if (_chunks.isEmpty() || _tailFill == chunkSize) {
+                _chunks.addLast(new byte[chunkSize]);
+                _tailFill = 0;
+            }
+            int n = Math.min(len, chunkSize - _tailFill);
+            System.arraycopy(b, off, _chunks.getLast(), _tailFill, n);
+            _tailFill += n;
+            _memoryBytes += n;
+            off += n;
+            len -= n;
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * The producer has written all of the granule.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (_closed)
+            return;
+        _closed = true;
+        if (_fileOut != null)
+            _fileOut.close();
+        notifyAll();
+    }
+
+    /**
+     * The producer could not write all of the granule. The reader gets the
+     * data written so far and then the exception.
+     *
+     * @param e What went wrong
+     */
+    public synchronized void fail(Exception e) {
+        _failure = e;
+        try {
+            close();
+        }
+        catch (IOException ioe) {
+            // The failure is already recorded
+        }
+    }
+
+    /**
+     * @return True if the granule has spilled into a temporary file.
+     */
+    public synchronized boolean isOnDisk() {
+        return _file != null;
+    }
+
+    /**
+     * Copy the granule to a stream, as it is written, until the producer closes
+     * the pipe.
+     *
+     * @param os Write the granule to this stream
+     * @throws ExecutionException If the producer failed; the cause is the
+     * producer's exception. Everything the producer wrote before it failed has
+     * been copied.
+     * @throws IOException If the granule could not be read or written to os.
+     * @throws InterruptedException
+     */
+    public void drainTo(OutputStream os) throws ExecutionException, IOException, InterruptedException {
+        try {
+            drain(os);
+        }
+        finally {
+            closeReader();
+        }
+    }
+
+    private void drain(OutputStream os) throws ExecutionException, IOException, InterruptedException {
+        byte[] fileBuf = null;
+
+        while (true) {
+            byte[] chunk = null;
+            int from = 0;
+            int to = 0;
+            long fileAvailable = 0;
+
+            synchronized (this) {
+                while (!_deleted && _memoryBytes == 0 && _fileRead == _fileLength && !_closed)
+                    wait();
+
+                if (_deleted)
+                    throw new IOException("The granule pipe has been deleted.");
+
+                if (_memoryBytes > 0) {
+                    chunk = _chunks.getFirst();
+                    from = _headPos;
+                    to = _chunks.size() == 1 ? _tailFill : chunkSize;
+                    _memoryBytes -= to - from;
+                    if (to == chunkSize) {
+                        _chunks.removeFirst();
+                        _headPos = 0;
+                    }
+                    else {
+                        _headPos = to;
+                    }
+                }
+                else if (_fileRead < _fileLength) {
+                    fileAvailable = _fileLength - _fileRead;
+                    if (_fileIn == null)
+                        _fileIn = new FileInputStream(_file);
+                }
+                else {
+                    // Closed and everything has been read
+                    if (_failure != null)
+                        throw new ExecutionException(_failure);
+                    return;
+                }
+            }
+
+            // The writer only appends, so the bytes being copied here won't change.
+            if (chunk != null) {
+                os.write(chunk, from, to - from);
+            }
+            else {
+                if (fileBuf == null)
+                    fileBuf = new byte[64 * 1024];
+                while (fileAvailable > 0) {
+                    int n = _fileIn.read(fileBuf, 0, (int) Math.min(fileBuf.length, fileAvailable));
+                    if (n < 0)
+                        throw new IOException("Unexpected end of the granule pipe's temporary file.");
+                    os.write(fileBuf, 0, n);
+                    fileAvailable -= n;
+                    _fileRead += n;
+                }
+            }
+        }
+    }
+
+    private void closeReader() {
+        if (_fileIn != null) {
+            try {
+                _fileIn.close();
+            }
+            catch (IOException e) {
+                // Only reading; nothing lost
+            }
+            _fileIn = null;
+        }
+    }
+
+    /**
+     * Throw away the granule, removing its temporary file, if there is one.
+     * Safe to call more than once and from any thread.
+     */
+    public synchronized void delete() {
+        _deleted = true;
+        _chunks.clear();
+        _memoryBytes = 0;
+        if (_fileOut != null) {
+            try {
+                _fileOut.close();
+            }
+            catch (IOException e) {
+                // The file is about to be removed; nothing else to do.
+            }
+        }
+        if (_file != null)
+            _file.delete();
+        notifyAll();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2015 OPeNDAP, Inc.
+ * // Author: James Gallagher <jgallagher@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.aggregation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Holds one granule's response until it is its turn to be written to the zip
+ * file. Small responses stay in memory; once a response grows past the memory
+ * limit it is moved to a temporary file and the rest is written there.
+ *
+ * @author James Gallagher <jgallagher@opendap.org>
+ */
+public class GranuleSpool extends OutputStream {
+
+    private final int _memoryLimit;
+    private ByteArrayOutputStream _memory;
+    private File _file;
+    private OutputStream _fileStream;
+    private long _size;
+    private boolean _deleted;
+
+    /**
+     * @param memoryLimit The largest response, in bytes, that is held in memory.
+     */
+    public GranuleSpool(int memoryLimit) {
+        _memoryLimit = memoryLimit;
+        _memory = new ByteArrayOutputStream(Math.min(memoryLimit, 64 * 1024));
+        _file = null;
+        _fileStream = null;
+        _size = 0;
+        _deleted = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        if (_deleted)
+            throw new IOException("The granule spool has been deleted.");
+
+        if (_fileStream == null && _memory.size() + len > _memoryLimit) {
+            _file = File.createTempFile("granule-", ".spool");
+            _fileStream = new BufferedOutputStream(new FileOutputStream(_file), 64 * 1024);
+            _memory.writeTo(_fileStream);
+            _memory = null;
+        }
+
+        if (_fileStream != null)
+            _fileStream.write(b, off, len);
+        else
+            _memory.write(b, off, len);
+        _size += len;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (_fileStream != null)
+            _fileStream.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (_fileStream != null)
+            _fileStream.close();
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public synchronized long size() {
+        return _size;
+    }
+
+    /**
+     * @return True if the response was moved to a temporary file.
+     */
+    public synchronized boolean isOnDisk() {
+        return _file != null;
+    }
+
+    /**
+     * Copy the response to a stream. The spool must be closed first.
+     *
+     * @param os Write the response to this stream
+     * @throws IOException
+     */
+    public synchronized void writeTo(OutputStream os) throws IOException {
+        if (_deleted)
+            throw new IOException("The granule spool has been deleted.");
+
+        if (_file == null) {
+            _memory.writeTo(os);
+            return;
+        }
+
+        try (InputStream is = new FileInputStream(_file)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                os.write(buf, 0, n);
+        }
+    }
+
+    /**
+     * Throw away the response, removing its temporary file, if there is one.
+     * Safe to call more than once and from any thread.
+     */
+    public synchronized void delete() {
+        _deleted = true;
+        _memory = null;
+        if (_fileStream != null) {
+            try {
+                _fileStream.close();
+            }
+            catch (IOException e) {
+                // The file is about to be removed; nothing else to do.
+            }
+        }
+        if (_file != null)
+            _file.delete();
+    }
+}
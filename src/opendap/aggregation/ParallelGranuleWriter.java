@@ -0,0 +1,198 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2015 OPeNDAP, Inc.
+ * // Author: James Gallagher <jgallagher@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.aggregation;
+
+import opendap.coreServlet.RequestCache;
+import opendap.logging.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Fetch the granules of one aggregation request several at a time and hand
+ * them, in request order, to a sink (typically the code that writes the zip
+ * entries). At most 'window' granules are fetched or held at once for a request;
+ * each one is spooled (see GranuleSpool) until every granule before it has been
+ * written. The threads that do the fetching are shared by all requests, so the
+ * executor bounds the number of granules fetched at once across the server.
+ *
+ * One instance serves one request.
+ *
+ * @author James Gallagher <jgallagher@opendap.org>
+ */
+public class ParallelGranuleWriter {
+
+    /**
+     * Something that writes a granule's response.
+     */
+    public interface Granule {
+        void writeTo(OutputStream os) throws Exception;
+    }
+
+    /**
+     * Takes the granules, in order, once they are ready.
+     */
+    public interface Sink {
+        void write(int index, GranuleSpool granule) throws Exception;
+    }
+
+    private Logger _log;
+
+    private final ExecutorService _executor;
+    private final int _window;
+    private final int _memoryLimit;
+
+    private final AtomicBoolean _aborted;
+    private final ConcurrentLinkedQueue<GranuleSpool> _spools;
+
+    /**
+     * @param executor Runs the fetches; shared by all requests
+     * @param window The most granules this request may fetch or hold at once
+     * @param memoryLimit The largest granule, in bytes, held in memory
+     */
+    public ParallelGranuleWriter(ExecutorService executor, int window, int memoryLimit) {
+        _log = LoggerFactory.getLogger(this.getClass());
+        _executor = executor;
+        _window = Math.max(1, window);
+        _memoryLimit = memoryLimit;
+        _aborted = new AtomicBoolean(false);
+        _spools = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Fetch the granules and pass them to the sink in order. A granule is passed
+     * to the sink as soon as it and all the granules before it have been fetched.
+     *
+     * @param granules The granules, in the order they are to be written
+     * @param sink Takes the granules
+     * @throws Exception The first exception thrown by a fetch or the sink. The
+     * fetches still outstanding are cancelled and their spools removed.
+     */
+    public void write(List<Granule> granules, Sink sink) throws Exception {
+
+        int N = granules.size();
+        List<Future<GranuleSpool>> fetches = new ArrayList<>(N);
+
+        try {
+            int next = 0;
+            for (; next < Math.min(_window, N); ++next)
+                fetches.add(_executor.submit(fetch(granules.get(next))));
+
+            for (int i = 0; i < N; ++i) {
+                GranuleSpool spool = waitFor(fetches.get(i));
+
+                // Start the next fetch before writing this one so that the
+                // BES keeps working while the client is reading.
+                if (next < N) {
+                    fetches.add(_executor.submit(fetch(granules.get(next))));
+                    ++next;
+                }
+
+                try {
+                    sink.write(i, spool);
+                }
+                finally {
+                    spool.delete();
+                    _spools.remove(spool);
+                }
+            }
+        }
+        finally {
+            _aborted.set(true);
+            for (Future<GranuleSpool> f : fetches)
+                f.cancel(true);
+            for (GranuleSpool spool : _spools)
+                spool.delete();
+            _spools.clear();
+        }
+    }
+
+    private GranuleSpool waitFor(Future<GranuleSpool> fetch) throws Exception {
+        try {
+            return fetch.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    private Callable<GranuleSpool> fetch(final Granule granule) {
+
+        final Map<String, String> mdc = LogUtil.getMdcCopy();
+
+        return new Callable<GranuleSpool>() {
+            @Override
+            public GranuleSpool call() throws Exception {
+                if (_aborted.get())
+                    throw new InterruptedException("The aggregation was abandoned.");
+
+                if (mdc != null)
+                    MDC.setContextMap(mdc);
+                RequestCache.openThreadCache();
+
+                GranuleSpool spool = new GranuleSpool(_memoryLimit);
+                _spools.add(spool);
+                try {
+                    granule.writeTo(spool);
+                    spool.close();
+                }
+                catch (Exception e) {
+                    spool.delete();
+                    throw e;
+                }
+                finally {
+                    RequestCache.closeThreadCache();
+                    MDC.clear();
+                }
+
+                // The request may have given up while this granule was being
+                // fetched; if so nobody will collect it.
+                if (_aborted.get()) {
+                    spool.delete();
+                    _log.debug("fetch() - Discarded a granule fetched after the aggregation was abandoned.");
+                }
+                return spool;
+            }
+        };
+    }
+}
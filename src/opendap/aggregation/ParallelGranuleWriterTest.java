@@ -0,0 +1,183 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2015 OPeNDAP, Inc.
+ * // Author: James Gallagher <jgallagher@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.aggregation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ParallelGranuleWriterTest {
+
+    private ExecutorService _executor;
+
+    /**
+     * A granule that takes a while to fetch and records how many granules
+     * were being fetched at once.
+     */
+    private static class SlowGranule implements ParallelGranuleWriter.Granule {
+        private final String _content;
+        private final long _delay;
+        private final AtomicInteger _running;
+        private final AtomicInteger _maxRunning;
+
+        SlowGranule(String content, long delay, AtomicInteger running, AtomicInteger maxRunning) {
+            _content = content;
+            _delay = delay;
+            _running = running;
+            _maxRunning = maxRunning;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws Exception {
+            int n = _running.incrementAndGet();
+            synchronized (_maxRunning) {
+                if (n > _maxRunning.get())
+                    _maxRunning.set(n);
+            }
+            try {
+                Thread.sleep(_delay);
+                os.write(_content.getBytes("UTF-8"));
+            }
+            finally {
+                _running.decrementAndGet();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testOrderAndWindow() throws Exception {
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+
+        List<ParallelGranuleWriter.Granule> granules = new ArrayList<>();
+        for (int i = 0; i < 12; ++i) {
+            // The later granules are faster, so they finish out of order
+            granules.add(new SlowGranule("granule " + i, 10 * (12 - i), running, maxRunning));
+        }
+
+        final List<String> written = new ArrayList<>();
+        ParallelGranuleWriter writer = new ParallelGranuleWriter(_executor, 3, 1024);
+        writer.write(granules, new ParallelGranuleWriter.Sink() {
+            @Override
+            public void write(int index, GranuleSpool granule) throws Exception {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                granule.writeTo(baos);
+                written.add(index + ":" + baos.toString("UTF-8"));
+            }
+        });
+
+        Assert.assertEquals(12, written.size());
+        for (int i = 0; i < 12; ++i)
+            Assert.assertEquals(i + ":granule " + i, written.get(i));
+
+        Assert.assertTrue("More than one granule should be fetched at once", maxRunning.get() > 1);
+        Assert.assertTrue("No more than 3 granules should be fetched at once", maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testSpoolToDisk() throws Exception {
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; ++i)
+            content[i] = (byte) i;
+
+        GranuleSpool spool = new GranuleSpool(4096);
+        spool.write(content, 0, 3000);
+        Assert.assertFalse(spool.isOnDisk());
+        spool.write(content, 3000, content.length - 3000);
+        Assert.assertTrue(spool.isOnDisk());
+        spool.close();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        spool.writeTo(baos);
+        Assert.assertEquals(content.length, spool.size());
+        Assert.assertArrayEquals(content, baos.toByteArray());
+
+        spool.delete();
+        try {
+            spool.writeTo(baos);
+            Assert.fail("A deleted spool should not be readable");
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        AtomicInteger running = new AtomicInteger(0);
+        AtomicInteger maxRunning = new AtomicInteger(0);
+
+        List<ParallelGranuleWriter.Granule> granules = new ArrayList<>();
+        granules.add(new SlowGranule("granule 0", 10, running, maxRunning));
+        granules.add(new ParallelGranuleWriter.Granule() {
+            @Override
+            public void writeTo(OutputStream os) throws Exception {
+                throw new IOException("BES went away");
+            }
+        });
+        for (int i = 2; i < 6; ++i)
+            granules.add(new SlowGranule("granule " + i, 10, running, maxRunning));
+
+        final List<Integer> written = new ArrayList<>();
+        ParallelGranuleWriter writer = new ParallelGranuleWriter(_executor, 2, 1024);
+        try {
+            writer.write(granules, new ParallelGranuleWriter.Sink() {
+                @Override
+                public void write(int index, GranuleSpool granule) throws Exception {
+                    written.add(index);
+                }
+            });
+            Assert.fail("The failed granule should end the aggregation");
+        }
+        catch (IOException e) {
+            Assert.assertEquals("BES went away", e.getMessage());
+        }
+
+        Assert.assertEquals(1, written.size());
+        Assert.assertEquals(0, (int) written.get(0));
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2015 OPeNDAP, Inc.
+ * // Author: James Gallagher <jgallagher@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.aggregation;
+
+import opendap.coreServlet.RequestCache;
+import opendap.logging.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Build one table from the ASCII responses for several granules. Like
+ * ParallelGranuleWriter, several granules are fetched at once and the results
+ * are written in order, but the granule at the head of the line is streamed to
+ * the client while the BES is still producing it (see GranulePipe), so rows
+ * start to flow as soon as the first granule's do.
+ *
+ * The two header lines of every granule but the first are removed by the thread
+ * that fetches the granule, so that work is done in parallel too.
+ *
+ * One instance serves one request.
+ *
+ * @author James Gallagher <jgallagher@opendap.org>
+ */
+public class PipelinedTableWriter {
+
+    /**
+     * Called when a granule could not be read. The rows it produced before
+     * the error have already been written.
+     */
+    public interface ErrorHandler {
+        void granuleFailed(int index, IOException e) throws Exception;
+    }
+
+    private Logger _log;
+
+    private final ExecutorService _executor;
+    private final int _window;
+    private final int _memoryLimit;
+
+    private final AtomicBoolean _aborted;
+
+    /**
+     * @param executor Runs the fetches; shared by all requests
+     * @param window The most granules this request may fetch or hold at once
+     * @param memoryLimit The most data, in bytes, held in memory for one granule
+     */
+    public PipelinedTableWriter(ExecutorService executor, int window, int memoryLimit) {
+        _log = LoggerFactory.getLogger(this.getClass());
+        _executor = executor;
+        _window = Math.max(1, window);
+        _memoryLimit = memoryLimit;
+        _aborted = new AtomicBoolean(false);
+    }
+
+    /**
+     * Fetch the granules and write them to the stream as one table.
+     *
+     * @param granules The granules' ASCII responses, in the order the rows
+     *                 should appear
+     * @param out Write the table to this stream
+     * @param errorHandler Called for each granule that fails with an IOException
+     * @throws Exception Any other exception thrown by a fetch, or anything
+     * thrown while writing the table. The fetches still outstanding are
+     * cancelled and their data removed.
+     */
+    public void write(List<ParallelGranuleWriter.Granule> granules, OutputStream out, ErrorHandler errorHandler)
+            throws Exception {
+
+        int N = granules.size();
+        List<GranulePipe> pipes = new ArrayList<>(N);
+        List<Future<?>> fetches = new ArrayList<>(N);
+
+        try {
+            int next = 0;
+            for (; next < Math.min(_window, N); ++next)
+                start(next, granules.get(next), pipes, fetches);
+
+            for (int i = 0; i < N; ++i) {
+                GranulePipe pipe = pipes.get(i);
+                try {
+                    pipe.drainTo(out);
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException)
+                        errorHandler.granuleFailed(i, (IOException) cause);
+                    else if (cause instanceof Exception)
+                        throw (Exception) cause;
+                    else
+                        throw e;
+                }
+                finally {
+                    pipe.delete();
+                }
+
+                // Let the client see these rows now rather than when the
+                // container's buffer fills.
+                out.flush();
+
+                if (next < N) {
+                    start(next, granules.get(next), pipes, fetches);
+                    ++next;
+                }
+            }
+        }
+        finally {
+            _aborted.set(true);
+            for (Future<?> f : fetches)
+                f.cancel(true);
+            for (GranulePipe pipe : pipes)
+                pipe.delete();
+        }
+    }
+
+    private void start(final int index, final ParallelGranuleWriter.Granule granule,
+                       List<GranulePipe> pipes, List<Future<?>> fetches) {
+
+        final GranulePipe pipe = new GranulePipe(_memoryLimit);
+        pipes.add(pipe);
+
+        final Map<String, String> mdc = LogUtil.getMdcCopy();
+
+        fetches.add(_executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (_aborted.get()) {
+                    pipe.delete();
+                    return;
+                }
+
+                if (mdc != null)
+                    MDC.setContextMap(mdc);
+                RequestCache.openThreadCache();
+
+                try {
+                    OutputStream os = pipe;
+                    if (index > 0) {
+                        FilterAsciiHeaderStream filter = new FilterAsciiHeaderStream(pipe);
+                        filter.set(true);
+                        os = filter;
+                    }
+                    granule.writeTo(os);
+                    pipe.close();
+                }
+                catch (Exception e) {
+                    if (_aborted.get())
+                        _log.debug("run() - Granule {} abandoned: {}", index, e.getMessage());
+                    pipe.fail(e);
+                }
+                finally {
+                    RequestCache.closeThreadCache();
+                    MDC.clear();
+                }
+            }
+        }));
+    }
+}
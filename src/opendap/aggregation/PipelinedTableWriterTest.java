@@ -0,0 +1,207 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2015 OPeNDAP, Inc.
+ * // Author: James Gallagher <jgallagher@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.aggregation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PipelinedTableWriterTest {
+
+    private ExecutorService _executor;
+
+    /**
+     * An ASCII table response for one granule, written in small pieces.
+     */
+    private static class Table implements ParallelGranuleWriter.Granule {
+        private final String _content;
+        private final long _delay;
+
+        Table(int granule, int rows, long delay) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("function_result_granule_").append(granule).append(".hdf\n");
+            sb.append("table.Latitude, table.Longitude\n");
+            for (int i = 0; i < rows; ++i)
+                sb.append(granule).append(".").append(i).append(", ").append(i).append("\n");
+            _content = sb.toString();
+            _delay = delay;
+        }
+
+        @Override
+        public void writeTo(OutputStream os) throws Exception {
+            Thread.sleep(_delay);
+            byte[] data = _content.getBytes("UTF-8");
+            for (int i = 0; i < data.length; i += 7)
+                os.write(data, i, Math.min(7, data.length - i));
+        }
+
+        String rows() {
+            return _content.substring(_content.indexOf('\n', _content.indexOf('\n') + 1) + 1);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _executor = Executors.newFixedThreadPool(8);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _executor.shutdownNow();
+    }
+
+    private static PipelinedTableWriter.ErrorHandler failOnError() {
+        return new PipelinedTableWriter.ErrorHandler() {
+            @Override
+            public void granuleFailed(int index, IOException e) throws Exception {
+                throw e;
+            }
+        };
+    }
+
+    @Test
+    public void testOneTable() throws Exception {
+        List<ParallelGranuleWriter.Granule> granules = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; ++i) {
+            // The later granules are faster, so they finish out of order
+            Table t = new Table(i, 50, 5 * (10 - i));
+            granules.add(t);
+            expected.append(i == 0 ? t._content : t.rows());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PipelinedTableWriter(_executor, 4, 1024 * 1024).write(granules, out, failOnError());
+
+        Assert.assertEquals(expected.toString(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testSpillToDisk() throws Exception {
+        List<ParallelGranuleWriter.Granule> granules = new ArrayList<>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 4; ++i) {
+            Table t = new Table(i, 2000, 0);
+            granules.add(t);
+            expected.append(i == 0 ? t._content : t.rows());
+        }
+
+        // Far less memory than one granule needs
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PipelinedTableWriter(_executor, 4, 512).write(granules, out, failOnError());
+
+        Assert.assertEquals(expected.toString(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        final CountDownLatch firstRowsSent = new CountDownLatch(1);
+
+        List<ParallelGranuleWriter.Granule> granules = new ArrayList<>();
+        final Table first = new Table(0, 10, 0);
+        granules.add(new ParallelGranuleWriter.Granule() {
+            @Override
+            public void writeTo(OutputStream os) throws Exception {
+                first.writeTo(os);
+                // Don't finish until the rows written so far have reached the client
+                if (!firstRowsSent.await(10, TimeUnit.SECONDS))
+                    throw new Exception("The rows were not streamed");
+            }
+        });
+        granules.add(new Table(1, 10, 0));
+
+        OutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                if (size() == first._content.length())
+                    firstRowsSent.countDown();
+            }
+        };
+        new PipelinedTableWriter(_executor, 2, 1024 * 1024).write(granules, out, failOnError());
+
+        Assert.assertEquals(0, firstRowsSent.getCount());
+    }
+
+    @Test
+    public void testGranuleError() throws Exception {
+        List<ParallelGranuleWriter.Granule> granules = new ArrayList<>();
+        Table t0 = new Table(0, 5, 0);
+        Table t2 = new Table(2, 5, 0);
+        granules.add(t0);
+        granules.add(new ParallelGranuleWriter.Granule() {
+            @Override
+            public void writeTo(OutputStream os) throws Exception {
+                throw new IOException("BES went away");
+            }
+        });
+        granules.add(t2);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new PipelinedTableWriter(_executor, 2, 1024).write(granules, out, new PipelinedTableWriter.ErrorHandler() {
+            @Override
+            public void granuleFailed(int index, IOException e) throws Exception {
+                out.write(("error " + index + ": " + e.getMessage() + "\n").getBytes("UTF-8"));
+            }
+        });
+
+        Assert.assertEquals(t0._content + "error 1: BES went away\n" + t2.rows(), out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testPipe() throws Exception {
+        GranulePipe pipe = new GranulePipe(100);
+        pipe.write("abc".getBytes("UTF-8"));
+        Assert.assertFalse(pipe.isOnDisk());
+        pipe.write(new byte[200]);
+        Assert.assertTrue(pipe.isOnDisk());
+        pipe.fail(new IOException("stopped"));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            pipe.drainTo(out);
+            Assert.fail("The producer's failure should reach the reader");
+        }
+        catch (ExecutionException e) {
+            Assert.assertEquals("stopped", e.getCause().getMessage());
+        }
+        Assert.assertEquals(203, out.size());
+        pipe.delete();
+    }
+}
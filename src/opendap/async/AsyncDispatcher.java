@@ -31,7 +31,9 @@ import opendap.bes.BESConfig;
 import opendap.bes.BESManager;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.bes.BesDapDispatcher;
+import opendap.coreServlet.ConditionalRequest;
 import opendap.coreServlet.ReqInfo;
+import opendap.http.error.InternalError;
 import opendap.http.error.NotFound;
 import org.jdom.Document;
 import org.jdom.Element;
@@ -50,12 +52,12 @@ import javax.servlet.AsyncContext;
 import javax.servlet.DispatcherType;
 import javax.servlet.http.*;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -69,15 +71,18 @@ public class AsyncDispatcher extends BesDapDispatcher {
     private Logger log;
     private boolean initialized;
     private boolean usePendingAndGoneResponses;
-    private ReentrantLock cacheLock;
 
-    private ConcurrentHashMap<String,Date> asyncCache;
+    private AsyncJobManager jobManager;
 
     private String _prefix = "async/";
 
     private int cachePersistTime; // In milliseconds
     private int responseDelay; // In milliseconds
 
+    private int jobThreads;
+    private int jobQueueSize;
+    private File spoolDirectory;
+
 
     //private String dapMetadataRegex = ".*\\.xml|.*\\.iso|.*\\.rubric|.*\\.ver|.*\\.ddx|.*\\.dds|.*\\.das|.*\\.info|.*\\.html?";
     //private Pattern dapMetadataPattern = Pattern.compile(dapMetadataRegex, Pattern.CASE_INSENSITIVE);
@@ -95,12 +100,15 @@ public class AsyncDispatcher extends BesDapDispatcher {
     public AsyncDispatcher(){
         log = LoggerFactory.getLogger(getClass());
 
-        asyncCache = new ConcurrentHashMap<String, Date>();
-        cacheLock = new ReentrantLock();
+        jobManager = null;
 
         cachePersistTime = 3600000; // In milliseconds
         responseDelay    = 60000;   // In milliseconds
 
+        jobThreads = 4;
+        jobQueueSize = 64;
+        spoolDirectory = new File(System.getProperty("java.io.tmpdir"), "olfs-async-spool");
+
         usePendingAndGoneResponses = true;
 
         dap4DataRegex = "(.*\\.dap((\\.xml)|(\\.csv)|(\\.nc))?$)";
@@ -127,7 +135,12 @@ public class AsyncDispatcher extends BesDapDispatcher {
         ingestCachePersistTime(config);
         ingestResponseDelay(config);
         ingestUsePendingGone(config);
+        ingestJobThreads(config);
+        ingestJobQueueSize(config);
+        ingestSpoolDirectory(config);
 
+        if(jobManager==null)
+            jobManager = new AsyncJobManager(jobThreads, jobQueueSize, spoolDirectory, cachePersistTime);
 
         // What follows is a hack to get a particular BES, the BES with prefix, to service these requests.
         //
@@ -261,6 +274,78 @@ public class AsyncDispatcher extends BesDapDispatcher {
 
 
 
+    private void ingestJobThreads(Element config) throws Exception{
+
+        String msg;
+
+        Element e = config.getChild("jobThreads");
+
+
+        if(e!=null)
+            jobThreads = Integer.parseInt(e.getTextTrim());
+
+        if(jobThreads < 1){
+            msg = "Bad Configuration. The <Handler> " +
+                    "element that declares " + this.getClass().getName() +
+                    " MUST provide a <jobThreads>  " +
+                    "child element whose value may not be less than 1";
+            log.error(msg);
+            throw new Exception(msg);
+        }
+        log.info("jobThreads="+ jobThreads);
+
+    }
+
+
+
+    private void ingestJobQueueSize(Element config) throws Exception{
+
+        String msg;
+
+        Element e = config.getChild("jobQueueSize");
+
+
+        if(e!=null)
+            jobQueueSize = Integer.parseInt(e.getTextTrim());
+
+        if(jobQueueSize < 1){
+            msg = "Bad Configuration. The <Handler> " +
+                    "element that declares " + this.getClass().getName() +
+                    " MUST provide a <jobQueueSize>  " +
+                    "child element whose value may not be less than 1";
+            log.error(msg);
+            throw new Exception(msg);
+        }
+        log.info("jobQueueSize="+ jobQueueSize);
+
+    }
+
+
+
+    private void ingestSpoolDirectory(Element config) throws Exception{
+
+        Element e = config.getChild("spoolDirectory");
+
+
+        if(e!=null && e.getTextTrim().length()>0)
+            spoolDirectory = new File(e.getTextTrim());
+
+        log.info("spoolDirectory="+ spoolDirectory);
+
+    }
+
+
+
+    @Override
+    public void destroy() {
+        if(jobManager!=null)
+            jobManager.destroy();
+        jobManager = null;
+        super.destroy();
+    }
+
+
+
 
     @Override
     public boolean requestDispatch(HttpServletRequest request,
@@ -428,49 +513,97 @@ public class AsyncDispatcher extends BesDapDispatcher {
 
 
 
+    /**
+     * DAP2 clients know nothing of asynchronous responses, so the request waits for the job
+     * that produces the response, which it shares with every other request for the same
+     * resource, and is then sent the spooled result.
+     */
     public boolean asyncDap2DataResponse(HttpServletRequest request, HttpServletResponse response) throws Exception {
 
-        Date now = new Date();
+        String jobId = getJobId(request);
 
-        Date timeAvailable;
+        AsyncJob job = jobManager.getJob(jobId);
 
-        String xmlBase = DocFactory.getXmlBase(request);
-
-        timeAvailable = addResourceToCacheAsNeeded(xmlBase);
+        if(job!=null && (job.getState()==AsyncJob.State.FAILED || job.getState()==AsyncJob.State.EXPIRED)){
+            jobManager.remove(job);
+            job = null;
+        }
 
-        long timeTillReady = timeAvailable.getTime() - now.getTime();
+        if(job==null){
+            try {
+                job = submitJob(jobId, new RequestSnapshot(request));
+            }
+            catch(RejectedExecutionException e){
+                log.warn("The asynchronous job queue is full. Answering DAP2 data request directly.");
+                return(super.requestDispatch(request,response,true));
+            }
+        }
 
-        if(timeTillReady>0){
-            log.info("Delaying DAP2 data request for "+timeTillReady+"ms");
-            try { Thread.sleep(timeTillReady);}
-            catch(InterruptedException e){ log.error("Thread Interrupted. msg: "+e.getMessage());}
+        log.info("Waiting for DAP2 data response job: "+jobId);
+        if(!job.await(Math.max(responseDelay,1))){
+            // Don't hold the container's thread any longer. The job keeps running, so the
+            // client can ask again and be sent its result.
+            log.warn("DAP2 data response job "+jobId+" did not finish within "+responseDelay+" ms.");
+            response.setHeader("Retry-After", Integer.toString(Math.max(getResponseDelay_s(),1)));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The requested resource is not yet available. Please try again later.");
+            return true;
         }
 
-        return(super.requestDispatch(request,response,true));
+        if(job.sendResult(response))
+            return true;
 
+        // The job failed, or its result expired before it could be sent. Answering the request
+        // directly produces the response, or the error that explains why it can't be produced.
+        return(super.requestDispatch(request,response,true));
 
     }
 
 
     /**
+     * Starts the job that produces the response to the request, unless there already is one.
      *
-     * @param id  The resource ID
-     * @return  The time at which the resource will be available.
+     * @param jobId The job id.
+     * @param request The request to answer. It must not depend on the client's request object,
+     *                which the container recycles once the client has been answered.
+     * @return The job.
+     * @throws RejectedExecutionException When there is no room in the job queue.
      */
-    private Date addResourceToCacheAsNeeded(String id){
-
-        Date now = new Date();
-        Date timeAvailable;
-
-        timeAvailable = new Date(now.getTime()+ getResponseDelay_ms());
-
-        Date resourceAvailabilityTime = asyncCache.putIfAbsent(id,timeAvailable);
-
-        if(resourceAvailabilityTime != null)
-            return resourceAvailabilityTime;
+    private AsyncJob submitJob(String jobId, final HttpServletRequest request) throws RejectedExecutionException {
+        return jobManager.submit(jobId, new AsyncJobManager.Work() {
+            @Override
+            public void run(HttpServletResponse response) throws Exception {
+                AsyncDispatcher.super.requestDispatch(request, response, true);
+            }
+        });
+    }
 
-        return timeAvailable;
 
+    /**
+     * The job id is the request URL and its query string, without the async control parameter,
+     * so that the request that starts a job and the requests that come for its result agree.
+     *
+     * @param request The client request.
+     * @return The id of the job that answers the request.
+     */
+    private String getJobId(HttpServletRequest request){
+
+        StringBuilder id = new StringBuilder(request.getRequestURL());
+
+        String query = request.getQueryString();
+        if(query!=null){
+            StringBuilder ce = new StringBuilder();
+            for(String term : query.split("&")){
+                if(term.equals("async") || term.startsWith("async="))
+                    continue;
+                if(ce.length()>0)
+                    ce.append("&");
+                ce.append(term);
+            }
+            if(ce.length()>0)
+                id.append("?").append(ConditionalRequest.normalizeConstraint(ce.toString()));
+        }
+        return id.toString();
     }
 
 
@@ -478,10 +611,6 @@ public class AsyncDispatcher extends BesDapDispatcher {
 
     public boolean asyncDap4DataResponse(HttpServletRequest request, HttpServletResponse response) throws Exception {
 
-        Date now = new Date();
-        Date startTime;
-        String xmlBase = DocFactory.getXmlBase(request);
-
 
         long clientAcceptableDelay_ms = getClientAsyncAcceptVal_ms(request);
 
@@ -509,56 +638,61 @@ public class AsyncDispatcher extends BesDapDispatcher {
             // Looks like the client wants an async response!
 
             // First, let's figure out if the request is for a pending, or expired resource.
-            startTime = asyncCache.get(xmlBase);
-            if(startTime!=null) {
-
-                Date endTime = new Date(startTime.getTime()+cachePersistTime);
-
-                if(now.after(startTime)){
-                    if(now.before(endTime) ){
-                        // The request is for an available resource. I.e. The requested resource is in the cache,
-                        // it's start has past and it's end time has not yet arrived. So - send the data.
-
-                        // And because this is hack to add DAP4 functionality to a DAP2 server, make the request
-                        // palatable to the underlying DAP2 service.
-                        Dap4RequestToDap2Request dap2Request = new Dap4RequestToDap2Request(request);
-                        return(super.requestDispatch(dap2Request,response,true));
-                    }
-                    else if(now.after(endTime)){
-
-
-                        if(usePendingAndGoneResponses){
-                            // Async Response is expired. Return GONE!
-                            Document asyncResponse = DocFactory.getAsynchronousResponseGone(request);
-                            sendDocument(response, asyncResponse, HttpServletResponse.SC_GONE);
-                            asyncCache.remove(xmlBase, startTime);
-                        }
-                        else {
-                            asyncCache.remove(xmlBase, startTime);
-                            throw new NotFound("The requested resource is no longer available.");
-                        }
-
-                        return true;
-                    }
+            String jobId = getJobId(request);
+            AsyncJob job = jobManager.getJob(jobId);
+
+            if(job==null){
+                // There's no job for the resource, so start one, and then
+                // tell the client that the request is accepted.
+                try {
+                    // Because this is hack to add DAP4 functionality to a DAP2 server, make the request
+                    // palatable to the underlying DAP2 service.
+                    submitJob(jobId, new Dap4RequestToDap2Request(new RequestSnapshot(request)));
                 }
-                else {
-                    if(usePendingAndGoneResponses){
-                        // Async Response is PENDING!
-                        Document asyncResponse = DocFactory.getAsynchronousResponsePending(request);
-                        sendDocument(response, asyncResponse, HttpServletResponse.SC_CONFLICT);
-                    }
-                    else {
-                        throw new NotFound("The requested resource is not yet available.");
-                    }
+                catch(RejectedExecutionException e){
+                    Document asyncResponse = DocFactory.getAsynchronousResponseRejected(request,
+                            DocFactory.reasonCode.UNAVAILABLE,
+                            "The server is too busy to accept the asynchronous request. Please try again later.");
+                    sendDocument(response, asyncResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
                     return true;
+                }
+                sendAsyncRequestAccepted(request,response);
+                return true;
+            }
 
+            AsyncJob.State state = job.getState();
+
+            if(state==AsyncJob.State.PENDING){
+                if(usePendingAndGoneResponses){
+                    // Async Response is PENDING!
+                    Document asyncResponse = DocFactory.getAsynchronousResponsePending(request);
+                    sendDocument(response, asyncResponse, HttpServletResponse.SC_CONFLICT);
+                }
+                else {
+                    throw new NotFound("The requested resource is not yet available.");
                 }
+                return true;
+            }
+
+            // The request is for an available resource, so send the data.
+            if(state==AsyncJob.State.READY && job.sendResult(response))
+                return true;
+
+            if(state==AsyncJob.State.FAILED){
+                jobManager.remove(job);
+                throw new InternalError("Unable to produce the asynchronous response. msg: "+job.getFailure());
             }
 
-            // The resource is not in the cache, so add the resource to the cache. and then
-            // tell the client that the request is accepted.
-            addResourceToCacheAsNeeded(xmlBase);
-            sendAsyncRequestAccepted(request,response);
+            // Async Response is expired, or was removed as it was about to be sent.
+            jobManager.remove(job);
+            if(usePendingAndGoneResponses){
+                // Return GONE!
+                Document asyncResponse = DocFactory.getAsynchronousResponseGone(request);
+                sendDocument(response, asyncResponse, HttpServletResponse.SC_GONE);
+            }
+            else {
+                throw new NotFound("The requested resource is no longer available.");
+            }
 
             return true;
         }
@@ -729,11 +863,6 @@ public class AsyncDispatcher extends BesDapDispatcher {
 
         public HttpSession getSession() { return r.getSession(); }
 
-        @Override
-        public String changeSessionId() {
-            return r.changeSessionId();
-        }
-
         public boolean isRequestedSessionIdValid() { return r.isRequestedSessionIdValid(); }
 
         public boolean isRequestedSessionIdFromCookie() { return r.isRequestedSessionIdFromCookie(); }
@@ -770,11 +899,6 @@ public class AsyncDispatcher extends BesDapDispatcher {
             return r.getPart(s);
         }
 
-        @Override
-        public <T extends HttpUpgradeHandler> T upgrade(Class<T> aClass) throws IOException, ServletException {
-            return r.upgrade(aClass);
-        }
-
         public Object getAttribute(String s) { return r.getAttribute(s); }
 
         public Enumeration getAttributeNames() { return r.getAttributeNames(); }
@@ -785,11 +909,6 @@ public class AsyncDispatcher extends BesDapDispatcher {
 
         public int getContentLength() { return r.getContentLength(); }
 
-        @Override
-        public long getContentLengthLong() {
-            return r.getContentLengthLong();
-        }
-
         public String getContentType() { return r.getContentType(); }
 
         public ServletInputStream getInputStream() throws IOException { return r.getInputStream(); }
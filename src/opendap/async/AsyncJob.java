@@ -0,0 +1,215 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.async;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An asynchronous response: the work that produces it, where its result is spooled, and
+ * where it is in its life. A job is PENDING until the response has been produced, then READY
+ * (or FAILED) until cachePersistTime has passed, then EXPIRED, at which point the result is
+ * deleted and the job is kept only so that clients can be told the result is gone.
+ */
+public class AsyncJob {
+
+    public enum State {
+        PENDING,
+        READY,
+        FAILED,
+        EXPIRED
+    }
+
+    private final String _id;
+    private final File _spoolFile;
+    private final long _created;
+    private final CountDownLatch _done;
+
+    private volatile State _state;
+    private volatile long _finished;
+    private volatile long _expires;
+    private volatile String _failure;
+    private volatile SpoolResponse _result;
+
+
+    AsyncJob(String id, File spoolFile) {
+        _id = id;
+        _spoolFile = spoolFile;
+        _created = System.currentTimeMillis();
+        _done = new CountDownLatch(1);
+        _state = State.PENDING;
+        _finished = -1;
+        _expires = Long.MAX_VALUE;
+        _failure = null;
+        _result = null;
+    }
+
+
+    public String getId() {
+        return _id;
+    }
+
+    public State getState() {
+        return _state;
+    }
+
+    public long getCreated() {
+        return _created;
+    }
+
+    /**
+     * @return When the job finished, in milliseconds. -1 while it is PENDING.
+     */
+    public long getFinished() {
+        return _finished;
+    }
+
+    /**
+     * @return When the result expires, in milliseconds.
+     */
+    public long getExpires() {
+        return _expires;
+    }
+
+    /**
+     * @return Why the job FAILED. Null if it didn't.
+     */
+    public String getFailure() {
+        return _failure;
+    }
+
+    File getSpoolFile() {
+        return _spoolFile;
+    }
+
+
+    void ready(SpoolResponse result, long expires) {
+        _result = result;
+        _finished = System.currentTimeMillis();
+        _expires = expires;
+        _state = State.READY;
+        _done.countDown();
+    }
+
+    void failed(String failure, long expires) {
+        _failure = failure;
+        _finished = System.currentTimeMillis();
+        _expires = expires;
+        _state = State.FAILED;
+        _done.countDown();
+    }
+
+    /**
+     * Deletes the result if it has outlived its expiry time.
+     * @param now The time, in milliseconds.
+     * @return True if the job became EXPIRED.
+     */
+    synchronized boolean expireAsNeeded(long now) {
+        if ((_state != State.READY && _state != State.FAILED) || now <= _expires)
+            return false;
+        _state = State.EXPIRED;
+        _result = null;
+        _spoolFile.delete();
+        return true;
+    }
+
+
+    /**
+     * Waits for the job to finish.
+     * @param timeout The longest time to wait, in milliseconds. 0 to wait for as long as it takes.
+     * @return True if the job finished.
+     * @throws InterruptedException When the waiting thread is interrupted.
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        if (timeout <= 0) {
+            _done.await();
+            return true;
+        }
+        return _done.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Sends the spooled result to a client: the status, content type and headers that were
+     * produced with it, then the body, copied from the spool file by the file channel.
+     *
+     * @param response The response to the client.
+     * @return False if the job is not READY, or its result was removed before it could be
+     * sent, in which case nothing has been written to the response.
+     * @throws IOException When the result can't be sent.
+     */
+    public boolean sendResult(HttpServletResponse response) throws IOException {
+        SpoolResponse result = _result;
+        if (_state != State.READY || result == null)
+            return false;
+
+        FileInputStream fis;
+        try {
+            fis = new FileInputStream(_spoolFile);
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+
+        try {
+            FileChannel in = fis.getChannel();
+            long size = in.size();
+
+            response.setStatus(result.getStatus());
+            if (result.getContentType() != null)
+                response.setContentType(result.getContentType());
+            for (Map.Entry<String, List<String>> header : result.getHeaderMap().entrySet()) {
+                if (header.getKey().equalsIgnoreCase("Content-Length"))
+                    continue;
+                for (String value : header.getValue())
+                    response.addHeader(header.getKey(), value);
+            }
+            response.setHeader("Content-Length", Long.toString(size));
+
+            OutputStream os = response.getOutputStream();
+            WritableByteChannel out = Channels.newChannel(os);
+            long position = 0;
+            while (position < size)
+                position += in.transferTo(position, size - position, out);
+            os.flush();
+        } finally {
+            fis.close();
+        }
+        return true;
+    }
+
+}
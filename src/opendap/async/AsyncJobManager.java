@@ -0,0 +1,301 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.async;
+
+import opendap.coreServlet.RequestCache;
+import opendap.logging.LogUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Produces asynchronous responses on a bounded pool of background threads and spools them
+ * to disk, so that the request that starts a job is answered at once and the clients that
+ * come back for the result are sent the spool file.
+ *
+ * Jobs are kept by id. A result is kept for persistTime after the job finishes, after which
+ * the spool file is deleted and the job becomes an EXPIRED tombstone, kept for another
+ * persistTime so that the clients that come late can be told the result is gone.
+ */
+public class AsyncJobManager {
+
+    /**
+     * The work that produces a job's response.
+     */
+    public interface Work {
+        void run(HttpServletResponse response) throws Exception;
+    }
+
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    private final Logger log;
+
+    private final File _spoolDir;
+    private final long _persistTime;
+    private final ThreadPoolExecutor _executor;
+    private final ScheduledExecutorService _sweeper;
+    private final ConcurrentHashMap<String, AsyncJob> _jobs;
+    private final AtomicLong _sequence;
+
+    private final AtomicLong _submitted;
+    private final AtomicLong _completed;
+    private final AtomicLong _failed;
+    private final AtomicLong _rejected;
+    private final AtomicLong _expired;
+
+
+    /**
+     * @param threads The number of jobs that may run at once.
+     * @param queueSize The number of jobs that may wait for a thread. Jobs submitted when
+     *                  the queue is full are rejected.
+     * @param spoolDir Where results are spooled. Left over spool files are deleted.
+     * @param persistTime How long, in milliseconds, a result is kept after the job finishes.
+     * @throws IOException When the spool directory can't be made.
+     */
+    public AsyncJobManager(int threads, int queueSize, File spoolDir, long persistTime) throws IOException {
+        log = LoggerFactory.getLogger(getClass());
+
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs())
+            throw new IOException("Unable to create the asynchronous response spool directory: " + spoolDir);
+        File[] leftOvers = spoolDir.listFiles();
+        if (leftOvers != null) {
+            for (File f : leftOvers) {
+                if (f.getName().endsWith(SPOOL_SUFFIX) && !f.delete())
+                    log.warn("AsyncJobManager() - Unable to delete old spool file: {}", f);
+            }
+        }
+
+        _spoolDir = spoolDir;
+        _persistTime = persistTime;
+        _jobs = new ConcurrentHashMap<String, AsyncJob>();
+        _sequence = new AtomicLong(0);
+
+        _submitted = new AtomicLong(0);
+        _completed = new AtomicLong(0);
+        _failed = new AtomicLong(0);
+        _rejected = new AtomicLong(0);
+        _expired = new AtomicLong(0);
+
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "olfs-async-job-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        _executor.allowCoreThreadTimeOut(true);
+
+        _sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "olfs-async-job-sweeper");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long period = Math.max(1000, Math.min(persistTime, 60000));
+        _sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep();
+                } catch (Throwable t) {
+                    log.error("sweep() - Failed to remove expired results. msg: {}", t.getMessage());
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+
+        log.info("AsyncJobManager() - threads: {} queueSize: {} spoolDir: {} persistTime: {} ms",
+                new Object[]{threads, queueSize, spoolDir, persistTime});
+    }
+
+
+    /**
+     * @param id The job id.
+     * @return The job, null if there isn't one. A job whose result has outlived persistTime
+     * is returned EXPIRED.
+     */
+    public AsyncJob getJob(String id) {
+        AsyncJob job = _jobs.get(id);
+        if (job != null)
+            expireAsNeeded(job, System.currentTimeMillis());
+        return job;
+    }
+
+
+    /**
+     * Starts a job, unless there already is one with the same id.
+     *
+     * @param id The job id.
+     * @param work Produces the response.
+     * @return The job that was started, or the one that already had the id.
+     * @throws RejectedExecutionException When there is no room in the queue for the job.
+     */
+    public AsyncJob submit(String id, final Work work) throws RejectedExecutionException {
+
+        File spoolFile = new File(_spoolDir, "job-" + _sequence.incrementAndGet() + SPOOL_SUFFIX);
+        final AsyncJob job = new AsyncJob(id, spoolFile);
+
+        AsyncJob existing = _jobs.putIfAbsent(id, job);
+        if (existing != null)
+            return existing;
+
+        final Map<String, String> mdc = LogUtil.getMdcCopy();
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runJob(job, work, mdc);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            _jobs.remove(id, job);
+            _rejected.incrementAndGet();
+            log.warn("submit() - Job queue is full, rejecting job: {}", id);
+            throw e;
+        }
+        _submitted.incrementAndGet();
+        log.debug("submit() - Submitted job: {}", id);
+        return job;
+    }
+
+
+    private void runJob(AsyncJob job, Work work, Map<String, String> mdc) {
+        if (mdc != null)
+            MDC.setContextMap(mdc);
+        RequestCache.openThreadCache();
+
+        SpoolResponse spool = new SpoolResponse(job.getSpoolFile());
+        try {
+            work.run(spool);
+            spool.close();
+            job.ready(spool, expiresAt(System.currentTimeMillis()));
+            _completed.incrementAndGet();
+            log.debug("runJob() - Job {} is ready. {} bytes spooled.", job.getId(), job.getSpoolFile().length());
+        } catch (Throwable t) {
+            try {
+                spool.close();
+            } catch (IOException e) {
+                log.debug("runJob() - Unable to close spool file: {}", e.getMessage());
+            }
+            job.getSpoolFile().delete();
+            job.failed(t.getMessage(), expiresAt(System.currentTimeMillis()));
+            _failed.incrementAndGet();
+            log.error("runJob() - Job {} failed. msg: {}", job.getId(), t.getMessage());
+        } finally {
+            RequestCache.closeThreadCache();
+            MDC.clear();
+        }
+    }
+
+    private long expiresAt(long now) {
+        return now + _persistTime;
+    }
+
+
+    /**
+     * Forgets a job, deleting its result.
+     * @param job The job.
+     */
+    public void remove(AsyncJob job) {
+        if (_jobs.remove(job.getId(), job) && job.getState() != AsyncJob.State.PENDING)
+            job.getSpoolFile().delete();
+    }
+
+
+    private void expireAsNeeded(AsyncJob job, long now) {
+        if (job.expireAsNeeded(now)) {
+            _expired.incrementAndGet();
+            log.debug("expireAsNeeded() - Result for job {} has expired.", job.getId());
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (AsyncJob job : _jobs.values()) {
+            expireAsNeeded(job, now);
+            if (job.getState() == AsyncJob.State.EXPIRED && now > job.getExpires() + _persistTime)
+                _jobs.remove(job.getId(), job);
+        }
+    }
+
+
+    /**
+     * Stops the job threads, interrupting running jobs, and deletes the spooled results.
+     */
+    public void destroy() {
+        _sweeper.shutdownNow();
+        _executor.shutdownNow();
+        try {
+            if (!_executor.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("destroy() - Asynchronous job threads did not stop within 10 seconds.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (AsyncJob job : _jobs.values()) {
+            // Jobs that never ran would leave the requests waiting on them waiting forever.
+            if (job.getState() == AsyncJob.State.PENDING)
+                job.failed("The server is shutting down.", 0);
+            job.getSpoolFile().delete();
+        }
+        _jobs.clear();
+    }
+
+
+    public String getStatistics() {
+        return "[AsyncJobManager threads: " + _executor.getMaximumPoolSize() +
+                " active: " + _executor.getActiveCount() +
+                " queued: " + _executor.getQueue().size() +
+                " jobs: " + _jobs.size() +
+                " submitted: " + _submitted.get() +
+                " completed: " + _completed.get() +
+                " failed: " + _failed.get() +
+                " rejected: " + _rejected.get() +
+                " expired: " + _expired.get() +
+                "]";
+    }
+
+}
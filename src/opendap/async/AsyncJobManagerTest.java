@@ -0,0 +1,150 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.async;
+
+import opendap.coreServlet.ServletFixtures;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks that AsyncJobManager spools a job's response and replays it, status, headers and
+ * body, to the clients that come for it, and that failed and expired jobs are reported.
+ */
+public class AsyncJobManagerTest {
+
+    private File _spoolDir;
+    private AsyncJobManager _jobs;
+
+    private void start(long persistTime) throws Exception {
+        _jobs = new AsyncJobManager(2, 4, _spoolDir, persistTime);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _spoolDir = File.createTempFile("AsyncJobManagerTest", "");
+        Assert.assertTrue(_spoolDir.delete());
+    }
+
+    @After
+    public void tearDown() {
+        if (_jobs != null)
+            _jobs.destroy();
+        File[] files = _spoolDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                f.delete();
+        }
+        _spoolDir.delete();
+    }
+
+    @Test
+    public void testSpoolAndReplay() throws Exception {
+        start(60000);
+
+        AsyncJob job = _jobs.submit("dds", new AsyncJobManager.Work() {
+            @Override
+            public void run(HttpServletResponse response) throws Exception {
+                response.setContentType("text/plain; charset=UTF-8");
+                response.setHeader("Content-Description", "dods_dds");
+                response.setContentLength(9999);
+                PrintWriter pw = response.getWriter();
+                pw.print("Dataset {\n    Float32 lat[lat = 180];\n} sst;\n");
+                pw.flush();
+            }
+        });
+        Assert.assertTrue(job.await(10000));
+        Assert.assertEquals(AsyncJob.State.READY, job.getState());
+
+        // A second submit with the same id gets the job that is already there.
+        Assert.assertSame(job, _jobs.submit("dds", null));
+        Assert.assertSame(job, _jobs.getJob("dds"));
+
+        // Each client that comes for the result gets all of it.
+        for (int i = 0; i < 2; i++) {
+            ServletFixtures.RecordingResponse r = new ServletFixtures.RecordingResponse();
+            Assert.assertTrue(job.sendResult(r.getResponse()));
+            String body = r.getBodyString();
+            Assert.assertEquals(HttpServletResponse.SC_OK, r.getStatus());
+            Assert.assertEquals("text/plain; charset=UTF-8", r.getContentType());
+            Assert.assertEquals("dods_dds", r.getHeader("Content-Description"));
+            // The length sent is that of the spool file, not the one the work declared.
+            Assert.assertEquals(Integer.toString(body.length()), r.getHeader("Content-Length"));
+            Assert.assertTrue(body.startsWith("Dataset {"));
+        }
+
+        _jobs.remove(job);
+        Assert.assertNull(_jobs.getJob("dds"));
+        Assert.assertFalse(job.getSpoolFile().exists());
+    }
+
+    @Test
+    public void testFailedJob() throws Exception {
+        start(60000);
+
+        AsyncJob job = _jobs.submit("broken", new AsyncJobManager.Work() {
+            @Override
+            public void run(HttpServletResponse response) throws Exception {
+                response.getOutputStream().write(new byte[100]);
+                throw new Exception("BES went away");
+            }
+        });
+        Assert.assertTrue(job.await(10000));
+        Assert.assertEquals(AsyncJob.State.FAILED, job.getState());
+        Assert.assertEquals("BES went away", job.getFailure());
+        Assert.assertFalse(job.getSpoolFile().exists());
+        Assert.assertFalse(job.sendResult(new ServletFixtures.RecordingResponse().getResponse()));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        start(50);
+
+        AsyncJob job = _jobs.submit("das", new AsyncJobManager.Work() {
+            @Override
+            public void run(HttpServletResponse response) throws Exception {
+                response.getOutputStream().write("Attributes {\n}\n".getBytes(StandardCharsets.UTF_8));
+            }
+        });
+        Assert.assertTrue(job.await(10000));
+        Assert.assertTrue(job.getSpoolFile().exists());
+
+        Thread.sleep(200);
+        // The job is kept as a tombstone, so that the late clients can be told the result is gone.
+        Assert.assertSame(job, _jobs.getJob("das"));
+        Assert.assertEquals(AsyncJob.State.EXPIRED, job.getState());
+        Assert.assertFalse(job.getSpoolFile().exists());
+        Assert.assertFalse(job.sendResult(new ServletFixtures.RecordingResponse().getResponse()));
+    }
+
+}
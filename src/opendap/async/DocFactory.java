@@ -70,7 +70,8 @@ public class DocFactory {
 
 
     public enum reasonCode {
-        TIME("time");
+        TIME("time"),
+        UNAVAILABLE("unavailable");
 
         private reasonCode(final String text) {
             this.text = text;
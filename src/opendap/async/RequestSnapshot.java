@@ -0,0 +1,266 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.async;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A copy of the parts of a request that the DAP responders use, so that the request can be
+ * answered after the container has recycled the original request object.
+ *
+ * The headers that would make the response conditional, partial or compressed are left out,
+ * so that what is produced from the snapshot is always the complete, identity encoded,
+ * response, fit to be saved and sent to any client later.
+ */
+public class RequestSnapshot extends HttpServletRequestWrapper {
+
+    private static final String[] DROPPED_HEADERS = {
+            "Accept-Encoding",
+            "Range",
+            "If-Range",
+            "If-Match",
+            "If-None-Match",
+            "If-Modified-Since",
+            "If-Unmodified-Since"
+    };
+
+    private final String _method;
+    private final String _requestURI;
+    private final String _requestURL;
+    private final String _contextPath;
+    private final String _servletPath;
+    private final String _pathInfo;
+    private final String _queryString;
+    private final String _scheme;
+    private final String _serverName;
+    private final int _serverPort;
+    private final String _protocol;
+    private final String _remoteUser;
+    private final String _remoteAddr;
+    private final String _remoteHost;
+    private final Principal _userPrincipal;
+    private final String _characterEncoding;
+    private final Locale _locale;
+
+    private final Map<String, List<String>> _headers;
+    private final Map<String, String[]> _parameters;
+    private final Map<String, Object> _attributes;
+
+
+    public RequestSnapshot(HttpServletRequest request) {
+        super(request);
+
+        _method = request.getMethod();
+        _requestURI = request.getRequestURI();
+        _requestURL = request.getRequestURL().toString();
+        _contextPath = request.getContextPath();
+        _servletPath = request.getServletPath();
+        _pathInfo = request.getPathInfo();
+        _queryString = request.getQueryString();
+        _scheme = request.getScheme();
+        _serverName = request.getServerName();
+        _serverPort = request.getServerPort();
+        _protocol = request.getProtocol();
+        _remoteUser = request.getRemoteUser();
+        _remoteAddr = request.getRemoteAddr();
+        _remoteHost = request.getRemoteHost();
+        _userPrincipal = request.getUserPrincipal();
+        _characterEncoding = request.getCharacterEncoding();
+        _locale = request.getLocale();
+
+        _headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+        Enumeration<String> names = request.getHeaderNames();
+        while (names != null && names.hasMoreElements()) {
+            String name = names.nextElement();
+            List<String> values = new ArrayList<String>();
+            Enumeration<String> e = request.getHeaders(name);
+            while (e.hasMoreElements())
+                values.add(e.nextElement());
+            _headers.put(name, values);
+        }
+        for (String name : DROPPED_HEADERS)
+            _headers.remove(name);
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+        for (Map.Entry<String, String[]> entry : request.getParameterMap().entrySet())
+            parameters.put(entry.getKey(), entry.getValue().clone());
+        _parameters = Collections.unmodifiableMap(parameters);
+
+        _attributes = new ConcurrentHashMap<String, Object>();
+        Enumeration<String> attributeNames = request.getAttributeNames();
+        while (attributeNames != null && attributeNames.hasMoreElements()) {
+            String name = attributeNames.nextElement();
+            Object value = request.getAttribute(name);
+            if (value != null)
+                _attributes.put(name, value);
+        }
+    }
+
+
+    @Override public String getMethod() { return _method; }
+    @Override public String getRequestURI() { return _requestURI; }
+    @Override public StringBuffer getRequestURL() { return new StringBuffer(_requestURL); }
+    @Override public String getContextPath() { return _contextPath; }
+    @Override public String getServletPath() { return _servletPath; }
+    @Override public String getPathInfo() { return _pathInfo; }
+    @Override public String getQueryString() { return _queryString; }
+    @Override public String getScheme() { return _scheme; }
+    @Override public String getServerName() { return _serverName; }
+    @Override public int getServerPort() { return _serverPort; }
+    @Override public String getProtocol() { return _protocol; }
+    @Override public String getRemoteUser() { return _remoteUser; }
+    @Override public String getRemoteAddr() { return _remoteAddr; }
+    @Override public String getRemoteHost() { return _remoteHost; }
+    @Override public Principal getUserPrincipal() { return _userPrincipal; }
+    @Override public String getCharacterEncoding() { return _characterEncoding; }
+    @Override public Locale getLocale() { return _locale; }
+
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = _headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+        List<String> values = _headers.get(name);
+        return Collections.enumeration(values == null ? Collections.<String>emptyList() : values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+        return Collections.enumeration(new ArrayList<String>(_headers.keySet()));
+    }
+
+    @Override
+    public int getIntHeader(String name) {
+        String value = getHeader(name);
+        return value == null ? -1 : Integer.parseInt(value.trim());
+    }
+
+    @Override
+    public long getDateHeader(String name) {
+        String value = getHeader(name);
+        if (value == null)
+            return -1;
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return format.parse(value).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Unable to parse the date in the " + name + " header: " + value);
+        }
+    }
+
+
+    @Override
+    public String getParameter(String name) {
+        String[] values = _parameters.get(name);
+        return values == null || values.length == 0 ? null : values[0];
+    }
+
+    @Override
+    public String[] getParameterValues(String name) {
+        String[] values = _parameters.get(name);
+        return values == null ? null : values.clone();
+    }
+
+    @Override
+    public Map<String, String[]> getParameterMap() {
+        return _parameters;
+    }
+
+    @Override
+    public Enumeration<String> getParameterNames() {
+        return Collections.enumeration(new ArrayList<String>(_parameters.keySet()));
+    }
+
+
+    @Override
+    public Object getAttribute(String name) {
+        return _attributes.get(name);
+    }
+
+    @Override
+    public Enumeration<String> getAttributeNames() {
+        return Collections.enumeration(new ArrayList<String>(_attributes.keySet()));
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null)
+            _attributes.remove(name);
+        else
+            _attributes.put(name, value);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+        _attributes.remove(name);
+    }
+
+
+    /**
+     * The session belongs to the client's request, which is gone.
+     */
+    @Override
+    public HttpSession getSession(boolean create) {
+        return null;
+    }
+
+    @Override
+    public HttpSession getSession() {
+        return null;
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return false;
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        return false;
+    }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.async;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * A response that is saved to a spool file instead of being sent to a client. The status,
+ * content type and headers are kept with it so that the response can be sent, just as it
+ * was produced, to the clients that come for it later.
+ */
+public class SpoolResponse implements HttpServletResponse {
+
+    private final File _spoolFile;
+    private OutputStream _fileStream;
+    private ServletOutputStream _outputStream;
+    private PrintWriter _writer;
+
+    private int _status;
+    private String _contentType;
+    private String _characterEncoding;
+    private Locale _locale;
+    private int _bufferSize;
+    private boolean _committed;
+    private final Map<String, List<String>> _headers;
+
+
+    public SpoolResponse(File spoolFile) {
+        _spoolFile = spoolFile;
+        _fileStream = null;
+        _outputStream = null;
+        _writer = null;
+        _status = SC_OK;
+        _contentType = null;
+        _characterEncoding = "ISO-8859-1";
+        _locale = Locale.getDefault();
+        _bufferSize = 8192;
+        _committed = false;
+        _headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    }
+
+
+    public File getSpoolFile() {
+        return _spoolFile;
+    }
+
+    /**
+     * @return The headers that were set, by name. Content-Type is not among them.
+     */
+    public Map<String, List<String>> getHeaderMap() {
+        return _headers;
+    }
+
+
+    /**
+     * Flushes and closes the spool file. The response can't be written to after this.
+     * @throws IOException When the spool file can't be written.
+     */
+    public void close() throws IOException {
+        if (_writer != null)
+            _writer.flush();
+        if (_fileStream == null)
+            openSpool();
+        _fileStream.close();
+    }
+
+    private void openSpool() throws IOException {
+        if (_fileStream == null) {
+            _fileStream = new BufferedOutputStream(new FileOutputStream(_spoolFile), _bufferSize);
+            _committed = true;
+        }
+    }
+
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (_outputStream == null) {
+            openSpool();
+            _outputStream = new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    _fileStream.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    _fileStream.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    _fileStream.flush();
+                }
+            };
+        }
+        return _outputStream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (_writer == null)
+            _writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), _characterEncoding));
+        return _writer;
+    }
+
+
+    @Override public int getStatus() { return _status; }
+    @Override public void setStatus(int sc) { _status = sc; }
+    @Override @Deprecated public void setStatus(int sc, String sm) { _status = sc; }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        _status = sc;
+        if (msg != null) {
+            setContentType("text/plain");
+            getWriter().print(msg);
+        }
+        _committed = true;
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        sendError(sc, null);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        _status = SC_FOUND;
+        setHeader("Location", location);
+        _committed = true;
+    }
+
+
+    @Override
+    public String getContentType() {
+        return _contentType;
+    }
+
+    @Override
+    public void setContentType(String type) {
+        _contentType = type;
+        if (type != null) {
+            int i = type.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+            if (i >= 0)
+                _characterEncoding = type.substring(i + "charset=".length()).trim();
+        }
+    }
+
+    @Override public String getCharacterEncoding() { return _characterEncoding; }
+    @Override public void setCharacterEncoding(String charset) { _characterEncoding = charset; }
+    @Override public Locale getLocale() { return _locale; }
+    @Override public void setLocale(Locale loc) { _locale = loc; }
+
+    @Override
+    public void setContentLength(int len) {
+        setHeader("Content-Length", Integer.toString(len));
+    }
+
+    /**
+     * Not part of the Servlet 3.0 API this is built against, but kept for responders that use it.
+     */
+    public void setContentLengthLong(long len) {
+        setHeader("Content-Length", Long.toString(len));
+    }
+
+
+    @Override
+    public boolean containsHeader(String name) {
+        return _headers.containsKey(name);
+    }
+
+    @Override
+    public String getHeader(String name) {
+        List<String> values = _headers.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        List<String> values = _headers.get(name);
+        return values == null ? new ArrayList<String>() : new ArrayList<String>(values);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return new ArrayList<String>(_headers.keySet());
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        List<String> values = new ArrayList<String>();
+        values.add(value);
+        _headers.put(name, values);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        List<String> values = _headers.get(name);
+        if (values == null) {
+            values = new ArrayList<String>();
+            _headers.put(name, values);
+        }
+        values.add(value);
+    }
+
+    @Override public void setIntHeader(String name, int value) { setHeader(name, Integer.toString(value)); }
+    @Override public void addIntHeader(String name, int value) { addHeader(name, Integer.toString(value)); }
+    @Override public void setDateHeader(String name, long date) { setHeader(name, httpDate(date)); }
+    @Override public void addDateHeader(String name, long date) { addHeader(name, httpDate(date)); }
+
+    private static String httpDate(long date) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(date));
+    }
+
+    /**
+     * Cookies are for the client that made the request, not for the clients that collect the result.
+     */
+    @Override public void addCookie(Cookie cookie) { }
+
+    @Override public String encodeURL(String url) { return url; }
+    @Override public String encodeRedirectURL(String url) { return url; }
+    @Override @Deprecated public String encodeUrl(String url) { return url; }
+    @Override @Deprecated public String encodeRedirectUrl(String url) { return url; }
+
+
+    @Override public void setBufferSize(int size) { _bufferSize = size; }
+    @Override public int getBufferSize() { return _bufferSize; }
+    @Override public boolean isCommitted() { return _committed; }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (_writer != null)
+            _writer.flush();
+        openSpool();
+        _fileStream.flush();
+    }
+
+    /**
+     * Nothing is buffered apart from the spool file, so a reset is only possible before
+     * anything has been written.
+     */
+    @Override
+    public void resetBuffer() {
+        if (_committed)
+            throw new IllegalStateException("The spooled response has already been written to.");
+    }
+
+    @Override
+    public void reset() {
+        resetBuffer();
+        _status = SC_OK;
+        _contentType = null;
+        _headers.clear();
+    }
+
+}
@@ -73,6 +73,13 @@ public class GlacierBesApi extends BesApi {
 
     }
 
+    @Override
+    public String getBesDataSourceID(String relativeUrl, String besDataSourceId, Pattern matchPattern, boolean checkWithBes){
+
+        return getBesDataSourceID(relativeUrl,matchPattern,checkWithBes);
+
+    }
+
 
     @Override
     public boolean writeDDS(String dataSource, String constraintExpression, String xdap_accept, OutputStream os, OutputStream err) throws BadConfigurationException, BESError, IOException, PPTException {
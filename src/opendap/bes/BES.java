@@ -46,10 +46,6 @@ import org.slf4j.LoggerFactory;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
 import java.security.MessageDigest;
@@ -71,19 +67,15 @@ public class BES {
     private Logger log;
     private HashLog hashLog;
 
-    private ArrayBlockingQueue<OPeNDAPClient> _clientQueue;
-    private ConcurrentHashMap<String, OPeNDAPClient> _clients;
-    private Semaphore _checkOutFlag;
+    private BesClientPool _clientPool;
+    private BesHealth _health;
     private BESConfig _config;
-    private int totalClients;
     private ReentrantLock _adminLock;
     // private OPeNDAPClient adminClient;
 
 
     private Document _serverVersionDocument;
     private ReentrantLock _versionDocLock;
-    private ReentrantLock _clientsMapLock;
-    private ReentrantLock _clientCheckoutLock;
 
     private static final Namespace BES_NS = opendap.namespaces.BES.BES_NS;
     private static final Namespace BES_ADMIN_NS = opendap.namespaces.BES.BES_ADMIN_NS;
@@ -95,16 +87,11 @@ public class BES {
 
         hashLog = new HashLog();
 
-        _clientQueue = new ArrayBlockingQueue<>(getMaxClients(), true);
-        _clientCheckoutLock = new ReentrantLock(true);
-
-        _checkOutFlag = new Semaphore(getMaxClients(), true);
-        totalClients = 0;
+        _clientPool = new BesClientPool(getNickName()==null?getPrefix():getNickName(), _config);
+        _health = new BesHealth(getNickName()==null?getPrefix():getNickName());
 
         _adminLock = new ReentrantLock(true);
         _versionDocLock = new ReentrantLock(true);
-        _clientsMapLock = new ReentrantLock(true);
-        _clients = new ConcurrentHashMap<>();
 
 
         log.debug("BES built with configuration: \n" + _config);
@@ -342,11 +329,25 @@ public class BES {
 
 
     public int getBesClientCount() {
-        return _clients.size();
+        return _clientPool.getClientCount();
     }
 
     public Enumeration<OPeNDAPClient> getClients() {
-        return _clients.elements();
+        return _clientPool.getClients();
+    }
+
+    /**
+     * @return The pool of client connections to this BES. Exposed so that its counters may be reported.
+     */
+    public BesClientPool getClientPool() {
+        return _clientPool;
+    }
+
+    /**
+     * @return The load and circuit breaker state BesGroup uses to route requests to this BES.
+     */
+    public BesHealth getHealth() {
+        return _health;
     }
 
     public String toString() {
@@ -461,114 +462,68 @@ public class BES {
         String besResponse = null;
 
 
-        String msg = "Attempting to acquire client checkOut lock...";
+        String msg = "Attempting to acquire all BES clients...";
         log.info(msg);
         sb.append(msg).append("\n");
-        _clientCheckoutLock.lock();
-        try {
-            try {
 
-                Date startTime = new Date();
+        boolean acquiredAll = false;
+        try {
+            acquiredAll = _clientPool.acquireAll(timeOut);
+            if (acquiredAll) {
+                msg = "Acquired all BES clients.";
+            } else {
+                msg = "Timeout Has Expired. Shutting down BES NOW...";
+            }
+            log.info(msg);
+            sb.append(msg).append("\n");
 
-                boolean done = false;
-                msg = "Attempting to acquire all BES clients...";
+            OPeNDAPClient client;
+            while ((client = _clientPool.takeIdleClientForShutdown()) != null) {
+                msg = "Shutting down client connection '" + client.getID() + "'...";
                 log.info(msg);
                 sb.append(msg).append("\n");
 
-                while (!done) {
-
-                    Collection<OPeNDAPClient> clients = _clients.values();
-
-                    boolean allClientsAcquired = true;
-                    for (OPeNDAPClient client : clients) {
-                        boolean inQue = _clientQueue.remove(client);
-                        if (!inQue) {
-                            allClientsAcquired = false;
-                        } else {
-                            msg = "Shutting down client connection '" + client.getID() + "'...";
-                            log.info(msg);
-                            sb.append(msg).append("\n");
-
-                            try {
-
-                                discardClient(client);
-                                //client.shutdownClient();
-                                msg = "Client connection '" + client.getID() + "'shutdown normally";
-                                log.info(msg);
-                                sb.append(msg).append("\n");
-
-                            } catch (PPTException e) {
-                                msg = "Shutdown FAILED for client connection '" + client.getID() + "'Trying to kill connection.";
-                                log.info(msg);
-                                sb.append(msg).append("\n");
-
-                                client.killClient();
-
-                                msg = "Killed client connection '" + client.getID() + "'.";
-                                log.info(msg);
-                                sb.append(msg).append("\n");
-
-
-                            }
-                            msg = "Removing client connection '" + client.getID() + "' from clients list.";
-                            log.info(msg);
-                            sb.append(msg).append("\n");
-                            _clients.remove(client.getID());
-                        }
-                    }
-
-                    if (!allClientsAcquired) {
-                        Date endTime = new Date();
-
-                        long elapsedTime = endTime.getTime() - startTime.getTime();
-
-                        if (elapsedTime > timeOut) {
-                            done = true;
-                            msg = "Timeout Has Expired. Shutting down BES NOW...";
-                            log.info(msg);
-                            sb.append(msg).append("\n");
-                        } else {
-                            msg = "Did not acquire all clients. Sleeping...";
-                            log.info(msg);
-                            sb.append(msg).append("\n");
-                            Thread.sleep(timeOut / 3);
-                        }
-
-
-                    } else {
-                        done = true;
-
-
-                        msg = "Stopped all BES client connections.";
-                        log.info(msg);
-                        sb.append(msg).append("\n");
+                try {
+                    shutdownClient(client);
+                    msg = "Client connection '" + client.getID() + "'shutdown normally";
+                    log.info(msg);
+                    sb.append(msg).append("\n");
 
-                    }
+                } catch (PPTException e) {
+                    msg = "Shutdown FAILED for client connection '" + client.getID() + "'Trying to kill connection.";
+                    log.info(msg);
+                    sb.append(msg).append("\n");
 
+                    client.killClient();
 
+                    msg = "Killed client connection '" + client.getID() + "'.";
+                    log.info(msg);
+                    sb.append(msg).append("\n");
                 }
+            }
 
-                msg = "Stopping BES...";
-                log.info(msg);
-                sb.append(msg).append("\n");
-                besResponse = stopNow();
-                //log.info(besResponse);
+            msg = "Stopped all idle BES client connections.";
+            log.info(msg);
+            sb.append(msg).append("\n");
 
+            msg = "Stopping BES...";
+            log.info(msg);
+            sb.append(msg).append("\n");
+            besResponse = stopNow();
+            //log.info(besResponse);
 
-            } catch (InterruptedException e) {
+        } catch (InterruptedException e) {
 
-                sb.append(e.getMessage());
+            sb.append(e.getMessage());
 
-            } finally {
-                msg = "Releasing client checkout lock...";
+        } finally {
+            if (acquiredAll) {
+                msg = "Releasing client checkout permits...";
                 log.info(msg);
                 sb.append(msg).append("\n");
+                _clientPool.releaseAll();
             }
         }
-        finally {
-            _clientCheckoutLock.unlock();
-
-        }
 
 
         return besResponse;
@@ -734,9 +689,11 @@ public class BES {
         ByteArrayOutputStream erros = new ByteArrayOutputStream();
         SAXBuilder sb = new SAXBuilder();
 
-        OPeNDAPClient oc = getClient();
+        long healthTicket = _health.transactionStarted();
+        OPeNDAPClient oc = getClientForTransaction(healthTicket);
 
         if(oc==null){
+            _health.transactionFinished(healthTicket, true);
             String msg = "FAILED to retrieve valid OPeNDAPClient (connection to BES)!";
             log.error("besTransaction() - {}", msg);
             throw new IOException(msg);
@@ -745,7 +702,7 @@ public class BES {
         log.debug("besTransaction() request document: \n{}-----------\n",showRequest(request));
         LoggerFactory.getLogger("BesCommandLog").info("BES COMMAND: \n{}----------------------\n",showRequest(request));
 
-        Procedure timedProc = Timer.start();
+        Procedure timedProc = Timer.start("BES.besTransaction");
 
         try {
 
@@ -841,6 +798,7 @@ public class BES {
             throw e;
 
         } finally {
+            _health.transactionFinished(healthTicket, trouble);
             returnClient(oc, trouble);
 
             Timer.stop(timedProc);
@@ -868,8 +826,11 @@ public class BES {
         log.debug("besTransaction() - Started (DOC-OS).");
 
         boolean besTrouble = false;
-        OPeNDAPClient oc = getClient();
+        boolean discardClient = false;
+        long healthTicket = _health.transactionStarted();
+        OPeNDAPClient oc = getClientForTransaction(healthTicket);
         if(oc==null){
+            _health.transactionFinished(healthTicket, true);
             String msg = "FAILED to retrieve a valid OPeNDAPClient instance! "+
                     "BES Prefix: "+getPrefix()+" BES NickName: "+getNickName()+" BES Host: "+getHost();
             log.error("besTransaction() - {}",msg);
@@ -880,8 +841,9 @@ public class BES {
         log.debug("besTransaction() request document: \n-----------\n{}-----------\n",showRequest(request));
         LoggerFactory.getLogger("BesCommandLog").info("BES COMMAND: \n{}----------------------\n",showRequest(request));
 
-        Procedure timedProc = Timer.start();
+        Procedure timedProc = Timer.start("BES.besTransactionToStream");
 
+        DestinationStream destination = new DestinationStream(os);
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -889,7 +851,7 @@ public class BES {
             try {
                 // Create a digeststream and write the output on it
                 MessageDigest messageDigest = MessageDigest.getInstance("SHA1");
-                DigestOutputStream digestStream = new DigestOutputStream(os, messageDigest);
+                DigestOutputStream digestStream = new DigestOutputStream(destination, messageDigest);
                 result = oc.sendRequest(request, digestStream, baos);
 
                 // Calculate hash
@@ -897,8 +859,8 @@ public class BES {
                 byte[] digest = md.digest();
                 log.debug("Hash Calculated");
 
-                // Insert hash to db
-                hashLog.insertHash(digest, showRequestCompact(request), request);
+                // Queue the hash for the hash log writer
+                hashLog.insertHash(digest, request);
 
             } catch (NoSuchAlgorithmException e) {
                 log.error("Missing algorithm",e);
@@ -916,6 +878,7 @@ public class BES {
                 int besErrCode = besError.getBesErrorCode();
                 if( besErrCode==BESError.INTERNAL_FATAL_ERROR || besErrCode==BESError.TIME_OUT ){
                     besTrouble = true;
+                    discardClient = true;
                 }
                 throw besError;
             }
@@ -924,25 +887,81 @@ public class BES {
         catch (PPTException e) {
 
             // e.printStackTrace();
-            besTrouble = true;
+            // The connection is left part way through a response either way, but when it was
+            // the write to the client that failed (the client went away) the BES is not at fault.
+            discardClient = true;
+            besTrouble = !destination.failed();
 
             String msg = "Problem encountered with BES connection. Message: '"  + e.getMessage() + "' " +
                     "OPeNDAPClient executed " + oc.getCommandCount() + " prior commands.";
 
-            log.error("besGetTransaction() - {}",msg);
+            if(besTrouble)
+                log.error("besGetTransaction() - {}",msg);
+            else
+                log.debug("besGetTransaction() - The response destination stopped accepting data. {}",msg);
 
             e.setErrorMessage(msg);
 
             throw e;
         }
         finally {
-            returnClient(oc, besTrouble);
+            _health.transactionFinished(healthTicket, besTrouble);
+            returnClient(oc, discardClient);
             Timer.stop(timedProc);
         }
 
     }
 
 
+    /**
+     * Passes a BES response on to its destination, and notes whether writing to the destination
+     * failed, so that a client that goes away part way through a response is not held against the
+     * health of the BES.
+     */
+    private static class DestinationStream extends FilterOutputStream {
+
+        private boolean _failed = false;
+
+        DestinationStream(OutputStream os) {
+            super(os);
+        }
+
+        boolean failed() {
+            return _failed;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                _failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                _failed = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                _failed = true;
+                throw e;
+            }
+        }
+    }
+
+
 
     String showRequest(Document request) throws IOException{
         XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
@@ -1059,126 +1078,39 @@ public class BES {
 
 
     /**
-     * The pool of availableInChunk OPeNDAPClient connections starts empty. When this
-     * method is called the pool is checked. If no client is availableInChunk, and the
-     * number of clients has not reached the cap, then a new one is made,
-     * started, and returned. If no client is availableInChunk and the cap has been
-     * reached then this method will BLOCK until a client becomes availableInChunk.
-     * If a client is availableInChunk, it is returned.
+     * Retrieves a client from the client pool. If no idle client is available,
+     * and the number of clients has not reached the cap, then a new one is made,
+     * started, and returned. If no client is available and the cap has been
+     * reached then this method will BLOCK until a client becomes available.
      *
-     * @return The next availableInChunk OPeNDAPClient.
+     * @return The next available OPeNDAPClient.
      * @throws opendap.ppt.PPTException  .
-     * @throws BadConfigurationException .
+     * @see BesClientPool#checkOut()
      */
     public OPeNDAPClient getClient()
             throws PPTException {
 
-        OPeNDAPClient besClient = null;
-
-        if (_checkOutFlag == null)
-            return null;
-
-        _clientCheckoutLock.lock();
-        try {
-
-            // Acquiring this semaphore is what limits the number
-            // of clients that will be in the pool. The number of
-            // semaphores available is set to MaxClients.
-            _checkOutFlag.acquire();
-
-            log.debug("_clientQueue size: '{}'",_clientQueue.size());
-
-            if (_clientQueue.size() == 0) {
-
-                besClient = getNewClient();
-
-            } else {
-
-                // Get a client from the client pool.
-                besClient = _clientQueue.take();
-                log.debug("getClient() - Retrieved BES Client (id: " + besClient.getID() + ") from Pool.");
-
-                //log.debug("{}",besClient.showConnectionProperties());
-
-                // If the bes connection is closed, or the client just is not connected, pitch the client
-                // and make a new one, if you can...
-                if(besClient.isClosed() || !besClient.isConnected()){
-                    log.warn("getClient() - BES Client (id: " + besClient.getID() + ") appears to be dead, discarding...");
-                    discardClient(besClient);
-                    besClient = getNewClient();
-                }
-
-
-
-            }
-
-
-            return besClient;
-
-        } catch (InterruptedException e) {
-            log.error("getClient() - Interrupted!: " + e.getMessage());
-            if (besClient != null) {
-                log.error("getClient() - Attempting to discard BES Client id: " + besClient.getID());
-                discardClient(besClient);
-                _checkOutFlag.release(); // Release the client permit because this client is hosed...
-            }
-            throw new PPTException(e);
-        } finally {
-            _clientCheckoutLock.unlock();
-        }
-
+        return _clientPool.checkOut();
 
     }
 
-    private OPeNDAPClient getNewClient() throws PPTException, InterruptedException  {
-
-        // Make a new OPeNDAClient to connect to the BES
-        OPeNDAPClient besClient = new OPeNDAPClient();
-
-        log.debug("getNewClient() - Made new BES Client. Starting...");
 
-        // Start the client by opening the PPT connection to the BES.
+    /**
+     * Retrieves a client for a transaction that has been started on the BesHealth. If that fails
+     * the transaction is finished as a failure before the exception is passed on.
+     *
+     * @param healthTicket The value returned by BesHealth.transactionStarted().
+     * @return The next available OPeNDAPClient.
+     * @throws PPTException When a connection to the BES can't be made.
+     */
+    private OPeNDAPClient getClientForTransaction(long healthTicket) throws PPTException {
         try {
-            besClient.startClient(getHost(), getPort(), getTimeout());
-            log.debug("getNewClient() - BES Client started.");
-
-        }
-        catch (PPTException ppte){
-
-            _checkOutFlag.release(); // Release the client permit because this client is hosed...
-
-            StringBuilder msg = new StringBuilder().append("BES Client Failed To Start. ");
-            msg.append("Message: '").append(ppte.getMessage()).append("' ");
-
-
-            besClient.setID(new Date().toString() + msg);
-
-            String logMsg = "getNewClient() - " + msg;
-            log.error(logMsg);
-
-            throw new PPTException(msg.toString(),ppte);
+            return getClient();
         }
-
-
-        // Add it to the client pool
-        try {
-            _clientsMapLock.lock();
-            String clientId = (getNickName()==null?getPrefix():getNickName());
-            if(clientId.isEmpty())
-                clientId = "besC";
-            clientId += "-" + totalClients;
-            besClient.setID(clientId);
-            _clients.put(clientId, besClient);
-            totalClients++;
-
-            log.debug("getNewClient() - BES Client assigned ID : " + besClient.getID());
-
-        } finally {
-            _clientsMapLock.unlock();
+        catch (PPTException | RuntimeException e) {
+            _health.transactionFinished(healthTicket, true);
+            throw e;
         }
-
-        return besClient;
-
     }
 
 
@@ -1192,98 +1124,17 @@ public class BES {
      */
     public void returnClient(OPeNDAPClient dapClient, boolean discard) throws PPTException {
 
-
-        if (dapClient == null)
-            return;
-
-        //log.debug("returnClient() clientID="+dapClient.getID()+"  discard="+discard);
-
-
-        try {
-
-            if (discard) {
-                discardClient(dapClient);
-            } else {
-                checkInClient(dapClient);
-            }
-
-        } catch (PPTException e) {
-
-
-            String msg = "returnClient() *** BES - WARNING! Problem with " +
-                    "OPeNDAPClient, discarding.";
-
-            log.error(msg);
-            try {
-                _clientsMapLock.lock();
-                _clients.remove(dapClient.getID());
-            } finally {
-                _clientsMapLock.unlock();
-            }
-
-            throw new PPTException(msg, e);
-        } finally {
-            _checkOutFlag.release();
-        }
-
+        _clientPool.checkIn(dapClient, discard);
 
     }
 
 
-    private void checkInClient(OPeNDAPClient dapClient) throws PPTException {
-
-
-        if (_config.getMaxCommands() > 0 && dapClient.getCommandCount() > _config.getMaxCommands()) {
-            discardClient(dapClient);
-            log.debug("checkInClient() This instance of OPeNDAPClient (id:" +
-                    dapClient.getID() + ") has " +
-                    "excecuted " + dapClient.getCommandCount() +
-                    " commands which is in excess of the maximum command " +
-                    "limit of " + _config.getMaxCommands() + ", discarding client.");
-
-        } else {
-
-            if (_clientQueue.offer(dapClient)) {
-                log.debug("checkInClient() Returned OPeNDAPClient (id:" +
-                        dapClient.getID() + ") to Pool.");
-            } else {
-                log.error("checkInClient(): OUCH! OUCH! OUCH! The Pool is " +
-                        "full and I need to check in a client! This Should " +
-                        "NEVER Happen!");
-            }
-
-        }
-
-
-    }
-
-
-    private void discardClient(OPeNDAPClient dapClient) throws PPTException {
-        // By failing to put the client into the queue and
-        // removing the client from the _clients Map the client is
-        // discarded.
-
-
-        if(dapClient != null){
-            log.debug("discardClient() Discarding OPeNDAPClient #" + dapClient.getID());
-
-            try {
-                _clientsMapLock.lock();
-                if (dapClient.getID() != null)
-                    _clients.remove(dapClient.getID());
-            } finally {
-                _clientsMapLock.unlock();
-            }
-
-
-            if (dapClient.isRunning()) {
-                shutdownClient(dapClient);
-            }
-        }
-        else {
-            log.error("discardClient() received a null value.");
-        }
-
+    /**
+     * Opens the configured number of client connections to the BES in the background
+     * so that they are ready before the first request arrives.
+     */
+    public void prewarmClientPool() {
+        _clientPool.prewarmAsync();
     }
 
 
@@ -1303,76 +1154,12 @@ public class BES {
      */
     public void destroy() {
 
-        boolean nicely = false;
-        boolean gotClientCheckoutLock = false;
-
         try {
-            if (_clientCheckoutLock.tryLock(10, TimeUnit.SECONDS)) {
-                gotClientCheckoutLock = true;
-
-                log.debug("destroy() Attempting to acquire all clients...");
-
-
-                if (_checkOutFlag.tryAcquire(getMaxClients(), 10, TimeUnit.SECONDS)) {
-                    log.debug("destroy() All "+getMaxClients()+" client permits acquired.");
-
-                    log.debug("destroy() " + _clientQueue.size() +
-                            " client(s) to shutdown.");
-
-
-                    int i = 0;
-                    while (_clientQueue.size() > 0) {
-                        OPeNDAPClient odc = _clientQueue.take();
-                        log.debug("destroy() Retrieved OPeNDAPClient["
-                                + i++ + "] (id:" + odc.getID() + ") from queue.");
-
-                        try {
-                            shutdownClient(odc);
-                        } catch (Throwable t) {
-                            log.error("destroy() Failed to shutdown " +
-                                    "OPeNDAPClient (id:" + odc.getID() + ") msg: " +
-                                    t.getMessage(), t);
-                        }
-
-
-                    }
-                    _checkOutFlag.release(getMaxClients());
-                    nicely = true;
-                }
-
-
-            }
+            _clientPool.destroy(10000);
         } catch (Throwable e) {
-            log.error("destroy() OUCH! Problem shutting down BESPool", e);
-        } finally {
-            //_checkOutFlag = null;
-            if (gotClientCheckoutLock)
-                _clientCheckoutLock.unlock();
+            log.error("destroy() OUCH! Problem shutting down BesClientPool", e);
         }
 
-
-        if (!nicely) {
-            log.debug("destroy() Timed Out. Destroying BES Clients.");
-
-            try {
-                _clientsMapLock.lock();
-                for (OPeNDAPClient oc: _clients.values()) {
-                    if (oc != null) {
-                        log.debug("destroy() Killing BES Client (id:" +
-                                oc.getID() + ")");
-                        oc.killClient();
-                    } else {
-                        log.error("destroy() Retrieved a 'null' BES Client instance from _clients collection!");
-
-                    }
-
-                }
-            } finally {
-                _clientsMapLock.unlock();
-            }
-        }
-
-
     }
 
 //------------------------------------------------------------------------------
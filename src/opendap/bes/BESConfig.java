@@ -58,6 +58,13 @@ public class BESConfig  {
     private  String  _BesPrefix;
     private  int     _BesTimeOut;  // in ms
 
+    private  int     _BesClientPrewarm;
+    private  int     _BesClientMinIdle;
+    private  long    _BesClientIdleTimeOut;  // in ms
+    private  long    _BesClientProbeInterval;  // in ms
+
+    private  boolean _useNioTransport;
+
     private  String  _BesNickName;
 
 
@@ -77,6 +84,11 @@ public class BESConfig  {
         _BesMaxResponseSize = 0;
         _BesNickName = null;
         _BesTimeOut = 300000; // 5 minutes in ms
+        _BesClientPrewarm = -1; // Use MaxClients
+        _BesClientMinIdle = 0;
+        _BesClientIdleTimeOut = 600000; // 10 minutes in ms
+        _BesClientProbeInterval = 30000; // 30 seconds in ms
+        _useNioTransport = false;
     }
 
     public BESConfig(Document besConfiguration) throws Exception{
@@ -107,6 +119,11 @@ public class BESConfig  {
         copy._BesPrefix          = _BesPrefix;
         copy._BesNickName        = _BesNickName;
         copy._BesTimeOut         = _BesTimeOut;
+        copy._BesClientPrewarm       = _BesClientPrewarm;
+        copy._BesClientMinIdle       = _BesClientMinIdle;
+        copy._BesClientIdleTimeOut   = _BesClientIdleTimeOut;
+        copy._BesClientProbeInterval = _BesClientProbeInterval;
+        copy._useNioTransport        = _useNioTransport;
 
         return copy;
     }
@@ -218,6 +235,13 @@ public class BESConfig  {
             log.info("BES '{}' maxResponseSize set to {}",getPrefix(), getMaxResponseSize());
         }
 
+        //  <transport>nio</transport>
+        Element transport = besConfig.getChild("transport");
+        if( transport!=null ){
+            setTransport(transport.getTextTrim());
+            log.info("BES '{}' transport set to {}",getPrefix(), getTransport());
+        }
+
         Element timeOut = besConfig.getChild("timeOut");
         if( timeOut!=null ){
             setTimeOut(timeOut.getTextTrim());
@@ -275,6 +299,48 @@ public class BESConfig  {
             log.info("BES '{}' clients be used for at most {} commands",getPrefix(), getMaxCommands());
 
 
+            Attribute prewarm = clientPool.getAttribute("prewarm");
+            if(prewarm != null){
+                int count = prewarm.getIntValue();
+                if(count<0){
+                    throw new Exception("OLFS configuration document does not " +
+                            "contain correct content. The <ClientPool> element " +
+                            "MAY contain an Attribute called \"prewarm\" whose " +
+                            "value is an integer greater than or equal to 0 (zero).");
+                }
+                setClientPrewarm(count);
+            }
+            log.info("BES '{}' client pool will pre-warm {} connections",getPrefix(), getClientPrewarm());
+
+
+            Attribute minIdle = clientPool.getAttribute("minIdle");
+            if(minIdle != null){
+                int count = minIdle.getIntValue();
+                if(count<0){
+                    throw new Exception("OLFS configuration document does not " +
+                            "contain correct content. The <ClientPool> element " +
+                            "MAY contain an Attribute called \"minIdle\" whose " +
+                            "value is an integer greater than or equal to 0 (zero).");
+                }
+                setClientMinIdle(count);
+            }
+
+
+            Attribute idleTimeout = clientPool.getAttribute("idleTimeout");
+            if(idleTimeout != null){
+                setClientIdleTimeOut(idleTimeout.getLongValue());
+            }
+            log.info("BES '{}' idle clients will be evicted after {} ms (keeping at least {})",
+                    new Object[]{getPrefix(), getClientIdleTimeOut(), getClientMinIdle()});
+
+
+            Attribute probeInterval = clientPool.getAttribute("probeInterval");
+            if(probeInterval != null){
+                setClientProbeInterval(probeInterval.getLongValue());
+            }
+            log.info("BES '{}' idle clients will be probed every {} ms",getPrefix(), getClientProbeInterval());
+
+
         }
 
 
@@ -361,15 +427,23 @@ public class BESConfig  {
         adminPort.setText(String.valueOf(getMaxResponseSize()));
 
 
+        Element transport = new Element("transport");
+        transport.setText(getTransport());
+
         Element clientPool = new Element("ClientPool");
         clientPool.setAttribute("maximum",Integer.toString(_BesMaxClients));
         clientPool.setAttribute("maxCmds",Integer.toString(_BesMaxCommands));
+        clientPool.setAttribute("prewarm",Integer.toString(getClientPrewarm()));
+        clientPool.setAttribute("minIdle",Integer.toString(_BesClientMinIdle));
+        clientPool.setAttribute("idleTimeout",Long.toString(_BesClientIdleTimeOut/1000));
+        clientPool.setAttribute("probeInterval",Long.toString(_BesClientProbeInterval/1000));
 
         bes.addContent(prefix);
         bes.addContent(host);
         bes.addContent(port);
         bes.addContent(adminPort);
         bes.addContent(maxResponseSize);
+        bes.addContent(transport);
         bes.addContent(clientPool);
 
         return bes;
@@ -414,6 +488,25 @@ public class BESConfig  {
     public int getTimeOut() { return _BesTimeOut; }
 
 
+    /**
+     *
+     * @param transport The PPT transport used to talk to the BES. Either "nio" (java.nio SocketChannel)
+     *                  or "socket" (java.net.Socket, the default).
+     * @throws Exception When the transport is not recognized.
+     */
+    public void setTransport(String transport) throws Exception {
+        if(transport.equalsIgnoreCase("nio"))
+            _useNioTransport = true;
+        else if(transport.equalsIgnoreCase("socket"))
+            _useNioTransport = false;
+        else
+            throw new Exception("OLFS configuration document does not contain correct content. " +
+                    "The value of the <transport> element must be either \"nio\" or \"socket\". Found: \""+transport+"\"");
+    }
+    public String getTransport(){ return _useNioTransport?"nio":"socket"; }
+    public boolean useNioTransport(){ return _useNioTransport; }
+
+
     public void setPrefix(String prefix){ _BesPrefix = prefix; }
     public String getPrefix() { return _BesPrefix; }
 
@@ -424,6 +517,44 @@ public class BESConfig  {
     public int getMaxClients(){ return _BesMaxClients;  }
 
 
+    /**
+     * @param count Number of client connections to open when the BES is initialized.
+     */
+    public void setClientPrewarm(int count){ _BesClientPrewarm = count; }
+
+    /**
+     * @return Number of client connections to open when the BES is initialized. Defaults to MaxClients.
+     */
+    public int getClientPrewarm(){ return _BesClientPrewarm<0 ? _BesMaxClients : Math.min(_BesClientPrewarm,_BesMaxClients); }
+
+    public void setClientMinIdle(int count){ _BesClientMinIdle = count; }
+    public int getClientMinIdle(){ return _BesClientMinIdle; }
+
+    /**
+     *
+     * @param idleTimeOut  Number of seconds a client may sit idle in the pool before it is evicted. Zero disables eviction.
+     */
+    public void setClientIdleTimeOut(long idleTimeOut){ _BesClientIdleTimeOut = idleTimeOut * 1000; }
+
+    /**
+     *
+     * @return  Number of milliseconds a client may sit idle in the pool before it is evicted.
+     */
+    public long getClientIdleTimeOut(){ return _BesClientIdleTimeOut; }
+
+    /**
+     *
+     * @param probeInterval  Number of seconds between health probes of idle clients. Zero disables probing.
+     */
+    public void setClientProbeInterval(long probeInterval){ _BesClientProbeInterval = probeInterval * 1000; }
+
+    /**
+     *
+     * @return  Number of milliseconds between health probes of idle clients.
+     */
+    public long getClientProbeInterval(){ return _BesClientProbeInterval; }
+
+
 
     public String toString(){
 
@@ -433,9 +564,14 @@ public class BESConfig  {
         s += "        Host:       " + getHost() + "\n";
         s += "        Port:       " + getPort() + "\n";
         s += "        Timeout:    " + getTimeOut() + " ms\n";
+        s += "        Transport:  " + getTransport() + "\n";
         s += "        adminPort:  " + getAdminPort() + "\n";
         s += "        MaxClients: " + getMaxClients() + "\n";
         s += "        MaxCommands/client: " + getMaxCommands() + "\n";
+        s += "        ClientPrewarm:      " + getClientPrewarm() + "\n";
+        s += "        ClientMinIdle:      " + getClientMinIdle() + "\n";
+        s += "        ClientIdleTimeout:  " + getClientIdleTimeOut() + " ms\n";
+        s += "        ClientProbeInterval: " + getClientProbeInterval() + " ms\n";
 
 
 
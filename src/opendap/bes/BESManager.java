@@ -26,7 +26,11 @@
 
 package opendap.bes;
 
+import opendap.coreServlet.ResponseCompression;
 import opendap.coreServlet.Scrub;
+import opendap.bes.hashing.DapResponseCache;
+import opendap.bes.hashing.HashLogWriter;
+import opendap.io.ResponseFlushPolicy;
 import opendap.ppt.PPTException;
 import org.jdom.Document;
 import org.jdom.Element;
@@ -75,6 +79,7 @@ public class BESManager {
 
             _config = (Element) config.clone();
             configure(config);
+            prewarmClientPools();
 
             _log.info("Initialized.");
 
@@ -109,6 +114,12 @@ public class BESManager {
 
         if(_isConfigured.get()) return;
 
+        ResponseFlushPolicy.init(besConfiguration.getChild("ResponseFlushing"));
+        HashLogWriter.init(besConfiguration.getChild("HashLog"));
+        BESResourceCache.init(besConfiguration.getChild("ResourceInfoCache"));
+        BesRoutingPolicy.init(besConfiguration.getChild("BesRouting"));
+        ResponseCompression.init(besConfiguration.getChild("ResponseCompression"));
+
 
         List besList = besConfiguration.getChildren("BES");
 
@@ -150,12 +161,30 @@ public class BESManager {
                     "contain at LEAST one BES configuration element. Whose " +
                     "prefix is \"/\". (Why? Think about it...)");
 
+        // The hash log doesn't say which BES made a response, so it's only used with a single BES prefix.
+        DapResponseCache.init(besConfiguration.getChild("ResponseCache"), _besCollection.size() == 1 ? "/" : null);
+
         _isConfigured.set(true);
 
 
     }
 
 
+    /**
+     * Starts opening client connections to every configured BES so that the
+     * connection pools are warm before the first request arrives.
+     */
+    private void prewarmClientPools() {
+        for (BesGroup besGroup : _besCollection) {
+            for (int i = 0; i < besGroup.size(); i++) {
+                BES bes = besGroup.get(i);
+                _log.debug("prewarmClientPools() - Pre-warming client pool for BES {}", bes);
+                bes.prewarmClientPool();
+            }
+        }
+    }
+
+
     public static void addBes(BES bes) throws Exception {
 
         Iterator<BesGroup> i = BESManager.getBesGroups();
@@ -280,6 +309,7 @@ public class BESManager {
             besGroup.destroy();
         }
         _log.debug("All BesGroup's have been shut down.");
+        HashLogWriter.shutdown(5000);
 
     }
 
@@ -0,0 +1,246 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.bes.dap2Responders.BesApi;
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A short lived, cross request cache of BESResource objects.
+ *
+ * Matching a request to a responder and answering getLastModified() each ask the BES about the
+ * same dataSource, often several times for one client request. This cache keeps the parsed
+ * BESResource (exists, isDataset, size, lastModified, serviceRefs) for a few seconds so those
+ * lookups are answered from memory. Loading is single-flight: when several threads ask for the
+ * same dataSource at once, one of them asks the BES and the others wait for its answer.
+ *
+ * Entries are keyed by BesApi class and dataSource, since BesApi subclasses may use different
+ * BES catalogs. Failed lookups are not cached.
+ *
+ * The cache is configured from the BESManager section of olfs.xml:
+ * <pre>
+ *     &lt;ResourceInfoCache ttl="5000" maxEntries="10000" /&gt;
+ * </pre>
+ * A ttl of 0 (zero) disables the cache.
+ */
+public class BESResourceCache {
+
+    private static final Logger log = LoggerFactory.getLogger(BESResourceCache.class);
+
+    private static volatile long _ttl = TimeUnit.SECONDS.toNanos(5);
+    private static volatile int _maxEntries = 10000;
+
+    private static final ConcurrentHashMap<String, Entry> _cache = new ConcurrentHashMap<String, Entry>();
+
+    private static final AtomicLong _hits = new AtomicLong(0);
+    private static final AtomicLong _loads = new AtomicLong(0);
+    private static final AtomicLong _sharedLoads = new AtomicLong(0);
+    private static final AtomicLong _purged = new AtomicLong(0);
+
+
+    private BESResourceCache() {
+    }
+
+
+    /**
+     * Configures the cache.
+     * @param config The ResourceInfoCache element. May be null, in which case the defaults are used.
+     * @throws Exception When an attribute value is not usable.
+     */
+    public static void init(Element config) throws Exception {
+        if (config == null)
+            return;
+
+        String s = config.getAttributeValue("ttl");
+        if (s != null) {
+            long ttl = Long.parseLong(s);
+            if (ttl < 0)
+                throw new Exception("The ttl attribute of the ResourceInfoCache element must be " +
+                        "an integer greater than or equal to 0 (zero).");
+            _ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+        }
+
+        s = config.getAttributeValue("maxEntries");
+        if (s != null) {
+            int maxEntries = Integer.parseInt(s);
+            if (maxEntries < 1)
+                throw new Exception("The maxEntries attribute of the ResourceInfoCache element must be " +
+                        "an integer greater than 0 (zero).");
+            _maxEntries = maxEntries;
+        }
+
+        _cache.clear();
+        log.info("init() - Resource info cache ttl: {} ms maxEntries: {}",
+                TimeUnit.NANOSECONDS.toMillis(_ttl), _maxEntries);
+    }
+
+
+    /**
+     * Returns the BESResource for the dataSource, asking the BES only if no current copy is cached
+     * and no other thread is already asking.
+     *
+     * @param dataSource The BES dataSource.
+     * @param besApi The BesApi to use to ask the BES.
+     * @return The BESResource.
+     * @throws Exception When the BESResource can't be built.
+     */
+    public static BESResource getResourceInfo(final String dataSource, final BesApi besApi) throws Exception {
+
+        if (_ttl == 0 || dataSource == null || besApi == null)
+            return new BESResource(dataSource, besApi);
+
+        String key = besApi.getClass().getName() + ":" + dataSource;
+        long now = System.nanoTime();
+
+        Entry entry = _cache.get(key);
+        if (entry != null && now - entry.created < _ttl) {
+            if (entry.isDone())
+                _hits.incrementAndGet();
+            else
+                _sharedLoads.incrementAndGet();
+            return entry.get(key);
+        }
+
+        Entry loader = new Entry(now, new Callable<BESResource>() {
+            @Override
+            public BESResource call() throws Exception {
+                return new BESResource(dataSource, besApi);
+            }
+        });
+
+        boolean installed = entry == null ? _cache.putIfAbsent(key, loader) == null : _cache.replace(key, entry, loader);
+        if (!installed) {
+            // Someone else started a load first, use theirs.
+            Entry current = _cache.get(key);
+            if (current != null) {
+                _sharedLoads.incrementAndGet();
+                return current.get(key);
+            }
+            _cache.put(key, loader);
+        }
+
+        _loads.incrementAndGet();
+        loader.run();
+        if (_cache.size() > _maxEntries)
+            purge();
+        return loader.get(key);
+    }
+
+
+    /**
+     * Removes expired entries and, if that is not enough, enough others to get below maxEntries.
+     */
+    private static void purge() {
+        long now = System.nanoTime();
+        int excess = _cache.size() - _maxEntries;
+        Iterator<Map.Entry<String, Entry>> i = _cache.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Entry> e = i.next();
+            if (now - e.getValue().created >= _ttl || excess > 0) {
+                i.remove();
+                excess--;
+                _purged.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * Drops every cached entry.
+     */
+    public static void clear() {
+        _cache.clear();
+    }
+
+    public static long getHits() {
+        return _hits.get();
+    }
+
+    /**
+     * @return The number of times the BES was asked.
+     */
+    public static long getLoads() {
+        return _loads.get();
+    }
+
+    /**
+     * @return The number of lookups that waited for another thread's request to the BES.
+     */
+    public static long getSharedLoads() {
+        return _sharedLoads.get();
+    }
+
+    public static int getSize() {
+        return _cache.size();
+    }
+
+    public static String getStatistics() {
+        return "[BESResourceCache ttl: " + TimeUnit.NANOSECONDS.toMillis(_ttl) + " ms" +
+                " entries: " + getSize() + "/" + _maxEntries +
+                " hits: " + getHits() +
+                " sharedLoads: " + getSharedLoads() +
+                " loads: " + getLoads() +
+                " purged: " + _purged.get() +
+                "]";
+    }
+
+
+    private static class Entry extends FutureTask<BESResource> {
+        final long created;
+
+        Entry(long created, Callable<BESResource> loader) {
+            super(loader);
+            this.created = created;
+        }
+
+        /**
+         * Waits for the load. A failed load is removed from the cache so the next lookup tries again.
+         */
+        BESResource get(String key) throws Exception {
+            try {
+                return get();
+            } catch (ExecutionException e) {
+                _cache.remove(key, this);
+                Throwable cause = e.getCause();
+                if (cause instanceof Exception)
+                    throw (Exception) cause;
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.bes.dap2Responders.BesApi;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that BESResourceCache shares one BES lookup between concurrent requests.
+ */
+public class BESResourceCacheTest {
+
+    private static final Namespace BES_NS = opendap.namespaces.BES.BES_NS;
+
+    /**
+     * Answers showCatalog from memory, slowly, and counts the calls.
+     */
+    private static class CountingBesApi extends BesApi {
+        final AtomicInteger calls = new AtomicInteger(0);
+
+        @Override
+        public void getBesCatalog(String dataSource, Document response) {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Element dataset = new Element("dataset", BES_NS);
+            dataset.setAttribute("name", dataSource);
+            dataset.setAttribute("size", "42");
+            dataset.setAttribute("lastModified", "2016-04-15T12:00:00");
+            dataset.setAttribute("node", "false");
+            dataset.addContent(new Element("serviceRef", BES_NS).setText("dap"));
+            Element root = new Element("response", BES_NS);
+            root.addContent(new Element("showCatalog", BES_NS).addContent(dataset));
+            response.setRootElement(root);
+        }
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final CountingBesApi besApi = new CountingBesApi();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<BESResource> results = new ArrayList<BESResource>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        BESResource r = BESResourceCache.getResourceInfo("/data/single_flight.nc", besApi);
+                        synchronized (results) {
+                            results.add(r);
+                        }
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        Assert.assertEquals(8, results.size());
+        Assert.assertEquals(1, besApi.calls.get());
+        for (BESResource r : results) {
+            Assert.assertTrue(r.isDataset());
+            Assert.assertEquals(42, r.getSize());
+        }
+
+        BESResourceCache.getResourceInfo("/data/single_flight.nc", besApi);
+        Assert.assertEquals(1, besApi.calls.get());
+        BESResourceCache.getResourceInfo("/data/other.nc", besApi);
+        Assert.assertEquals(2, besApi.calls.get());
+    }
+}
@@ -155,6 +155,21 @@ public class BESThreddsDispatchHandler implements DispatchHandler {
                               HttpServletResponse response)
             throws Exception {
 
+        CompressingResponse compressingResponse = ResponseCompression.wrap(request, response);
+        try {
+            sendThreddsCatalog(request, compressingResponse);
+        } catch (Exception e) {
+            compressingResponse.abort();
+            throw e;
+        }
+        compressingResponse.finish();
+    }
+
+
+    private void sendThreddsCatalog(HttpServletRequest request,
+                                    HttpServletResponse response)
+            throws Exception {
+
 
         _log.debug("handleRequest() - Processing THREDDS request.");
         Request oreq = new Request(_servlet,request);
@@ -177,6 +192,7 @@ public class BESThreddsDispatchHandler implements DispatchHandler {
         XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
         Document showCatalogDoc = new Document();
         _besApi.getBesCatalog(besCatalogName, showCatalogDoc);
+        _besApi.prefetchChildCatalogs(besCatalogName, showCatalogDoc);
         _log.debug(xmlo.outputString(showCatalogDoc));
 
         // Load the XSL for BESCatalog -> THREDDS catalog
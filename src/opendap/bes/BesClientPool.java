@@ -0,0 +1,594 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.ppt.OPeNDAPClient;
+import opendap.ppt.PPTException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of OPeNDAPClient connections to a single BES.
+ *
+ * The number of clients that may be checked out at once is limited by a
+ * (non-fair) Semaphore whose permits are set to the BES MaxClients value.
+ * Idle clients are held in a lock free deque, most recently used first, so
+ * that the common case of checking out a warm connection involves no locks.
+ *
+ * The pool can be pre-warmed so that connections are opened before the first
+ * request arrives. A maintenance task, run on a shared background thread,
+ * evicts connections that have been idle for too long and probes the
+ * remaining idle connections so that dead connections are discovered before
+ * a request checks them out.
+ */
+public class BesClientPool {
+
+    private Logger log;
+
+    private String _clientIdPrefix;
+    private BESConfig _config;
+
+    private Semaphore _permits;
+    private ConcurrentLinkedDeque<IdleClient> _idleClients;
+    private ConcurrentHashMap<String, OPeNDAPClient> _clients;
+
+    private AtomicInteger _idleCount;
+    private AtomicInteger _inUseCount;
+    private AtomicLong _clientSerialNumber;
+
+    private AtomicLong _checkOutCount;
+    private AtomicLong _checkOutWaitCount;
+    private AtomicLong _totalWaitNanos;
+    private AtomicLong _maxWaitNanos;
+    private AtomicLong _createdCount;
+    private AtomicLong _discardedCount;
+    private AtomicLong _evictedCount;
+    private AtomicLong _probeFailureCount;
+    private AtomicLong _startFailureCount;
+
+    private volatile boolean _isClosed;
+    private ScheduledFuture<?> _maintenanceTask;
+
+
+    private static final ScheduledExecutorService _maintenanceExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BesClientPoolMaintenance");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+
+    /**
+     * An idle client and the time at which it was returned to the pool.
+     * Instances are immutable and are only ever owned by the thread that
+     * removed them from the idle deque.
+     */
+    private static class IdleClient {
+        final OPeNDAPClient client;
+        final long idleSince;
+
+        IdleClient(OPeNDAPClient client, long idleSince) {
+            this.client = client;
+            this.idleSince = idleSince;
+        }
+    }
+
+
+    public BesClientPool(String clientIdPrefix, BESConfig config) {
+        log = LoggerFactory.getLogger(getClass());
+
+        _clientIdPrefix = clientIdPrefix;
+        if (_clientIdPrefix == null || _clientIdPrefix.isEmpty())
+            _clientIdPrefix = "besC";
+
+        _config = config;
+
+        _permits = new Semaphore(_config.getMaxClients(), false);
+        _idleClients = new ConcurrentLinkedDeque<>();
+        _clients = new ConcurrentHashMap<>();
+
+        _idleCount = new AtomicInteger(0);
+        _inUseCount = new AtomicInteger(0);
+        _clientSerialNumber = new AtomicLong(0);
+
+        _checkOutCount = new AtomicLong(0);
+        _checkOutWaitCount = new AtomicLong(0);
+        _totalWaitNanos = new AtomicLong(0);
+        _maxWaitNanos = new AtomicLong(0);
+        _createdCount = new AtomicLong(0);
+        _discardedCount = new AtomicLong(0);
+        _evictedCount = new AtomicLong(0);
+        _probeFailureCount = new AtomicLong(0);
+        _startFailureCount = new AtomicLong(0);
+
+        _isClosed = false;
+
+        long interval = _config.getClientProbeInterval();
+        if (interval > 0) {
+            _maintenanceTask = _maintenanceExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    /**
+     * Retrieves a client from the pool. If no idle client is available, and
+     * the number of checked out clients has not reached MaxClients, then a new
+     * one is made and started. If MaxClients clients are already checked out
+     * then this method will BLOCK until a client is returned.
+     *
+     * @return A running OPeNDAPClient, or null if the pool has been closed.
+     * @throws PPTException When a new client cannot be started or the calling
+     * thread is interrupted while waiting for a client.
+     */
+    public OPeNDAPClient checkOut() throws PPTException {
+
+        if (_isClosed)
+            return null;
+
+        long start = System.nanoTime();
+        if (!_permits.tryAcquire()) {
+            _checkOutWaitCount.incrementAndGet();
+            try {
+                _permits.acquire();
+            } catch (InterruptedException e) {
+                log.error("checkOut() - Interrupted!: " + e.getMessage());
+                throw new PPTException(e);
+            }
+        }
+        recordWait(System.nanoTime() - start);
+
+        boolean success = false;
+        try {
+            OPeNDAPClient besClient = null;
+
+            IdleClient idle;
+            while (besClient == null && (idle = _idleClients.pollFirst()) != null) {
+                _idleCount.decrementAndGet();
+                OPeNDAPClient candidate = idle.client;
+
+                // If the bes connection is closed, or the client just is not connected, pitch the client
+                // and try the next one.
+                if (candidate.isClosed() || !candidate.isConnected()) {
+                    log.warn("checkOut() - BES Client (id: {}) appears to be dead, discarding...", candidate.getID());
+                    discardQuietly(candidate);
+                } else {
+                    besClient = candidate;
+                    log.debug("checkOut() - Retrieved BES Client (id: {}) from Pool.", besClient.getID());
+                }
+            }
+
+            if (besClient == null)
+                besClient = startNewClient();
+
+            _inUseCount.incrementAndGet();
+            _checkOutCount.incrementAndGet();
+            success = true;
+            return besClient;
+
+        } finally {
+            if (!success)
+                _permits.release();
+        }
+    }
+
+
+    /**
+     * Returns a client to the pool.
+     *
+     * @param dapClient The OPeNDAPClient to return to the client pool.
+     * @param discard   Pitch it, it's broken.
+     * @throws PPTException When a discarded client fails to shutdown cleanly.
+     */
+    public void checkIn(OPeNDAPClient dapClient, boolean discard) throws PPTException {
+
+        if (dapClient == null)
+            return;
+
+        try {
+            if (discard || _isClosed) {
+                discardClient(dapClient);
+            }
+            else if (_config.getMaxCommands() > 0 && dapClient.getCommandCount() > _config.getMaxCommands()) {
+                log.debug("checkIn() This instance of OPeNDAPClient (id:{}) has excecuted {} commands which is " +
+                                "in excess of the maximum command limit of {}, discarding client.",
+                        new Object[]{dapClient.getID(), dapClient.getCommandCount(), _config.getMaxCommands()});
+                discardClient(dapClient);
+            }
+            else {
+                _idleClients.offerFirst(new IdleClient(dapClient, System.currentTimeMillis()));
+                _idleCount.incrementAndGet();
+                log.debug("checkIn() Returned OPeNDAPClient (id:{}) to Pool.", dapClient.getID());
+            }
+        } catch (PPTException e) {
+            String msg = "checkIn() *** BES - WARNING! Problem with OPeNDAPClient, discarding.";
+            log.error(msg);
+            throw new PPTException(msg, e);
+        } finally {
+            _inUseCount.decrementAndGet();
+            _permits.release();
+        }
+    }
+
+
+    /**
+     * Opens up to <code>count</code> new connections to the BES and places them in the pool.
+     * Each new connection is made while holding a checkout permit so that the pool never
+     * holds more than MaxClients connections. Pre-warming stops at the first connection
+     * that fails to start, since that usually means the BES is not (yet) available.
+     *
+     * @param count The number of connections to open.
+     * @return The number of connections opened.
+     */
+    public int prewarm(int count) {
+        int opened = 0;
+        int target = Math.min(count, _config.getMaxClients());
+
+        while (!_isClosed && _clients.size() < target) {
+            if (!_permits.tryAcquire())
+                break;
+            try {
+                OPeNDAPClient besClient = startNewClient();
+                _idleClients.offerLast(new IdleClient(besClient, System.currentTimeMillis()));
+                _idleCount.incrementAndGet();
+                opened++;
+            } catch (PPTException e) {
+                log.warn("prewarm() - Stopped pre-warming client pool after {} connection(s). Msg: {}",
+                        opened, e.getMessage());
+                break;
+            } finally {
+                _permits.release();
+            }
+        }
+        log.info("prewarm() - Opened {} BES connection(s) for pool '{}'", opened, _clientIdPrefix);
+        return opened;
+    }
+
+
+    /**
+     * Pre-warms the pool on the background maintenance thread, using the
+     * configured number of connections.
+     */
+    public void prewarmAsync() {
+        final int count = _config.getClientPrewarm();
+        if (count <= 0)
+            return;
+
+        _maintenanceExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                prewarm(count);
+            }
+        });
+    }
+
+
+    /**
+     * Evicts connections that have been idle longer than the configured idle timeout (while
+     * keeping at least minIdle of them) and probes the rest. Probing takes ownership of a
+     * client by removing it from the idle deque, so a client is never probed while in use.
+     */
+    void maintain() {
+        if (_isClosed)
+            return;
+
+        try {
+            long idleTimeout = _config.getClientIdleTimeOut();
+            int minIdle = _config.getClientMinIdle();
+            long now = System.currentTimeMillis();
+
+            List<IdleClient> snapshot = new ArrayList<>(_idleClients);
+
+            // Oldest first, so the coldest connections are evicted before the warm ones.
+            for (int i = snapshot.size() - 1; i >= 0; i--) {
+                IdleClient idle = snapshot.get(i);
+
+                boolean expired = idleTimeout > 0 && (now - idle.idleSince) > idleTimeout;
+                if (expired && _idleCount.get() <= minIdle)
+                    expired = false;
+
+                if (!_permits.tryAcquire())
+                    return; // The pool is busy, there's nothing worth probing.
+
+                try {
+                    if (!_idleClients.remove(idle))
+                        continue; // Somebody checked it out while we weren't looking.
+                    _idleCount.decrementAndGet();
+
+                    if (expired) {
+                        log.debug("maintain() - Evicting idle BES Client (id: {})", idle.client.getID());
+                        _evictedCount.incrementAndGet();
+                        discardQuietly(idle.client);
+                    }
+                    else if (!idle.client.isHealthy()) {
+                        log.warn("maintain() - BES Client (id: {}) failed health probe, discarding.", idle.client.getID());
+                        _probeFailureCount.incrementAndGet();
+                        discardQuietly(idle.client);
+                    }
+                    else {
+                        // Put it back at the cold end, preserving its age.
+                        _idleClients.offerLast(idle);
+                        _idleCount.incrementAndGet();
+                    }
+                } finally {
+                    _permits.release();
+                }
+            }
+        }
+        catch (Throwable t) {
+            log.error("maintain() - Caught {} Msg: {}", t.getClass().getName(), t.getMessage());
+        }
+    }
+
+
+    private OPeNDAPClient startNewClient() throws PPTException {
+
+        // Make a new OPeNDAClient to connect to the BES
+        OPeNDAPClient besClient = new OPeNDAPClient();
+
+        log.debug("startNewClient() - Made new BES Client. Starting...");
+
+        // Start the client by opening the PPT connection to the BES.
+        try {
+            besClient.startClient(_config.getHost(), _config.getPort(), _config.getTimeOut(), _config.useNioTransport());
+            log.debug("startNewClient() - BES Client started.");
+        }
+        catch (PPTException ppte) {
+            _startFailureCount.incrementAndGet();
+
+            String msg = "BES Client Failed To Start. Message: '" + ppte.getMessage() + "' ";
+            log.error("startNewClient() - {}", msg);
+            throw new PPTException(msg, ppte);
+        }
+
+        String clientId = _clientIdPrefix + "-" + _clientSerialNumber.getAndIncrement();
+        besClient.setID(clientId);
+        _clients.put(clientId, besClient);
+        _createdCount.incrementAndGet();
+
+        log.debug("startNewClient() - BES Client assigned ID : {}", clientId);
+
+        return besClient;
+    }
+
+
+    private void discardClient(OPeNDAPClient dapClient) throws PPTException {
+        // By failing to put the client into the deque and
+        // removing the client from the _clients Map the client is
+        // discarded.
+        log.debug("discardClient() Discarding OPeNDAPClient #{}", dapClient.getID());
+
+        if (dapClient.getID() != null)
+            _clients.remove(dapClient.getID());
+        _discardedCount.incrementAndGet();
+
+        if (dapClient.isRunning()) {
+            log.debug("discardClient() Shutting down client...");
+            dapClient.shutdownClient();
+            log.debug("discardClient() Client shutdown.");
+        }
+    }
+
+
+    private void discardQuietly(OPeNDAPClient dapClient) {
+        try {
+            discardClient(dapClient);
+        } catch (PPTException e) {
+            log.error("discardQuietly() - Failed to shutdown OPeNDAPClient (id:{}) msg: {}",
+                    dapClient.getID(), e.getMessage());
+            dapClient.killClient();
+        }
+    }
+
+
+    private void recordWait(long waitNanos) {
+        _totalWaitNanos.addAndGet(waitNanos);
+        long max = _maxWaitNanos.get();
+        while (waitNanos > max && !_maxWaitNanos.compareAndSet(max, waitNanos)) {
+            max = _maxWaitNanos.get();
+        }
+    }
+
+
+    /**
+     * Removes an idle client from the pool so that it may be shutdown. Used when stopping the BES.
+     *
+     * @return An idle client, now owned by the caller and no longer tracked by the pool, or null
+     * if there are no idle clients.
+     */
+    OPeNDAPClient takeIdleClientForShutdown() {
+        IdleClient idle = _idleClients.pollFirst();
+        if (idle == null)
+            return null;
+        _idleCount.decrementAndGet();
+        if (idle.client.getID() != null)
+            _clients.remove(idle.client.getID());
+        return idle.client;
+    }
+
+
+    /**
+     * Blocks new checkouts by acquiring every permit.
+     *
+     * @param timeout Maximum time to wait, in milliseconds.
+     * @return True if all of the permits (and so all of the clients) were acquired.
+     * @throws InterruptedException When interrupted while waiting.
+     */
+    boolean acquireAll(long timeout) throws InterruptedException {
+        return _permits.tryAcquire(_config.getMaxClients(), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    void releaseAll() {
+        _permits.release(_config.getMaxClients());
+    }
+
+
+    /**
+     * This method is meant to be called at program exit. It waits until all
+     * clients are checked into the pool and then gracefully shuts down each
+     * client's connection to the BES. Clients that are still checked out when
+     * the timeout expires are killed.
+     *
+     * @param timeout Maximum time to wait for clients to be returned, in milliseconds.
+     */
+    public void destroy(long timeout) {
+
+        _isClosed = true;
+        if (_maintenanceTask != null)
+            _maintenanceTask.cancel(false);
+
+        boolean nicely = false;
+        try {
+            if (acquireAll(timeout)) {
+                log.debug("destroy() All {} client permits acquired.", _config.getMaxClients());
+                nicely = true;
+            }
+        } catch (InterruptedException e) {
+            log.error("destroy() Interrupted while waiting for clients to be returned.");
+            Thread.currentThread().interrupt();
+        }
+
+        OPeNDAPClient odc;
+        while ((odc = takeIdleClientForShutdown()) != null) {
+            try {
+                odc.shutdownClient();
+            } catch (Throwable t) {
+                log.error("destroy() Failed to shutdown OPeNDAPClient (id:" + odc.getID() + ") msg: " +
+                        t.getMessage(), t);
+            }
+        }
+
+        if (!nicely) {
+            log.debug("destroy() Timed Out. Destroying BES Clients.");
+            for (OPeNDAPClient oc : _clients.values()) {
+                log.debug("destroy() Killing BES Client (id:{})", oc.getID());
+                oc.killClient();
+            }
+        }
+        _clients.clear();
+    }
+
+
+    public int getClientCount() {
+        return _clients.size();
+    }
+
+    public Enumeration<OPeNDAPClient> getClients() {
+        return _clients.elements();
+    }
+
+    public int getMaxClients() {
+        return _config.getMaxClients();
+    }
+
+    public int getInUseCount() {
+        return _inUseCount.get();
+    }
+
+    public int getIdleCount() {
+        return _idleCount.get();
+    }
+
+    public long getCheckOutCount() {
+        return _checkOutCount.get();
+    }
+
+    /**
+     * @return The number of checkouts that found no free permit and had to wait.
+     */
+    public long getCheckOutWaitCount() {
+        return _checkOutWaitCount.get();
+    }
+
+    public long getTotalWaitTimeNanos() {
+        return _totalWaitNanos.get();
+    }
+
+    public long getMaxWaitTimeNanos() {
+        return _maxWaitNanos.get();
+    }
+
+    public long getCreatedCount() {
+        return _createdCount.get();
+    }
+
+    public long getDiscardedCount() {
+        return _discardedCount.get();
+    }
+
+    public long getEvictedCount() {
+        return _evictedCount.get();
+    }
+
+    public long getProbeFailureCount() {
+        return _probeFailureCount.get();
+    }
+
+    public long getStartFailureCount() {
+        return _startFailureCount.get();
+    }
+
+
+    public String toString() {
+        long checkOuts = getCheckOutCount();
+        return "[BesClientPool " + _clientIdPrefix +
+                " max: " + getMaxClients() +
+                " inUse: " + getInUseCount() +
+                " idle: " + getIdleCount() +
+                " checkOuts: " + checkOuts +
+                " waited: " + getCheckOutWaitCount() +
+                " avgWait: " + (checkOuts == 0 ? 0 : getTotalWaitTimeNanos() / checkOuts / 1000) + " us" +
+                " maxWait: " + getMaxWaitTimeNanos() / 1000 + " us" +
+                " created: " + getCreatedCount() +
+                " discarded: " + getDiscardedCount() +
+                " evicted: " + getEvictedCount() +
+                " probeFailures: " + getProbeFailureCount() +
+                "]";
+    }
+
+}
@@ -36,12 +36,14 @@ import opendap.bes.dap4Responders.Iso19115.IsoDMR;
 import opendap.bes.dap4Responders.Iso19115.IsoRubricDMR;
 //import opendap.bes.dap4Responders.DataResponse.JsonDR;
 import opendap.bes.dap4Responders.Version;
+import opendap.coreServlet.CompressingResponse;
 import opendap.coreServlet.DispatchHandler;
-import opendap.coreServlet.HttpResponder;
 import opendap.coreServlet.ReqInfo;
+import opendap.coreServlet.ResponseCompression;
 import opendap.coreServlet.ServletUtil;
 import opendap.dap.Dap2Service;
 import opendap.dap4.Dap4Service;
+import opendap.logging.ResponderMetrics;
 import opendap.services.FileService;
 import opendap.services.ServicesRegistry;
 import org.jdom.Element;
@@ -70,6 +72,7 @@ public class BesDapDispatcher implements DispatchHandler {
     private String _systemPath;
     private Element _config;
     private Vector<Dap4Responder> _responders;
+    private volatile ResponderDispatchTable _dispatchTable;
     private static boolean _allowDirectDataSourceAccess = false;
     private static boolean _useDAP2ResourceUrlResponse = false;
     private static boolean _addFileoutTypeSuffixToDownloadFilename = false;
@@ -106,6 +109,7 @@ public class BesDapDispatcher implements DispatchHandler {
 
     protected void addResponder(Dap4Responder r) {
         _responders.add(r);
+        _dispatchTable = null;
     }
 
 
@@ -217,6 +221,40 @@ public class BesDapDispatcher implements DispatchHandler {
 
         _systemPath = ServletUtil.getSystemPath(_dispatchServlet, "");
 
+        loadResponders(_systemPath, besApi);
+
+        _log.info("Initialized. Direct Data Source Access: " + (_allowDirectDataSourceAccess ? "Enabled" : "Disabled") + "  " +
+                "Resource URL returns: " + (_useDAP2ResourceUrlResponse ? "DAP2 File Response" : "DAP4 Service Description"));
+
+        _initialized = true;
+
+
+        Dap2Service dap2Service = new Dap2Service();
+        Dap4Service dap4Service = new Dap4Service();
+        FileService fileService = new FileService();
+
+        dap2Service.init(servlet,null);
+        dap4Service.init(servlet,null);
+        fileService.init(servlet,null);
+
+        ServicesRegistry.addService(dap2Service);
+        ServicesRegistry.addService(dap4Service);
+        ServicesRegistry.addService(fileService);
+
+
+
+    }
+
+
+    /**
+     * Builds the responders, in precedence order, and the dispatch table used to pick between them.
+     * @param systemPath The system path of the servlet.
+     * @param besApi The BesApi instance for the responders to use.
+     */
+    void loadResponders(String systemPath, BesApi besApi) {
+
+        _systemPath = systemPath;
+
         // DAP4 Responses
 
         NormativeDSR ndsr = new NormativeDSR(_systemPath, null, ".dsr", besApi,_responders);
@@ -300,26 +338,20 @@ public class BesDapDispatcher implements DispatchHandler {
 
         }
 
-        _log.info("Initialized. Direct Data Source Access: " + (_allowDirectDataSourceAccess ? "Enabled" : "Disabled") + "  " +
-                "Resource URL returns: " + (_useDAP2ResourceUrlResponse ? "DAP2 File Response" : "DAP4 Service Description"));
-
-        _initialized = true;
-
-
-        Dap2Service dap2Service = new Dap2Service();
-        Dap4Service dap4Service = new Dap4Service();
-        FileService fileService = new FileService();
-
-        dap2Service.init(servlet,null);
-        dap4Service.init(servlet,null);
-        fileService.init(servlet,null);
-
-        ServicesRegistry.addService(dap2Service);
-        ServicesRegistry.addService(dap4Service);
-        ServicesRegistry.addService(fileService);
-
+        _dispatchTable = new ResponderDispatchTable(_responders);
+    }
 
 
+    /**
+     * @return The dispatch table for the current set of responders.
+     */
+    protected ResponderDispatchTable getDispatchTable() {
+        ResponderDispatchTable table = _dispatchTable;
+        if (table == null) {
+            table = new ResponderDispatchTable(_responders);
+            _dispatchTable = table;
+        }
+        return table;
     }
 
 
@@ -365,16 +397,33 @@ public class BesDapDispatcher implements DispatchHandler {
             return false;
 
 
-        for (HttpResponder r : _responders) {
+        // The dispatch table narrows the responders to those whose suffix matches, and removes the
+        // suffix. Each of those still makes the final decision, asking the BES about the data source.
+        for (ResponderDispatchTable.Match match : getDispatchTable().lookup(relativeUrl)) {
+            Dap4Responder r = match.getResponder();
             _log.debug("Checking responder: " + r.getClass().getSimpleName() + " (pathPrefix: " + r.getPathPrefix() + ")");
-            if (r.matches(relativeUrl)) {
+            if (r.matches(relativeUrl, match.getDataSource())) {
 
                 _log.info("The relative URL: " + relativeUrl + " matches " +
-                        "the pattern: \"" + r.getRequestMatchRegexString() + "\"");
+                        "the pattern: \"" + r.getCombinedRequestSuffixRegex() + "\"");
 
                 if (sendResponse){
 
-                    r.respondToHttpGetRequest(request, response);
+                    CompressingResponse compressingResponse = ResponseCompression.wrap(request, response);
+                    long start = System.nanoTime();
+                    boolean failed = true;
+                    try {
+                        r.respondToHttpGetRequest(request, compressingResponse);
+                        compressingResponse.finish();
+                        failed = compressingResponse.getStatus() >= HttpServletResponse.SC_BAD_REQUEST;
+                    } catch (Exception e) {
+                        compressingResponse.abort();
+                        throw e;
+                    }
+                    finally {
+                        ResponderMetrics.get(r.getClass().getSimpleName())
+                                .record(System.nanoTime() - start, compressingResponse.getBytesSent(), failed);
+                    }
 
                 }
 
@@ -399,10 +448,11 @@ public class BesDapDispatcher implements DispatchHandler {
             return -1;
 
 
-        for (HttpResponder r : _responders) {
-            if (r.matches(relativeUrl)) {
+        for (ResponderDispatchTable.Match match : getDispatchTable().lookup(relativeUrl)) {
+            Dap4Responder r = match.getResponder();
+            if (r.matches(relativeUrl, match.getDataSource())) {
                 _log.info("The relative URL: " + relativeUrl + " matches " +
-                        "the pattern: \"" + r.getRequestMatchRegexString() + "\"");
+                        "the pattern: \"" + r.getCombinedRequestSuffixRegex() + "\"");
 
                 try {
 
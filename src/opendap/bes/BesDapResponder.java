@@ -84,7 +84,7 @@ public abstract class BesDapResponder extends DapResponder {
 
 
     public ResourceInfo getResourceInfo(String resourceName) throws Exception {
-        return new BESResource(resourceName, getBesApi());
+        return BESResourceCache.getResourceInfo(resourceName, getBesApi());
     }
 
 
@@ -36,9 +36,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -50,6 +53,7 @@ public class BesGroup extends CyclicGroup<BES> {
 
     Logger log;
     private String prefix;
+    private final AtomicLong selectionTicket = new AtomicLong(0);
 
 
 
@@ -125,7 +129,7 @@ public class BesGroup extends CyclicGroup<BES> {
         Object o  = RequestCache.get(responseCacheKey);
 
         if(o == null){
-            bes = super.getNext();
+            bes = select();
 
             RequestCache.put(responseCacheKey,bes);
 
@@ -140,6 +144,55 @@ public class BesGroup extends CyclicGroup<BES> {
     }
 
 
+    /**
+     * Picks a member for a new request using the BesRoutingPolicy. Members whose circuit breaker
+     * is open are passed over, unless every member is out of rotation.
+     * @return The selected BES.
+     */
+    private BES select() {
+
+        BES[] members = toArray();
+        long now = System.currentTimeMillis();
+
+        List<BES> candidates = new ArrayList<>(members.length);
+        for (BES bes : members) {
+            if (bes.getHealth().isAvailable(now))
+                candidates.add(bes);
+        }
+
+        while (!candidates.isEmpty()) {
+            BES bes = BesRoutingPolicy.getSelector().select(candidates, selectionTicket.getAndIncrement());
+            if (bes.getHealth().selected(now)) {
+                log.debug("select() - {} selected {}", Thread.currentThread().getName(), bes.getNickName());
+                return bes;
+            }
+            // Another request became the probe for this one first.
+            candidates.remove(bes);
+        }
+
+        log.warn("select() - Every BES in the group with prefix '{}' is out of rotation. " +
+                "Selecting from all of them.", prefix);
+        BES bes = BesRoutingPolicy.getSelector().select(Arrays.asList(members), selectionTicket.getAndIncrement());
+        bes.getHealth().selected(now);
+        log.debug("select() - {} selected {}", Thread.currentThread().getName(), bes.getNickName());
+        return bes;
+    }
+
+
+    /**
+     * @return A summary of the routing state of each member of the group.
+     */
+    public String getRoutingStatistics() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[BesGroup prefix: ").append(prefix)
+                .append(" strategy: ").append(BesRoutingPolicy.getStrategyName()).append("]\n");
+        for (BES bes : toArray()) {
+            sb.append("    ").append(bes.getHealth().getStatistics()).append("\n");
+        }
+        return sb.toString();
+    }
+
+
 
     public Document getGroupVersion() throws JDOMException, BESError, IOException, BadConfigurationException, PPTException {
         Element besGroupElement = new Element("BesGroup");
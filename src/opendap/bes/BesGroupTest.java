@@ -0,0 +1,173 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.coreServlet.RequestCache;
+import org.jdom.Element;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks BesGroup routing: the selection strategies, the circuit breakers and request pinning.
+ * No BES is contacted; the transactions are recorded directly on each member's BesHealth.
+ */
+public class BesGroupTest {
+
+    private static BesGroup newGroup(int size) throws Exception {
+        BesGroup group = new BesGroup("/");
+        for (int i = 0; i < size; i++) {
+            Element besConfig = new Element("BES");
+            besConfig.addContent(new Element("prefix").setText("/"));
+            besConfig.addContent(new Element("host").setText("localhost"));
+            besConfig.addContent(new Element("port").setText("10022"));
+            group.add(new BES(new BESConfig(besConfig)));
+        }
+        return group;
+    }
+
+    private static void routing(String strategy, String failureThreshold, String retryInterval) throws Exception {
+        Element config = new Element("BesRouting");
+        config.setAttribute("strategy", strategy);
+        config.setAttribute("failureThreshold", failureThreshold);
+        config.setAttribute("retryInterval", retryInterval);
+        BesRoutingPolicy.init(config);
+    }
+
+    @After
+    public void restoreDefaults() throws Exception {
+        routing("roundRobin", "3", "30000");
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        routing("leastOutstanding", "3", "30000");
+        BesGroup group = newGroup(3);
+
+        long busy0 = group.get(0).getHealth().transactionStarted();
+        long busy2 = group.get(2).getHealth().transactionStarted();
+
+        for (int i = 0; i < 5; i++)
+            Assert.assertSame(group.get(1), group.getNext());
+
+        group.get(0).getHealth().transactionFinished(busy0, false);
+        group.get(2).getHealth().transactionFinished(busy2, false);
+        Assert.assertEquals(5, group.get(1).getHealth().getSelections());
+    }
+
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        routing("roundRobin", "3", "200");
+        BesGroup group = newGroup(2);
+        BesHealth health = group.get(0).getHealth();
+
+        for (int i = 0; i < 3; i++)
+            health.transactionFinished(health.transactionStarted(), true);
+        Assert.assertEquals(BesHealth.State.OPEN, health.getState());
+
+        for (int i = 0; i < 4; i++)
+            Assert.assertSame(group.get(1), group.getNext());
+
+        // Once the retry interval has passed one request probes the failed BES.
+        Thread.sleep(250);
+        BES probed = null;
+        for (int i = 0; i < 2 && probed != group.get(0); i++)
+            probed = group.getNext();
+        Assert.assertSame(group.get(0), probed);
+        Assert.assertEquals(BesHealth.State.HALF_OPEN, health.getState());
+        Assert.assertSame(group.get(1), group.getNext());
+
+        health.transactionFinished(health.transactionStarted(), false);
+        Assert.assertEquals(BesHealth.State.CLOSED, health.getState());
+        Assert.assertEquals(1, health.getBreakerTrips());
+    }
+
+    @Test
+    public void testSingleProbe() throws Exception {
+        routing("roundRobin", "1", "200");
+        final BesHealth health = new BesHealth("probe");
+        health.transactionFinished(health.transactionStarted(), true);
+        Assert.assertEquals(BesHealth.State.OPEN, health.getState());
+        Thread.sleep(250);
+
+        final long now = System.currentTimeMillis();
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger probes = new AtomicInteger(0);
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (health.selected(now))
+                        probes.incrementAndGet();
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads)
+            t.join();
+
+        Assert.assertEquals(1, probes.get());
+        Assert.assertEquals(BesHealth.State.HALF_OPEN, health.getState());
+    }
+
+    @Test
+    public void testAllMembersOutOfRotation() throws Exception {
+        routing("roundRobin", "1", "30000");
+        BesGroup group = newGroup(2);
+        for (int i = 0; i < 2; i++) {
+            BesHealth health = group.get(i).getHealth();
+            health.transactionFinished(health.transactionStarted(), true);
+        }
+        Assert.assertNotNull(group.getNext());
+    }
+
+    @Test
+    public void testRequestPinning() throws Exception {
+        routing("roundRobin", "3", "30000");
+        BesGroup group = newGroup(3);
+        RequestCache.openThreadCache();
+        try {
+            BES first = group.getNext();
+            for (int i = 0; i < 5; i++)
+                Assert.assertSame(first, group.getNext());
+        }
+        finally {
+            RequestCache.closeThreadCache();
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the load and failure picture of a single BES for BesGroup routing: the number of
+ * transactions in progress, a moving average of the transaction time, the number of times the
+ * BES was selected, and its circuit breaker.
+ *
+ * The breaker is CLOSED while the BES is healthy. It OPENS after BesRoutingPolicy.getFailureThreshold()
+ * consecutive failures, and the BES is skipped by the group. Once BesRoutingPolicy.getRetryInterval()
+ * has passed, the next selection takes the breaker HALF_OPEN and that one request is the probe; when
+ * several requests find the BES due for a probe at once only one of them wins it. A successful
+ * transaction closes the breaker, a failed one opens it again.
+ */
+public class BesHealth {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final Logger log = LoggerFactory.getLogger(BesHealth.class);
+
+    private final String _name;
+
+    private final AtomicInteger _outstanding;
+    private final AtomicLong _selections;
+    private final AtomicLong _transactions;
+    private final AtomicLong _failures;
+    private final AtomicLong _breakerTrips;
+
+    // The moving average of the transaction time, in nanoseconds, stored as the bits of a double.
+    private final AtomicLong _latencyAverage;
+
+    private volatile State _state;
+    private final AtomicInteger _consecutiveFailures;
+    private final AtomicLong _openedAt;
+    private final AtomicBoolean _probeInFlight;
+
+
+    public BesHealth(String name) {
+        _name = name;
+        _outstanding = new AtomicInteger(0);
+        _selections = new AtomicLong(0);
+        _transactions = new AtomicLong(0);
+        _failures = new AtomicLong(0);
+        _breakerTrips = new AtomicLong(0);
+        _latencyAverage = new AtomicLong(Double.doubleToLongBits(0.0));
+        _state = State.CLOSED;
+        _consecutiveFailures = new AtomicInteger(0);
+        _openedAt = new AtomicLong(0);
+        _probeInFlight = new AtomicBoolean(false);
+    }
+
+
+    /**
+     * @param now The current time, in milliseconds.
+     * @return True if the BES can be given a request: its breaker is closed, or it's open and due
+     * for a probe and no probe is already in progress.
+     */
+    public boolean isAvailable(long now) {
+        switch (_state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return now - _openedAt.get() >= BesRoutingPolicy.getRetryInterval();
+            default:
+                // A probe whose request never reached the BES (served from a cache, say) must not
+                // keep the BES out of rotation forever, so it expires after another interval.
+                return !_probeInFlight.get() || now - _openedAt.get() >= BesRoutingPolicy.getRetryInterval();
+        }
+    }
+
+
+    /**
+     * Records that the group picked this BES for a request. If the breaker isn't closed this
+     * request becomes the probe, unless another request got there first.
+     * @param now The current time, in milliseconds.
+     * @return True if the request may go to this BES, false if the breaker isn't closed and
+     * another request became the probe first.
+     */
+    public boolean selected(long now) {
+        _selections.incrementAndGet();
+        if (_state == State.CLOSED)
+            return true;
+
+        long openedAt = _openedAt.get();
+        if (!isAvailable(now))
+            return false;
+        // Only one of the requests that saw the same opening time can move it on.
+        if (!_openedAt.compareAndSet(openedAt, now))
+            return false;
+        _probeInFlight.set(true);
+        _state = State.HALF_OPEN;
+        log.info("selected() - Probing BES {}", _name);
+        return true;
+    }
+
+
+    /**
+     * Called when a transaction with the BES begins.
+     * @return The start time, to hand back to transactionFinished().
+     */
+    public long transactionStarted() {
+        _outstanding.incrementAndGet();
+        return System.nanoTime();
+    }
+
+
+    /**
+     * Called when a transaction with the BES ends, however it ends.
+     * @param startTime The value returned by transactionStarted().
+     * @param failed True if the BES could not be reached or could not complete the transaction.
+     */
+    public void transactionFinished(long startTime, boolean failed) {
+        long elapsed = System.nanoTime() - startTime;
+        _outstanding.decrementAndGet();
+        _transactions.incrementAndGet();
+        updateLatencyAverage(elapsed);
+
+        if (failed) {
+            _failures.incrementAndGet();
+            int consecutive = _consecutiveFailures.incrementAndGet();
+            int threshold = BesRoutingPolicy.getFailureThreshold();
+            if (_state == State.HALF_OPEN || (_state == State.CLOSED && threshold > 0 && consecutive >= threshold)) {
+                _openedAt.set(System.currentTimeMillis());
+                _state = State.OPEN;
+                _breakerTrips.incrementAndGet();
+                log.warn("transactionFinished() - BES {} taken out of rotation after {} consecutive failures.",
+                        _name, consecutive);
+            }
+        }
+        else {
+            _consecutiveFailures.set(0);
+            if (_state != State.CLOSED) {
+                _state = State.CLOSED;
+                log.info("transactionFinished() - BES {} is back in rotation.", _name);
+            }
+        }
+        _probeInFlight.set(false);
+    }
+
+
+    private void updateLatencyAverage(long elapsed) {
+        double weight = BesRoutingPolicy.getLatencyWeight();
+        long oldBits, newBits;
+        do {
+            oldBits = _latencyAverage.get();
+            double old = Double.longBitsToDouble(oldBits);
+            double updated = old == 0.0 ? elapsed : old + weight * (elapsed - old);
+            newBits = Double.doubleToLongBits(updated);
+        } while (!_latencyAverage.compareAndSet(oldBits, newBits));
+    }
+
+
+    public State getState() {
+        return _state;
+    }
+
+    public int getOutstanding() {
+        return _outstanding.get();
+    }
+
+    public long getSelections() {
+        return _selections.get();
+    }
+
+    public long getTransactions() {
+        return _transactions.get();
+    }
+
+    public long getFailures() {
+        return _failures.get();
+    }
+
+    public int getConsecutiveFailures() {
+        return _consecutiveFailures.get();
+    }
+
+    public long getBreakerTrips() {
+        return _breakerTrips.get();
+    }
+
+    /**
+     * @return The moving average of the transaction time, in nanoseconds. 0 until the first transaction.
+     */
+    public double getLatencyAverage() {
+        return Double.longBitsToDouble(_latencyAverage.get());
+    }
+
+    public String getStatistics() {
+        return "[BesHealth bes: " + _name +
+                " state: " + _state +
+                " selections: " + getSelections() +
+                " outstanding: " + getOutstanding() +
+                " transactions: " + getTransactions() +
+                " failures: " + getFailures() +
+                " consecutiveFailures: " + getConsecutiveFailures() +
+                " breakerTrips: " + getBreakerTrips() +
+                " latencyAverage: " + String.format("%.1f", getLatencyAverage() / 1000000.0) + " ms" +
+                "]";
+    }
+
+}
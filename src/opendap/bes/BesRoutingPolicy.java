@@ -0,0 +1,252 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Decides which member of a BesGroup gets a request, and when a failing BES is taken out of
+ * rotation.
+ *
+ * The selection strategy is one of:
+ * <ul>
+ *     <li><b>roundRobin</b> - Each available BES in turn. This is how the OLFS has always behaved.</li>
+ *     <li><b>leastOutstanding</b> - The BES with the fewest transactions in progress.</li>
+ *     <li><b>latency</b> - The BES with the smallest expected wait, which is its recent average
+ *     transaction time (an exponentially weighted moving average) times the number of transactions
+ *     it would be handling.</li>
+ *     <li>The fully qualified name of a class that implements BesRoutingPolicy.Selector and has a
+ *     public no argument constructor.</li>
+ * </ul>
+ *
+ * Each BES has a circuit breaker (see BesHealth). After failureThreshold consecutive failed
+ * transactions (PPT errors, or fatal/time out BES errors) the breaker opens and the BES is skipped.
+ * After retryInterval milliseconds a single request is let through as a probe. If the probe
+ * succeeds the BES is back in rotation, if it fails the breaker stays open for another interval.
+ * When every member of a group is out of rotation the group still uses them, since trying a
+ * BES beats failing the request outright.
+ *
+ * The policy is configured from the BESManager section of olfs.xml:
+ * <pre>
+ *     &lt;BesRouting strategy="leastOutstanding" failureThreshold="3" retryInterval="30000" latencyWeight="0.2" /&gt;
+ * </pre>
+ */
+public class BesRoutingPolicy {
+
+    /**
+     * Picks a BES from the members of a group that are currently in rotation.
+     */
+    public interface Selector {
+        /**
+         * @param candidates The available members of the group, in group order. Never empty.
+         * @param ticket A number that increases by one for every selection made by the group,
+         *               for strategies that rotate.
+         * @return One of the candidates.
+         */
+        BES select(List<BES> candidates, long ticket);
+    }
+
+
+    private static final Logger log = LoggerFactory.getLogger(BesRoutingPolicy.class);
+
+    private static volatile String _strategyName = "roundRobin";
+    private static volatile Selector _selector = new RoundRobin();
+    private static volatile int _failureThreshold = 3;
+    private static volatile long _retryInterval = 30000; // ms
+    private static volatile double _latencyWeight = 0.2;
+
+
+    private BesRoutingPolicy() {
+    }
+
+
+    /**
+     * Configures the policy.
+     * @param config The BesRouting element. May be null, in which case the defaults are used.
+     * @throws Exception When an attribute value is not usable.
+     */
+    public static void init(Element config) throws Exception {
+        if (config == null)
+            return;
+
+        String s = config.getAttributeValue("strategy");
+        if (s != null) {
+            _selector = getSelector(s);
+            _strategyName = s;
+        }
+
+        s = config.getAttributeValue("failureThreshold");
+        if (s != null) {
+            int failureThreshold = Integer.parseInt(s);
+            if (failureThreshold < 0)
+                throw new Exception("The failureThreshold attribute of the BesRouting element must be " +
+                        "an integer greater than or equal to 0 (zero). 0 disables the circuit breakers.");
+            _failureThreshold = failureThreshold;
+        }
+
+        s = config.getAttributeValue("retryInterval");
+        if (s != null) {
+            long retryInterval = Long.parseLong(s);
+            if (retryInterval < 0)
+                throw new Exception("The retryInterval attribute of the BesRouting element must be " +
+                        "an integer greater than or equal to 0 (zero).");
+            _retryInterval = retryInterval;
+        }
+
+        s = config.getAttributeValue("latencyWeight");
+        if (s != null) {
+            double latencyWeight = Double.parseDouble(s);
+            if (latencyWeight <= 0 || latencyWeight > 1)
+                throw new Exception("The latencyWeight attribute of the BesRouting element must be " +
+                        "greater than 0 (zero) and less than or equal to 1 (one).");
+            _latencyWeight = latencyWeight;
+        }
+
+        log.info("init() - BES routing strategy: {} failureThreshold: {} retryInterval: {} ms latencyWeight: {}",
+                new Object[]{_strategyName, _failureThreshold, _retryInterval, _latencyWeight});
+    }
+
+
+    private static Selector getSelector(String strategy) throws Exception {
+        if (strategy.equalsIgnoreCase("roundRobin"))
+            return new RoundRobin();
+        if (strategy.equalsIgnoreCase("leastOutstanding"))
+            return new LeastOutstanding();
+        if (strategy.equalsIgnoreCase("latency"))
+            return new Latency();
+
+        Class<?> classDefinition;
+        try {
+            classDefinition = Class.forName(strategy);
+        } catch (ClassNotFoundException e) {
+            throw new Exception("The strategy attribute of the BesRouting element must be one of " +
+                    "\"roundRobin\", \"leastOutstanding\", \"latency\", or the name of a class that implements " +
+                    Selector.class.getName() + ". Found: \"" + strategy + "\"");
+        }
+        if (!Selector.class.isAssignableFrom(classDefinition))
+            throw new Exception("The BesRouting strategy class " + strategy + " does not implement " +
+                    Selector.class.getName());
+
+        return (Selector) classDefinition.newInstance();
+    }
+
+
+    public static String getStrategyName() {
+        return _strategyName;
+    }
+
+    public static Selector getSelector() {
+        return _selector;
+    }
+
+    /**
+     * @return The number of consecutive failures that opens a BES circuit breaker. 0 means never.
+     */
+    public static int getFailureThreshold() {
+        return _failureThreshold;
+    }
+
+    /**
+     * @return The time, in milliseconds, an open circuit breaker waits before letting a probe through.
+     */
+    public static long getRetryInterval() {
+        return _retryInterval;
+    }
+
+    /**
+     * @return The weight given to the newest sample in the transaction time moving average.
+     */
+    public static double getLatencyWeight() {
+        return _latencyWeight;
+    }
+
+
+    /**
+     * Each candidate in turn.
+     */
+    public static class RoundRobin implements Selector {
+        @Override
+        public BES select(List<BES> candidates, long ticket) {
+            return candidates.get((int) (ticket % candidates.size()));
+        }
+    }
+
+
+    /**
+     * The candidate with the fewest transactions in progress. Ties go round robin so that
+     * an idle group still spreads its load.
+     */
+    public static class LeastOutstanding implements Selector {
+        @Override
+        public BES select(List<BES> candidates, long ticket) {
+            int size = candidates.size();
+            int start = (int) (ticket % size);
+            BES best = null;
+            int bestOutstanding = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                BES bes = candidates.get((start + i) % size);
+                int outstanding = bes.getHealth().getOutstanding();
+                if (outstanding < bestOutstanding) {
+                    best = bes;
+                    bestOutstanding = outstanding;
+                }
+            }
+            return best;
+        }
+    }
+
+
+    /**
+     * The candidate with the smallest expected wait: its average transaction time times the
+     * number of transactions it would be handling. A BES with no history yet is tried first.
+     * Ties go round robin.
+     */
+    public static class Latency implements Selector {
+        @Override
+        public BES select(List<BES> candidates, long ticket) {
+            int size = candidates.size();
+            int start = (int) (ticket % size);
+            BES best = null;
+            double bestCost = Double.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                BES bes = candidates.get((start + i) % size);
+                BesHealth health = bes.getHealth();
+                double cost = health.getLatencyAverage() * (health.getOutstanding() + 1);
+                if (cost < bestCost) {
+                    best = bes;
+                    bestCost = cost;
+                }
+            }
+            return best;
+        }
+    }
+
+}
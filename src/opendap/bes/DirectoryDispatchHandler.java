@@ -110,7 +110,14 @@ public class DirectoryDispatchHandler implements DispatchHandler {
                               HttpServletResponse response)
             throws Exception {
         log.info("Handling Request.");
-       directoryDispatch(request, response, true);
+        CompressingResponse compressingResponse = ResponseCompression.wrap(request, response);
+        try {
+            directoryDispatch(request, compressingResponse, true);
+        } catch (Exception e) {
+            compressingResponse.abort();
+            throw e;
+        }
+        compressingResponse.finish();
 
     }
 
@@ -124,7 +131,7 @@ public class DirectoryDispatchHandler implements DispatchHandler {
 
 
         try {
-            ResourceInfo dsi = new BESResource(collectionName,_besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(collectionName,_besApi);
             log.debug("getLastModified():  Returning: " + new Date(dsi.lastModified()));
 
             return dsi.lastModified();
@@ -181,7 +188,7 @@ public class DirectoryDispatchHandler implements DispatchHandler {
                 isContentsRequest = true;
 
         } else {
-            ResourceInfo dsi = new BESResource(dsName,_besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(dsName,_besApi);
             if (dsi.sourceExists() &&
                     dsi.isNode() ) {
                     isDirectoryResponse = true;
@@ -253,6 +260,7 @@ public class DirectoryDispatchHandler implements DispatchHandler {
         Document showCatalogDoc = new Document();
 
         _besApi.getBesCatalog(collectionName, showCatalogDoc);
+        _besApi.prefetchChildCatalogs(collectionName, showCatalogDoc);
 
         log.debug("Catalog from BES:\n"+xmlo.outputString(showCatalogDoc));
 
@@ -34,11 +34,11 @@ import opendap.http.error.Forbidden;
 import opendap.io.HyraxStringEncoding;
 import org.jdom.Element;
 
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.util.Date;
@@ -99,7 +99,7 @@ public class FileDispatchHandler implements DispatchHandler {
 
 
         try {
-            ResourceInfo dsi = new BESResource(name,_besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(name,_besApi);
             log.debug("getLastModified(): Returning: " + new Date(dsi.lastModified()));
 
             return dsi.lastModified();
@@ -139,7 +139,7 @@ public class FileDispatchHandler implements DispatchHandler {
                                 boolean sendResponse) throws Exception {
 
 
-        ResourceInfo dsi = new BESResource(ReqInfo.getLocalUrl(request),_besApi);
+        ResourceInfo dsi = BESResourceCache.getResourceInfo(ReqInfo.getLocalUrl(request),_besApi);
 
         boolean isFileResponse = false;
 
@@ -197,10 +197,21 @@ public class FileDispatchHandler implements DispatchHandler {
         }
 
 
-        ServletOutputStream sos = response.getOutputStream();
-        _besApi.writeFile(name, sos);
+        // The BES stream command has no byte range parameter, so a single range is cut out of
+        // the stream as it arrives, and multiple ranges are served from a local spool.
+        final String dataSource = name;
+        BESResource resource = BESResourceCache.getResourceInfo(dataSource, _besApi);
+        long lastModified = resource.lastModified();
+        String entityTag = ConditionalRequest.getStrongEntityTag(dataSource,
+                Long.toString(lastModified), Long.toString(resource.getSize()));
 
-        sos.flush();
+        ByteRanges.send(req, response, resource.getSize(), entityTag, lastModified,
+                new ByteRanges.Source() {
+                    @Override
+                    public void writeTo(OutputStream os) throws Exception {
+                        _besApi.writeFile(dataSource, os);
+                    }
+                });
     }
 
 
@@ -0,0 +1,218 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.bes.dap4Responders.Dap4Responder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+
+/**
+ * Finds the responders whose request suffix matches a relative URL without trying each
+ * responder's regex in turn.
+ *
+ * The suffixes every responder accepts are stored, reversed and lower case, in one trie. A
+ * lookup walks the URL backwards from its last character once, which costs time proportional
+ * to the longest suffix no matter how many responders there are. Where a responder has more
+ * than one matching suffix the longest one wins, which is the match (leftmost start) the
+ * responder's regex would find.
+ *
+ * Responders whose suffix regex can't be listed this way (one set with
+ * setCombinedRequestSuffixRegex(), or a media suffix with regex meta characters in it) are
+ * matched with their regex, at their place in the precedence order.
+ */
+public class ResponderDispatchTable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponderDispatchTable.class);
+
+    private final Dap4Responder[] _responders;
+    private final boolean[] _useRegex;
+    private final Node _root;
+    private final int _regexCount;
+
+
+    /**
+     * @param responders The responders, in precedence order.
+     */
+    public ResponderDispatchTable(List<Dap4Responder> responders) {
+        _responders = responders.toArray(new Dap4Responder[responders.size()]);
+        _useRegex = new boolean[_responders.length];
+        _root = new Node();
+
+        int regexCount = 0;
+        for (int i = 0; i < _responders.length; i++) {
+            Dap4Responder r = _responders[i];
+            List<String> suffixes = null;
+            if (r.buildRequestMatchingRegex().equals(r.getCombinedRequestSuffixRegex()))
+                suffixes = r.getRequestSuffixes();
+
+            if (suffixes == null) {
+                _useRegex[i] = true;
+                regexCount++;
+                log.info("ResponderDispatchTable() - {} will be matched with the regex \"{}\"",
+                        r.getClass().getName(), r.getCombinedRequestSuffixRegex());
+                continue;
+            }
+            for (String suffix : suffixes)
+                _root.add(suffix, suffix.length() - 1, i);
+        }
+        _regexCount = regexCount;
+        log.debug("ResponderDispatchTable() - {} responders, {} matched by regex.", _responders.length, _regexCount);
+    }
+
+
+    /**
+     * Finds every responder whose request suffix matches the relative URL.
+     *
+     * @param relativeUrl The relative URL of the request.
+     * @return The matching responders, in precedence order, each with the data source left when
+     * its suffix is removed from the URL.
+     */
+    public List<Match> lookup(String relativeUrl) {
+
+        // The length of the longest matching suffix for each responder, -1 for no match.
+        int[] suffixLength = new int[_responders.length];
+        Arrays.fill(suffixLength, -1);
+
+        int found = 0;
+        Node node = _root;
+        int depth = 0;
+        while (node != null) {
+            for (int index : node.responders) {
+                if (suffixLength[index] < 0)
+                    found++;
+                suffixLength[index] = depth;
+            }
+            if (depth == relativeUrl.length())
+                break;
+            node = node.get(lowerCase(relativeUrl.charAt(relativeUrl.length() - 1 - depth)));
+            depth++;
+        }
+
+        List<Match> matches = new ArrayList<Match>(found + _regexCount);
+        for (int i = 0; i < _responders.length; i++) {
+            if (_useRegex[i]) {
+                String dataSource = matchRegex(_responders[i], relativeUrl);
+                if (dataSource != null)
+                    matches.add(new Match(_responders[i], dataSource));
+            } else if (suffixLength[i] >= 0) {
+                matches.add(new Match(_responders[i], relativeUrl.substring(0, relativeUrl.length() - suffixLength[i])));
+            }
+        }
+        return matches;
+    }
+
+
+    /**
+     * Does what BesApi.getBesDataSourceID() does with the responder's regex, without asking the BES.
+     */
+    private static String matchRegex(Dap4Responder responder, String relativeUrl) {
+        Matcher suffixMatcher = responder.getCombinedRequestSuffixPattern().matcher(relativeUrl);
+        boolean suffixMatched = false;
+        while (!suffixMatcher.hitEnd()) {
+            suffixMatched = suffixMatcher.find();
+        }
+        return suffixMatched ? relativeUrl.substring(0, suffixMatcher.start()) : null;
+    }
+
+
+    /**
+     * The regex flag CASE_INSENSITIVE only folds US-ASCII, so that's all we fold.
+     */
+    private static char lowerCase(char c) {
+        return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+    }
+
+
+    public int size() {
+        return _responders.length;
+    }
+
+
+    /**
+     * A responder that matched, and the data source that remains once its suffix is removed.
+     */
+    public static class Match {
+        private final Dap4Responder _responder;
+        private final String _dataSource;
+
+        Match(Dap4Responder responder, String dataSource) {
+            _responder = responder;
+            _dataSource = dataSource;
+        }
+
+        public Dap4Responder getResponder() {
+            return _responder;
+        }
+
+        public String getDataSource() {
+            return _dataSource;
+        }
+
+        @Override
+        public String toString() {
+            return _responder.getClass().getSimpleName() + "(" + _dataSource + ")";
+        }
+    }
+
+
+    private static class Node {
+        private final Map<Character, Node> children = new HashMap<Character, Node>();
+        private int[] responders = new int[0];
+
+        /**
+         * Adds the suffix, from the character at position down to the first, below this node.
+         */
+        void add(String suffix, int position, int responder) {
+            if (position < 0) {
+                for (int r : responders)
+                    if (r == responder)
+                        return;
+                responders = Arrays.copyOf(responders, responders.length + 1);
+                responders[responders.length - 1] = responder;
+                return;
+            }
+            Character c = lowerCase(suffix.charAt(position));
+            Node child = children.get(c);
+            if (child == null) {
+                child = new Node();
+                children.put(c, child);
+            }
+            child.add(suffix, position - 1, responder);
+        }
+
+        Node get(char c) {
+            return children.get(c);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes;
+
+import opendap.bes.dap2Responders.BesApi;
+import opendap.bes.dap4Responders.Dap4Responder;
+import opendap.gateway.BesGatewayApi;
+import opendap.gateway.HexAsciiEncoder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Checks that ResponderDispatchTable picks the same responders, in the same order and with the
+ * same data sources, as trying each responder's regex in turn.
+ */
+public class ResponderDispatchTableTest {
+
+    private static List<String> expected(List<Dap4Responder> responders, BesApi besApi, String url) {
+        List<String> result = new ArrayList<String>();
+        for (Dap4Responder r : responders) {
+            String dataSource = besApi.getBesDataSourceID(url, r.getCombinedRequestSuffixPattern(), false);
+            if (dataSource != null)
+                result.add(r.getClass().getSimpleName() + "(" + dataSource + ")");
+        }
+        return result;
+    }
+
+    private static List<String> actual(ResponderDispatchTable table, String url) {
+        List<String> result = new ArrayList<String>();
+        for (ResponderDispatchTable.Match m : table.lookup(url))
+            result.add(m.toString());
+        return result;
+    }
+
+    private static void assertSameMatches(List<Dap4Responder> responders, BesApi besApi, Set<String> urls) {
+        ResponderDispatchTable table = new ResponderDispatchTable(responders);
+        for (String url : urls) {
+            Assert.assertEquals(url, expected(responders, besApi, url), actual(table, url));
+            // The responders take the data source the table found as it is.
+            for (ResponderDispatchTable.Match m : table.lookup(url))
+                Assert.assertEquals(url, m.getDataSource(), besApi.getBesDataSourceID(url, m.getDataSource(),
+                        m.getResponder().getCombinedRequestSuffixPattern(), false));
+        }
+    }
+
+    private static Set<String> urls(List<Dap4Responder> responders) {
+        Set<String> urls = new LinkedHashSet<String>();
+        String[] bases = {"/data/nc/fnoc1.nc", "/data/hdf/AIRS.2015.h5", "fnoc1", "", "/data/x.DODS"};
+        for (String base : bases) {
+            urls.add(base);
+            urls.add(base + ".");
+            urls.add(base + ".bogus");
+            // The ISO responder's regex has unescaped dots, so it takes the regex fallback.
+            urls.add(base + ".dmr.iso");
+            urls.add(base + ".dmrxiso");
+            urls.add(base + ".dmr.rubric");
+            for (Dap4Responder r : responders) {
+                List<String> suffixes = r.getRequestSuffixes();
+                if (suffixes == null)
+                    continue;
+                for (String suffix : suffixes) {
+                    urls.add(base + suffix);
+                    urls.add(base + suffix.toUpperCase());
+                    urls.add(base + suffix + suffix);
+                    urls.add(base + suffix.substring(0, suffix.length() / 2));
+                }
+            }
+        }
+        return urls;
+    }
+
+    @Test
+    public void testDefaultResponders() throws Exception {
+        BesApi besApi = new BesApi();
+        BesDapDispatcher dispatcher = new BesDapDispatcher();
+        dispatcher.loadResponders(System.getProperty("java.io.tmpdir") + File.separator, besApi);
+        List<Dap4Responder> responders = dispatcher.getResponders();
+
+        Assert.assertTrue(responders.size() > 20);
+        assertSameMatches(responders, besApi, urls(responders));
+    }
+
+    @Test
+    public void testGatewayDataSource() throws Exception {
+        BesApi besApi = new BesGatewayApi("gateway/");
+        BesDapDispatcher dispatcher = new BesDapDispatcher();
+        dispatcher.loadResponders(System.getProperty("java.io.tmpdir") + File.separator, besApi);
+        ResponderDispatchTable table = new ResponderDispatchTable(dispatcher.getResponders());
+
+        // The gateway's data source is the remote URL, not the relative URL less its suffix.
+        String remoteUrl = "http://test.opendap.org/opendap/data/nc/fnoc1.nc";
+        String url = "/gateway/" + HexAsciiEncoder.stringToHex(remoteUrl) + ".dds";
+        String dataSource = null;
+        for (ResponderDispatchTable.Match m : table.lookup(url)) {
+            dataSource = besApi.getBesDataSourceID(url, m.getDataSource(), m.getResponder().getCombinedRequestSuffixPattern(), false);
+            if (dataSource != null)
+                break;
+        }
+        Assert.assertEquals(remoteUrl, dataSource);
+    }
+
+    @Test
+    public void testCustomRegexResponder() throws Exception {
+        BesApi besApi = new BesApi();
+        BesDapDispatcher dispatcher = new BesDapDispatcher();
+        dispatcher.loadResponders(System.getProperty("java.io.tmpdir") + File.separator, besApi);
+        List<Dap4Responder> responders = new ArrayList<Dap4Responder>(dispatcher.getResponders());
+
+        // A responder whose regex can't be listed is matched with its regex, in its place.
+        Dap4Responder custom = responders.get(responders.size() - 1);
+        custom.setCombinedRequestSuffixRegex("\\.d[a-z]s$");
+        Set<String> urls = urls(responders.subList(0, responders.size() - 1));
+        urls.add("/data/nc/fnoc1.nc.dqs");
+        assertSameMatches(responders, besApi, urls);
+    }
+}
@@ -1,20 +1,23 @@
 package opendap.bes.caching;
 
 import opendap.bes.BESError;
-import opendap.bes.BadConfigurationException;
 import opendap.bes.dap2Responders.BesApi;
+import opendap.coreServlet.RequestCache;
 import opendap.namespaces.BES;
-import opendap.ppt.PPTException;
+import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
-import org.jdom.JDOMException;
 import org.slf4j.Logger;
 
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -22,6 +25,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * In memory cache for BES show catalog responses. In practice this is not designed for data but for BES API stuff like
  * show catalog, show info, etc. It will cache in memory any object that you wish however and associate it with
  * what ever "key" string you associate with it..
+ *
+ * Reads never take a lock. Entries live in a ConcurrentHashMap and each entry records its own last access time.
+ * The cache is bounded by entry count and by the approximate size, in bytes, of the cached responses. When either
+ * bound is passed, one thread at a time evicts the least recently accessed entries.
+ *
+ * Cached responses (Documents) and cached BESError objects have separate time-to-live values. A response older
+ * than its TTL, but no older than TTL + maxStale, is still returned while a refresh of it runs on a small, bounded
+ * pool of threads. Older responses, and expired BESErrors, are dropped and treated as a miss.
  */
 public class BesCatalogCache implements Runnable{
 
@@ -30,58 +41,107 @@ public class BesCatalogCache implements Runnable{
     static {
         log = org.slf4j.LoggerFactory.getLogger(BesCatalogCache.class);
     }
-    private static ReentrantLock lock;
-    static {
-        lock = new ReentrantLock();
-    }
 
     private static ConcurrentHashMap<String,CatalogTransaction> catalogTransactionCache;
     static {
         catalogTransactionCache = new ConcurrentHashMap<>();
     }
 
-    private static ConcurrentSkipListSet<CatalogTransaction> mostRecent;
-    static {
-        mostRecent = new ConcurrentSkipListSet<>();
-    }
-
+    // Held only by the thread evicting entries; other threads never wait for it.
+    private static ReentrantLock evictionLock = new ReentrantLock();
 
     private static AtomicLong _maxCacheEntries = new AtomicLong(50); // # of entries in cache
-    private static AtomicLong _updateInterval = new AtomicLong(10); // Update interval in seconds
-    private static double _cache_reduction_factor; // Amount to reduce cache when purging
+    private static AtomicLong _maxCacheBytes = new AtomicLong(104857600); // Approximate bytes in cache (100 MB)
+    private static AtomicLong _updateInterval = new AtomicLong(10); // Update interval in milliseconds
+    private static AtomicLong _ttl = new AtomicLong(TimeUnit.MINUTES.toNanos(60)); // TTL for responses
+    private static AtomicLong _errorTtl = new AtomicLong(TimeUnit.MINUTES.toNanos(1)); // TTL for BESErrors
+    private static AtomicLong _maxStale = new AtomicLong(TimeUnit.MINUTES.toNanos(60)); // Time stale responses are served
+    private static double _cache_reduction_factor = 0.2; // Amount to reduce cache when purging
+
+    private static AtomicLong _currentBytes = new AtomicLong(0);
 
+    private static AtomicLong _hits = new AtomicLong(0);
+    private static AtomicLong _staleHits = new AtomicLong(0);
+    private static AtomicLong _misses = new AtomicLong(0);
+    private static AtomicLong _expired = new AtomicLong(0);
+    private static AtomicLong _evictions = new AtomicLong(0);
+    private static AtomicLong _refreshes = new AtomicLong(0);
+    private static AtomicLong _refreshFailures = new AtomicLong(0);
+    private static AtomicLong _refreshesRejected = new AtomicLong(0);
 
-    private static boolean ENABLED=false;
+    private static BesApi _besApi = new BesApi();
+    private static ThreadPoolExecutor _refreshExecutor = null;
+
+
+    private static volatile boolean ENABLED=false;
+
+    // Whether listings warm the cache with the catalogs of their datasets. See BesApi.prefetchChildCatalogs()
+    private static volatile boolean _prefetch=false;
 
     private static AtomicBoolean halt=new AtomicBoolean(false);
 
 
     public BesCatalogCache(long maxEntries, long updateInterval) {
+        this(maxEntries, _maxCacheBytes.get(), updateInterval, updateInterval, TimeUnit.NANOSECONDS.toMillis(_errorTtl.get()),
+                updateInterval, 4);
+    }
+
+    /**
+     *
+     * @param maxEntries The maximum number of entries.
+     * @param maxBytes The maximum approximate size, in bytes, of the cached responses.
+     * @param updateInterval Milliseconds between runs of the updater.
+     * @param ttl Milliseconds a cached response is fresh.
+     * @param errorTtl Milliseconds a cached BESError is kept.
+     * @param maxStale Milliseconds past its TTL that a response is still served while it is refreshed.
+     * @param refreshThreads The maximum number of refreshes that run at once.
+     */
+    public BesCatalogCache(long maxEntries, long maxBytes, long updateInterval, long ttl, long errorTtl,
+                           long maxStale, int refreshThreads) {
         if(ENABLED)
             return;
 
         _maxCacheEntries.set(maxEntries);
+        _maxCacheBytes.set(maxBytes);
         _updateInterval.set(updateInterval);
-        _cache_reduction_factor =  0.2;
+        _ttl.set(TimeUnit.MILLISECONDS.toNanos(ttl));
+        _errorTtl.set(TimeUnit.MILLISECONDS.toNanos(errorTtl));
+        _maxStale.set(TimeUnit.MILLISECONDS.toNanos(maxStale));
+
+        _refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>((int) Math.max(1, Math.min(maxEntries, 10000))),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "CatalogCacheRefresh-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        _refreshExecutor.allowCoreThreadTimeOut(true);
+
+        halt.set(false);
         ENABLED = true;
-        log.debug("BesCatalogCache() - CREATED  _maxCacheEntries: {}  _updateInterval: {}", _maxCacheEntries.get(),_updateInterval.get());
+        log.debug("BesCatalogCache() - CREATED  _maxCacheEntries: {}  _maxCacheBytes: {}  _updateInterval: {}  " +
+                        "ttl: {}  errorTtl: {}  maxStale: {}  refreshThreads: {}",
+                new Object[]{_maxCacheEntries.get(), _maxCacheBytes.get(), _updateInterval.get(),
+                        ttl, errorTtl, maxStale, refreshThreads});
     }
 
     /**
      * This private class is used to wrap whatever object is being cached along with data used to
-     * operate in the cache. Most significantly this class implements the Comparable interface such that
-     * the "natural" ordering of instances will be based on the last time each instance was accessed by the server.
-     * This is not an autonomous operation and is tightly coupled with code in "BesCatalogCache.getCatalog()" to
-     * ensure that the ordering remains correct.
+     * operate in the cache. The request, response and update time never change; a refresh replaces
+     * the whole CatalogTransaction. Only the last access time is updated, without locking, on each hit.
      */
-    private static class CatalogTransaction implements Comparable  {
-        private Document _request;
-        private Object _response;
-        long _lastUpdateTime;
-        long _lastAccessedTime;
-        private String _key;
-        private long _serialNumber;
-        private static AtomicLong counter = new AtomicLong(0);
+    private static class CatalogTransaction {
+        private final Document _request;
+        private final Object _response;
+        private final String _key;
+        private final long _size;
+        final long _lastUpdateTime;
+        volatile long _lastAccessedTime;
+        final AtomicBoolean _refreshing;
 
 
         public CatalogTransaction(String key, Document request, Object response){
@@ -106,9 +166,10 @@ public class BesCatalogCache implements Runnable{
 
 
             _response = response;
+            _size = estimateSize(_key, _request, _response);
             _lastAccessedTime = System.nanoTime();
             _lastUpdateTime = _lastAccessedTime;
-            _serialNumber = counter.getAndIncrement();
+            _refreshing = new AtomicBoolean(false);
         }
 
         public Object getResponse(){
@@ -119,315 +180,403 @@ public class BesCatalogCache implements Runnable{
             return (Document) _request.clone();
         }
 
-        /**
-         * The evaluation is based on the last accessed time (firstly) and the serial number of the
-         * CatalogTransaction (secondly). If the last accessed times of two objects are the same
-         * (unlikely but possible) then the serial numbers are used to determine the hierarchy/ranking/relation
-         * @param o
-         * @return
-         */
-        @Override
-        public int compareTo(Object o) {
-            if (!(o instanceof CatalogTransaction))
-                throw new ClassCastException("An instance of a CatalogTransaction object was expected.");
-            CatalogTransaction that = (CatalogTransaction) o;
-            if(this==that)
-                return 0;
-
-            if(this._lastAccessedTime == that._lastAccessedTime){
-                log.warn("compareTo() - Required object serial numbers to differentiate " +
-                        "instances. this: {} that: {}",this._serialNumber, that._serialNumber);
-                return (int) (this._serialNumber - that._serialNumber);
-            }
-
-
-            // Why return like this? Because the return value is an integer and the computation produces a long
-            // incorrect conversion (over/under flow) could change sign of result.
-            return (this._lastAccessedTime - that._lastAccessedTime)>0?1:-1;
-
-
+        boolean isError(){
+            return _response instanceof BESError;
         }
-        @Override
-        public boolean equals(Object aThat) {
-            if (this == aThat) return true;
-            if (!(aThat instanceof CatalogTransaction)) return false;
-
-            CatalogTransaction that = (CatalogTransaction)aThat;
 
-            return ( (this._lastAccessedTime == that._lastAccessedTime ) &&
-                     (this._request == that._request)  &&
-                     (this._response == that._response)
+        long getAge(long now){
+            return now - _lastUpdateTime;
+        }
+    }
 
-                   );
 
+    /**
+     * Roughly the number of bytes of heap used by a cache entry. JDOM content is counted as
+     * two bytes per character plus a fixed overhead per element and attribute.
+     */
+    private static long estimateSize(String key, Document request, Object response){
+        long size = 128 + 2L * key.length() + estimateSize(request.getRootElement());
+        if(response instanceof Document) {
+            Document doc = (Document) response;
+            if(doc.hasRootElement())
+                size += estimateSize(doc.getRootElement());
         }
-
-        @Override public int hashCode() {
-            int result = 73;
-            result += _lastAccessedTime + (_request==null?0: _request.hashCode()) + (_response==null?0: _response.hashCode());
-            return result;
+        else if(response instanceof BESError) {
+            String msg = ((BESError) response).getMessage();
+            size += 512 + (msg==null?0:2L*msg.length());
         }
-
+        else {
+            size += 256;
+        }
+        return size;
     }
 
+    private static long estimateSize(Element element){
+        long size = 96 + 2L * element.getName().length() + 2L * element.getText().length();
+        for(Object o : element.getAttributes()){
+            Attribute a = (Attribute) o;
+            size += 64 + 2L * (a.getName().length() + a.getValue().length());
+        }
+        for(Object o : element.getChildren()){
+            size += estimateSize((Element) o);
+        }
+        return size;
+    }
 
 
 
 
-
-
+    /**
+     * Removes the least recently accessed entries until the cache is below its bounds by the
+     * reduction factor. If another thread is already evicting this returns at once.
+     */
     private static void purgeLeastRecentlyAccessed(){
 
+        if(!isOverLimit(1.0))
+            return;
 
-        lock.lock();
-        try {
-
-            // Cache not full? Then return...
-            if (catalogTransactionCache.size() < _maxCacheEntries.get())
-                return;
-
-            int dropNum = (int) (_maxCacheEntries.get() * _cache_reduction_factor);
-            log.debug("purgeLeastRecentlyAccessed() - BEGIN  catalogTransactionCache.size(): {}  mostRecent.size(): {}", catalogTransactionCache.size(),mostRecent.size());
-            log.debug("purgeLeastRecentlyAccessed() - dropNum: {}",dropNum);
-            log.debug("purgeLeastRecentlyAccessed() - Before purge catalogTransactionCache.size(): {}", catalogTransactionCache.size());
-            log.debug("purgeLeastRecentlyAccessed() - Before purge mostRecent.size(): {}",mostRecent.size());
-
-            Vector<CatalogTransaction> purgeList = new Vector<>(dropNum);
+        if(!evictionLock.tryLock())
+            return;
 
-            Iterator<CatalogTransaction> oldestToNewest = mostRecent.iterator();
-            for(int i=0; i<dropNum && oldestToNewest.hasNext(); i++ ){
-                CatalogTransaction co = oldestToNewest.next();
-                purgeList.add(co);
-                log.debug("purgeLeastRecentlyAccessed() - Purging CatalogTransaction for key {}",co._key);
-                catalogTransactionCache.remove(co._key);
+        try {
+            log.debug("purgeLeastRecentlyAccessed() - BEGIN  catalogTransactionCache.size(): {}  bytes: {}",
+                    catalogTransactionCache.size(), _currentBytes.get());
+
+            List<CatalogTransaction> oldestToNewest = new ArrayList<>(catalogTransactionCache.values());
+            Collections.sort(oldestToNewest, new Comparator<CatalogTransaction>() {
+                @Override
+                public int compare(CatalogTransaction a, CatalogTransaction b) {
+                    long diff = a._lastAccessedTime - b._lastAccessedTime;
+                    return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+                }
+            });
+
+            double target = 1.0 - _cache_reduction_factor;
+            Iterator<CatalogTransaction> i = oldestToNewest.iterator();
+            while(isOverLimit(target) && i.hasNext()){
+                CatalogTransaction co = i.next();
+                if(remove(co)) {
+                    _evictions.incrementAndGet();
+                    log.debug("purgeLeastRecentlyAccessed() - Purged CatalogTransaction for key {}", co._key);
+                }
             }
-            mostRecent.removeAll(purgeList);
-            log.debug("purgeLeastRecentlyAccessed() - After purge catalogTransactionCache.size(): {}", catalogTransactionCache.size());
-            log.debug("purgeLeastRecentlyAccessed() - After purge mostRecent.size(): {}",mostRecent.size());
-            log.debug("purgeLeastRecentlyAccessed() - END");
+            log.debug("purgeLeastRecentlyAccessed() - END  catalogTransactionCache.size(): {}  bytes: {}",
+                    catalogTransactionCache.size(), _currentBytes.get());
 
         }
         finally {
-            lock.unlock();
+            evictionLock.unlock();
         }
 
     }
 
+    private static boolean isOverLimit(double fraction){
+        return catalogTransactionCache.size() > _maxCacheEntries.get() * fraction ||
+                _currentBytes.get() > _maxCacheBytes.get() * fraction;
+    }
+
     /**
-     * Updates the mostRecent list by dropping the passed CatalogTransaction from the mostRecent list, updating
-     * the CatalogTransaction's access time and then adding the updated CatalogTransaction back to the mostRecent list.
-     * @param cct The CatalogTransaction whose access time needs updating.
+     * Removes the entry if it is still the one cached for its key.
      */
-    private static  void updateMostRecentlyAccessed(CatalogTransaction cct){
-
-        lock.lock();
-        try {
-            log.debug("updateMostRecentlyAccessed() - Updating mostRecent list.  mostRecent.size(): {}", mostRecent.size());
-            if (mostRecent.contains(cct)) {
-                log.debug("updateMostRecentlyAccessed() - mostRecent list contains CatalogTransaction. Will drop.");
-                mostRecent.remove(cct);
-            }
-            cct._lastAccessedTime = System.nanoTime();
-
-            boolean status = mostRecent.add(cct);
-            if (status) {
-                log.debug("updateMostRecentlyAccessed() - mostRecent list successfully added updated CatalogTransaction.");
-
-            } else {
-                log.debug("updateMostRecentlyAccessed() - mostRecent list FAIL to add updated CatalogTransaction as it" +
-                        " appears to be already in the mostRecent collection.");
-
-            }
-            log.debug("updateMostRecentlyAccessed() - mostRecent list updated.  mostRecent.size(): {}", mostRecent.size());
-        }
-        finally {
-            lock.unlock();
+    private static boolean remove(CatalogTransaction co){
+        if(catalogTransactionCache.remove(co._key, co)){
+            _currentBytes.addAndGet(-co._size);
+            return true;
         }
-
+        return false;
     }
 
+
     public static void putCatalogTransaction(String key, Document request, Object response) {
 
-        if(!ENABLED)
+        if(!ENABLED || key==null)
             return;
 
+        CatalogTransaction co = new CatalogTransaction(key, request, response);
+        log.debug("putCatalogTransaction() - CatalogTransaction created for key \"{}\" size: {}", key, co._size);
 
+        CatalogTransaction previous = catalogTransactionCache.put(key, co);
+        _currentBytes.addAndGet(co._size - (previous==null?0:previous._size));
 
-        lock.lock();
-        try {
-            log.debug("putCatalogTransaction() - BEGIN  catalogTransactionCache.size(): {}  " +
-                    "mostRecent.size(): {}", catalogTransactionCache.size(),mostRecent.size());
+        purgeLeastRecentlyAccessed();
+    }
 
-            purgeLeastRecentlyAccessed();
+    public static int getCurrentCacheSize(){
+        return catalogTransactionCache.size();
+    }
 
-            CatalogTransaction co = new CatalogTransaction(key, request, response);
-            log.debug("putCatalogTransaction() - CatalogTransaction created: {}", co._lastAccessedTime);
+    /**
+     * @return The approximate size, in bytes, of the cached entries.
+     */
+    public static long getCurrentCacheBytes(){
+        return _currentBytes.get();
+    }
 
-            boolean success = mostRecent.add(co);
-            if (!success) {
-                log.warn("putCatalogTransaction() - CatalogTransaction cache mostRecent list " +
-                        "ALREADY contained CatalogTransaction {} for key: \"{}\"", co, key);
-            }
+    /**
+     * @return True if the cache has been started.
+     */
+    public static boolean isEnabled(){
+        return ENABLED;
+    }
 
-            CatalogTransaction previous = catalogTransactionCache.put(key, co);
-            if (co != previous) {
-                log.warn("putCatalogTransaction() - CatalogTransaction cache updated with new object for key: \"{}\"",key);
-            } else {
-                log.debug("putCatalogTransaction() - CatalogTransaction cache updated by adding " +
-                        "new object to cache using key \"{}\"",key);
-            }
+    /**
+     * @return The maximum number of entries.
+     */
+    public static long getMaxEntries(){
+        return _maxCacheEntries.get();
+    }
 
-            log.debug("putCatalogTransaction() - END  catalogTransactionCache.size(): {}  " +
-                    "mostRecent.size(): {}", catalogTransactionCache.size(),mostRecent.size());
+    /**
+     * @return The number of entries that can be added without evicting any. 0 once the entries
+     * reach either bound.
+     */
+    public static long getFreeEntries(){
+        if(!ENABLED || _currentBytes.get() >= _maxCacheBytes.get())
+            return 0;
+        return Math.max(0, _maxCacheEntries.get() - catalogTransactionCache.size());
+    }
 
-        } finally {
-            lock.unlock();
-        }
+    /**
+     * @param prefetch True if listings should warm the cache with the catalogs of their datasets.
+     */
+    public static void setPrefetchEnabled(boolean prefetch){
+        _prefetch = prefetch;
     }
 
-    public static int getCurrentCacheSize(){
-        lock.lock();
-        try {
-            return mostRecent.size();
-        }
-        finally {
-            lock.unlock();
-        }
+    /**
+     * @return True if listings warm the cache with the catalogs of their datasets. Off by default.
+     */
+    public static boolean isPrefetchEnabled(){
+        return _prefetch;
+    }
+
+    /**
+     * Checks for a usable entry without counting a hit or a miss, and without refreshing it.
+     * @return True if getCatalog() would return a cached object for the key right now.
+     */
+    public static boolean isCached(String key){
+        if(!ENABLED || key==null)
+            return false;
+
+        CatalogTransaction co = catalogTransactionCache.get(key);
+        if(co==null)
+            return false;
+
+        long age = co.getAge(System.nanoTime());
+        if(co.isError())
+            return age <= _errorTtl.get();
+        return age <= _ttl.get() + _maxStale.get();
     }
 
     public static Object getCatalog(String key){
-        if(!ENABLED)
+        if(!ENABLED || key==null)
             return null;
 
-        lock.lock();
-        try {
-            log.debug("getCatalog() - BEGIN  catalogTransactionCache.size(): {}  mostRecent.size(): {}", catalogTransactionCache.size(),mostRecent.size());
+        CatalogTransaction co = catalogTransactionCache.get(key);
+        if(co==null) {
+            log.debug("getCatalog() - No CatalogTransaction cached for key \"{}\"", key);
+            _misses.incrementAndGet();
+            return null;
+        }
 
-            if(key==null)
-                return null;
-            CatalogTransaction co = catalogTransactionCache.get(key);
+        long now = System.nanoTime();
+        long age = co.getAge(now);
 
-            if(co!=null) {
-                log.debug("getCatalog() - Found CatalogTransaction for key \""+ key+"\"");
-                updateMostRecentlyAccessed(co);
-                return co.getResponse();
-            }
-            else {
-                log.debug("getCatalog() - No CatalogTransaction cached for key \""+ key+"\"");
+        if(co.isError()) {
+            if(age > _errorTtl.get()) {
+                log.debug("getCatalog() - Cached BESError for key \"{}\" has expired.", key);
+                expire(co);
+                return null;
             }
-
-            log.debug("getCatalog() - END  catalogTransactionCache.size(): {}  mostRecent.size(): {}", catalogTransactionCache.size(),mostRecent.size());
-
         }
-        finally {
-            lock.unlock();
+        else if(age > _ttl.get()) {
+            if(age > _ttl.get() + _maxStale.get()) {
+                log.debug("getCatalog() - CatalogTransaction for key \"{}\" is too stale to use.", key);
+                expire(co);
+                return null;
+            }
+            log.debug("getCatalog() - Returning stale CatalogTransaction for key \"{}\" and refreshing it.", key);
+            co._lastAccessedTime = now;
+            _staleHits.incrementAndGet();
+            scheduleRefresh(co);
+            return co.getResponse();
         }
 
-
-        return null;
+        log.debug("getCatalog() - Found CatalogTransaction for key \"{}\"", key);
+        co._lastAccessedTime = now;
+        _hits.incrementAndGet();
+        return co.getResponse();
     }
 
+    private static void expire(CatalogTransaction co){
+        if(remove(co))
+            _expired.incrementAndGet();
+        _misses.incrementAndGet();
+    }
 
-    private static CatalogTransaction getDummyCachedCatalogTransaction(String id){
-        Document request;
-        Document response;
-        Element e;
 
-        id="foo";
-        request = new Document();
-        e=new Element("request");
-        e.setAttribute("id",id);
-        request.setRootElement(e);
+    /**
+     * Queues a refresh of the entry unless one is already queued or running. If the refresh
+     * pool is saturated the entry is left as it is and will be tried again later.
+     */
+    private static void scheduleRefresh(final CatalogTransaction co){
+        ThreadPoolExecutor executor = _refreshExecutor;
+        if(executor==null || halt.get())
+            return;
 
-        response = new Document();
-        e= new Element("response");
-        e.setAttribute("id",id);
-        response.setRootElement(e);
-        return new CatalogTransaction(id,request,response);
+        if(!co._refreshing.compareAndSet(false,true))
+            return;
 
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // The BES transaction keeps per request state in the RequestCache.
+                    RequestCache.openThreadCache();
+                    try {
+                        updateCatalogTransaction(co);
+                    }
+                    finally {
+                        RequestCache.closeThreadCache();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e){
+            co._refreshing.set(false);
+            _refreshesRejected.incrementAndGet();
+            log.debug("scheduleRefresh() - Refresh pool is busy, not refreshing \"{}\" now.", co._key);
+        }
     }
 
 
-    private static void updateCatalogTransaction(String resourceId)
-            throws JDOMException, BadConfigurationException, PPTException, IOException, InterruptedException {
+    private static void updateCatalogTransaction(CatalogTransaction cTransaction) {
         String logPrefix = "updateCatalogTransaction() - ";
+        String resourceId = cTransaction._key;
         log.info(logPrefix + "Updating \"{}\"",resourceId);
 
-        CatalogTransaction cTransaction = catalogTransactionCache.get(resourceId);
-
-        if(cTransaction!=null) {
-
-            BesApi besApi = new BesApi();
+        try {
+            Object response;
             try {
-                Document response = new Document();
-                besApi.besTransaction(resourceId, cTransaction.getRequest(), response);
-                cTransaction._response = response.clone();
+                Document responseDoc = new Document();
+                _besApi.besTransaction(resourceId, cTransaction.getRequest(), responseDoc);
+                copyPrefix(cTransaction.getResponse(), responseDoc);
+                response = responseDoc;
             } catch (BESError be) {
                 log.info(logPrefix + "The showCatalog returned a BESError for id: \"" + resourceId +
                         "\"  CACHING. (responseCacheKey=\"" + resourceId + "\")");
-                cTransaction._response = be;
+                response = be;
+            }
+
+            CatalogTransaction updated = new CatalogTransaction(resourceId, cTransaction._request, response);
+            updated._lastAccessedTime = cTransaction._lastAccessedTime;
+
+            // Don't bring back an entry that was evicted or replaced while we were working.
+            if(catalogTransactionCache.replace(resourceId, cTransaction, updated)) {
+                _currentBytes.addAndGet(updated._size - cTransaction._size);
+                _refreshes.incrementAndGet();
+                purgeLeastRecentlyAccessed();
             }
-            cTransaction._lastUpdateTime = System.nanoTime();
             log.info(logPrefix + "Finished updating \"{}\"",resourceId);
         }
-        else {
-            log.info(logPrefix + "Nothing to update! The CatalogTransaction " +
-                    "for resource \"{}\" is not cached.",resourceId);
-
+        catch (Exception e) {
+            _refreshFailures.incrementAndGet();
+            log.error(logPrefix + "Failed to update \"{}\" Caught {}  Message: {}",
+                    new Object[]{resourceId, e.getClass().getName(), e.getMessage()});
+        }
+        finally {
+            cTransaction._refreshing.set(false);
         }
     }
 
+    /**
+     * BesApi adds the BES prefix to the top level dataset of a catalog response before caching it.
+     * Carries that attribute over to a refreshed response.
+     */
+    private static void copyPrefix(Object oldResponse, Document newResponse){
+        if(!(oldResponse instanceof Document) || !newResponse.hasRootElement())
+            return;
+        Element oldDataset = getTopDataset((Document) oldResponse);
+        Element newDataset = getTopDataset(newResponse);
+        if(oldDataset==null || newDataset==null)
+            return;
+        String prefix = oldDataset.getAttributeValue("prefix");
+        if(prefix!=null)
+            newDataset.setAttribute("prefix", prefix);
+    }
 
-
-    public static void main(String args[]) {
-
-
-
-        TreeSet<CatalogTransaction> set = new TreeSet<>();
-
-        CatalogTransaction co, a1;
-
+    private static Element getTopDataset(Document doc){
+        Element root = doc.getRootElement();
+        for(Object o : root.getChildren()){
+            Element dataset = ((Element) o).getChild("dataset", BES.BES_NS);
+            if(dataset!=null)
+                return dataset;
+        }
+        return null;
+    }
 
 
-        co = getDummyCachedCatalogTransaction("foo");
-        set.add(co);
-        System.out.println("key: "+co._key+" co.getTime(): "+co._lastAccessedTime+" set.size(): "+set.size());
-        a1 = co;
+    public static long getHits(){
+        return _hits.get();
+    }
 
-        co = getDummyCachedCatalogTransaction("bar");
-        set.add(co);
-        System.out.println("key: "+co._key+" co.getTime(): "+co._lastAccessedTime +" set.size(): "+set.size());
+    /**
+     * @return The number of times a stale response was returned while it was refreshed.
+     */
+    public static long getStaleHits(){
+        return _staleHits.get();
+    }
 
-        co = getDummyCachedCatalogTransaction("moo");
-        set.add(co);
-        System.out.println("key: "+co._key+" co.getTime(): "+co._lastAccessedTime +" set.size(): "+set.size());
+    public static long getMisses(){
+        return _misses.get();
+    }
 
-        co = getDummyCachedCatalogTransaction("soo");
-        set.add(co);
-        System.out.println("key: "+co._key+" co.getTime(): "+co._lastAccessedTime +" set.size(): "+set.size());
+    /**
+     * @return The fraction of lookups, 0.0 - 1.0, that found a usable entry.
+     */
+    public static double getHitRatio(){
+        long hits = _hits.get() + _staleHits.get();
+        long lookups = hits + _misses.get();
+        return lookups==0 ? 0.0 : (double) hits / lookups;
+    }
 
-        co = getDummyCachedCatalogTransaction("boo");
-        set.add(co);
-        System.out.println("key: "+co._key+" co.getTime(): "+co._lastAccessedTime +" set.size(): "+set.size());
+    public static long getEvictions(){
+        return _evictions.get();
+    }
 
+    public static long getExpired(){
+        return _expired.get();
+    }
 
-        System.out.println("List: ");
-        for(CatalogTransaction cco: set){
-            System.out.println(cco._key+": "+cco._lastAccessedTime );
-        }
+    public static long getRefreshes(){
+        return _refreshes.get();
+    }
 
-        set.remove(a1);
-        a1._lastAccessedTime = System.nanoTime();
-        set.add(a1);
+    public static long getRefreshFailures(){
+        return _refreshFailures.get();
+    }
 
-        System.out.println("List: ");
-        for(CatalogTransaction cco: set){
-            System.out.println(cco._key+": "+cco._lastAccessedTime );
-        }
+    public static long getRefreshesRejected(){
+        return _refreshesRejected.get();
+    }
 
+    public static String getStatistics(){
+        return "[BesCatalogCache enabled: " + ENABLED +
+                " entries: " + getCurrentCacheSize() + "/" + _maxCacheEntries.get() +
+                " bytes: " + getCurrentCacheBytes() + "/" + _maxCacheBytes.get() +
+                " hits: " + getHits() +
+                " staleHits: " + getStaleHits() +
+                " misses: " + getMisses() +
+                " hitRatio: " + String.format("%.3f", getHitRatio()) +
+                " evictions: " + getEvictions() +
+                " expired: " + getExpired() +
+                " refreshes: " + getRefreshes() +
+                " refreshFailures: " + getRefreshFailures() +
+                " refreshesRejected: " + getRefreshesRejected() +
+                "]";
+    }
 
 
-    }
     @Override
     public void run() {
 
@@ -445,19 +594,7 @@ public class BesCatalogCache implements Runnable{
             try {
 
                 long startTime = new Date().getTime();
-                try {
-                    update();
-                }
-                catch (InterruptedException e) {
-                    log.error("run(): Catalog Update FAILED!!! Caught " + e.getClass().getName() +
-                            "  Message: " + e.getMessage());
-                    interrupted = true;
-                }
-                catch (BadConfigurationException | PPTException | IOException | JDOMException e) {
-                    log.error("run(): Catalog Update FAILED!!! Caught " + e.getClass().getName() +
-                            "  Message: " + e.getMessage());
-                    halt.set(true);
-                }
+                update();
 
                 long endTime = new Date().getTime();
                 long elapsedTime = (endTime - startTime);
@@ -468,7 +605,7 @@ public class BesCatalogCache implements Runnable{
                 if (!halt.get() && sleepTime > 0) {
                     StringBuilder sb = new StringBuilder();
                     sb.append("run(): ").append(thread.getName()).append(" sleeping for ").append(sleepTime/1000.0);
-                    sb.append(" cache: ").append(getCurrentCacheSize()).append("/").append(_maxCacheEntries.get());
+                    sb.append(" ").append(getStatistics());
                     log.info(sb.toString());
                     Thread.sleep(sleepTime);
                 }
@@ -485,39 +622,46 @@ public class BesCatalogCache implements Runnable{
 
     }
 
-    private void update() throws JDOMException, BadConfigurationException, PPTException, IOException, InterruptedException {
-        lock.lock();
-        try {
-            Map<String,CatalogTransaction> map = catalogTransactionCache;
-            for (String resourceId : map.keySet()) {
-                updateCatalogTransaction(resourceId);
-                if(halt.get())
-                    return;
+    /**
+     * Drops expired entries and queues refreshes of the responses that have passed their TTL. The
+     * refreshes themselves run on the refresh pool.
+     */
+    private void update() {
+        long now = System.nanoTime();
+        for (CatalogTransaction co : catalogTransactionCache.values()) {
+            if(halt.get())
+                return;
+            long age = co.getAge(now);
+            if(co.isError()) {
+                if(age > _errorTtl.get() && remove(co))
+                    _expired.incrementAndGet();
+            }
+            else if(age > _ttl.get() + _maxStale.get()) {
+                if(remove(co))
+                    _expired.incrementAndGet();
+            }
+            else if(age > _ttl.get()) {
+                scheduleRefresh(co);
             }
         }
-        finally {
-            lock.unlock();
-        }
-
+        purgeLeastRecentlyAccessed();
     }
 
 
     public void destroy(){
 
-        lock.lock();
-        try {
-
-            halt.set(true);
+        halt.set(true);
+        ENABLED = false;
+        _prefetch = false;
 
-            catalogTransactionCache.clear();
-            catalogTransactionCache = null;
+        ThreadPoolExecutor executor = _refreshExecutor;
+        _refreshExecutor = null;
+        if(executor!=null)
+            executor.shutdownNow();
 
-            mostRecent.clear();
-            mostRecent = null;
-        }
-        finally {
-            lock.unlock();
-        }
+        catalogTransactionCache.clear();
+        _currentBytes.set(0);
+        log.info("destroy() - {}", getStatistics());
 
     }
 
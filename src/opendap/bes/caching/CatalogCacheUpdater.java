@@ -21,11 +21,23 @@ public class CatalogCacheUpdater  implements ServletContextListener {
     Thread catalogUpdateThread;
     BesCatalogCache bcc;
     private long _maxCacheEntries;
+    private long _maxCacheBytes;
     private long _upDateInterval_milliseconds;
+    private long _ttl_milliseconds;
+    private long _errorTtl_milliseconds;
+    private long _maxStale_milliseconds;
+    private int _refreshThreads;
+    private boolean _prefetch;
 
     public CatalogCacheUpdater() {
         _maxCacheEntries = 1000;
+        _maxCacheBytes = 104857600; // 100 MB
         _upDateInterval_milliseconds = 3600000; // One Hour
+        _ttl_milliseconds = -1; // Same as the update interval
+        _errorTtl_milliseconds = 60000; // One Minute
+        _maxStale_milliseconds = -1; // Same as the ttl
+        _refreshThreads = 4;
+        _prefetch = false;
     }
 
 
@@ -39,7 +51,11 @@ public class CatalogCacheUpdater  implements ServletContextListener {
         ServletContext context = arg0.getServletContext();
 
         if(loadConfig(context)){
-            bcc = new BesCatalogCache(_maxCacheEntries,_upDateInterval_milliseconds);
+            long ttl = _ttl_milliseconds<0 ? _upDateInterval_milliseconds : _ttl_milliseconds;
+            long maxStale = _maxStale_milliseconds<0 ? ttl : _maxStale_milliseconds;
+            bcc = new BesCatalogCache(_maxCacheEntries, _maxCacheBytes, _upDateInterval_milliseconds,
+                    ttl, _errorTtl_milliseconds, maxStale, _refreshThreads);
+            BesCatalogCache.setPrefetchEnabled(_prefetch);
             catalogUpdateThread = new Thread(bcc);
             catalogUpdateThread.setName("CatalogCacheUpdateThread");
             catalogUpdateThread.setDaemon(true);
@@ -60,7 +76,13 @@ public class CatalogCacheUpdater  implements ServletContextListener {
      *
          <CatalogCache>
              <maxEntries>10000</maxEntries>
+             <maxSize>104857600</maxSize>
              <updateIntervalSeconds>10000</updateIntervalSeconds>
+             <ttlSeconds>10000</ttlSeconds>
+             <errorTtlSeconds>60</errorTtlSeconds>
+             <maxStaleSeconds>10000</maxStaleSeconds>
+             <refreshThreads>4</refreshThreads>
+             <prefetch>false</prefetch>
          </CatalogCache>
 
 
@@ -116,12 +138,55 @@ public class CatalogCacheUpdater  implements ServletContextListener {
 
         }
 
+        e = config.getChild("maxSize");
+        if(e!=null){
+            String maxSizeString = e.getTextTrim();
+            log.debug("loadConfig(): Setting _maxCacheBytes to {}",maxSizeString);
+            _maxCacheBytes = Long.parseLong(maxSizeString);
+        }
+
+        _ttl_milliseconds = getSeconds(config, "ttlSeconds", _ttl_milliseconds);
+        _errorTtl_milliseconds = getSeconds(config, "errorTtlSeconds", _errorTtl_milliseconds);
+        _maxStale_milliseconds = getSeconds(config, "maxStaleSeconds", _maxStale_milliseconds);
+
+        e = config.getChild("refreshThreads");
+        if(e!=null){
+            String refreshThreads = e.getTextTrim();
+            log.debug("loadConfig(): Setting _refreshThreads to {}",refreshThreads);
+            _refreshThreads = Integer.parseInt(refreshThreads);
+            if(_refreshThreads<1) {
+                log.error("loadConfig(): refreshThreads must be greater than 0 (zero). Using 1.");
+                _refreshThreads = 1;
+            }
+        }
+
+        e = config.getChild("prefetch");
+        if(e!=null){
+            log.debug("loadConfig(): prefetch: {}",e.getTextTrim());
+            _prefetch = Boolean.parseBoolean(e.getTextTrim());
+        }
+
         return true;
     }
 
 
 
 
+    /**
+     * @return The value of the named child element, in seconds, converted to milliseconds.
+     * Or the default if the element is missing.
+     */
+    private long getSeconds(Element config, String name, long defaultValue){
+        Element e = config.getChild(name);
+        if(e==null)
+            return defaultValue;
+        String seconds = e.getTextTrim();
+        log.debug("loadConfig(): {}: {}",name,seconds);
+        return Long.parseLong(seconds) * 1000; // seconds To milliseconds
+    }
+
+
+
     public void contextDestroyed(ServletContextEvent arg0) {
         log.info("contextDestroyed() - STOPPING CATALOG CACHE UPDATER");
         if(bcc != null) {
@@ -29,11 +29,13 @@ package opendap.bes.dap2Responders;
 import opendap.bes.*;
 import opendap.bes.caching.BesCatalogCache;
 import opendap.coreServlet.ResourceInfo;
+import opendap.coreServlet.RequestCache;
 import opendap.dap4.QueryParameters;
 import opendap.logging.Procedure;
 import opendap.logging.Timer;
 import opendap.ppt.PPTException;
 
+import org.jdom.Attribute;
 import org.jdom.Document;
 import org.jdom.Element;
 import org.jdom.JDOMException;
@@ -47,6 +49,20 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -133,6 +149,57 @@ public class BesApi {
     public static final String DEFAULT_BES_CONTAINER = "catalogContainer";
 
 
+    /**
+     * The largest number of showCatalog commands getBesCatalogs() sends to the BES in one request.
+     */
+    public static final int CATALOG_BATCH_SIZE = 200;
+
+    /**
+     * How long prefetchChildCatalogs() leaves a BES prefix alone after a prefetch batch failed.
+     */
+    public static final long PREFETCH_RETRY_INTERVAL = 600000; // 10 minutes
+
+    /**
+     * The largest number of dataset catalogs prefetchChildCatalogs() retrieves for one listing.
+     */
+    public static final int PREFETCH_LIMIT = 16;
+
+    /**
+     * The prefixes of the BESs that turned out to reject requests with more than one showCatalog
+     * command. getBesCatalogs() asks them one dataSource at a time, and prefetchChildCatalogs()
+     * leaves them alone.
+     */
+    private static final Set<String> _unbatchablePrefixes =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * BES prefix -> When a prefetch batch for it last failed.
+     */
+    private static final ConcurrentHashMap<String, Long> _prefetchFailures = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the prefetches, so that listings never wait for them. Prefetches that arrive while
+     * the queue is full are dropped.
+     */
+    private static final ThreadPoolExecutor _prefetchExecutor = new ThreadPoolExecutor(
+            1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(16),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "olfs-catalog-prefetch");
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                    _pendingPrefetches.decrementAndGet();
+                }
+            });
+
+    private static final AtomicInteger _pendingPrefetches = new AtomicInteger(0);
+
     public static final String _regexToMatchLastDotSuffixString = "\\.(?=[^.]*$).*$" ;
 
     /**
@@ -1288,7 +1355,7 @@ public class BesApi {
 
         String logPrefix = "getBesCatalog() - ";
 
-        Procedure timedProc = Timer.start();
+        Procedure timedProc = Timer.start("BesApi.getBesCatalog");
         try {
 
             //String responseCacheKey = this.getClass().getName() + ".getBesCatalog(\"" + dataSource + "\")";
@@ -1367,6 +1434,295 @@ public class BesApi {
 
     }
 
+    /**
+     * Returns the BES catalog documents for many dataSources. Each result looks exactly like the
+     * response getBesCatalog() would have produced for that dataSource, and is placed in the
+     * BesCatalogCache in the same way.
+     *
+     * DataSources that are not already cached are grouped by BES and sent, at most
+     * CATALOG_BATCH_SIZE at a time, as a single BES request carrying one showCatalog command per
+     * dataSource. The responses come back in command order and are split up by position. The BES
+     * stops at the first command that fails, so if a batch returns a BESError (or the wrong number
+     * of responses) the dataSources in that batch are retrieved one at a time instead. If they
+     * all succeed one at a time, the BES doesn't take batches, and its dataSources are retrieved
+     * one at a time from then on.
+     *
+     * @param dataSources The data sources whose catalogs are to be retrieved.
+     * @return A map from each dataSource to its catalog Document, or to the BESError the BES
+     * returned for it.
+     * @throws PPTException              .
+     * @throws BadConfigurationException .
+     * @throws IOException               .
+     * @throws JDOMException             .
+     */
+    public Map<String, Object> getBesCatalogs(Collection<String> dataSources)
+            throws BadConfigurationException, PPTException, JDOMException, IOException {
+        return getBesCatalogs(dataSources, true);
+    }
+
+
+    /**
+     * @param retrySingly If false, the dataSources of a failed batch are left out of the results
+     * rather than retrieved one at a time, and nothing is retrieved from a BES that doesn't take
+     * batches.
+     * @see #getBesCatalogs(java.util.Collection)
+     */
+    private Map<String, Object> getBesCatalogs(Collection<String> dataSources, boolean retrySingly)
+            throws BadConfigurationException, PPTException, JDOMException, IOException {
+
+        String logPrefix = "getBesCatalogs() - ";
+        Map<String, Object> results = new LinkedHashMap<>();
+
+        Procedure timedProc = Timer.start("BesApi.getBesCatalogs");
+        try {
+            // Group the dataSources we don't have by the BES prefix they go to.
+            Map<String, List<String>> toFetch = new LinkedHashMap<>();
+            for (String dataSource : dataSources) {
+                if (results.containsKey(dataSource))
+                    continue;
+                Object o = BesCatalogCache.getCatalog(dataSource);
+                if (o != null) {
+                    results.put(dataSource, cachedCatalogResult(o));
+                    continue;
+                }
+                results.put(dataSource, null);
+                String prefix = getBESprefix(dataSource);
+                List<String> group = toFetch.get(prefix);
+                if (group == null) {
+                    group = new ArrayList<>();
+                    toFetch.put(prefix, group);
+                }
+                group.add(dataSource);
+            }
+
+            for (Map.Entry<String, List<String>> e : toFetch.entrySet()) {
+                String prefix = e.getKey();
+                List<String> group = e.getValue();
+                for (int start = 0; start < group.size(); start += CATALOG_BATCH_SIZE) {
+                    List<String> batch = group.subList(start, Math.min(group.size(), start + CATALOG_BATCH_SIZE));
+                    boolean batchable = !_unbatchablePrefixes.contains(prefix);
+                    if (batchable) {
+                        log.info(logPrefix + "Retrieving {} showCatalog responses in one BES transaction.", batch.size());
+                        if (getBesCatalogBatch(batch, results))
+                            continue;
+                    }
+                    if (!retrySingly) {
+                        for (String dataSource : batch)
+                            results.remove(dataSource);
+                        continue;
+                    }
+
+                    boolean failures = false;
+                    for (String dataSource : batch) {
+                        Document response = new Document();
+                        try {
+                            getBesCatalog(dataSource, response);
+                            results.put(dataSource, response);
+                        }
+                        catch (BESError be) {
+                            results.put(dataSource, be);
+                            failures = true;
+                        }
+                    }
+                    if (batchable && !failures && batch.size() > 1 && _unbatchablePrefixes.add(prefix)) {
+                        log.warn(logPrefix + "The BES for prefix \"{}\" rejected a batch of showCatalog commands " +
+                                "that all work on their own. Retrieving its catalogs one at a time from now on.", prefix);
+                    }
+                }
+            }
+        }
+        finally {
+            Timer.stop(timedProc);
+        }
+        return results;
+    }
+
+
+    /**
+     * Runs one batched showCatalog transaction and, if it works out, caches and records the
+     * response for each dataSource.
+     *
+     * @param batch The dataSources, all served by the same BES prefix.
+     * @param results Where the response for each dataSource is placed.
+     * @return False if the batch did not produce a response for every dataSource, in which case
+     * nothing was cached or recorded.
+     */
+    private boolean getBesCatalogBatch(List<String> batch, Map<String, Object> results)
+            throws BadConfigurationException, PPTException, JDOMException, IOException {
+
+        String logPrefix = "getBesCatalogBatch() - ";
+
+        Document response = new Document();
+        try {
+            besTransaction(batch.get(0), getBatchShowRequestDocument("showCatalog", batch), response);
+        }
+        catch (BESError be) {
+            log.info(logPrefix + "The BES returned a BESError for a batch of {} showCatalog commands. " +
+                    "Retrieving them one at a time. Msg: {}", batch.size(), be.getMessage());
+            return false;
+        }
+
+        Element root = response.getRootElement();
+        List<Element> showCatalogs = new ArrayList<>();
+        if (root != null) {
+            for (Object o : root.getChildren("showCatalog", BES_NS))
+                showCatalogs.add((Element) o);
+        }
+        if (showCatalogs.size() != batch.size()) {
+            log.warn(logPrefix + "Expected {} showCatalog responses from the BES, received {}. " +
+                    "Retrieving them one at a time.", batch.size(), showCatalogs.size());
+            return false;
+        }
+        for (Element showCatalog : showCatalogs) {
+            if (showCatalog.getChild("dataset", BES_NS) == null) {
+                log.warn(logPrefix + "A showCatalog response in the batch has no dataset element. " +
+                        "Retrieving them one at a time.");
+                return false;
+            }
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            String dataSource = batch.get(i);
+            Element showCatalog = showCatalogs.get(i);
+            showCatalog.detach();
+            showCatalog.getChild("dataset", BES_NS).setAttribute("prefix", getBESprefix(dataSource));
+
+            // Rebuild the response the BES sends for a single showCatalog command.
+            Element singleRoot = new Element(root.getName(), root.getNamespace());
+            for (Object a : root.getAttributes())
+                singleRoot.setAttribute((Attribute) ((Attribute) a).clone());
+            singleRoot.addContent(showCatalog);
+            Document catalog = new Document(singleRoot);
+
+            BesCatalogCache.putCatalogTransaction(dataSource, getShowCatalogRequestDocument(dataSource), catalog.clone());
+            results.put(dataSource, catalog);
+        }
+        return true;
+    }
+
+
+    /**
+     * @return A private copy of a cached catalog Document, or the cached BESError.
+     */
+    private Object cachedCatalogResult(Object o) throws IOException {
+        if (o instanceof BESError)
+            return o;
+        if (o instanceof Document)
+            return ((Document) o).clone();
+        throw new IOException("Cached object is of unexpected type! This is a bad thing! Object: "+o.getClass().getCanonicalName());
+    }
+
+
+    /**
+     * Warms the BesCatalogCache with the catalogs of the datasets (not the nodes) listed in a
+     * showCatalog response, so that the requests that usually follow a directory listing or a
+     * THREDDS catalog find their dataset information already cached. The catalogs are retrieved
+     * in batches on a background thread, so the listing doesn't wait for them. Off unless
+     * prefetch is enabled in the CatalogCache configuration. Does nothing when the BES doesn't
+     * take batches, since retrieving the catalogs one at a time costs as much as not prefetching
+     * them. After a batch fails the BES is left alone for PREFETCH_RETRY_INTERVAL. At most
+     * PREFETCH_LIMIT catalogs are retrieved, and only as many as the cache has free room for, so
+     * a prefetch never evicts an entry. Problems are logged rather than thrown; the listing
+     * itself has already succeeded.
+     *
+     * @param collectionName The dataSource the showCatalog response was retrieved for.
+     * @param showCatalogDoc The showCatalog response.
+     */
+    public void prefetchChildCatalogs(String collectionName, Document showCatalogDoc) {
+
+        if (!BesCatalogCache.isPrefetchEnabled() || showCatalogDoc == null || !showCatalogDoc.hasRootElement())
+            return;
+
+        long limit = Math.min(PREFETCH_LIMIT, BesCatalogCache.getFreeEntries());
+        if (limit <= 0)
+            return;
+
+        Element showCatalog = showCatalogDoc.getRootElement().getChild("showCatalog", BES_NS);
+        Element topDataset = showCatalog == null ? null : showCatalog.getChild("dataset", BES_NS);
+        if (topDataset == null)
+            return;
+
+        String parent = collectionName;
+        if (!parent.startsWith("/"))
+            parent = "/" + parent;
+        if (!parent.endsWith("/"))
+            parent += "/";
+
+        List<String> children = new ArrayList<>();
+        for (Object o : topDataset.getChildren("dataset", BES_NS)) {
+            Element child = (Element) o;
+            if (children.size() >= limit)
+                break;
+            if ("true".equalsIgnoreCase(child.getAttributeValue("node")))
+                continue;
+            String dataSource = parent + child.getAttributeValue("name");
+            if (!BesCatalogCache.isCached(dataSource))
+                children.add(dataSource);
+        }
+
+        if (children.isEmpty())
+            return;
+
+        final String prefix;
+        try {
+            prefix = getBESprefix(children.get(0));
+        }
+        catch (BadConfigurationException e) {
+            log.warn("prefetchChildCatalogs() - No BES for \"{}\" Msg: {}", collectionName, e.getMessage());
+            return;
+        }
+        if (_unbatchablePrefixes.contains(prefix))
+            return;
+        Long failed = _prefetchFailures.get(prefix);
+        if (failed != null && System.currentTimeMillis() - failed < PREFETCH_RETRY_INTERVAL)
+            return;
+
+        final String collection = collectionName;
+        final List<String> dataSources = children;
+        log.debug("prefetchChildCatalogs() - Prefetching {} dataset catalogs for \"{}\"", children.size(), collectionName);
+        _pendingPrefetches.incrementAndGet();
+        _prefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RequestCache.openThreadCache();
+                try {
+                    Map<String, Object> results = getBesCatalogs(dataSources, false);
+                    if (results.size() < dataSources.size())
+                        _prefetchFailures.put(prefix, System.currentTimeMillis());
+                    else
+                        _prefetchFailures.remove(prefix);
+                }
+                catch (Exception e) {
+                    _prefetchFailures.put(prefix, System.currentTimeMillis());
+                    log.warn("prefetchChildCatalogs() - Failed to prefetch the dataset catalogs for \"{}\" Msg: {}",
+                            collection, e.getMessage());
+                }
+                finally {
+                    RequestCache.closeThreadCache();
+                    _pendingPrefetches.decrementAndGet();
+                }
+            }
+        });
+    }
+
+
+    /**
+     * @return The number of prefetches waiting for or being run.
+     */
+    public static int getPendingPrefetchCount() {
+        return _pendingPrefetches.get();
+    }
+
+
+    /**
+     * Forgets which BESs don't take batches and which prefetches failed.
+     */
+    static void resetBatchSupport() {
+        _unbatchablePrefixes.clear();
+        _prefetchFailures.clear();
+    }
+
+
 
     /**
      * Returns the BES INFO document for the specified dataSource.
@@ -1390,7 +1746,7 @@ public class BesApi {
             BESError {
 
 
-        Procedure timedProc = Timer.start();
+        Procedure timedProc = Timer.start("BesApi.getInfo");
         try {
             String responseCacheKey = this.getClass().getName() + ".showInfo(\"" + dataSource + "\")";
 
@@ -2468,6 +2824,36 @@ public class BesApi {
 
 
 
+    /**
+     * Builds a single BES request that carries one show command (showCatalog, showInfo, ...) for
+     * each of the dataSources. The BES answers with one response element per command, in order.
+     * All of the dataSources must be served by the same BES prefix.
+     *
+     * @param type The show command.
+     * @param dataSources The data sources.
+     * @return The request document.
+     * @throws BadConfigurationException .
+     */
+    public Document getBatchShowRequestDocument(String type, List<String> dataSources)
+            throws BadConfigurationException {
+
+        Element request = new Element("request", BES_NS);
+        request.setAttribute(REQUEST_ID,getRequestIdBase());
+        request.addContent(setContextElement(ERRORS_CONTEXT,XML_ERRORS));
+
+        for(String dataSource : dataSources){
+            Element e = new Element(type,BES_NS);
+            String besDataSource = getBES(dataSource).trimPrefix(dataSource);
+            e.setAttribute("node",besDataSource);
+            request.addContent(e);
+        }
+
+        return new Document(request);
+
+    }
+
+
+
     public Document getShowRequestDocument(String type, String dataSource)
             throws BadConfigurationException {
 
@@ -2612,22 +2998,8 @@ public class BesApi {
             int start =  suffixMatcher.start();
             besDataSourceId = relativeUrl.substring(0,start);
 
-            if(checkWithBes){
-                log.debug("Asking BES about resource: {}", besDataSourceId);
-
-                try {
-                    ResourceInfo dsi = new BESResource(besDataSourceId, this);
-                    // Q: Why this test and not dsi.sourceExists()??
-                    // A: Because this check is only for things the BES views as data. Regular (non data)
-                    //    files are handled by the "FileDispatchHandler"
-                    if (!dsi.isDataset()) {
-                        besDataSourceId = null;
-                    }
-                } catch (Exception e) {
-                    log.debug("matches() failed with an Exception. Msg: '{}'", e.getMessage());
-                }
-
-            }
+            if(checkWithBes && !isBesDataset(besDataSourceId))
+                besDataSourceId = null;
         }
 
         log.debug("getBesDataSourceID() - besDataSourceId: " + besDataSourceId);
@@ -2636,6 +3008,50 @@ public class BesApi {
 
     }
 
+
+    /**
+     * Does what getBesDataSourceID(String, Pattern, boolean) does for a relative URL whose
+     * request suffix has already been found and removed (by the ResponderDispatchTable), so
+     * the suffix regex isn't run over the URL a second time.
+     *
+     * Subclasses whose besDataSourceId isn't simply the relative URL less its suffix (the
+     * gateway, for one) override this to build it from the relative URL.
+     *
+     * @param relativeUrl The relative URL of the client request.
+     * @param besDataSourceId The relative URL with its request suffix removed.
+     * @param matchPattern The request suffix regex that was matched.
+     * @param checkWithBes Whether to ask the BES if the besDataSourceId is a dataset.
+     * @return The besDataSourceId, null if the BES was asked and it isn't a dataset.
+     */
+    public String getBesDataSourceID(String relativeUrl, String besDataSourceId, Pattern matchPattern, boolean checkWithBes){
+
+        if(checkWithBes && !isBesDataset(besDataSourceId))
+            return null;
+
+        return besDataSourceId;
+    }
+
+
+    /**
+     * @return False if the BES says the besDataSourceId is not a dataset. True if it is, or
+     * if the BES couldn't be asked.
+     */
+    private boolean isBesDataset(String besDataSourceId){
+
+        log.debug("Asking BES about resource: {}", besDataSourceId);
+
+        try {
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(besDataSourceId, this);
+            // Q: Why this test and not dsi.sourceExists()??
+            // A: Because this check is only for things the BES views as data. Regular (non data)
+            //    files are handled by the "FileDispatchHandler"
+            return dsi.isDataset();
+        } catch (Exception e) {
+            log.debug("matches() failed with an Exception. Msg: '{}'", e.getMessage());
+        }
+        return true;
+    }
+
     private String getRequestIdBase(){
         return "[thread:"+Thread.currentThread().getName()+"-"+ Thread.currentThread().getId()+"]";
     }
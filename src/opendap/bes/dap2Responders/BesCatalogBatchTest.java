@@ -0,0 +1,252 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.dap2Responders;
+
+import opendap.bes.BES;
+import opendap.bes.BESConfig;
+import opendap.bes.BESError;
+import opendap.bes.BESManager;
+import opendap.bes.caching.BesCatalogCache;
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that BesApi.getBesCatalogs() sends many showCatalog commands in one BES transaction,
+ * splits the responses up by dataSource, and caches them.
+ */
+public class BesCatalogBatchTest {
+
+    private static final Namespace BES_NS = opendap.namespaces.BES.BES_NS;
+
+    private static BesCatalogCache _cache;
+
+    /**
+     * Answers showCatalog requests from memory and counts the transactions. Like the BES, a
+     * request fails as a whole if any of its commands names a missing dataset.
+     */
+    private static class BatchingBesApi extends BesApi {
+        final AtomicInteger transactions = new AtomicInteger(0);
+
+        @Override
+        public void besTransaction(String dataSource, Document request, Document response) throws BESError {
+            transactions.incrementAndGet();
+            Element root = new Element("response", BES_NS);
+            root.setAttribute(REQUEST_ID, "test");
+            for (Object o : request.getRootElement().getChildren("showCatalog", BES_NS)) {
+                String node = ((Element) o).getAttributeValue("node");
+                if (node.contains("missing"))
+                    throw new BESError("No such dataset: " + node);
+                Element dataset = new Element("dataset", BES_NS);
+                dataset.setAttribute("name", node);
+                dataset.setAttribute("size", "42");
+                dataset.setAttribute("lastModified", "2016-04-15T12:00:00");
+                dataset.setAttribute("node", "false");
+                root.addContent(new Element("showCatalog", BES_NS).addContent(dataset));
+            }
+            response.setRootElement(root);
+        }
+    }
+
+    /**
+     * Like a BES that takes one command per request.
+     */
+    private static class SingleCommandBesApi extends BatchingBesApi {
+        @Override
+        public void besTransaction(String dataSource, Document request, Document response) throws BESError {
+            if (request.getRootElement().getChildren("showCatalog", BES_NS).size() > 1) {
+                transactions.incrementAndGet();
+                throw new BESError("Only one response command is allowed per request.");
+            }
+            super.besTransaction(dataSource, request, response);
+        }
+    }
+
+    private static Document listing(String name, int count) {
+        Element top = new Element("dataset", BES_NS);
+        top.setAttribute("name", "/" + name);
+        top.setAttribute("node", "true");
+        for (int i = 0; i < count; i++) {
+            Element child = new Element("dataset", BES_NS);
+            child.setAttribute("name", "granule_" + i + ".nc");
+            child.setAttribute("node", "false");
+            top.addContent(child);
+        }
+        Element subdir = new Element("dataset", BES_NS);
+        subdir.setAttribute("name", "subdir");
+        subdir.setAttribute("node", "true");
+        top.addContent(subdir);
+        return new Document(new Element("response", BES_NS)
+                .addContent(new Element("showCatalog", BES_NS).addContent(top)));
+    }
+
+    private static void awaitPrefetches() throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (BesApi.getPendingPrefetchCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertEquals(0, BesApi.getPendingPrefetchCount());
+    }
+
+    @Before
+    public void resetBatchSupport() {
+        BesApi.resetBatchSupport();
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        if (BESManager.getBesGroup("/") == null) {
+            Element besConfig = new Element("BES");
+            besConfig.addContent(new Element("prefix").setText("/"));
+            besConfig.addContent(new Element("host").setText("localhost"));
+            besConfig.addContent(new Element("port").setText("10022"));
+            BESManager.addBes(new BES(new BESConfig(besConfig)));
+        }
+        _cache = new BesCatalogCache(10000, 60000);
+        BesCatalogCache.setPrefetchEnabled(true);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        _cache.destroy();
+    }
+
+    private static List<String> names(String dir, int count) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++)
+            names.add(dir + "granule_" + i + ".nc");
+        return names;
+    }
+
+    @Test
+    public void testBatching() throws Exception {
+        BatchingBesApi besApi = new BatchingBesApi();
+        int count = 2 * BesApi.CATALOG_BATCH_SIZE + 50;
+        List<String> dataSources = names("/batch/", count);
+
+        Map<String, Object> results = besApi.getBesCatalogs(dataSources);
+        Assert.assertEquals(3, besApi.transactions.get());
+        Assert.assertEquals(count, results.size());
+
+        for (String dataSource : dataSources) {
+            Document doc = (Document) results.get(dataSource);
+            Element dataset = doc.getRootElement().getChild("showCatalog", BES_NS).getChild("dataset", BES_NS);
+            Assert.assertEquals(dataSource, dataset.getAttributeValue("name"));
+            Assert.assertEquals("/", dataset.getAttributeValue("prefix"));
+        }
+
+        // Everything is cached now, for getBesCatalog() too.
+        besApi.getBesCatalogs(dataSources);
+        Document single = new Document();
+        besApi.getBesCatalog(dataSources.get(7), single);
+        Assert.assertEquals(3, besApi.transactions.get());
+        Assert.assertEquals(dataSources.get(7),
+                single.getRootElement().getChild("showCatalog", BES_NS).getChild("dataset", BES_NS).getAttributeValue("name"));
+    }
+
+    @Test
+    public void testFailedBatch() throws Exception {
+        BatchingBesApi besApi = new BatchingBesApi();
+        List<String> dataSources = names("/failed/", 5);
+        dataSources.add(2, "/failed/missing.nc");
+
+        Map<String, Object> results = besApi.getBesCatalogs(dataSources);
+
+        // One failed batch, then one transaction for each dataSource.
+        Assert.assertEquals(1 + dataSources.size(), besApi.transactions.get());
+        Assert.assertTrue(results.get("/failed/missing.nc") instanceof BESError);
+        Assert.assertTrue(results.get("/failed/granule_4.nc") instanceof Document);
+    }
+
+    @Test
+    public void testPrefetchChildCatalogs() throws Exception {
+        BatchingBesApi besApi = new BatchingBesApi();
+        Document listing = listing("listing", 10);
+
+        besApi.prefetchChildCatalogs("listing/", listing);
+        awaitPrefetches();
+        Assert.assertEquals(1, besApi.transactions.get());
+        Assert.assertTrue(BesCatalogCache.isCached("/listing/granule_3.nc"));
+        Assert.assertFalse(BesCatalogCache.isCached("/listing/subdir"));
+
+        besApi.prefetchChildCatalogs("listing/", listing);
+        awaitPrefetches();
+        Assert.assertEquals(1, besApi.transactions.get());
+
+        // No more than PREFETCH_LIMIT catalogs are retrieved for a listing.
+        besApi.prefetchChildCatalogs("large/", listing("large", 3 * BesApi.PREFETCH_LIMIT));
+        awaitPrefetches();
+        Assert.assertEquals(2, besApi.transactions.get());
+        Assert.assertTrue(BesCatalogCache.isCached("/large/granule_" + (BesApi.PREFETCH_LIMIT - 1) + ".nc"));
+        Assert.assertFalse(BesCatalogCache.isCached("/large/granule_" + BesApi.PREFETCH_LIMIT + ".nc"));
+    }
+
+    @Test
+    public void testPrefetchDisabled() throws Exception {
+        BatchingBesApi besApi = new BatchingBesApi();
+        BesCatalogCache.setPrefetchEnabled(false);
+        try {
+            besApi.prefetchChildCatalogs("disabled/", listing("disabled", 10));
+            awaitPrefetches();
+            Assert.assertEquals(0, besApi.transactions.get());
+        }
+        finally {
+            BesCatalogCache.setPrefetchEnabled(true);
+        }
+    }
+
+    @Test
+    public void testBesWithoutBatches() throws Exception {
+        SingleCommandBesApi besApi = new SingleCommandBesApi();
+
+        // A failed prefetch batch isn't retried one at a time, or right away.
+        besApi.prefetchChildCatalogs("nobatch/", listing("nobatch", 10));
+        awaitPrefetches();
+        Assert.assertEquals(1, besApi.transactions.get());
+        Assert.assertFalse(BesCatalogCache.isCached("/nobatch/granule_3.nc"));
+        besApi.prefetchChildCatalogs("nobatch2/", listing("nobatch2", 10));
+        awaitPrefetches();
+        Assert.assertEquals(1, besApi.transactions.get());
+
+        // Asked for, the catalogs are retrieved one at a time, and batches aren't tried again.
+        List<String> dataSources = names("/nobatch/", 5);
+        Assert.assertEquals(5, besApi.getBesCatalogs(dataSources).size());
+        Assert.assertEquals(1 + 1 + 5, besApi.transactions.get());
+        besApi.getBesCatalogs(names("/nobatch3/", 5));
+        Assert.assertEquals(1 + 1 + 5 + 5, besApi.transactions.get());
+    }
+
+}
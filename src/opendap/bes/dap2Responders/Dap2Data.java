@@ -151,17 +151,14 @@ public class Dap2Data extends Dap4Responder {
         if(qp.isStoreResultRequest()){
             srr = new ByteArrayOutputStream();
             os = srr;
+            besApi.writeDap2Data(resourceID,dap2CE,qp.getAsync(),qp.getStoreResultRequestServiceUrl(),xdap_accept,user.getMaxResponseSize(),os);
+            handleStoreResultResponse(srr, response);
         }
         else {
             os = response.getOutputStream();
-        }
-
-
-        besApi.writeDap2Data(resourceID,dap2CE,qp.getAsync(),qp.getStoreResultRequestServiceUrl(),xdap_accept,user.getMaxResponseSize(),os);
-
-
-        if(qp.isStoreResultRequest()){
-            handleStoreResultResponse(srr, response);
+            Document besRequest = besApi.getDap2RequestDocument(BesApi.DAP2_DATA, resourceID, dap2CE, qp.getAsync(),
+                    qp.getStoreResultRequestServiceUrl(), xdap_accept, user.getMaxResponseSize(), null, null, null, BesApi.XML_ERRORS);
+            sendCacheableDataResponse(request, response, resourceID, besRequest);
         }
 
         os.flush();
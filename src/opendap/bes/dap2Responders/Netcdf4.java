@@ -66,6 +66,8 @@ public class Netcdf4 extends Dap4Responder {
         log = org.slf4j.LoggerFactory.getLogger(this.getClass());
 
         addTypeSuffixToDownloadFilename(addFileoutTypeSuffixToDownloadFilename);
+        // The cf_history_entry context makes every response different.
+        setConditionalGetSupported(false);
         setServiceRoleId("http://services.opendap.org/dap4/data/netcdf-4");
         setServiceTitle("NetCDF-4 Data Response");
         setServiceDescription("NetCDF-4 representation of the DAP2 Data Response object.");
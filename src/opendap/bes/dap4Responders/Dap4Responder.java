@@ -28,19 +28,26 @@ package opendap.bes.dap4Responders;
 
 import opendap.bes.*;
 import opendap.bes.dap2Responders.BesApi;
+import opendap.bes.hashing.DapResponseCache;
+import opendap.coreServlet.ConditionalRequest;
+import opendap.coreServlet.HttpDate;
 import opendap.coreServlet.ReqInfo;
 import opendap.coreServlet.ResourceInfo;
 import opendap.coreServlet.Scrub;
 import opendap.coreServlet.Util;
+import opendap.dap4.QueryParameters;
 import opendap.http.error.*;
+import opendap.http.mediaTypes.TextHtml;
 import opendap.namespaces.DAP;
+import org.jdom.Document;
 import org.jdom.Element;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -60,7 +67,9 @@ public abstract class Dap4Responder extends BesDapResponder  {
     private MediaType _normativeMediaType;
     private Vector<Dap4Responder> _altResponders;
     private String _combinedRequestSuffixRegex;
+    private Pattern _combinedRequestSuffixPattern;
     private boolean _addTypeSuffixToDownloadFilename;
+    private boolean _conditionalGetSupported;
 
 
     public Dap4Responder(String sysPath, String pathPrefix, String requestSuffix, BesApi besApi) {
@@ -68,6 +77,7 @@ public abstract class Dap4Responder extends BesDapResponder  {
         _log = LoggerFactory.getLogger(getClass().getName());
         _altResponders =  new Vector<>();
         addTypeSuffixToDownloadFilename(false);
+        setConditionalGetSupported(true);
     }
 
     public void addTypeSuffixToDownloadFilename(boolean value){
@@ -80,9 +90,24 @@ public abstract class Dap4Responder extends BesDapResponder  {
     }
 
 
+    /**
+     * Responders whose output for a given dataset, constraint and response type can differ from
+     * one request to the next (because it carries a time stamp, say) must turn this off so that
+     * they are never given an entity tag or answered with 304 Not Modified.
+     * @param value True if conditional GET requests are answered by this responder.
+     */
+    public void setConditionalGetSupported(boolean value){
+        _conditionalGetSupported = value;
+    }
+
+    public boolean isConditionalGetSupported(){
+        return _conditionalGetSupported;
+    }
+
+
     public void setNormativeMediaType(MediaType mt){
         _normativeMediaType = mt;
-        _combinedRequestSuffixRegex = buildRequestMatchingRegex();
+        setCombinedRequestSuffixRegex(buildRequestMatchingRegex());
         _log.debug("combinedRequestSuffixRegex: {}", _combinedRequestSuffixRegex);
         setRequestMatchRegex(_combinedRequestSuffixRegex);
     }
@@ -100,11 +125,11 @@ public abstract class Dap4Responder extends BesDapResponder  {
 
     public void addAltRepResponder(Dap4Responder altRepResponder){
         _altResponders.add(altRepResponder);
-        _combinedRequestSuffixRegex = buildRequestMatchingRegex();
+        setCombinedRequestSuffixRegex(buildRequestMatchingRegex());
         _log.debug("combinedRequestSuffixRegex: {}", _combinedRequestSuffixRegex);
         setRequestMatchRegex(_combinedRequestSuffixRegex);
         for(Dap4Responder responder: _altResponders){
-            responder._combinedRequestSuffixRegex = _combinedRequestSuffixRegex;
+            responder.setCombinedRequestSuffixRegex(_combinedRequestSuffixRegex);
         }
     }
 
@@ -121,6 +146,43 @@ public abstract class Dap4Responder extends BesDapResponder  {
 
     public void setCombinedRequestSuffixRegex(String regex){
         _combinedRequestSuffixRegex = regex;
+        _combinedRequestSuffixPattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * @return The compiled (case insensitive) combined request suffix regex.
+     */
+    public Pattern getCombinedRequestSuffixPattern(){
+        return _combinedRequestSuffixPattern;
+    }
+
+    /**
+     * Lists every request suffix matched by the regex that buildRequestMatchingRegex() makes for this
+     * responder: the normative media suffix followed by nothing or by any suffix of an alternate
+     * representation, recursively.
+     *
+     * @return The suffixes, or null if a media suffix contains characters that have special meaning
+     * in a regex, in which case the suffixes can't be listed.
+     */
+    public List<String> getRequestSuffixes(){
+        String suffix = getNormativeMediaType().getMediaSuffix();
+        String literal = suffix.startsWith(".") ? suffix.substring(1) : suffix;
+        for(int i=0; i<literal.length() ;i++){
+            char c = literal.charAt(i);
+            if(!Character.isLetterOrDigit(c) && c!='_' && c!='-')
+                return null;
+        }
+
+        List<String> suffixes = new ArrayList<>();
+        suffixes.add(suffix);
+        for(Dap4Responder altResponder : _altResponders){
+            List<String> altSuffixes = altResponder.getRequestSuffixes();
+            if(altSuffixes==null)
+                return null;
+            for(String altSuffix : altSuffixes)
+                suffixes.add(suffix + altSuffix);
+        }
+        return suffixes;
     }
 
     public String buildRequestMatchingRegex() {
@@ -268,11 +330,11 @@ public abstract class Dap4Responder extends BesDapResponder  {
 
             Date lmt = new Date(getLastModified(request));
             //Date lmt = new Date((long)-1);
-            SimpleDateFormat httpDateFormat = new SimpleDateFormat(HttpDatFormatString);
+            String httpDate = HttpDate.getHttpDateString(lmt);
 
-            response.setHeader("Last-Modified",httpDateFormat.format(lmt));
+            response.setHeader("Last-Modified",httpDate);
 
-            _log.debug("respondToHttpGetRequest() - Last-Modified: {}", httpDateFormat.format(lmt));
+            _log.debug("respondToHttpGetRequest() - Last-Modified: {}", httpDate);
 
 
         } else {
@@ -309,6 +371,9 @@ public abstract class Dap4Responder extends BesDapResponder  {
             }
             _log.debug("respondToHttpGetRequest() - Target Responder: {} normative media-type: {}", targetResponder.getClass().getName(), targetResponder.getNormativeMediaType());
 
+            if(targetResponder.sendNotModifiedIfCurrent(request,response))
+                return;
+
             targetResponder.sendNormativeRepresentation(request,response);
             return;
         }
@@ -336,8 +401,21 @@ public abstract class Dap4Responder extends BesDapResponder  {
     }
     public String getResourceId(String requestedResource, boolean checkWithBes){
 
-        Pattern suffixPattern = Pattern.compile(_combinedRequestSuffixRegex, Pattern.CASE_INSENSITIVE);
-        return getBesApi().getBesDataSourceID(requestedResource, suffixPattern, checkWithBes);
+        return getBesApi().getBesDataSourceID(requestedResource, _combinedRequestSuffixPattern, checkWithBes);
+
+    }
+
+    /**
+     * Does what matches() does with the data source the ResponderDispatchTable left once it
+     * removed this responder's request suffix, so the suffix regex isn't run again.
+     *
+     * @param relativeUrl The relative URL of the client request.
+     * @param dataSource The relative URL less the request suffix.
+     * @return True if the BES views the data source as a dataset.
+     */
+    public boolean matches(String relativeUrl, String dataSource) {
+
+        return getBesApi().getBesDataSourceID(relativeUrl, dataSource, _combinedRequestSuffixPattern, true) != null;
 
     }
 
@@ -430,6 +508,125 @@ public abstract class Dap4Responder extends BesDapResponder  {
     }
 
 
+    /**
+     * Computes the strong entity tag (the validator) of this responder's response to the request. It
+     * is made from the BES data source, the dataset's last modified time, the normalized constraint
+     * expression and the response type, so it changes whenever any of those do.
+     *
+     * @param request The client request.
+     * @param lastModified The last modified time of the dataset, in milliseconds.
+     * @return The quoted entity tag, or null if the response can't be given one: conditional GET is
+     * turned off for this responder, the response is an HTML page (which carries the user's login
+     * state), the request is an asynchronous or store_result request, or the last modified time is unknown.
+     * @throws IOException When the constraint expression can't be read.
+     */
+    public String getEntityTag(HttpServletRequest request, long lastModified) throws IOException {
+
+        if(!isConditionalGetSupported() || lastModified < 0)
+            return null;
+
+        MediaType mt = getNormativeMediaType();
+        if(mt == null || mt.getMimeType().startsWith(TextHtml.PRIMARY_TYPE + "/" + TextHtml.SUB_TYPE))
+            return null;
+
+        QueryParameters qp = new QueryParameters(request);
+        if(qp.isStoreResultRequest() || qp.getAsync() != null)
+            return null;
+
+        String relativeUrl = ReqInfo.getLocalUrl(request);
+        String dataSource = getResourceId(relativeUrl, false);
+
+        return ConditionalRequest.getStrongEntityTag(
+                dataSource,
+                Long.toString(lastModified),
+                ConditionalRequest.normalizeConstraint(ReqInfo.getConstraintExpression(request)),
+                getClass().getName(),
+                mt.getMimeType());
+    }
+
+
+    /**
+     * Evaluates the If-None-Match and If-Modified-Since headers of the request. If the client's copy
+     * is current a 304 Not Modified is sent; the BES is not asked for the response. Otherwise the
+     * entity tag, if there is one, is added to the response headers.
+     *
+     * @param request The client request.
+     * @param response The response to the client.
+     * @return True if a 304 Not Modified was sent and there is nothing more to do.
+     * @throws Exception When the dataset information can't be determined.
+     */
+    public boolean sendNotModifiedIfCurrent(HttpServletRequest request, HttpServletResponse response) throws Exception {
+
+        long lastModified = getLastModified(request);
+        String entityTag = getEntityTag(request, lastModified);
+        if(entityTag == null)
+            return false;
+
+        if(ConditionalRequest.isNotModified(request, entityTag, lastModified)){
+            _log.debug("sendNotModifiedIfCurrent() - Sending 304 Not Modified. ETag: {}", entityTag);
+            ConditionalRequest.sendNotModified(response, entityTag, lastModified);
+            return true;
+        }
+
+        response.setHeader(ConditionalRequest.ETAG, entityTag);
+        return false;
+    }
+
+
+    /**
+     * Sends a DAP2 data response. When the DapResponseCache holds a copy made since the
+     * dataset was last modified the copy is sent, with its hash as a strong ETag, and the BES
+     * is not contacted. Otherwise the BES response is sent and added to the cache.
+     *
+     * @param request The client request.
+     * @param response The response to the client.
+     * @param resourceID The BES data source of the request.
+     * @param besRequest The BES request document for the response.
+     * @throws Exception When the BES transaction fails.
+     */
+    protected void sendCacheableDataResponse(HttpServletRequest request,
+                                             HttpServletResponse response,
+                                             String resourceID,
+                                             Document besRequest) throws Exception {
+
+        BesApi besApi = getBesApi();
+        OutputStream os = response.getOutputStream();
+
+        if (!DapResponseCache.isEnabled()) {
+            besApi.besTransaction(resourceID, besRequest, os);
+            return;
+        }
+
+        String besPrefix = BESManager.getBES(resourceID).getPrefix();
+        DapResponseCache.CachedResponse cached = DapResponseCache.get(besPrefix, besRequest, getLastModified(request));
+        if (cached != null) {
+            _log.debug("sendCacheableDataResponse() - Sending cached response for {}", resourceID);
+            if (!response.containsHeader(ConditionalRequest.ETAG))
+                response.setHeader(ConditionalRequest.ETAG, cached.getETag());
+            response.setHeader("Content-Length", Long.toString(cached.getSize()));
+            cached.writeTo(os);
+            return;
+        }
+
+        DapResponseCache.CachingOutputStream cos = DapResponseCache.getCachingStream(besPrefix, besRequest, os);
+        if (cos == null) {
+            besApi.besTransaction(resourceID, besRequest, os);
+            return;
+        }
+
+        boolean success = false;
+        try {
+            besApi.besTransaction(resourceID, besRequest, cos);
+            success = true;
+        } finally {
+            if (success)
+                cos.commit();
+            else
+                cos.abort();
+        }
+    }
+
+
     /*
 
     private static final String CF_History_Entry_Date_Format = "yyyy-MM-dd HH:mm:ss z";
@@ -72,6 +72,8 @@ public class Netcdf3DR extends Dap4Responder{
         log = org.slf4j.LoggerFactory.getLogger(this.getClass());
 
         addTypeSuffixToDownloadFilename(addTypeSuffixToDownloadFilename);
+        // The cf_history_entry context makes every response different.
+        setConditionalGetSupported(false);
         setServiceRoleId("http://services.opendap.org/dap4/data/netcdf-3");
         setServiceTitle("NetCDF-3 Data Response");
         setServiceDescription("NetCDF-3 representation of the DAP4 Data Response object.");
@@ -73,6 +73,8 @@ public class Netcdf4DR extends Dap4Responder{
         log = org.slf4j.LoggerFactory.getLogger(this.getClass());
 
         addTypeSuffixToDownloadFilename(addTypeSuffixToDownloadFilename);
+        // The cf_history_entry context makes every response different.
+        setConditionalGetSupported(false);
         setServiceRoleId("http://services.opendap.org/dap4/data/netcdf-4");
         setServiceTitle("NetCDF-4 Data Response");
         setServiceDescription("NetCDF-4 representation of the DAP4 Data Response object.");
@@ -27,7 +27,7 @@
 package opendap.bes.dap4Responders;
 
 import opendap.bes.BESError;
-import opendap.bes.BESResource;
+import opendap.bes.BESResourceCache;
 import opendap.bes.BadConfigurationException;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.coreServlet.MimeTypes;
@@ -107,7 +107,7 @@ public class FileAccess extends Dap4Responder {
 
         BesApi besApi = getBesApi();
 
-        ResourceInfo dsi = new BESResource(resourceID, besApi);
+        ResourceInfo dsi = BESResourceCache.getResourceInfo(resourceID, besApi);
         if (dsi.sourceExists()) {
             if (!dsi.isNode()) {
                 if (dsi.sourceIsAccesible()) {
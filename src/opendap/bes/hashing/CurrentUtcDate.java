@@ -0,0 +1,58 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.hashing;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+class CurrentUtcDate {
+    static final String FORMAT = "yyyy-MM-dd HH:mm:ssZ";
+
+    public static String get() {
+        Date date = new Date();
+        SimpleDateFormat dateFormat = new SimpleDateFormat(FORMAT);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String utcTimeStamp = dateFormat.format(date);
+        return utcTimeStamp;
+    }
+
+    /**
+     * @return The time, in ms since the epoch, of a timestamp made by get(), or -1 if it can't be parsed.
+     */
+    public static long parse(String timestamp) {
+        if (timestamp == null)
+            return -1;
+        try {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(FORMAT);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return dateFormat.parse(timestamp).getTime();
+        } catch (java.text.ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,751 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.hashing;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.input.SAXBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * An on-disk cache of DAP2 data responses (.dods) keyed by the SHA1 hash of the
+ * response, the same hash the HashLog records.
+ *
+ * Each cached response is stored once, in a file named for its hash. A request is identified
+ * by the prefix of the BES that answers it and the (dataSource, constraint, returnAs) triple
+ * the hash log records, along with the xdap_accept and max_response_size contexts that
+ * change the response. Any number of requests may map to the same file. Lookups only go to an
+ * in-memory index. Responses left in the cache directory by a previous run are matched to
+ * their requests by a background thread that reads their records from the hash log once, at
+ * startup.
+ *
+ * A cached response is served only if it was made after the dataset's last modified time.
+ * The cache is bounded by the total size of its files; the least recently used files are
+ * removed first.
+ *
+ * The cache is enabled and configured from the BESManager section of olfs.xml:
+ * <pre>
+ *     &lt;ResponseCache directory="/usr/share/tomcat/cache/olfs" maxSize="1073741824" maxEntrySize="104857600" /&gt;
+ * </pre>
+ */
+public class DapResponseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DapResponseCache.class);
+
+    private static final Pattern CACHE_FILE_NAME = Pattern.compile("[0-9a-f]{40}");
+    private static final String TEMP_FILE_PREFIX = "partial_";
+
+    private static volatile boolean _enabled = false;
+    private static File _directory = null;
+    private static long _maxSize = 1073741824L; // 1 GB
+    private static long _maxEntrySize = 104857600L; // 100 MB
+
+    private static final ReentrantLock _lock = new ReentrantLock();
+
+    // hash -> entry, in least recently used order.
+    private static final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    // request key -> hash
+    private static final HashMap<String, String> _keys = new HashMap<String, String>();
+
+    private static long _size = 0;
+
+    // Incremented by init(), so a hash log reader started by an earlier init() stops.
+    private static int _generation = 0;
+
+    private static final AtomicLong _hits = new AtomicLong(0);
+    private static final AtomicLong _misses = new AtomicLong(0);
+    private static final AtomicLong _invalidated = new AtomicLong(0);
+    private static final AtomicLong _stored = new AtomicLong(0);
+    private static final AtomicLong _evicted = new AtomicLong(0);
+    private static final AtomicLong _tooLarge = new AtomicLong(0);
+    private static final AtomicLong _bytesServed = new AtomicLong(0);
+
+
+    private DapResponseCache() {
+    }
+
+
+    /**
+     * Configures and enables the cache. Responses already in the cache directory are kept.
+     * @param config The ResponseCache element. If null the cache is disabled.
+     * @param hashLogBesPrefix The prefix of the BES that made the responses in the hash log, or
+     * null if there is more than one. The hash log doesn't record which BES made a response, so
+     * when there is more than one the responses left by a previous run aren't reused.
+     * @throws Exception When the configuration is not usable.
+     */
+    public static void init(Element config, String hashLogBesPrefix) throws Exception {
+        if (config == null) {
+            _enabled = false;
+            return;
+        }
+
+        String s = config.getAttributeValue("directory");
+        if (s == null)
+            throw new Exception("The ResponseCache element must have a directory attribute.");
+        File directory = new File(s);
+        if (!directory.exists() && !directory.mkdirs())
+            throw new Exception("Unable to create ResponseCache directory " + directory.getAbsolutePath());
+        if (!directory.isDirectory() || !directory.canWrite())
+            throw new Exception("The ResponseCache directory " + directory.getAbsolutePath() +
+                    " must be a writable directory.");
+
+        long maxSize = _maxSize;
+        s = config.getAttributeValue("maxSize");
+        if (s != null) {
+            maxSize = Long.parseLong(s);
+            if (maxSize < 1)
+                throw new Exception("The maxSize attribute of the ResponseCache element must be " +
+                        "an integer greater than 0 (zero).");
+        }
+
+        long maxEntrySize = Math.min(maxSize, _maxEntrySize);
+        s = config.getAttributeValue("maxEntrySize");
+        if (s != null) {
+            maxEntrySize = Long.parseLong(s);
+            if (maxEntrySize < 1 || maxEntrySize > maxSize)
+                throw new Exception("The maxEntrySize attribute of the ResponseCache element must be " +
+                        "greater than 0 (zero) and no larger than maxSize.");
+        }
+
+        List<String> unclaimed;
+        int generation;
+        _lock.lock();
+        try {
+            _directory = directory;
+            _maxSize = maxSize;
+            _maxEntrySize = maxEntrySize;
+            _entries.clear();
+            _keys.clear();
+            _size = 0;
+            generation = ++_generation;
+            loadDirectory();
+            List<Entry> removed = evict();
+            unclaimed = new ArrayList<String>(_entries.keySet());
+            _enabled = true;
+            deleteFiles(removed);
+        } finally {
+            _lock.unlock();
+        }
+
+        log.info("init() - Response cache directory: {} maxSize: {} maxEntrySize: {} entries: {} size: {}",
+                new Object[]{_directory.getAbsolutePath(), _maxSize, _maxEntrySize, unclaimed.size(), _size});
+
+        if (hashLogBesPrefix != null && !unclaimed.isEmpty()) {
+            // Looked up here because the container's JNDI context may not be visible from the reader thread.
+            javax.sql.DataSource dataSource = HashLog.lookupDataSource();
+            if (dataSource != null)
+                startHashLogReader(new HashLog(dataSource), hashLogBesPrefix, unclaimed, generation);
+        }
+    }
+
+
+    /**
+     * Starts a thread that maps the requests recorded in the hash log to the responses left in
+     * the cache directory by a previous run.
+     */
+    private static void startHashLogReader(final HashLog hashLog,
+                                           final String besPrefix,
+                                           final List<String> hashes,
+                                           final int generation) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    claim(hashLog.getRecords(hashes), besPrefix, generation);
+                } catch (Throwable t) {
+                    log.error("run() - Unable to read the hash log. msg: {}", t.getMessage());
+                }
+            }
+        }, "DapResponseCache-HashLogReader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+
+    /**
+     * Maps each request in the records to the cached response it last produced. A request
+     * that has been mapped since the cache was started is left alone.
+     * @param records Hash log records, oldest first.
+     */
+    private static void claim(List<HashRecord> records, String besPrefix, int generation) {
+        Map<String, HashRecord> latest = new HashMap<String, HashRecord>();
+        for (HashRecord record : records) {
+            if (record.getQuery() == null)
+                continue;
+            try {
+                Document request = new SAXBuilder().build(new StringReader(record.getQuery()));
+                RequestKey key = RequestKey.fromRequest(besPrefix, request);
+                if (key != null)
+                    latest.put(key.key, record);
+            } catch (Exception e) {
+                log.debug("claim() - Unable to parse the request for hash {} msg: {}", record.getHash(), e.getMessage());
+            }
+        }
+
+        int claimed = 0;
+        _lock.lock();
+        try {
+            if (generation != _generation)
+                return;
+            for (Map.Entry<String, HashRecord> e : latest.entrySet()) {
+                Entry entry = _entries.get(e.getValue().getHash());
+                long logged = CurrentUtcDate.parse(e.getValue().getTimestamp());
+                if (entry == null || logged < 0 || _keys.containsKey(e.getKey()))
+                    continue;
+                // The response is only known to be current for this request as of the time it was logged.
+                entry.created = Math.min(entry.created, logged);
+                entry.keys.add(e.getKey());
+                _keys.put(e.getKey(), entry.hash);
+                claimed++;
+            }
+        } finally {
+            _lock.unlock();
+        }
+        log.info("claim() - Matched {} requests in the hash log to cached responses.", claimed);
+    }
+
+
+    /**
+     * Adds the responses left in the cache directory by a previous run to the index, oldest first.
+     * Partially written responses are removed. The caller holds the lock.
+     */
+    private static void loadDirectory() {
+        File[] files = _directory.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long l1 = f1.lastModified();
+                long l2 = f2.lastModified();
+                return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (file.getName().startsWith(TEMP_FILE_PREFIX)) {
+                if (!file.delete())
+                    log.warn("loadDirectory() - Unable to delete {}", file);
+            } else if (file.isFile() && CACHE_FILE_NAME.matcher(file.getName()).matches()) {
+                Entry entry = new Entry(file.getName(), file, file.length(), file.lastModified());
+                _entries.put(entry.hash, entry);
+                _size += entry.size;
+            }
+        }
+    }
+
+
+    public static boolean isEnabled() {
+        return _enabled;
+    }
+
+
+    /**
+     * Looks for a current copy of the response to a BES request.
+     * @param besPrefix The prefix of the BES the request is for.
+     * @param besRequest The BES request document.
+     * @param lastModified The last modified time of the requested dataset.
+     * @return An open cached response, or null if the caller needs to ask the BES.
+     */
+    public static CachedResponse get(String besPrefix, Document besRequest, long lastModified) {
+        if (!_enabled)
+            return null;
+
+        RequestKey key = RequestKey.fromRequest(besPrefix, besRequest);
+        if (key == null)
+            return null;
+
+        Entry entry = null;
+        boolean invalidated = false;
+
+        _lock.lock();
+        try {
+            String hash = _keys.get(key.key);
+            if (hash != null) {
+                entry = _entries.get(hash);
+                if (entry == null) {
+                    _keys.remove(key.key);
+                } else if (entry.created < lastModified) {
+                    invalidated = true;
+                    entry = null;
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+
+        if (invalidated) {
+            _invalidated.incrementAndGet();
+            invalidate(key, lastModified);
+        }
+
+        if (entry != null) {
+            try {
+                CachedResponse response = new CachedResponse(entry);
+                _hits.incrementAndGet();
+                log.debug("get() - Cache hit for {} hash: {}", key.key, entry.hash);
+                return response;
+            } catch (FileNotFoundException e) {
+                // Evicted after we looked it up.
+                log.debug("get() - Cached response {} has been removed.", entry.hash);
+            }
+        }
+
+        _misses.incrementAndGet();
+        return null;
+    }
+
+
+    /**
+     * Drops the mapping for a request whose dataset has changed. The file goes too unless
+     * another request still maps to it.
+     */
+    private static void invalidate(RequestKey key, long lastModified) {
+        Entry removed = null;
+        _lock.lock();
+        try {
+            String hash = _keys.get(key.key);
+            Entry entry = hash == null ? null : _entries.get(hash);
+            if (entry != null && entry.created < lastModified) {
+                _keys.remove(key.key);
+                entry.keys.remove(key.key);
+                if (entry.keys.isEmpty()) {
+                    _entries.remove(hash);
+                    _size -= entry.size;
+                    removed = entry;
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+        if (removed != null) {
+            log.debug("invalidate() - Removed out of date response {} for {}", removed.hash, key.key);
+            deleteFiles(Arrays.asList(removed));
+        }
+    }
+
+
+    /**
+     * Wraps the stream a BES response is being written to so the response is also written to
+     * the cache.
+     * @param besPrefix The prefix of the BES the request is for.
+     * @param besRequest The BES request document.
+     * @param os The stream the response is being sent to.
+     * @return A stream to hand to the BES transaction, or null if the request is not cacheable.
+     */
+    public static CachingOutputStream getCachingStream(String besPrefix, Document besRequest, OutputStream os) {
+        if (!_enabled)
+            return null;
+
+        RequestKey key = RequestKey.fromRequest(besPrefix, besRequest);
+        if (key == null)
+            return null;
+
+        try {
+            return new CachingOutputStream(key, os);
+        } catch (IOException e) {
+            log.error("getCachingStream() - Unable to create a cache file. msg: {}", e.getMessage());
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            log.error("getCachingStream() - Missing algorithm. msg: {}", e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Adds a completed response to the index and evicts what no longer fits.
+     */
+    private static void store(RequestKey key, String hash, File tempFile, long size, long created) {
+        File file = new File(_directory, hash);
+        List<Entry> removed;
+
+        _lock.lock();
+        try {
+            Entry entry = _entries.get(hash);
+            if (entry == null) {
+                if (!tempFile.renameTo(file)) {
+                    log.error("store() - Unable to rename {} to {}", tempFile, file);
+                    if (!tempFile.delete())
+                        log.warn("store() - Unable to delete {}", tempFile);
+                    return;
+                }
+                entry = new Entry(hash, file, size, created);
+                _entries.put(hash, entry);
+                _size += size;
+            } else {
+                // Same content as a response we already hold.
+                if (!tempFile.delete())
+                    log.warn("store() - Unable to delete {}", tempFile);
+                entry.created = Math.max(entry.created, created);
+            }
+
+            String previous = _keys.put(key.key, hash);
+            if (previous != null && !previous.equals(hash)) {
+                Entry old = _entries.get(previous);
+                if (old != null)
+                    old.keys.remove(key.key);
+            }
+            entry.keys.add(key.key);
+            removed = evict();
+        } finally {
+            _lock.unlock();
+        }
+
+        _stored.incrementAndGet();
+        log.debug("store() - Cached response {} ({} bytes) for {}", new Object[]{hash, size, key.key});
+        deleteFiles(removed);
+    }
+
+
+    /**
+     * Removes least recently used entries until the cache fits in maxSize. The caller holds
+     * the lock and deletes the files of the returned entries once it has released it.
+     */
+    private static List<Entry> evict() {
+        List<Entry> removed = new ArrayList<Entry>();
+        Iterator<Entry> iterator = _entries.values().iterator();
+        while (_size > _maxSize && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            _size -= entry.size;
+            for (String key : entry.keys)
+                _keys.remove(key);
+            removed.add(entry);
+        }
+        _evicted.addAndGet(removed.size());
+        return removed;
+    }
+
+
+    private static void deleteFiles(List<Entry> entries) {
+        for (Entry entry : entries) {
+            if (!entry.file.delete())
+                log.warn("deleteFiles() - Unable to delete {}", entry.file);
+        }
+    }
+
+
+    public static long getHits() {
+        return _hits.get();
+    }
+
+    public static long getMisses() {
+        return _misses.get();
+    }
+
+    /**
+     * @return The number of cached responses dropped because their dataset changed.
+     */
+    public static long getInvalidated() {
+        return _invalidated.get();
+    }
+
+    public static long getStored() {
+        return _stored.get();
+    }
+
+    public static long getEvicted() {
+        return _evicted.get();
+    }
+
+    /**
+     * @return The number of responses not cached because they were larger than maxEntrySize.
+     */
+    public static long getTooLarge() {
+        return _tooLarge.get();
+    }
+
+    public static long getBytesServed() {
+        return _bytesServed.get();
+    }
+
+    public static int getEntryCount() {
+        _lock.lock();
+        try {
+            return _entries.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @return The total size, in bytes, of the cached responses.
+     */
+    public static long getSize() {
+        _lock.lock();
+        try {
+            return _size;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public static long getMaxSize() {
+        return _maxSize;
+    }
+
+    public static String getStatistics() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return "[DapResponseCache enabled: " + _enabled +
+                " entries: " + getEntryCount() +
+                " size: " + getSize() +
+                " maxSize: " + _maxSize +
+                " hits: " + hits +
+                " misses: " + getMisses() +
+                " hitRatio: " + (lookups == 0 ? 0 : (hits * 100) / lookups) + "%" +
+                " invalidated: " + getInvalidated() +
+                " stored: " + getStored() +
+                " evicted: " + getEvicted() +
+                " tooLarge: " + getTooLarge() +
+                " bytesServed: " + getBytesServed() +
+                "]";
+    }
+
+
+    /**
+     * A cached response file.
+     */
+    private static class Entry {
+        final String hash;
+        final File file;
+        final long size;
+        long created;
+        final Set<String> keys;
+
+        Entry(String hash, File file, long size, long created) {
+            this.hash = hash;
+            this.file = file;
+            this.size = size;
+            this.created = created;
+            keys = new HashSet<String>();
+        }
+    }
+
+
+    /**
+     * The identity of a cacheable BES request: the BES prefix, the dataSource, constraint and
+     * returnAs values the HashLog records, and the contexts that change the response.
+     */
+    private static class RequestKey {
+        final String key;
+
+        private RequestKey(String besPrefix, String dataSource, String constraint, String returnAs,
+                           String xdapAccept, String maxResponseSize) {
+            key = besPrefix + "|" + dataSource + "?" + constraint + "#" + (returnAs == null ? "dods" : returnAs) +
+                    ";xdap_accept=" + xdapAccept + ";max_response_size=" + maxResponseSize;
+        }
+
+        /**
+         * @return The key, or null if the request is not for a synchronous DAP2 data response.
+         */
+        static RequestKey fromRequest(String besPrefix, Document besRequest) {
+            if (besPrefix == null)
+                return null;
+
+            RequestParser parser = new RequestParser(besRequest);
+            if (!parser.isDODS || parser.dataSource == null)
+                return null;
+
+            Element get = besRequest.getRootElement().getChild("get", opendap.namespaces.BES.BES_NS);
+            if (get.getAttributeValue("async") != null || get.getAttributeValue("store_result") != null)
+                return null;
+
+            return new RequestKey(besPrefix, parser.dataSource, parser.constraint == null ? "" : parser.constraint,
+                    parser.returnAs, parser.xdapAccept, parser.maxResponseSize);
+        }
+    }
+
+
+    /**
+     * An open cached response.
+     */
+    public static class CachedResponse {
+        private final Entry _entry;
+        private final InputStream _is;
+
+        private CachedResponse(Entry entry) throws FileNotFoundException {
+            _entry = entry;
+            _is = new FileInputStream(entry.file);
+        }
+
+        /**
+         * @return A strong entity tag made from the hash of the response.
+         */
+        public String getETag() {
+            return "\"" + _entry.hash + "\"";
+        }
+
+        public long getSize() {
+            return _entry.size;
+        }
+
+        /**
+         * Copies the response to the stream and closes the cached file.
+         */
+        public void writeTo(OutputStream os) throws IOException {
+            byte[] buffer = new byte[65536];
+            long sent = 0;
+            try {
+                int n;
+                while ((n = _is.read(buffer)) != -1) {
+                    os.write(buffer, 0, n);
+                    sent += n;
+                }
+            } finally {
+                _is.close();
+                _bytesServed.addAndGet(sent);
+            }
+        }
+
+        /**
+         * Closes the cached file without sending it.
+         */
+        public void close() {
+            try {
+                _is.close();
+            } catch (IOException e) {
+                log.debug("close() - msg: {}", e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * Passes a BES response through to the client while writing it to a temporary cache file
+     * and computing its hash. Call commit() once the BES transaction has succeeded, abort()
+     * if it failed. Problems writing the cache file never reach the client.
+     */
+    public static class CachingOutputStream extends FilterOutputStream {
+        private final RequestKey _key;
+        private final File _tempFile;
+        private final long _created;
+        private final MessageDigest _digest;
+        private OutputStream _cacheFile;
+        private long _size;
+
+        private CachingOutputStream(RequestKey key, OutputStream os) throws IOException, NoSuchAlgorithmException {
+            super(os);
+            _key = key;
+            _created = System.currentTimeMillis();
+            _digest = MessageDigest.getInstance("SHA1");
+            _tempFile = File.createTempFile(TEMP_FILE_PREFIX, null, _directory);
+            _cacheFile = new BufferedOutputStream(new FileOutputStream(_tempFile), 65536);
+            _size = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (_cacheFile == null)
+                return;
+
+            if (_size + len > _maxEntrySize) {
+                _tooLarge.incrementAndGet();
+                log.debug("write() - Response for {} is larger than maxEntrySize, not caching.", _key.key);
+                abort();
+                return;
+            }
+            try {
+                _cacheFile.write(b, off, len);
+                _digest.update(b, off, len);
+                _size += len;
+            } catch (IOException e) {
+                log.error("write() - Unable to write cache file {} msg: {}", _tempFile, e.getMessage());
+                abort();
+            }
+        }
+
+        /**
+         * Adds the response to the cache.
+         */
+        public void commit() {
+            if (_cacheFile == null)
+                return;
+            try {
+                _cacheFile.close();
+                _cacheFile = null;
+            } catch (IOException e) {
+                log.error("commit() - Unable to close cache file {} msg: {}", _tempFile, e.getMessage());
+                abort();
+                return;
+            }
+            store(_key, Utils.toHex(_digest.digest()), _tempFile, _size, _created);
+        }
+
+        /**
+         * Discards the cache file.
+         */
+        public void abort() {
+            if (_cacheFile != null) {
+                try {
+                    _cacheFile.close();
+                } catch (IOException e) {
+                    log.debug("abort() - msg: {}", e.getMessage());
+                }
+                _cacheFile = null;
+            }
+            if (_tempFile.exists() && !_tempFile.delete())
+                log.warn("abort() - Unable to delete {}", _tempFile);
+        }
+    }
+}
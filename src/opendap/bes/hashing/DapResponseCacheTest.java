@@ -0,0 +1,162 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.hashing;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.security.MessageDigest;
+
+/**
+ * Checks that DapResponseCache stores, serves, invalidates and evicts responses.
+ */
+public class DapResponseCacheTest {
+
+    private static final Namespace BES_NS = opendap.namespaces.BES.BES_NS;
+
+    private File _dir;
+
+    @Before
+    public void setUp() throws Exception {
+        _dir = File.createTempFile("DapResponseCacheTest", "");
+        Assert.assertTrue(_dir.delete());
+        Element config = new Element("ResponseCache");
+        config.setAttribute("directory", _dir.getAbsolutePath());
+        config.setAttribute("maxSize", "2500");
+        config.setAttribute("maxEntrySize", "1000");
+        DapResponseCache.init(config, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DapResponseCache.init(null, null);
+        File[] files = _dir.listFiles();
+        if (files != null)
+            for (File f : files)
+                f.delete();
+        _dir.delete();
+    }
+
+    private static Document request(String dataSource, String ce, String maxResponseSize) {
+        Document request = request(dataSource, ce);
+        Element root = request.getRootElement();
+        root.addContent(0, new Element("setContext", BES_NS).setAttribute("name", "max_response_size").setText(maxResponseSize));
+        root.addContent(0, new Element("setContext", BES_NS).setAttribute("name", "xdap_accept").setText("3.2"));
+        return request;
+    }
+
+    private static Document request(String dataSource, String ce) {
+        Element root = new Element("request", BES_NS);
+        root.addContent(new Element("setContainer", BES_NS).setText(dataSource));
+        Element container = new Element("container", BES_NS);
+        if (ce != null)
+            container.addContent(new Element("constraint", BES_NS).setText(ce));
+        root.addContent(new Element("define", BES_NS).addContent(container));
+        root.addContent(new Element("get", BES_NS).setAttribute("type", "dods"));
+        return new Document(root);
+    }
+
+    private static byte[] data(int size, int seed) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++)
+            b[i] = (byte) (i * seed);
+        return b;
+    }
+
+    private static void store(Document request, byte[] response) throws Exception {
+        ByteArrayOutputStream client = new ByteArrayOutputStream();
+        DapResponseCache.CachingOutputStream cos = DapResponseCache.getCachingStream("/", request, client);
+        Assert.assertNotNull(cos);
+        cos.write(response);
+        cos.commit();
+        Assert.assertArrayEquals(response, client.toByteArray());
+    }
+
+    @Test
+    public void testHitAndInvalidate() throws Exception {
+        Document request = request("/data/fnoc1.nc", "u[0]");
+        byte[] response = data(800, 7);
+        store(request, response);
+
+        DapResponseCache.CachedResponse cached = DapResponseCache.get("/", request, 0);
+        Assert.assertNotNull(cached);
+        String hash = Utils.toHex(MessageDigest.getInstance("SHA1").digest(response));
+        Assert.assertEquals("\"" + hash + "\"", cached.getETag());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cached.writeTo(out);
+        Assert.assertArrayEquals(response, out.toByteArray());
+
+        Assert.assertNull(DapResponseCache.get("/", request("/data/fnoc1.nc", "v[0]"), 0));
+
+        // The dataset changed after the response was cached.
+        Assert.assertNull(DapResponseCache.get("/", request, System.currentTimeMillis() + 60000));
+        Assert.assertNull(DapResponseCache.get("/", request, 0));
+        Assert.assertFalse(new File(_dir, hash).exists());
+    }
+
+    @Test
+    public void testKeyIncludesBesAndContexts() throws Exception {
+        Document request = request("/data/fnoc1.nc", "u[0]", "0");
+        store(request, data(100, 3));
+
+        DapResponseCache.CachedResponse cached = DapResponseCache.get("/", request("/data/fnoc1.nc", "u[0]", "0"), 0);
+        Assert.assertNotNull(cached);
+        cached.close();
+
+        // Another BES exposing the same path, and a user with a response size limit.
+        Assert.assertNull(DapResponseCache.get("/other/", request, 0));
+        Assert.assertNull(DapResponseCache.get("/", request("/data/fnoc1.nc", "u[0]", "50"), 0));
+        Assert.assertNull(DapResponseCache.get("/", request("/data/fnoc1.nc", "u[0]"), 0));
+    }
+
+    @Test
+    public void testEvictionAndLimits() throws Exception {
+        store(request("/data/a.nc", null), data(1000, 3));
+        store(request("/data/b.nc", null), data(1000, 5));
+        DapResponseCache.CachedResponse cached = DapResponseCache.get("/", request("/data/a.nc", null), 0);
+        Assert.assertNotNull(cached);
+        cached.close();
+        // Pushes the cache past maxSize, b.nc is the least recently used.
+        store(request("/data/c.nc", null), data(1000, 11));
+
+        Assert.assertNull(DapResponseCache.get("/", request("/data/b.nc", null), 0));
+        Assert.assertEquals(2, DapResponseCache.getEntryCount());
+        Assert.assertTrue(DapResponseCache.getSize() <= DapResponseCache.getMaxSize());
+
+        // Larger than maxEntrySize, passed through but not cached.
+        store(request("/data/d.nc", null), data(1001, 13));
+        Assert.assertNull(DapResponseCache.get("/", request("/data/d.nc", null), 0));
+        Assert.assertEquals(2, DapResponseCache.getEntryCount());
+    }
+}
@@ -4,8 +4,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.Namespace;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -15,156 +15,96 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import javax.sql.DataSource;
 
-import java.util.Date;
-import java.util.TimeZone;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
 
 
-class CurrentUtcDate {
-    public static String get() {
-        Date date = new Date();
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ssZ");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        String utcTimeStamp = dateFormat.format(date);
-        return utcTimeStamp;
-    }
-}
-
-
-class Utils {
-    private static String digits = "0123456789abcdef";
-
-    public static String toHex(byte[] data, int length) {
-        StringBuffer	buf = new StringBuffer();
-        for (int i = 0; i != length; i++) {
-            int	v = data[i] & 0xff;
-            buf.append(digits.charAt(v >> 4));
-            buf.append(digits.charAt(v & 0xf));
-        }
-        return buf.toString();
-    }
-
-    public static String toHex(byte[] data) {
-        return toHex(data, data.length);
-    }
-}
-
-class RequestParser {
-    private static final Namespace BES_NS = opendap.namespaces.BES.BES_NS;
-    private Document request;
-    public String dataSource;
-    public static boolean isDODS;
-    public String returnAs;
-    public String constraint;
-
-    public RequestParser (Document request) {
-        this.request = request;
-        parse();
-    }
-
-    private void parse() {
-        getDataSource();
-        getIsDODS();
-        getReturnAs();
-        getConstraint();
-    }
-
-    private void getDataSource() {
-        Element root = request.getRootElement();
-        Element tag = root.getChild("setContainer", BES_NS);
-        this.dataSource = tag.getTextTrim();
-    }
-
-    private void getIsDODS() {
-        Element root = request.getRootElement();
-        Element tag = root.getChild("get", BES_NS);
-        String type = tag.getAttributeValue("type");
-        this.isDODS = new String("dods").equals(type);
-    }
-
-    private void getReturnAs() {
-        Element root = request.getRootElement();
-        Element tag = root.getChild("get", BES_NS);
-        this.returnAs = tag.getAttributeValue("returnAs");
-    }
-
-    private void getConstraint() {
-        Element root = request.getRootElement();
-        Element tag = root.getChild("define", BES_NS);
-        tag = tag.getChild("container", BES_NS);
-        tag = tag.getChild("constraint", BES_NS);
-        if (tag ==null){
-            this.constraint = null;
-        } else {
-            this.constraint = tag.getTextTrim();
-        }
-    }
-}
-
 public class HashLog {
     private Logger log;
-    private Connection connection;
+    private DataSource dataSource;
 
 
     public HashLog() {
+        this(null);
+    }
+
+    /**
+     * @param dataSource The hash log database. If null it is looked up each time a connection is made.
+     */
+    public HashLog(DataSource dataSource) {
         log = org.slf4j.LoggerFactory.getLogger(getClass());
+        this.dataSource = dataSource;
     }
 
-    public void connect() {
-        this.connection = null;
+    /**
+     * Looks up the hash log database in the container's JNDI context, which may only be visible
+     * from container threads.
+     * @return The data source, or null if it can't be found.
+     */
+    public static DataSource lookupDataSource() {
         try {
             Context initCtx = new InitialContext();
             Context envCtx = (Context) initCtx.lookup("java:comp/env");
-            DataSource ds = (DataSource) envCtx.lookup("jdbc/sqlite");
-            this.connection = ds.getConnection();
-            log.debug("sqlite log db connected");
+            return (DataSource) envCtx.lookup("jdbc/sqlite");
+        } catch (Exception e) {
+            LoggerFactory.getLogger(HashLog.class).error("sqlite could not locate db", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return A new connection, which the caller closes with disconnect(), or null if none could be made.
+     */
+    public Connection connect() {
+        Connection connection = null;
+        try {
+            DataSource ds = dataSource != null ? dataSource : lookupDataSource();
+            if (ds != null) {
+                connection = ds.getConnection();
+                log.debug("sqlite log db connected");
+            }
         } catch (Exception e) {
             log.error("sqlite could not connect to db", e);
         }
+        return connection;
     }
 
-    public void disconnect() {
+    public void disconnect(Connection connection) {
         try {
-            this.connection.close();
+            if (connection != null)
+                connection.close();
         } catch (Exception e) {
             log.error("could not close sqlite connection");
         }
     }
 
-    public void insertHash(byte[] hash, String query, Document request) {
+    /**
+     * Queues the hash of a DAP2 data response for the HashLogWriter. Requests that are not
+     * for a DAP2 data response are ignored. Nothing is written to the database on the
+     * calling thread.
+     * @param hash The hash of the response.
+     * @param request The BES request document that produced the response.
+     */
+    public void insertHash(byte[] hash, Document request) {
         RequestParser requestParser = new RequestParser(request);
-        if (!RequestParser.isDODS) {
+        if (!requestParser.isDODS) {
             return;
         }
 
         String hashString = Utils.toHex(hash);
 
-        String dataSource = requestParser.dataSource;
         String constraint = requestParser.constraint;
         if (constraint == null) {constraint = "";}
-        String returnAs = requestParser.returnAs;
+        String query = new XMLOutputter(Format.getCompactFormat()).outputString(request).trim();
 
-        String timestamp = CurrentUtcDate.get();
-        log.debug("Inserting hash", hashString);
-        String sql = "INSERT INTO hashes (hash, dataSource, constr, returnAs, timestamp, query) VALUES (?,?,?,?,?,?);";
-        PreparedStatement preparedStatement = null;
-        try {
-            this.connect();
-            preparedStatement = this.connection.prepareStatement(sql);
-            preparedStatement.setString(1, hashString);
-            preparedStatement.setString(2, dataSource);
-            preparedStatement.setString(3, constraint);
-            preparedStatement.setString(4, returnAs);
-            preparedStatement.setString(5, timestamp);
-            preparedStatement.setString(6, query);
-            preparedStatement.executeUpdate();
-            this.disconnect();
-        } catch (Exception e) {
-            log.error("could not insert hash", e);
-        }
+        HashRecord record = new HashRecord(hashString, requestParser.dataSource, constraint,
+                requestParser.returnAs, CurrentUtcDate.get(), query);
+        log.debug("Queueing hash {}", hashString);
+        HashLogWriter.submit(record);
     }
 
 
@@ -172,20 +112,22 @@ public class HashLog {
         String sql = "SELECT hash FROM hashes WHERE constr=? AND dataSource=? AND returnAs=?;";
         PreparedStatement preparedStatement = null;
         String hash = "";
+        Connection connection = connect();
         try {
-            this.connect();
-            preparedStatement = this.connection.prepareStatement(sql);
+            preparedStatement = connection.prepareStatement(sql);
             preparedStatement.setString(1, constr);
             preparedStatement.setString(2, dataSource);
             preparedStatement.setString(3, returnAs);
             ResultSet resultSet = preparedStatement.executeQuery();
             hash = resultSet.getString(1);
             log.debug("Has found: ", hash);
-            this.disconnect();
         } catch (java.sql.SQLException e){
             log.debug("Hash not in DB", e);
         } catch (Exception e) {
             log.error("could not fetch hash", e);
+        } finally {
+            close(preparedStatement);
+            disconnect(connection);
         }
         return hash;
     }
@@ -194,22 +136,79 @@ public class HashLog {
         String sql = "SELECT timestamp FROM hashes WHERE constr=? AND dataSource=? AND returnAs=?;";
         PreparedStatement preparedStatement = null;
         String timestamp = "";
+        Connection connection = connect();
         try {
-            this.connect();
-            preparedStatement = this.connection.prepareStatement(sql);
+            preparedStatement = connection.prepareStatement(sql);
             preparedStatement.setString(1, constraintExpression);
             preparedStatement.setString(2, dataSource);
             preparedStatement.setString(3, returnAs);
             ResultSet resultSet = preparedStatement.executeQuery();
             timestamp = resultSet.getString(1);
             log.debug("timestamp found: ", timestamp);
-            this.disconnect();
         } catch (java.sql.SQLException e){
             log.debug("Hash not in DB", e);
         } catch (Exception e) {
             log.error("could not fetch hash", e);
+        } finally {
+            close(preparedStatement);
+            disconnect(connection);
         }
         return timestamp;
     }
 
+    /**
+     * Finds every record of the given hashes.
+     * @param hashes The hashes.
+     * @return The records, oldest first. Empty if the log can't be read.
+     */
+    public List<HashRecord> getRecords(Collection<String> hashes){
+        List<HashRecord> records = new ArrayList<HashRecord>();
+        List<String> remaining = new ArrayList<String>(hashes);
+        Connection connection = connect();
+        if (connection == null)
+            return records;
+
+        PreparedStatement preparedStatement = null;
+        try {
+            // Stays below SQLite's limit on the number of bind parameters.
+            while (!remaining.isEmpty()) {
+                List<String> chunk = remaining.subList(0, Math.min(500, remaining.size()));
+                StringBuilder sql = new StringBuilder("SELECT hash, dataSource, constr, returnAs, timestamp, query " +
+                        "FROM hashes WHERE hash IN (");
+                for (int i = 0; i < chunk.size(); i++)
+                    sql.append(i == 0 ? "?" : ",?");
+                sql.append(") ORDER BY timestamp;");
+
+                preparedStatement = connection.prepareStatement(sql.toString());
+                for (int i = 0; i < chunk.size(); i++)
+                    preparedStatement.setString(i + 1, chunk.get(i));
+                ResultSet resultSet = preparedStatement.executeQuery();
+                while (resultSet.next()) {
+                    records.add(new HashRecord(resultSet.getString(1), resultSet.getString(2), resultSet.getString(3),
+                            resultSet.getString(4), resultSet.getString(5), resultSet.getString(6)));
+                }
+                close(preparedStatement);
+                preparedStatement = null;
+                chunk.clear();
+            }
+            log.debug("Found {} records for {} hashes", records.size(), hashes.size());
+        } catch (Exception e) {
+            log.error("could not fetch hashes", e);
+            records.clear();
+        } finally {
+            close(preparedStatement);
+            disconnect(connection);
+        }
+        return records;
+    }
+
+    private void close(PreparedStatement preparedStatement) {
+        try {
+            if (preparedStatement != null)
+                preparedStatement.close();
+        } catch (SQLException e) {
+            log.debug("could not close statement", e);
+        }
+    }
+
 }
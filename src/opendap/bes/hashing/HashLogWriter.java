@@ -0,0 +1,438 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.hashing;
+
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes response hash records to the hash log database from a single background thread.
+ *
+ * Request threads hand an immutable HashRecord to submit(), which only places it on a bounded
+ * queue. The writer thread holds one long-lived connection, drains the queue in batches and
+ * writes each batch as a JDBC batch of single-row INSERTs inside a single transaction. (A
+ * multi-row INSERT would need six bind parameters per row, and SQLite before 3.32 allows no
+ * more than 999.)
+ *
+ * When the queue is full the configured policy is applied:
+ * <ul>
+ *     <li><b>drop</b> - The record is discarded and counted. The request is never delayed. (default)</li>
+ *     <li><b>block</b> - The request thread waits up to blockTimeout milliseconds for space
+ *     in the queue, then drops the record.</li>
+ * </ul>
+ *
+ * The writer is configured from the BESManager section of olfs.xml:
+ * <pre>
+ *     &lt;HashLog queueSize="10000" batchSize="200" onFull="drop" blockTimeout="50" /&gt;
+ * </pre>
+ */
+public class HashLogWriter {
+
+    public enum FullQueuePolicy { DROP, BLOCK }
+
+    private static final Logger log = LoggerFactory.getLogger(HashLogWriter.class);
+
+    private static final String DATA_SOURCE_NAME = "jdbc/sqlite";
+    private static final String INSERT = "INSERT INTO hashes (hash, dataSource, constr, returnAs, timestamp, query) VALUES (?,?,?,?,?,?);";
+
+    // How long to wait before looking for the data source again after a failed lookup.
+    private static final long LOOKUP_RETRY_INTERVAL = 60000; // ms
+
+    private static volatile int _queueSize = 10000;
+    private static volatile int _batchSize = 200;
+    private static volatile FullQueuePolicy _onFull = FullQueuePolicy.DROP;
+    private static volatile long _blockTimeout = 50; // ms
+
+    private static final Object _lock = new Object();
+    private static volatile ArrayBlockingQueue<HashRecord> _queue = null;
+    private static Thread _writerThread = null;
+    private static volatile Writer _writer = null;
+    private static volatile boolean _running = false;
+
+    private static final AtomicLong _submitted = new AtomicLong(0);
+    private static final AtomicLong _dropped = new AtomicLong(0);
+    private static final AtomicLong _written = new AtomicLong(0);
+    private static final AtomicLong _failed = new AtomicLong(0);
+    private static final AtomicLong _batches = new AtomicLong(0);
+    private static final AtomicLong _writeNanos = new AtomicLong(0);
+
+
+    private HashLogWriter() {
+    }
+
+
+    /**
+     * Configures the writer. Must be called before the first record is submitted for the
+     * queue size to take effect.
+     * @param config The HashLog element. May be null, in which case the defaults are used.
+     * @throws Exception When an attribute value is not usable.
+     */
+    public static void init(Element config) throws Exception {
+        if (config == null)
+            return;
+
+        String s = config.getAttributeValue("queueSize");
+        if (s != null) {
+            int queueSize = Integer.parseInt(s);
+            if (queueSize < 1)
+                throw new Exception("The queueSize attribute of the HashLog element must be " +
+                        "an integer greater than 0 (zero).");
+            _queueSize = queueSize;
+        }
+
+        s = config.getAttributeValue("batchSize");
+        if (s != null) {
+            int batchSize = Integer.parseInt(s);
+            if (batchSize < 1)
+                throw new Exception("The batchSize attribute of the HashLog element must be " +
+                        "an integer greater than 0 (zero).");
+            _batchSize = batchSize;
+        }
+
+        s = config.getAttributeValue("onFull");
+        if (s != null) {
+            if (s.equalsIgnoreCase("drop"))
+                _onFull = FullQueuePolicy.DROP;
+            else if (s.equalsIgnoreCase("block"))
+                _onFull = FullQueuePolicy.BLOCK;
+            else
+                throw new Exception("The onFull attribute of the HashLog element must be " +
+                        "either \"drop\" or \"block\". Found: \"" + s + "\"");
+        }
+
+        s = config.getAttributeValue("blockTimeout");
+        if (s != null) {
+            _blockTimeout = Long.parseLong(s);
+        }
+
+        log.info("init() - Hash log queueSize: {} batchSize: {} onFull: {} blockTimeout: {} ms",
+                new Object[]{_queueSize, _batchSize, _onFull, _blockTimeout});
+    }
+
+
+    /**
+     * Queues a record for writing. Never touches the database.
+     * @param record The record to write.
+     * @return True if the record was queued, false if it was dropped.
+     */
+    public static boolean submit(HashRecord record) {
+        ArrayBlockingQueue<HashRecord> queue = getQueue();
+        _submitted.incrementAndGet();
+
+        boolean queued;
+        if (_onFull == FullQueuePolicy.BLOCK) {
+            try {
+                queued = queue.offer(record, _blockTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        } else {
+            queued = queue.offer(record);
+        }
+
+        if (!queued) {
+            long dropped = _dropped.incrementAndGet();
+            if (dropped == 1 || dropped % 1000 == 0)
+                log.warn("submit() - Hash log queue is full, {} records dropped so far.", dropped);
+        }
+        return queued;
+    }
+
+
+    /**
+     * Returns the queue, starting the writer thread on first use. The data source is looked up
+     * here, on the calling (request) thread, because the container's JNDI context may not be
+     * visible from the writer thread. If it can't be found the lookup is tried again, by a later
+     * request, every LOOKUP_RETRY_INTERVAL milliseconds.
+     */
+    private static ArrayBlockingQueue<HashRecord> getQueue() {
+        ArrayBlockingQueue<HashRecord> queue = _queue;
+        if (queue != null) {
+            Writer writer = _writer;
+            if (writer != null && writer.needsDataSource())
+                writer.retryLookup();
+            return queue;
+        }
+
+        synchronized (_lock) {
+            if (_queue == null) {
+                DataSource dataSource = lookupDataSource();
+                _queue = new ArrayBlockingQueue<HashRecord>(_queueSize);
+                _running = true;
+                _writer = new Writer(_queue, dataSource);
+                _writerThread = new Thread(_writer, "HashLogWriter");
+                _writerThread.setDaemon(true);
+                _writerThread.start();
+                log.info("getQueue() - Started hash log writer.");
+            }
+            return _queue;
+        }
+    }
+
+
+    private static DataSource lookupDataSource() {
+        try {
+            Context initCtx = new InitialContext();
+            Context envCtx = (Context) initCtx.lookup("java:comp/env");
+            return (DataSource) envCtx.lookup(DATA_SOURCE_NAME);
+        } catch (Exception e) {
+            log.error("lookupDataSource() - Unable to locate the hash log data source. Records will be dropped. msg: {}",
+                    e.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Stops the writer thread, giving it up to timeout milliseconds to write what is queued.
+     * @param timeout The maximum time to wait, in milliseconds.
+     */
+    public static void shutdown(long timeout) {
+        Thread writer;
+        synchronized (_lock) {
+            writer = _writerThread;
+            _running = false;
+            _writerThread = null;
+            _writer = null;
+            _queue = null;
+        }
+        if (writer == null)
+            return;
+
+        try {
+            writer.join(timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            log.warn("shutdown() - Hash log writer did not finish in {} ms, interrupting.", timeout);
+            writer.interrupt();
+        }
+        log.info("shutdown() - {}", getStatistics());
+    }
+
+
+    public static FullQueuePolicy getFullQueuePolicy() {
+        return _onFull;
+    }
+
+    public static int getQueueSize() {
+        return _queueSize;
+    }
+
+    public static int getBatchSize() {
+        return _batchSize;
+    }
+
+    /**
+     * @return The number of records waiting to be written.
+     */
+    public static int getPending() {
+        ArrayBlockingQueue<HashRecord> queue = _queue;
+        return queue == null ? 0 : queue.size();
+    }
+
+    public static long getSubmitted() {
+        return _submitted.get();
+    }
+
+    public static long getDropped() {
+        return _dropped.get();
+    }
+
+    public static long getWritten() {
+        return _written.get();
+    }
+
+    /**
+     * @return The number of records lost because their batch could not be written.
+     */
+    public static long getFailed() {
+        return _failed.get();
+    }
+
+    public static long getBatches() {
+        return _batches.get();
+    }
+
+    /**
+     * @return The time spent writing batches, in milliseconds.
+     */
+    public static long getWriteTime() {
+        return TimeUnit.NANOSECONDS.toMillis(_writeNanos.get());
+    }
+
+    public static String getStatistics() {
+        long written = getWritten();
+        long writeTime = getWriteTime();
+        return "[HashLogWriter onFull: " + _onFull +
+                " pending: " + getPending() +
+                " submitted: " + getSubmitted() +
+                " written: " + written +
+                " dropped: " + getDropped() +
+                " failed: " + getFailed() +
+                " batches: " + getBatches() +
+                " writeTime: " + writeTime + " ms" +
+                " recordsPerSecond: " + (writeTime == 0 ? 0 : (written * 1000) / writeTime) +
+                "]";
+    }
+
+
+    /**
+     * The writer thread.
+     */
+    private static class Writer implements Runnable {
+
+        private final ArrayBlockingQueue<HashRecord> _queue;
+        private volatile DataSource _dataSource;
+        private volatile long _lastLookup;
+        private Connection _connection;
+        private PreparedStatement _insertStatement;
+
+        Writer(ArrayBlockingQueue<HashRecord> queue, DataSource dataSource) {
+            _queue = queue;
+            _dataSource = dataSource;
+            _lastLookup = System.currentTimeMillis();
+            _connection = null;
+            _insertStatement = null;
+        }
+
+        boolean needsDataSource() {
+            return _dataSource == null && System.currentTimeMillis() - _lastLookup > LOOKUP_RETRY_INTERVAL;
+        }
+
+        /**
+         * Looks for the data source again. Called from a request thread.
+         */
+        synchronized void retryLookup() {
+            if (!needsDataSource())
+                return;
+            _lastLookup = System.currentTimeMillis();
+            _dataSource = lookupDataSource();
+            if (_dataSource != null)
+                log.info("retryLookup() - Found the hash log data source.");
+        }
+
+        @Override
+        public void run() {
+            List<HashRecord> batch = new ArrayList<HashRecord>();
+            try {
+                while (_running || !_queue.isEmpty()) {
+                    HashRecord first = _queue.poll(1, TimeUnit.SECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    _queue.drainTo(batch, _batchSize - 1);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                log.warn("run() - Interrupted, {} queued records were not written.", _queue.size() + batch.size());
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect();
+            }
+        }
+
+        private void write(List<HashRecord> batch) {
+            long start = System.nanoTime();
+            try {
+                DataSource dataSource = _dataSource;
+                if (dataSource == null)
+                    throw new SQLException("No hash log data source is available.");
+
+                if (_connection == null) {
+                    _connection = dataSource.getConnection();
+                    _connection.setAutoCommit(false);
+                    _insertStatement = _connection.prepareStatement(INSERT);
+                    log.debug("write() - Hash log db connected.");
+                }
+
+                for (HashRecord record : batch) {
+                    _insertStatement.setString(1, record.getHash());
+                    _insertStatement.setString(2, record.getDataSource());
+                    _insertStatement.setString(3, record.getConstraint());
+                    _insertStatement.setString(4, record.getReturnAs());
+                    _insertStatement.setString(5, record.getTimestamp());
+                    _insertStatement.setString(6, record.getQuery());
+                    _insertStatement.addBatch();
+                }
+                _insertStatement.executeBatch();
+                _connection.commit();
+
+                _written.addAndGet(batch.size());
+                _batches.incrementAndGet();
+                log.debug("write() - Wrote {} hash records.", batch.size());
+
+            } catch (SQLException e) {
+                _failed.addAndGet(batch.size());
+                log.error("write() - Could not write {} hash records. msg: {}", batch.size(), e.getMessage());
+                rollback();
+                disconnect();
+            } finally {
+                _writeNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        private void rollback() {
+            if (_connection == null)
+                return;
+            try {
+                _connection.rollback();
+            } catch (SQLException e) {
+                log.debug("rollback() - Rollback failed. msg: {}", e.getMessage());
+            }
+        }
+
+        private void disconnect() {
+            try {
+                if (_insertStatement != null)
+                    _insertStatement.close();
+                if (_connection != null)
+                    _connection.close();
+            } catch (SQLException e) {
+                log.error("disconnect() - Could not close hash log connection. msg: {}", e.getMessage());
+            }
+            _insertStatement = null;
+            _connection = null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.hashing;
+
+/**
+ * One row of the hash log: the hash of a DAP2 data response and the request that produced it.
+ * Immutable, so it can be handed from the request thread to the HashLogWriter.
+ */
+public final class HashRecord {
+
+    private final String _hash;
+    private final String _dataSource;
+    private final String _constraint;
+    private final String _returnAs;
+    private final String _timestamp;
+    private final String _query;
+
+    public HashRecord(String hash, String dataSource, String constraint, String returnAs, String timestamp, String query) {
+        _hash = hash;
+        _dataSource = dataSource;
+        _constraint = constraint;
+        _returnAs = returnAs;
+        _timestamp = timestamp;
+        _query = query;
+    }
+
+    public String getHash() {
+        return _hash;
+    }
+
+    public String getDataSource() {
+        return _dataSource;
+    }
+
+    public String getConstraint() {
+        return _constraint;
+    }
+
+    public String getReturnAs() {
+        return _returnAs;
+    }
+
+    public String getTimestamp() {
+        return _timestamp;
+    }
+
+    public String getQuery() {
+        return _query;
+    }
+
+    @Override
+    public String toString() {
+        return "[HashRecord hash: " + _hash + " dataSource: " + _dataSource + " constraint: " + _constraint +
+                " returnAs: " + _returnAs + " timestamp: " + _timestamp + "]";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.bes.hashing;
+
+import org.jdom.Document;
+import org.jdom.Element;
+import org.jdom.Namespace;
+
+class RequestParser {
+    private static final Namespace BES_NS = opendap.namespaces.BES.BES_NS;
+    private Document request;
+    public String dataSource;
+    public boolean isDODS;
+    public String returnAs;
+    public String constraint;
+    public String xdapAccept;
+    public String maxResponseSize;
+
+    public RequestParser (Document request) {
+        this.request = request;
+        parse();
+    }
+
+    private void parse() {
+        getIsDODS();
+        if (!isDODS) {
+            return;
+        }
+        getDataSource();
+        getReturnAs();
+        getConstraint();
+        getContexts();
+    }
+
+    private void getDataSource() {
+        Element root = request.getRootElement();
+        Element tag = root.getChild("setContainer", BES_NS);
+        this.dataSource = tag == null ? null : tag.getTextTrim();
+    }
+
+    private void getIsDODS() {
+        Element root = request.getRootElement();
+        Element tag = root.getChild("get", BES_NS);
+        this.isDODS = tag != null && "dods".equals(tag.getAttributeValue("type"));
+    }
+
+    private void getReturnAs() {
+        Element root = request.getRootElement();
+        Element tag = root.getChild("get", BES_NS);
+        this.returnAs = tag.getAttributeValue("returnAs");
+    }
+
+    private void getConstraint() {
+        Element root = request.getRootElement();
+        Element tag = root.getChild("define", BES_NS);
+        if (tag != null)
+            tag = tag.getChild("container", BES_NS);
+        if (tag != null)
+            tag = tag.getChild("constraint", BES_NS);
+        if (tag ==null){
+            this.constraint = null;
+        } else {
+            this.constraint = tag.getTextTrim();
+        }
+    }
+
+    private void getContexts() {
+        Element root = request.getRootElement();
+        for (Object o : root.getChildren("setContext", BES_NS)) {
+            Element tag = (Element) o;
+            String name = tag.getAttributeValue("name");
+            if ("xdap_accept".equals(name))
+                this.xdapAccept = tag.getTextTrim();
+            else if ("max_response_size".equals(name))
+                this.maxResponseSize = tag.getTextTrim();
+        }
+    }
+}
@@ -5,7 +5,7 @@ public class Test {
     public static void main(String[] args) {
         System.out.println("Test");
         HashLog hashLog = new HashLog();
-        hashLog.connect();
+        hashLog.disconnect(hashLog.connect());
     }
 
 }
\ No newline at end of file
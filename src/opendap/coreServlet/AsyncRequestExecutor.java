@@ -0,0 +1,358 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import opendap.logging.LogUtil;
+import opendap.logging.Procedure;
+import opendap.logging.RequestTrace;
+import opendap.logging.Timer;
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the requests that wait on the BES on a dedicated, bounded, pool of threads so that the
+ * servlet container's request threads are not held while a request waits for a BES client or
+ * relays a slow BES response. The container thread puts the request in asynchronous mode
+ * (AsyncContext), hands it to the pool, and returns to the container.
+ *
+ * The request's RequestCache, Timer log and MDC logging context move with it to the pool
+ * thread, and the access log entry is written when the pool thread finishes. When the pool
+ * and its queue are full the request is answered with 503 Service Unavailable.
+ *
+ * Only requests for the listed dispatch handlers are run asynchronously; everything else (the
+ * version response, documentation, and so on) is handled on the container thread as before.
+ * The servlet, and every filter in front of it, must be marked async-supported in web.xml, or
+ * requests are handled on the container thread.
+ *
+ * Configured from the top level of olfs.xml:
+ * <pre>
+ *     &lt;AsyncDispatch enabled="true" threads="32" queueSize="256"&gt;
+ *         &lt;Handler&gt;opendap.bes.BesDapDispatcher&lt;/Handler&gt;
+ *         &lt;Handler&gt;opendap.bes.FileDispatchHandler&lt;/Handler&gt;
+ *     &lt;/AsyncDispatch&gt;
+ * </pre>
+ * Requests on the pool are not timed out: once the container has completed a request its
+ * response may be recycled, and the pool thread would still be writing to it.
+ */
+public class AsyncRequestExecutor {
+
+    public static final String CONFIG_ELEMENT = "AsyncDispatch";
+
+    private static final Set<String> DEFAULT_HANDLERS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "opendap.bes.BesDapDispatcher",
+            "opendap.bes.FileDispatchHandler")));
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncRequestExecutor.class);
+
+    private static volatile ThreadPoolExecutor _executor = null;
+    private static volatile Set<String> _handlers = DEFAULT_HANDLERS;
+
+    private static final AtomicLong _dispatched = new AtomicLong(0);
+    private static final AtomicLong _rejected = new AtomicLong(0);
+
+
+    private AsyncRequestExecutor() {
+    }
+
+
+    /**
+     * Configures, and starts, the request pool.
+     * @param config The AsyncDispatch element. If it is null, or not enabled, requests are
+     *               handled on the container threads.
+     * @throws Exception When an attribute value is not usable.
+     */
+    public static synchronized void init(Element config) throws Exception {
+        destroy();
+
+        if (config == null || !Boolean.parseBoolean(config.getAttributeValue("enabled"))) {
+            log.info("init() - Asynchronous dispatch is disabled.");
+            return;
+        }
+
+        int threads = getIntAttribute(config, "threads", 32, 1);
+        int queueSize = getIntAttribute(config, "queueSize", 256, 1);
+
+        Set<String> handlers = new HashSet<String>();
+        for (Object o : config.getChildren("Handler"))
+            handlers.add(((Element) o).getTextTrim());
+
+        final AtomicInteger threadNumber = new AtomicInteger(0);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "olfs-async-request-" + threadNumber.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+
+        _handlers = handlers.isEmpty() ? DEFAULT_HANDLERS : Collections.unmodifiableSet(handlers);
+        _executor = executor;
+
+        log.info("init() - Asynchronous dispatch threads: {} queueSize: {} handlers: {}",
+                new Object[]{threads, queueSize, _handlers});
+    }
+
+    private static int getIntAttribute(Element config, String name, int defaultValue, int min) throws Exception {
+        String s = config.getAttributeValue(name);
+        if (s == null)
+            return defaultValue;
+        int value = Integer.parseInt(s);
+        if (value < min)
+            throw new Exception("The " + name + " attribute of the " + CONFIG_ELEMENT + " element must be " +
+                    "an integer no less than " + min + ". Found: \"" + s + "\"");
+        return value;
+    }
+
+
+    /**
+     * Stops the request pool. Requests that are running are interrupted.
+     */
+    public static synchronized void destroy() {
+        ThreadPoolExecutor executor = _executor;
+        _executor = null;
+        if (executor == null)
+            return;
+
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS))
+                log.warn("destroy() - Asynchronous request threads did not stop within 10 seconds.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @param request The client request.
+     * @param dh The handler that will answer it.
+     * @return True if the request should be handed to the request pool.
+     */
+    public static boolean handlesRequest(HttpServletRequest request, DispatchHandler dh) {
+        return _executor != null &&
+                request.isAsyncSupported() &&
+                _handlers.contains(dh.getClass().getName());
+    }
+
+
+    /**
+     * Puts the request in asynchronous mode and hands it to the request pool. After this
+     * returns the calling thread must not use the request or response, close the
+     * RequestCache, or log the end of the request; the pool thread does all of that.
+     *
+     * @param servlet The servlet, for error handling.
+     * @param request The client request.
+     * @param response The response to the client.
+     * @param dh The handler that will answer the request.
+     * @param timedProcedure The Timer procedure for the whole request. May be null.
+     */
+    public static void dispatch(HttpServlet servlet,
+                                HttpServletRequest request,
+                                HttpServletResponse response,
+                                DispatchHandler dh,
+                                Procedure timedProcedure) {
+
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(0);
+
+        Task task = new Task(servlet, asyncContext, request, response, dh, timedProcedure);
+
+        ThreadPoolExecutor executor = _executor;
+        try {
+            if (executor == null)
+                throw new RejectedExecutionException("The asynchronous request pool has been stopped.");
+            executor.execute(task);
+            _dispatched.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            _rejected.incrementAndGet();
+            log.warn("dispatch() - Request pool is full, sending 503. {}", e.getMessage());
+            task.fail(new OPeNDAPException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The server is too busy to handle the request. Please try again later."));
+        }
+    }
+
+
+    /**
+     * A request, and the per thread state that goes with it, on its way to a pool thread.
+     */
+    private static class Task implements Runnable {
+
+        private final HttpServlet _servlet;
+        private final AsyncContext _asyncContext;
+        private final HttpServletRequest _request;
+        private final HttpServletResponse _response;
+        private final DispatchHandler _dh;
+        private final Procedure _timedProcedure;
+
+        private final Object _requestCache;
+        private final RequestTrace _timerLog;
+        private final Map<String, String> _mdc;
+
+        Task(HttpServlet servlet,
+             AsyncContext asyncContext,
+             HttpServletRequest request,
+             HttpServletResponse response,
+             DispatchHandler dh,
+             Procedure timedProcedure) {
+            _servlet = servlet;
+            _asyncContext = asyncContext;
+            _request = request;
+            _response = response;
+            _dh = dh;
+            _timedProcedure = timedProcedure;
+
+            _requestCache = RequestCache.detachThreadCache();
+            _timerLog = Timer.detachThreadLog();
+            _mdc = LogUtil.getMdcCopy();
+        }
+
+        @Override
+        public void run() {
+            respond(null);
+        }
+
+        void fail(Exception e) {
+            respond(e);
+        }
+
+        private void respond(Exception failure) {
+            if (_mdc != null)
+                MDC.setContextMap(_mdc);
+            RequestCache.attachThreadCache(_requestCache);
+            Timer.attachThreadLog(_timerLog);
+
+            int requestStatus = HttpServletResponse.SC_OK;
+            try {
+                try {
+                    if (failure != null)
+                        throw failure;
+                    log.debug("respond() - Request being handled by: {}", _dh.getClass().getName());
+                    _dh.handleRequest(_request, _response);
+                } finally {
+                    Timer.stop(_timedProcedure);
+                }
+            } catch (Throwable t) {
+                try {
+                    requestStatus = OPeNDAPException.anyExceptionHandler(t, _servlet, _response);
+                } catch (Throwable t2) {
+                    log.error("respond() - Request processing failed and normal exception handling failed.", t2);
+                }
+            } finally {
+                LogUtil.logServerAccessEnd(requestStatus, "HyraxAccess");
+                RequestCache.closeThreadCache();
+                if (Timer.isEnabled())
+                    log.info("respond() - Timing Report: \n{}", Timer.report());
+                Timer.reset();
+                MDC.clear();
+                complete();
+            }
+        }
+
+        private void complete() {
+            try {
+                _asyncContext.complete();
+            } catch (IllegalStateException e) {
+                log.debug("complete() - The request was already complete: {}", e.getMessage());
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of requests handed to the request pool.
+     */
+    public static long getDispatchedCount() {
+        return _dispatched.get();
+    }
+
+    /**
+     * @return The number of requests turned away because the request pool was full.
+     */
+    public static long getRejectedCount() {
+        return _rejected.get();
+    }
+
+    /**
+     * @return The number of requests the request pool is working on. 0 if the pool is disabled.
+     */
+    public static int getActiveCount() {
+        ThreadPoolExecutor executor = _executor;
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    /**
+     * @return The number of requests waiting for a request pool thread. 0 if the pool is disabled.
+     */
+    public static int getQueuedCount() {
+        ThreadPoolExecutor executor = _executor;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return The size of the request pool. 0 if the pool is disabled.
+     */
+    public static int getThreadCount() {
+        ThreadPoolExecutor executor = _executor;
+        return executor == null ? 0 : executor.getMaximumPoolSize();
+    }
+
+    public static String getStatistics() {
+        ThreadPoolExecutor executor = _executor;
+        if (executor == null)
+            return "[AsyncRequestExecutor disabled]";
+        return "[AsyncRequestExecutor threads: " + executor.getMaximumPoolSize() +
+                " active: " + executor.getActiveCount() +
+                " queued: " + executor.getQueue().size() +
+                " dispatched: " + getDispatchedCount() +
+                " rejected: " + getRejectedCount() +
+                "]";
+    }
+
+}
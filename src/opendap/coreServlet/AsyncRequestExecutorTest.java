@@ -0,0 +1,213 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.jdom.Element;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that AsyncRequestExecutor runs requests on its own threads, carries the request's
+ * thread state with it, completes the AsyncContext, and turns requests away when it is full.
+ */
+public class AsyncRequestExecutorTest {
+
+    /**
+     * Records what a request saw on the thread that handled it.
+     */
+    public static class Handler implements DispatchHandler {
+        volatile Thread thread;
+        volatile Object cached;
+        volatile String mdcId;
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Handler(boolean block) {
+            if (!block)
+                release.countDown();
+        }
+
+        @Override
+        public void init(HttpServlet servlet, Element config) {
+        }
+
+        @Override
+        public boolean requestCanBeHandled(HttpServletRequest request) {
+            return true;
+        }
+
+        @Override
+        public void handleRequest(HttpServletRequest request, HttpServletResponse response) throws Exception {
+            thread = Thread.currentThread();
+            cached = RequestCache.get("key");
+            mdcId = MDC.get("ID");
+            started.countDown();
+            release.await(10, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public long getLastModified(HttpServletRequest req) {
+            return -1;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    /**
+     * A request, with its AsyncContext, that counts calls to complete().
+     */
+    private static class Request implements InvocationHandler {
+        final CountDownLatch completed = new CountDownLatch(1);
+        final List<AsyncListener> listeners = new ArrayList<AsyncListener>();
+        long timeout = -1;
+        HttpServletRequest request;
+        HttpServletResponse response;
+
+        Request() {
+            request = ServletFixtures.proxy(HttpServletRequest.class, this);
+            response = ServletFixtures.proxy(HttpServletResponse.class, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("isAsyncSupported"))
+                return true;
+            if (name.equals("isCommitted"))
+                return false;
+            if (name.equals("startAsync"))
+                return ServletFixtures.proxy(AsyncContext.class, this);
+            if (name.equals("setTimeout"))
+                timeout = (Long) args[0];
+            else if (name.equals("addListener"))
+                listeners.add((AsyncListener) args[0]);
+            else if (name.equals("complete"))
+                completed.countDown();
+            else if (name.equals("toString"))
+                return "Request";
+            return null;
+        }
+    }
+
+    private static void configure(int threads, int queueSize) throws Exception {
+        Element config = new Element(AsyncRequestExecutor.CONFIG_ELEMENT);
+        config.setAttribute("enabled", "true");
+        config.setAttribute("threads", Integer.toString(threads));
+        config.setAttribute("queueSize", Integer.toString(queueSize));
+        config.addContent(new Element("Handler").setText(Handler.class.getName()));
+        AsyncRequestExecutor.init(config);
+    }
+
+    @After
+    public void stop() {
+        AsyncRequestExecutor.destroy();
+        RequestCache.closeThreadCache();
+        MDC.clear();
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        AsyncRequestExecutor.init(null);
+        Assert.assertFalse(AsyncRequestExecutor.handlesRequest(new Request().request, new Handler(false)));
+    }
+
+    @Test
+    public void testHandlesRequest() throws Exception {
+        configure(2, 2);
+        Assert.assertTrue(AsyncRequestExecutor.handlesRequest(new Request().request, new Handler(false)));
+        Assert.assertFalse(AsyncRequestExecutor.handlesRequest(new Request().request, new NoPostHandler()));
+    }
+
+    @Test
+    public void testDispatch() throws Exception {
+        configure(2, 2);
+
+        RequestCache.openThreadCache();
+        RequestCache.put("key", "value");
+        MDC.put("ID", "42");
+
+        Request r = new Request();
+        Handler handler = new Handler(false);
+        AsyncRequestExecutor.dispatch(null, r.request, r.response, handler, null);
+
+        Assert.assertTrue(r.completed.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, r.timeout);
+        Assert.assertTrue(r.listeners.isEmpty());
+        Assert.assertNotNull(handler.thread);
+        Assert.assertFalse(Thread.currentThread().equals(handler.thread));
+        Assert.assertEquals("value", handler.cached);
+        Assert.assertEquals("42", handler.mdcId);
+
+        // The request cache went with the request.
+        Assert.assertNull(RequestCache.get("key"));
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        configure(1, 1);
+        long rejected = AsyncRequestExecutor.getRejectedCount();
+
+        Request running = new Request();
+        Handler blocked = new Handler(true);
+        AsyncRequestExecutor.dispatch(null, running.request, running.response, blocked, null);
+        Assert.assertTrue(blocked.started.await(10, TimeUnit.SECONDS));
+
+        Request queued = new Request();
+        Handler waiting = new Handler(false);
+        AsyncRequestExecutor.dispatch(null, queued.request, queued.response, waiting, null);
+
+        // No room left, so the request is answered, and completed, on the calling thread.
+        Request turnedAway = new Request();
+        Handler never = new Handler(false);
+        AsyncRequestExecutor.dispatch(null, turnedAway.request, turnedAway.response, never, null);
+        Assert.assertEquals(0, turnedAway.completed.getCount());
+        Assert.assertNull(never.thread);
+        Assert.assertEquals(rejected + 1, AsyncRequestExecutor.getRejectedCount());
+
+        blocked.release.countDown();
+        Assert.assertTrue(running.completed.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(queued.completed.await(10, TimeUnit.SECONDS));
+        Assert.assertNotNull(waiting.thread);
+    }
+
+}
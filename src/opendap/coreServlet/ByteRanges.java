@@ -0,0 +1,479 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Support for HTTP range requests (RFC 7233) on responses whose length is known before they are
+ * sent, such as files held by the BES.
+ *
+ * A single range is answered with 206 Partial Content by windowing the source stream as it
+ * arrives, so nothing outside of the range is written to the client, and the source is stopped
+ * once the range has been sent. Several ranges are answered with a multipart/byteranges body,
+ * which needs random access to the content, so the source is first spooled to a local file
+ * (see RangeSpool) that is kept for later range requests for the same content. A Range header
+ * that can't be parsed, that
+ * asks for too many ranges, or whose If-Range validator is stale is ignored and the whole
+ * content is sent.
+ */
+public class ByteRanges {
+
+    public static final String ACCEPT_RANGES = "Accept-Ranges";
+    public static final String RANGE = "Range";
+    public static final String IF_RANGE = "If-Range";
+    public static final String CONTENT_RANGE = "Content-Range";
+
+    public static final String BYTES_UNIT = "bytes";
+
+    /**
+     * Requests for more ranges than this are answered with the whole content.
+     */
+    public static final int MAX_RANGES = 32;
+
+    private static final String CRLF = "\r\n";
+
+    private static final Logger _log = LoggerFactory.getLogger(ByteRanges.class);
+
+
+    /**
+     * The content of a response, written on demand.
+     */
+    public interface Source {
+        void writeTo(OutputStream os) throws Exception;
+    }
+
+
+    /**
+     * An inclusive range of byte positions.
+     */
+    public static class Range {
+        private final long _first;
+        private final long _last;
+
+        public Range(long first, long last) {
+            _first = first;
+            _last = last;
+        }
+
+        public long getFirst() {
+            return _first;
+        }
+
+        public long getLast() {
+            return _last;
+        }
+
+        public long getLength() {
+            return _last - _first + 1;
+        }
+
+        public String getContentRange(long contentLength) {
+            return BYTES_UNIT + " " + _first + "-" + _last + "/" + contentLength;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Range && ((Range) o)._first == _first && ((Range) o)._last == _last;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (_first * 31 + _last);
+        }
+
+        @Override
+        public String toString() {
+            return _first + "-" + _last;
+        }
+    }
+
+
+    private ByteRanges() {
+    }
+
+
+    /**
+     * Parses a Range header against content of a known length. Overlapping and adjacent ranges
+     * are coalesced.
+     *
+     * @param rangeHeader The value of the Range header. May be null.
+     * @param contentLength The length of the content, in bytes.
+     * @return Null if the header should be ignored, because it is absent, malformed, uses a unit
+     * other than bytes, or asks for too many ranges. An empty list if none of the ranges can be
+     * satisfied. Otherwise the ranges, in ascending order.
+     */
+    public static List<Range> parse(String rangeHeader, long contentLength) {
+        if (rangeHeader == null)
+            return null;
+
+        int eq = rangeHeader.indexOf('=');
+        if (eq < 0 || !rangeHeader.substring(0, eq).trim().equalsIgnoreCase(BYTES_UNIT))
+            return null;
+
+        String[] specs = rangeHeader.substring(eq + 1).split(",");
+        if (specs.length > MAX_RANGES)
+            return null;
+
+        List<Range> ranges = new ArrayList<Range>();
+        boolean sawSpec = false;
+        for (String spec : specs) {
+            spec = spec.trim();
+            if (spec.isEmpty())
+                continue;
+            sawSpec = true;
+
+            int dash = spec.indexOf('-');
+            if (dash < 0)
+                return null;
+            String firstString = spec.substring(0, dash).trim();
+            String lastString = spec.substring(dash + 1).trim();
+
+            long first;
+            long last;
+            try {
+                if (firstString.isEmpty()) {
+                    // A suffix range, the final N bytes.
+                    long suffixLength = parsePosition(lastString);
+                    if (suffixLength == 0)
+                        continue;
+                    first = Math.max(0, contentLength - suffixLength);
+                    last = contentLength - 1;
+                } else {
+                    first = parsePosition(firstString);
+                    last = lastString.isEmpty() ? Long.MAX_VALUE : parsePosition(lastString);
+                    if (last < first)
+                        return null;
+                    last = Math.min(last, contentLength - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (first < contentLength)
+                ranges.add(new Range(first, last));
+        }
+        if (!sawSpec)
+            return null;
+
+        return coalesce(ranges);
+    }
+
+    private static long parsePosition(String s) {
+        if (s.isEmpty() || s.charAt(0) == '+' || s.charAt(0) == '-')
+            throw new NumberFormatException(s);
+        long position = Long.parseLong(s);
+        if (position < 0)
+            throw new NumberFormatException(s);
+        return position;
+    }
+
+    private static List<Range> coalesce(List<Range> ranges) {
+        if (ranges.size() < 2)
+            return ranges;
+
+        List<Range> sorted = new ArrayList<Range>(ranges);
+        Collections.sort(sorted, new Comparator<Range>() {
+            @Override
+            public int compare(Range a, Range b) {
+                return a._first < b._first ? -1 : (a._first == b._first ? 0 : 1);
+            }
+        });
+
+        List<Range> result = new ArrayList<Range>();
+        Range current = sorted.get(0);
+        for (Range next : sorted.subList(1, sorted.size())) {
+            if (next._first <= current._last + 1) {
+                current = new Range(current._first, Math.max(current._last, next._last));
+            } else {
+                result.add(current);
+                current = next;
+            }
+        }
+        result.add(current);
+        return result;
+    }
+
+
+    /**
+     * Evaluates the If-Range header. If-Range uses the strong comparison, so a weak entity tag
+     * never matches, and a date must be exactly the last modified time.
+     *
+     * @param request The client request.
+     * @param entityTag The current entity tag of the content. May be null.
+     * @param lastModified The last modified time of the content, in milliseconds. Negative if unknown.
+     * @return True if there is no If-Range header or if its validator is current, so that the
+     * Range header should be honored.
+     */
+    public static boolean isIfRangeCurrent(HttpServletRequest request, String entityTag, long lastModified) {
+        String ifRange = request.getHeader(IF_RANGE);
+        if (ifRange == null)
+            return true;
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/"))
+            return false;
+        if (ifRange.startsWith("\""))
+            return entityTag != null && !entityTag.startsWith("W/") && ifRange.equals(entityTag);
+
+        Date date = HttpDate.getHttpDate(ifRange);
+        return date != null && lastModified >= 0 && date.getTime() / 1000 == lastModified / 1000;
+    }
+
+
+    /**
+     * Sends content of a known length, honoring the request's conditional and range headers.
+     * The content type should already be set on the response.
+     *
+     * @param request The client request.
+     * @param response The response to the client.
+     * @param contentLength The length of the content in bytes. Range requests are only honored
+     *                      when this is positive.
+     * @param entityTag The entity tag of the content. May be null.
+     * @param lastModified The last modified time of the content, in milliseconds. Negative if unknown.
+     * @param source Writes the whole content.
+     * @throws Exception When the source fails or the client can't be written to.
+     */
+    public static void send(HttpServletRequest request,
+                            HttpServletResponse response,
+                            long contentLength,
+                            String entityTag,
+                            long lastModified,
+                            Source source) throws Exception {
+
+        if (contentLength > 0)
+            response.setHeader(ACCEPT_RANGES, BYTES_UNIT);
+        if (entityTag != null)
+            response.setHeader(ConditionalRequest.ETAG, entityTag);
+        if (lastModified >= 0)
+            response.setHeader(ConditionalRequest.LAST_MODIFIED, HttpDate.getHttpDateString(new Date(lastModified)));
+
+        if (ConditionalRequest.isNotModified(request, entityTag, lastModified)) {
+            ConditionalRequest.sendNotModified(response, entityTag, lastModified);
+            return;
+        }
+
+        List<Range> ranges = null;
+        if (contentLength > 0 && isIfRangeCurrent(request, entityTag, lastModified))
+            ranges = parse(request.getHeader(RANGE), contentLength);
+
+        if (ranges == null) {
+            if (contentLength > 0)
+                response.setHeader("Content-Length", Long.toString(contentLength));
+            ServletOutputStream sos = response.getOutputStream();
+            source.writeTo(sos);
+            sos.flush();
+            return;
+        }
+
+        if (ranges.isEmpty()) {
+            _log.debug("send() - Range \"{}\" can't be satisfied.", request.getHeader(RANGE));
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(CONTENT_RANGE, BYTES_UNIT + " */" + contentLength);
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        if (ranges.size() == 1)
+            sendSingleRange(response, ranges.get(0), contentLength, source);
+        else
+            sendMultipleRanges(response, ranges, contentLength, entityTag, source);
+    }
+
+
+    private static void sendSingleRange(HttpServletResponse response,
+                                        Range range,
+                                        long contentLength,
+                                        Source source) throws Exception {
+
+        _log.debug("sendSingleRange() - Sending bytes {}", range);
+        response.setHeader(CONTENT_RANGE, range.getContentRange(contentLength));
+        response.setHeader("Content-Length", Long.toString(range.getLength()));
+
+        ServletOutputStream sos = response.getOutputStream();
+        RangeOutputStream ros = new RangeOutputStream(sos, range.getFirst(), range.getLast());
+        try {
+            source.writeTo(ros);
+        } catch (Exception e) {
+            // The source is stopped by a write past the end of the range, and may report that
+            // wrapped in an exception of its own.
+            if (!ros.isComplete())
+                throw e;
+            _log.debug("sendSingleRange() - Stopped the source after the range. {}", e.getMessage());
+        }
+        if (ros.getWritten() < range.getLength())
+            _log.warn("sendSingleRange() - The source ended after {} of the {} bytes in the range.",
+                    ros.getWritten(), range.getLength());
+        sos.flush();
+    }
+
+
+    private static void sendMultipleRanges(HttpServletResponse response,
+                                           List<Range> ranges,
+                                           long contentLength,
+                                           String entityTag,
+                                           Source source) throws Exception {
+
+        String contentType = response.getContentType();
+        MimeBoundary mb = new MimeBoundary();
+        response.setContentType("multipart/byteranges; boundary=" + mb.getBoundary());
+
+        // A weak entity tag doesn't promise identical bytes, so its content isn't shared.
+        String key = entityTag != null && !entityTag.startsWith("W/") ? entityTag : null;
+        RangeSpool spool = RangeSpool.acquire(key, contentLength, source);
+        try {
+            _log.debug("sendMultipleRanges() - Sending {} ranges from {}", ranges.size(), spool.getFile());
+
+            ServletOutputStream sos = response.getOutputStream();
+            WritableByteChannel out = Channels.newChannel(sos);
+            RandomAccessFile raf = new RandomAccessFile(spool.getFile(), "r");
+            try {
+                FileChannel in = raf.getChannel();
+                for (Range range : ranges) {
+                    StringBuilder partHeader = new StringBuilder();
+                    partHeader.append(CRLF).append(mb.getEncapsulationBoundary()).append(CRLF);
+                    if (contentType != null)
+                        partHeader.append("Content-Type: ").append(contentType).append(CRLF);
+                    partHeader.append(CONTENT_RANGE).append(": ").append(range.getContentRange(contentLength)).append(CRLF);
+                    partHeader.append(CRLF);
+                    sos.write(partHeader.toString().getBytes(StandardCharsets.US_ASCII));
+
+                    long position = range.getFirst();
+                    long end = Math.min(range.getLast() + 1, in.size());
+                    while (position < end) {
+                        long n = in.transferTo(position, end - position, out);
+                        if (n <= 0)
+                            break;
+                        position += n;
+                    }
+                }
+                sos.write((CRLF + mb.getEncapsulationBoundary() + "--" + CRLF).getBytes(StandardCharsets.US_ASCII));
+            } finally {
+                raf.close();
+            }
+            sos.flush();
+        } finally {
+            RangeSpool.release(spool);
+        }
+    }
+
+
+    /**
+     * Passes on only the bytes of the stream that fall within an inclusive range of positions,
+     * and discards the rest. A write that starts after the end of the range fails with a
+     * RangeCompleteException, so that the writer stops sending content nobody will read.
+     */
+    public static class RangeOutputStream extends FilterOutputStream {
+        private final long _first;
+        private final long _last;
+        private long _position;
+        private long _written;
+
+        public RangeOutputStream(OutputStream out, long first, long last) {
+            super(out);
+            _first = first;
+            _last = last;
+            _position = 0;
+            _written = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checkComplete();
+            if (_position >= _first && _position <= _last) {
+                out.write(b);
+                _written++;
+            }
+            _position++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            checkComplete();
+            long start = Math.max(_position, _first);
+            long end = Math.min(_position + len, _last + 1);
+            if (start < end) {
+                int n = (int) (end - start);
+                out.write(b, off + (int) (start - _position), n);
+                _written += n;
+            }
+            _position += len;
+        }
+
+        private void checkComplete() throws RangeCompleteException {
+            if (isComplete())
+                throw new RangeCompleteException(_last);
+        }
+
+        /**
+         * @return True once every byte of the range has gone by.
+         */
+        public boolean isComplete() {
+            return _position > _last;
+        }
+
+        /**
+         * @return The number of bytes passed on.
+         */
+        public long getWritten() {
+            return _written;
+        }
+    }
+
+
+    /**
+     * Thrown by RangeOutputStream when it is written to after the end of its range.
+     */
+    public static class RangeCompleteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RangeCompleteException(long last) {
+            super("The range ending at byte " + last + " is complete.");
+        }
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Checks Range header parsing, If-Range evaluation, and the 200, 206, multipart and 416
+ * responses built by ByteRanges.
+ */
+public class ByteRangesTest {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyz";
+
+    /**
+     * Writes CONTENT in several pieces, to cross the range boundaries, and counts the calls
+     * and the bytes accepted.
+     */
+    private static class Source implements ByteRanges.Source {
+        int calls = 0;
+        int written = 0;
+
+        @Override
+        public void writeTo(OutputStream os) throws Exception {
+            calls++;
+            byte[] bytes = CONTENT.getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < bytes.length; i += 5) {
+                int n = Math.min(5, bytes.length - i);
+                os.write(bytes, i, n);
+                written += n;
+            }
+        }
+    }
+
+    private static ServletFixtures.RecordingResponse send(HttpServletRequest request) throws Exception {
+        return send(request, "\"tag\"", new Source());
+    }
+
+    private static ServletFixtures.RecordingResponse send(HttpServletRequest request, String entityTag, Source source) throws Exception {
+        ServletFixtures.RecordingResponse response = new ServletFixtures.RecordingResponse("text/plain");
+        ByteRanges.send(request, response.getResponse(), CONTENT.length(), entityTag, 1460721600000L, source);
+        return response;
+    }
+
+    private static List<ByteRanges.Range> ranges(long... firstLast) {
+        ByteRanges.Range[] ranges = new ByteRanges.Range[firstLast.length / 2];
+        for (int i = 0; i < ranges.length; i++)
+            ranges[i] = new ByteRanges.Range(firstLast[2 * i], firstLast[2 * i + 1]);
+        return Arrays.asList(ranges);
+    }
+
+    @Test
+    public void testParse() {
+        Assert.assertEquals(ranges(0, 9), ByteRanges.parse("bytes=0-9", 100));
+        Assert.assertEquals(ranges(90, 99), ByteRanges.parse("bytes=90-", 100));
+        Assert.assertEquals(ranges(90, 99), ByteRanges.parse("bytes=-10", 100));
+        Assert.assertEquals(ranges(0, 99), ByteRanges.parse("bytes=-1000", 100));
+        Assert.assertEquals(ranges(50, 99), ByteRanges.parse("bytes=50-1000", 100));
+        Assert.assertEquals(ranges(0, 1, 5, 9), ByteRanges.parse("bytes= 5-9, 0-1", 100));
+        // Overlapping and adjacent ranges are coalesced.
+        Assert.assertEquals(ranges(0, 19), ByteRanges.parse("bytes=0-9,5-14,15-19", 100));
+        // Unsatisfiable ranges are dropped.
+        Assert.assertEquals(ranges(0, 9), ByteRanges.parse("bytes=0-9,200-300", 100));
+        Assert.assertTrue(ByteRanges.parse("bytes=100-", 100).isEmpty());
+        Assert.assertTrue(ByteRanges.parse("bytes=-0", 100).isEmpty());
+
+        Assert.assertNull(ByteRanges.parse(null, 100));
+        Assert.assertNull(ByteRanges.parse("items=0-9", 100));
+        Assert.assertNull(ByteRanges.parse("bytes=9-0", 100));
+        Assert.assertNull(ByteRanges.parse("bytes=a-b", 100));
+        Assert.assertNull(ByteRanges.parse("bytes=5", 100));
+        Assert.assertNull(ByteRanges.parse("bytes=", 100));
+        Assert.assertNull(ByteRanges.parse("bytes=--5", 100));
+
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++)
+            many.append(',').append(2 * i).append('-').append(2 * i);
+        Assert.assertNull(ByteRanges.parse(many.toString(), 1000));
+    }
+
+    @Test
+    public void testIfRange() {
+        long lastModified = 1460721600000L;
+        String date = HttpDate.getHttpDateString(new Date(lastModified));
+        String earlier = HttpDate.getHttpDateString(new Date(lastModified - 60000));
+
+        Assert.assertTrue(ByteRanges.isIfRangeCurrent(ServletFixtures.request(), "\"a\"", lastModified));
+        Assert.assertTrue(ByteRanges.isIfRangeCurrent(ServletFixtures.request("If-Range", "\"a\""), "\"a\"", lastModified));
+        Assert.assertFalse(ByteRanges.isIfRangeCurrent(ServletFixtures.request("If-Range", "\"b\""), "\"a\"", lastModified));
+        Assert.assertFalse(ByteRanges.isIfRangeCurrent(ServletFixtures.request("If-Range", "W/\"a\""), "\"a\"", lastModified));
+        Assert.assertTrue(ByteRanges.isIfRangeCurrent(ServletFixtures.request("If-Range", date), "\"a\"", lastModified + 500));
+        Assert.assertFalse(ByteRanges.isIfRangeCurrent(ServletFixtures.request("If-Range", earlier), "\"a\"", lastModified));
+        Assert.assertFalse(ByteRanges.isIfRangeCurrent(ServletFixtures.request("If-Range", date), "\"a\"", -1));
+    }
+
+    @Test
+    public void testRangeOutputStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteRanges.RangeOutputStream ros = new ByteRanges.RangeOutputStream(out, 3, 7);
+        ros.write("01".getBytes(StandardCharsets.US_ASCII));
+        ros.write('2');
+        ros.write('3');
+        ros.write("456789".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertTrue(ros.isComplete());
+        try {
+            ros.write("abc".getBytes(StandardCharsets.US_ASCII));
+            Assert.fail("A write after the range should fail.");
+        } catch (ByteRanges.RangeCompleteException e) {
+            // Expected
+        }
+        Assert.assertEquals("34567", out.toString("US-ASCII"));
+        Assert.assertEquals(5, ros.getWritten());
+    }
+
+    @Test
+    public void testFullResponse() throws Exception {
+        ServletFixtures.RecordingResponse response = send(ServletFixtures.request());
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        Assert.assertEquals(CONTENT, response.getBodyString());
+        Assert.assertEquals("bytes", response.getHeader("Accept-Ranges"));
+        Assert.assertEquals("\"tag\"", response.getHeader("ETag"));
+        Assert.assertEquals("36", response.getHeader("Content-Length"));
+
+        // A stale If-Range gets the whole content.
+        response = send(ServletFixtures.request("Range", "bytes=0-3", "If-Range", "\"old\""));
+        Assert.assertEquals(HttpServletResponse.SC_OK, response.getStatus());
+        Assert.assertEquals(CONTENT, response.getBodyString());
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        ServletFixtures.RecordingResponse response = send(ServletFixtures.request("Range", "bytes=4-12", "If-Range", "\"tag\""));
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        Assert.assertEquals("bytes 4-12/36", response.getHeader("Content-Range"));
+        Assert.assertEquals("9", response.getHeader("Content-Length"));
+        Assert.assertEquals("456789abc", response.getBodyString());
+        Assert.assertEquals("text/plain", response.getContentType());
+    }
+
+    @Test
+    public void testSingleRangeStopsSource() throws Exception {
+        Source source = new Source();
+        ServletFixtures.RecordingResponse response = send(ServletFixtures.request("Range", "bytes=0-7"), "\"tag\"", source);
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        Assert.assertEquals("01234567", response.getBodyString());
+        // The write that follows the range is refused.
+        Assert.assertEquals(10, source.written);
+    }
+
+    @Test
+    public void testSpoolReused() throws Exception {
+        Source source = new Source();
+        ServletFixtures.RecordingResponse first = send(ServletFixtures.request("Range", "bytes=0-1,4-5"), "\"spooled\"", source);
+        ServletFixtures.RecordingResponse second = send(ServletFixtures.request("Range", "bytes=2-3,6-7"), "\"spooled\"", source);
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, first.getStatus());
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, second.getStatus());
+        Assert.assertTrue(second.getBodyString().contains("\r\n\r\n23\r\n"));
+        Assert.assertEquals(1, source.calls);
+
+        // Content without a strong entity tag is spooled for each request.
+        send(ServletFixtures.request("Range", "bytes=0-1,4-5"), "W/\"spooled\"", source);
+        send(ServletFixtures.request("Range", "bytes=0-1,4-5"), "W/\"spooled\"", source);
+        Assert.assertEquals(3, source.calls);
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        ServletFixtures.RecordingResponse response = send(ServletFixtures.request("Range", "bytes=-3,0-1"));
+        Assert.assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        Assert.assertTrue(response.getContentType().startsWith("multipart/byteranges; boundary="));
+
+        String boundary = "--" + response.getContentType().substring(response.getContentType().indexOf('=') + 1);
+        String expected = "\r\n" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-1/36\r\n"
+                + "\r\n"
+                + "01"
+                + "\r\n" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 33-35/36\r\n"
+                + "\r\n"
+                + "xyz"
+                + "\r\n" + boundary + "--\r\n";
+        Assert.assertEquals(expected, response.getBodyString());
+    }
+
+    @Test
+    public void testUnsatisfiable() throws Exception {
+        ServletFixtures.RecordingResponse response = send(ServletFixtures.request("Range", "bytes=100-"));
+        Assert.assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        Assert.assertEquals("bytes */36", response.getHeader("Content-Range"));
+        Assert.assertEquals("", response.getBodyString());
+    }
+
+    @Test
+    public void testNotModified() throws Exception {
+        ServletFixtures.RecordingResponse response = send(ServletFixtures.request("If-None-Match", "\"tag\"", "Range", "bytes=0-3"));
+        Assert.assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        Assert.assertEquals("", response.getBodyString());
+    }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A response that compresses its body as it is written.
+ *
+ * The first minimumSize bytes are held back. If the response grows past that, and its content
+ * type is compressible, the Content-Encoding header is set and the held bytes, and everything
+ * after them, go through a gzip or deflate stream on their way to the client. Otherwise the
+ * held bytes are written as they are, along with any Content-Length the responder set, and the
+ * rest of the response passes straight through. Flushes that arrive after the decision flush
+ * the compressor, so the client sees data as soon as the BES sends it.
+ *
+ * A compressed body is a different representation from the identity body, so a strong ETag
+ * the responder set is sent weakened (W/) when the body is compressed (RFC 7232 section 2.3.3).
+ * If-None-Match uses the weak comparison, so the client's copy still revalidates.
+ *
+ * Responders write to this as they would to any response. The dispatcher that wrapped it calls
+ * finish() when the responder returns, or abort() when it throws.
+ *
+ * @see ResponseCompression
+ */
+public class CompressingResponse extends HttpServletResponseWrapper {
+
+    private static final Logger log = LoggerFactory.getLogger(CompressingResponse.class);
+
+    private static final ThreadMXBean THREAD_MX = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREAD_MX.isCurrentThreadCpuTimeSupported();
+
+    private final String _encoding;
+    private final int _level;
+    private final int _minimumSize;
+
+    private String _contentLength;
+    private CompressingStream _stream;
+    private PrintWriter _writer;
+
+
+    CompressingResponse(HttpServletResponse response, String encoding, int level, int minimumSize) {
+        super(response);
+        _encoding = encoding;
+        _level = level;
+        _minimumSize = minimumSize;
+        _contentLength = null;
+        _stream = null;
+        _writer = null;
+    }
+
+
+    /**
+     * @return The content coding the client accepts, or null if the response won't be compressed.
+     */
+    public String getEncoding() {
+        return _encoding;
+    }
+
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (_stream == null)
+            _stream = new CompressingStream();
+        return _stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (_writer == null) {
+            String charset = getCharacterEncoding();
+            _writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset == null ? "ISO-8859-1" : charset));
+        }
+        return _writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (_writer != null)
+            _writer.flush();
+        if (_stream != null)
+            _stream.flush();
+        // Committing the headers now would make it too late to set Content-Encoding.
+        if (_stream == null || _stream.isDecided())
+            super.flushBuffer();
+    }
+
+    @Override
+    public void resetBuffer() {
+        if (_stream != null)
+            _stream.discard();
+        super.resetBuffer();
+    }
+
+    @Override
+    public void reset() {
+        if (_stream != null)
+            _stream.discard();
+        _contentLength = null;
+        super.reset();
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        setContentLengthHeader(Integer.toString(len));
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (name.equalsIgnoreCase("Content-Length"))
+            setContentLengthHeader(value);
+        else if (name.equalsIgnoreCase(ConditionalRequest.ETAG) && _stream != null && _stream.isCompressing())
+            super.setHeader(name, weakEntityTag(value));
+        else
+            super.setHeader(name, value);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (name.equalsIgnoreCase(ConditionalRequest.ETAG) && _stream != null && _stream.isCompressing())
+            super.addHeader(name, weakEntityTag(value));
+        else
+            super.addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (name.equalsIgnoreCase("Content-Length"))
+            setContentLengthHeader(Integer.toString(value));
+        else
+            super.setIntHeader(name, value);
+    }
+
+    /**
+     * The length of the uncompressed body is only sent if the body isn't compressed.
+     */
+    private void setContentLengthHeader(String value) {
+        if (_stream != null && _stream.isDecided()) {
+            if (!_stream.isCompressing())
+                super.setHeader("Content-Length", value);
+        } else {
+            _contentLength = value;
+        }
+    }
+
+
+    /**
+     * @return The entity tag with the W/ prefix. A weak tag is returned as it is.
+     */
+    static String weakEntityTag(String entityTag) {
+        if (entityTag == null || entityTag.startsWith("W/"))
+            return entityTag;
+        return "W/" + entityTag;
+    }
+
+
+    /**
+     * @return The number of bytes sent so far to the response beneath this one: the compressed
+     * bytes if the body is compressed.
+     */
+    public long getBytesSent() {
+        if (_stream == null)
+            return 0;
+        return _stream.isCompressing() ? _stream._counter.count : _stream._bytesSent;
+    }
+
+
+    /**
+     * Completes the response: sends anything still held back, and ends the compressed stream.
+     * @throws IOException When the client can't be written to.
+     */
+    public void finish() throws IOException {
+        if (_writer != null)
+            _writer.flush();
+        if (_stream != null)
+            _stream.finish();
+    }
+
+    /**
+     * Abandons the response after a failure. Anything still held back is dropped, so that an
+     * error response can be sent in its place. A compressed stream that is already under way
+     * is ended, so that what the client did receive can be decoded.
+     */
+    public void abort() {
+        if (_stream == null)
+            return;
+        if (!_stream.isDecided()) {
+            _stream.discard();
+            return;
+        }
+        try {
+            _stream.finish();
+        } catch (IOException e) {
+            log.debug("abort() - Unable to end the response stream: {}", e.getMessage());
+        }
+    }
+
+
+    /**
+     * Counts the bytes that pass through, and doesn't close the stream beneath it.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+
+    private class CompressingStream extends ServletOutputStream {
+
+        private ByteArrayOutputStream _held;
+        private OutputStream _out;
+        private DeflaterOutputStream _compressor;
+        private CountingOutputStream _counter;
+        private long _bytesIn;
+        private long _bytesSent;
+        private long _cpuNanos;
+        private boolean _finished;
+
+        CompressingStream() {
+            _held = new ByteArrayOutputStream(Math.min(_minimumSize + 1, 8192));
+            _out = null;
+            _compressor = null;
+            _counter = null;
+            _bytesIn = 0;
+            _bytesSent = 0;
+            _cpuNanos = 0;
+            _finished = false;
+        }
+
+        boolean isDecided() {
+            return _out != null;
+        }
+
+        boolean isCompressing() {
+            return _compressor != null;
+        }
+
+        void discard() {
+            if (_held != null)
+                _held.reset();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (_out == null) {
+                _held.write(b, off, len);
+                if (_held.size() > _minimumSize)
+                    decide(true);
+                return;
+            }
+            send(b, off, len);
+        }
+
+        private void send(byte[] b, int off, int len) throws IOException {
+            if (_compressor == null) {
+                _out.write(b, off, len);
+                _bytesSent += len;
+                return;
+            }
+            long start = cpuTime();
+            _compressor.write(b, off, len);
+            _cpuNanos += cpuTime() - start;
+            _bytesIn += len;
+        }
+
+        private void decide(boolean large) throws IOException {
+            String contentType = getContentType();
+            boolean compressible = ResponseCompression.isCompressible(contentType);
+            if (compressible)
+                addHeader("Vary", ResponseCompression.ACCEPT_ENCODING);
+
+            ServletOutputStream sos = CompressingResponse.super.getOutputStream();
+            if (large && compressible && _encoding != null &&
+                    !containsHeader(ResponseCompression.CONTENT_ENCODING) && !isCommitted()) {
+
+                CompressingResponse.super.setHeader(ResponseCompression.CONTENT_ENCODING, _encoding);
+                String entityTag = getHeader(ConditionalRequest.ETAG);
+                if (entityTag != null)
+                    CompressingResponse.super.setHeader(ConditionalRequest.ETAG, weakEntityTag(entityTag));
+                _counter = new CountingOutputStream(sos);
+                final int level = _level;
+                long start = cpuTime();
+                if (_encoding.equals(ResponseCompression.GZIP)) {
+                    _compressor = new GZIPOutputStream(_counter, 8192, true) {{
+                        def.setLevel(level);
+                    }};
+                } else {
+                    _compressor = new DeflaterOutputStream(_counter, true) {{
+                        def.setLevel(level);
+                    }};
+                }
+                _cpuNanos += cpuTime() - start;
+                _out = _compressor;
+            } else {
+                if (_contentLength != null)
+                    CompressingResponse.super.setHeader("Content-Length", _contentLength);
+                _out = sos;
+            }
+
+            ByteArrayOutputStream held = _held;
+            _held = null;
+            send(held.toByteArray(), 0, held.size());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            // Until the decision is made there's nothing to flush. Anything held back is at most
+            // minimumSize bytes.
+            if (_out == null)
+                return;
+            long start = cpuTime();
+            _out.flush();
+            if (_compressor != null)
+                _cpuNanos += cpuTime() - start;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+
+        void finish() throws IOException {
+            if (_finished)
+                return;
+            _finished = true;
+
+            if (_out == null)
+                decide(false);
+
+            if (_compressor == null) {
+                _out.flush();
+                return;
+            }
+
+            long start = cpuTime();
+            _compressor.close();
+            _cpuNanos += cpuTime() - start;
+
+            ResponseCompression.compressed(_bytesIn, _counter.count, _cpuNanos);
+            if (log.isInfoEnabled()) {
+                log.info("finish() - {} compressed {} bytes to {} bytes (ratio {}) using {} ms of CPU time.",
+                        new Object[]{_encoding, _bytesIn, _counter.count,
+                                _counter.count == 0 ? 0 : Math.round(10.0 * _bytesIn / _counter.count) / 10.0,
+                                _cpuNanos / 1000000.0});
+            }
+        }
+    }
+
+
+    private static long cpuTime() {
+        return CPU_TIME ? THREAD_MX.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.jdom.Element;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Checks Accept-Encoding negotiation, the media type policy, and the bodies and headers that
+ * CompressingResponse produces.
+ */
+public class CompressingResponseTest {
+
+    private static byte[] text(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size)
+            sb.append("Float32 lat[lat = 180];\n");
+        return sb.substring(0, size).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] read(InputStream is) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = is.read(buf)) > 0)
+            baos.write(buf, 0, n);
+        return baos.toByteArray();
+    }
+
+    private static void write(HttpServletResponse response, byte[] content) throws Exception {
+        OutputStream os = response.getOutputStream();
+        for (int i = 0; i < content.length; i += 700) {
+            os.write(content, i, Math.min(700, content.length - i));
+            os.flush();
+        }
+    }
+
+    @After
+    public void restoreDefaults() throws Exception {
+        ResponseCompression.init(null);
+    }
+
+    @Test
+    public void testSelectEncoding() {
+        Assert.assertNull(ResponseCompression.selectEncoding(null));
+        Assert.assertNull(ResponseCompression.selectEncoding("identity"));
+        Assert.assertEquals("gzip", ResponseCompression.selectEncoding("gzip, deflate"));
+        Assert.assertEquals("gzip", ResponseCompression.selectEncoding("deflate, gzip"));
+        Assert.assertEquals("deflate", ResponseCompression.selectEncoding("deflate, gzip;q=0.5"));
+        Assert.assertEquals("deflate", ResponseCompression.selectEncoding("gzip;q=0, deflate"));
+        Assert.assertEquals("gzip", ResponseCompression.selectEncoding("*"));
+        Assert.assertEquals("deflate", ResponseCompression.selectEncoding("gzip;q=0, *"));
+        Assert.assertNull(ResponseCompression.selectEncoding("gzip;q=0, deflate;q=0"));
+        Assert.assertEquals("gzip", ResponseCompression.selectEncoding("x-gzip"));
+    }
+
+    @Test
+    public void testCompressible() throws Exception {
+        Assert.assertTrue(ResponseCompression.isCompressible("text/plain"));
+        Assert.assertTrue(ResponseCompression.isCompressible("text/html; charset=UTF-8"));
+        Assert.assertTrue(ResponseCompression.isCompressible("application/vnd.opendap.dap4.dataset-metadata+xml"));
+        Assert.assertTrue(ResponseCompression.isCompressible("application/json"));
+        Assert.assertFalse(ResponseCompression.isCompressible("application/octet-stream"));
+        Assert.assertFalse(ResponseCompression.isCompressible("application/x-netcdf;ver=4"));
+        Assert.assertFalse(ResponseCompression.isCompressible("image/tiff;application=geotiff"));
+        Assert.assertFalse(ResponseCompression.isCompressible(null));
+
+        Element config = new Element("ResponseCompression");
+        config.addContent(new Element("Compress").setText("application/octet-stream"));
+        config.addContent(new Element("NeverCompress").setText("text/csv"));
+        ResponseCompression.init(config);
+        Assert.assertTrue(ResponseCompression.isCompressible("application/octet-stream"));
+        Assert.assertFalse(ResponseCompression.isCompressible("text/csv"));
+        Assert.assertTrue(ResponseCompression.isCompressible("text/plain"));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        byte[] content = text(100000);
+        ServletFixtures.RecordingResponse r = new ServletFixtures.RecordingResponse("text/plain");
+        CompressingResponse cr = ResponseCompression.wrap(ServletFixtures.request("Accept-Encoding", "gzip, deflate"), r.getResponse());
+        cr.setContentLength(content.length);
+        cr.setHeader("ETag", "\"0a1b2c\"");
+        write(cr, content);
+        cr.finish();
+
+        Assert.assertEquals("gzip", r.getHeader("Content-Encoding"));
+        Assert.assertEquals("W/\"0a1b2c\"", r.getHeader("ETag"));
+        Assert.assertEquals("Accept-Encoding", r.getHeader("Vary"));
+        Assert.assertNull(r.getHeader("Content-Length"));
+        Assert.assertTrue(r.getBody().length < content.length / 10);
+        Assert.assertEquals(r.getBody().length, cr.getBytesSent());
+        Assert.assertArrayEquals(content, read(new GZIPInputStream(new ByteArrayInputStream(r.getBody()))));
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        byte[] content = text(5000);
+        ServletFixtures.RecordingResponse r = new ServletFixtures.RecordingResponse("application/vnd.opendap.dap4.dataset-metadata+xml");
+        CompressingResponse cr = ResponseCompression.wrap(ServletFixtures.request("Accept-Encoding", "deflate"), r.getResponse());
+        write(cr, content);
+        cr.setHeader("ETag", "\"0a1b2c\"");
+        cr.finish();
+
+        Assert.assertEquals("deflate", r.getHeader("Content-Encoding"));
+        Assert.assertEquals("W/\"0a1b2c\"", r.getHeader("ETag"));
+        Assert.assertArrayEquals(content, read(new InflaterInputStream(new ByteArrayInputStream(r.getBody()))));
+    }
+
+    @Test
+    public void testWriter() throws Exception {
+        String content = new String(text(5000), StandardCharsets.US_ASCII);
+        ServletFixtures.RecordingResponse r = new ServletFixtures.RecordingResponse("text/html");
+        CompressingResponse cr = ResponseCompression.wrap(ServletFixtures.request("Accept-Encoding", "gzip"), r.getResponse());
+        cr.getWriter().print(content);
+        cr.finish();
+
+        Assert.assertEquals("gzip", r.getHeader("Content-Encoding"));
+        Assert.assertEquals(content, new String(read(new GZIPInputStream(new ByteArrayInputStream(r.getBody()))),
+                StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSmallResponse() throws Exception {
+        byte[] content = text(1000);
+        ServletFixtures.RecordingResponse r = new ServletFixtures.RecordingResponse("text/plain");
+        CompressingResponse cr = ResponseCompression.wrap(ServletFixtures.request("Accept-Encoding", "gzip"), r.getResponse());
+        cr.setContentLength(content.length);
+        cr.setHeader("ETag", "\"0a1b2c\"");
+        write(cr, content);
+        Assert.assertFalse(r.isCommitted());
+        cr.finish();
+
+        Assert.assertNull(r.getHeader("Content-Encoding"));
+        Assert.assertEquals("\"0a1b2c\"", r.getHeader("ETag"));
+        Assert.assertEquals("1000", r.getHeader("Content-Length"));
+        Assert.assertArrayEquals(content, r.getBody());
+        Assert.assertEquals(1000, cr.getBytesSent());
+    }
+
+    @Test
+    public void testNotCompressed() throws Exception {
+        byte[] content = text(5000);
+
+        // The client doesn't accept a compressed response.
+        ServletFixtures.RecordingResponse r = new ServletFixtures.RecordingResponse("text/plain");
+        CompressingResponse cr = ResponseCompression.wrap(ServletFixtures.request(), r.getResponse());
+        write(cr, content);
+        cr.finish();
+        Assert.assertNull(r.getHeader("Content-Encoding"));
+        Assert.assertEquals("Accept-Encoding", r.getHeader("Vary"));
+        Assert.assertArrayEquals(content, r.getBody());
+
+        // The media type isn't worth compressing.
+        r = new ServletFixtures.RecordingResponse("application/x-netcdf;ver=4");
+        cr = ResponseCompression.wrap(ServletFixtures.request("Accept-Encoding", "gzip"), r.getResponse());
+        write(cr, content);
+        cr.finish();
+        Assert.assertNull(r.getHeader("Content-Encoding"));
+        Assert.assertNull(r.getHeader("Vary"));
+        Assert.assertArrayEquals(content, r.getBody());
+
+        // Compression is turned off.
+        Element config = new Element("ResponseCompression");
+        config.setAttribute("enabled", "false");
+        ResponseCompression.init(config);
+        r = new ServletFixtures.RecordingResponse("text/plain");
+        cr = ResponseCompression.wrap(ServletFixtures.request("Accept-Encoding", "gzip"), r.getResponse());
+        write(cr, content);
+        cr.finish();
+        Assert.assertNull(r.getHeader("Content-Encoding"));
+        Assert.assertArrayEquals(content, r.getBody());
+    }
+
+    @Test
+    public void testAbort() throws Exception {
+        ServletFixtures.RecordingResponse r = new ServletFixtures.RecordingResponse("text/plain");
+        CompressingResponse cr = ResponseCompression.wrap(ServletFixtures.request("Accept-Encoding", "gzip"), r.getResponse());
+        cr.getOutputStream().write(text(100));
+        cr.abort();
+
+        // Nothing was sent, so an error response can still be.
+        Assert.assertFalse(r.isCommitted());
+        Assert.assertEquals(0, r.getBody().length);
+    }
+
+}
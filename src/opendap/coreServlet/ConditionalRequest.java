@@ -0,0 +1,185 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+
+/**
+ * Support for HTTP conditional GET requests (RFC 7232): building strong entity tags, evaluating
+ * the If-None-Match and If-Modified-Since request headers, and sending 304 Not Modified.
+ *
+ * If-None-Match takes precedence. If-Modified-Since is only evaluated when the request has no
+ * If-None-Match header, and is compared to the second since HTTP dates carry no milliseconds.
+ */
+public class ConditionalRequest {
+
+    public static final String ETAG = "ETag";
+    public static final String LAST_MODIFIED = "Last-Modified";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+
+    private ConditionalRequest() {
+    }
+
+
+    /**
+     * Builds a strong entity tag, a quoted SHA-1 hash, from the things that determine the content
+     * of a response. Equal parts give equal tags.
+     *
+     * @param parts The values the response depends on. Null values are allowed.
+     * @return The quoted entity tag.
+     */
+    public static String getStrongEntityTag(String... parts) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("The SHA1 MessageDigest is not available.", e);
+        }
+        for (String part : parts) {
+            md.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+        byte[] digest = md.digest();
+        StringBuilder sb = new StringBuilder(2 + 2 * digest.length);
+        sb.append('"');
+        for (byte b : digest) {
+            sb.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+
+    /**
+     * Puts a constraint expression in a canonical form so that equivalent spellings of a
+     * query produce the same entity tag: %XX escapes are decoded and white space outside of
+     * quoted strings is dropped.
+     *
+     * @param ce The constraint expression, as it appears in the query string. May be null.
+     * @return The normalized constraint expression, the empty string if there isn't one.
+     */
+    public static String normalizeConstraint(String ce) {
+        if (ce == null)
+            return "";
+
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(ce.length());
+        byte[] bytes = ce.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == '%' && i + 2 < bytes.length) {
+                int hi = Character.digit(bytes[i + 1], 16);
+                int lo = Character.digit(bytes[i + 2], 16);
+                if (hi >= 0 && lo >= 0) {
+                    decoded.write((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            decoded.write(bytes[i]);
+        }
+
+        String s = new String(decoded.toByteArray(), StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(s.length());
+        boolean quoted = false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' && (i == 0 || s.charAt(i - 1) != '\\'))
+                quoted = !quoted;
+            if (quoted || !Character.isWhitespace(c))
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Evaluates the request preconditions for a GET or HEAD request.
+     *
+     * @param request The client request.
+     * @param entityTag The current entity tag of the response. May be null.
+     * @param lastModified The last modified time of the response, in milliseconds. Negative if unknown.
+     * @return True if the client's copy is current, so that a 304 Not Modified is the right answer.
+     */
+    public static boolean isNotModified(HttpServletRequest request, String entityTag, long lastModified) {
+
+        String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null)
+            return entityTag != null && matches(ifNoneMatch, entityTag);
+
+        String ifModifiedSince = request.getHeader(IF_MODIFIED_SINCE);
+        if (ifModifiedSince != null && lastModified >= 0) {
+            Date since = HttpDate.getHttpDate(ifModifiedSince);
+            return since != null && lastModified / 1000 <= since.getTime() / 1000;
+        }
+        return false;
+    }
+
+
+    /**
+     * Compares an If-None-Match header value with an entity tag. If-None-Match uses the weak
+     * comparison, so a W/ prefix on either side is ignored.
+     */
+    static boolean matches(String ifNoneMatch, String entityTag) {
+        String tag = opaqueTag(entityTag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || opaqueTag(candidate).equals(tag))
+                return true;
+        }
+        return false;
+    }
+
+    private static String opaqueTag(String entityTag) {
+        return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+    }
+
+
+    /**
+     * Sends a 304 Not Modified response, with the validators, and no body.
+     *
+     * @param response The response to the client.
+     * @param entityTag The entity tag. May be null.
+     * @param lastModified The last modified time, in milliseconds. Negative if unknown.
+     */
+    public static void sendNotModified(HttpServletResponse response, String entityTag, long lastModified) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        if (entityTag != null)
+            response.setHeader(ETAG, entityTag);
+        if (lastModified >= 0)
+            response.setHeader(LAST_MODIFIED, HttpDate.getHttpDateString(new Date(lastModified)));
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Date;
+
+/**
+ * Checks the entity tags and precondition evaluation used to answer conditional GET requests.
+ */
+public class ConditionalRequestTest {
+
+    @Test
+    public void testEntityTags() {
+        String tag = ConditionalRequest.getStrongEntityTag("/data/fnoc1.nc", "1000", "u[0:1]", "DDS");
+        Assert.assertTrue(tag.matches("\"[0-9a-f]{40}\""));
+        Assert.assertEquals(tag, ConditionalRequest.getStrongEntityTag("/data/fnoc1.nc", "1000", "u[0:1]", "DDS"));
+        Assert.assertFalse(tag.equals(ConditionalRequest.getStrongEntityTag("/data/fnoc1.nc", "2000", "u[0:1]", "DDS")));
+        Assert.assertFalse(tag.equals(ConditionalRequest.getStrongEntityTag("/data/fnoc1.nc", "1000", "u[0:1]", "DAS")));
+        // Parts are delimited, so moving characters between them changes the tag.
+        Assert.assertFalse(ConditionalRequest.getStrongEntityTag("ab", "c").equals(ConditionalRequest.getStrongEntityTag("a", "bc")));
+    }
+
+    @Test
+    public void testNormalizeConstraint() {
+        Assert.assertEquals("", ConditionalRequest.normalizeConstraint(null));
+        Assert.assertEquals("u[0:1],v", ConditionalRequest.normalizeConstraint("u%5B0:1%5D, v"));
+        Assert.assertEquals(ConditionalRequest.normalizeConstraint("u[0:1]&name=\"a b\""),
+                ConditionalRequest.normalizeConstraint("u%5b0%3A1%5d%26name=%22a b%22"));
+        Assert.assertEquals("name=\"a b\"", ConditionalRequest.normalizeConstraint("name = \"a b\""));
+        Assert.assertEquals("100%", ConditionalRequest.normalizeConstraint("100%"));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        String tag = ConditionalRequest.getStrongEntityTag("x");
+        Assert.assertTrue(ConditionalRequest.isNotModified(ServletFixtures.request("If-None-Match", tag), tag, 0));
+        Assert.assertTrue(ConditionalRequest.isNotModified(ServletFixtures.request("If-None-Match", "\"other\", W/" + tag), tag, 0));
+        Assert.assertTrue(ConditionalRequest.isNotModified(ServletFixtures.request("If-None-Match", "*"), tag, 0));
+        Assert.assertFalse(ConditionalRequest.isNotModified(ServletFixtures.request("If-None-Match", "\"other\""), tag, 0));
+        Assert.assertFalse(ConditionalRequest.isNotModified(ServletFixtures.request("If-None-Match", tag), null, 0));
+        Assert.assertFalse(ConditionalRequest.isNotModified(ServletFixtures.request(), tag, 0));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        long lastModified = 1460721600000L; // 2016-04-15T12:00:00Z
+        String same = HttpDate.getHttpDateString(new Date(lastModified));
+        String before = HttpDate.getHttpDateString(new Date(lastModified - 60000));
+
+        Assert.assertTrue(ConditionalRequest.isNotModified(ServletFixtures.request("If-Modified-Since", same), null, lastModified + 999));
+        Assert.assertFalse(ConditionalRequest.isNotModified(ServletFixtures.request("If-Modified-Since", before), null, lastModified));
+        Assert.assertFalse(ConditionalRequest.isNotModified(ServletFixtures.request("If-Modified-Since", same), null, -1));
+        Assert.assertFalse(ConditionalRequest.isNotModified(ServletFixtures.request("If-Modified-Since", "garbage"), null, lastModified));
+
+        // If-None-Match wins over If-Modified-Since.
+        String tag = ConditionalRequest.getStrongEntityTag("x");
+        Assert.assertFalse(ConditionalRequest.isNotModified(
+                ServletFixtures.request("If-None-Match", "\"other\"", "If-Modified-Since", same), tag, lastModified));
+    }
+
+}
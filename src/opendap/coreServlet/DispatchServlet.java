@@ -161,6 +161,12 @@ public class DispatchServlet extends HttpServlet {
 
         log.info("init() - Timer is {}",Timer.isEnabled()?"ENABLED":"DISABLED");
 
+        try {
+            AsyncRequestExecutor.init(configDoc.getRootElement().getChild(AsyncRequestExecutor.CONFIG_ELEMENT));
+        } catch (Exception e) {
+            throw new ServletException("Unable to configure asynchronous dispatch: " + e.getMessage(), e);
+        }
+
 
 
         initBesManager();
@@ -439,9 +445,10 @@ public class DispatchServlet extends HttpServlet {
         String relativeUrl = ReqInfo.getLocalUrl(request);
 
         int request_status = HttpServletResponse.SC_OK;
+        boolean dispatchedAsync = false;
 
         try {
-            Procedure timedProcedure = Timer.start();
+            Procedure timedProcedure = Timer.start("DispatchServlet.doGet");
 
             RequestCache.openThreadCache();
 
@@ -478,7 +485,12 @@ public class DispatchServlet extends HttpServlet {
 
 
                 DispatchHandler dh = getDispatchHandler(request, httpGetDispatchHandlers);
-                if (dh != null) {
+                if (dh != null && AsyncRequestExecutor.handlesRequest(request, dh)) {
+                    log.debug("Request handed to the asynchronous request pool for: " + dh.getClass().getName());
+                    AsyncRequestExecutor.dispatch(this, request, response, dh, timedProcedure);
+                    dispatchedAsync = true;
+
+                } else if (dh != null) {
                     log.debug("Request being handled by: " + dh.getClass().getName());
                     dh.handleRequest(request, response);
 
@@ -488,7 +500,8 @@ public class DispatchServlet extends HttpServlet {
                 }
             }
             finally {
-                Timer.stop(timedProcedure);
+                if(!dispatchedAsync)
+                    Timer.stop(timedProcedure);
             }
 
 
@@ -511,12 +524,18 @@ public class DispatchServlet extends HttpServlet {
             }
         }
         finally {
-            LogUtil.logServerAccessEnd(request_status, "HyraxAccess");
-            RequestCache.closeThreadCache();
-            log.info("doGet(): Response completed.\n");
+            if(!dispatchedAsync) {
+                LogUtil.logServerAccessEnd(request_status, "HyraxAccess");
+                RequestCache.closeThreadCache();
+                log.info("doGet(): Response completed.\n");
+            }
         }
 
-        log.info("doGet() - Timing Report: \n{}", Timer.report());
+        if(dispatchedAsync)
+            return;
+
+        if(Timer.isEnabled())
+            log.info("doGet() - Timing Report: \n{}", Timer.report());
         Timer.reset();
     }
     //**************************************************************************
@@ -720,7 +739,7 @@ public class DispatchServlet extends HttpServlet {
 
         long lmt = -1;
 
-        Procedure timedProcedure = Timer.start();
+        Procedure timedProcedure = Timer.start("DispatchServlet.getLastModified");
         try {
 
             if (ReqInfo.isServiceOnlyRequest(req)) {
@@ -756,6 +775,8 @@ public class DispatchServlet extends HttpServlet {
 
         LogUtil.logServerShutdown("destroy()");
 
+        AsyncRequestExecutor.destroy();
+
         if(httpGetDispatchHandlers != null){
             for (DispatchHandler dh : httpGetDispatchHandlers) {
                 log.debug("Shutting down handler: " + dh.getClass().getName());
@@ -0,0 +1,200 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A local copy of some content, made so that ByteRanges can answer a multiple range request
+ * with random access to the content.
+ *
+ * Copies of content with a strong entity tag are kept, and shared by the requests that follow
+ * for the same content, since clients that ask for several ranges tend to come back for more.
+ * The entity tag identifies both the content and its version, so a changed file gets a new copy.
+ * Only one request makes a copy, any others that want it meanwhile wait for it. The least
+ * recently used copies are deleted once there are more than MAX_SPOOLS; a copy that a request
+ * is still reading is deleted when that request is done with it.
+ */
+class RangeSpool {
+
+    /**
+     * The number of copies kept for later requests.
+     */
+    static final int MAX_SPOOLS = 8;
+
+    private static final Logger _log = LoggerFactory.getLogger(RangeSpool.class);
+
+    // Guards the map and each spool's _users and _retired.
+    private static final LinkedHashMap<String, RangeSpool> _spools = new LinkedHashMap<String, RangeSpool>(16, 0.75f, true);
+
+    private final String _key;
+    private final CountDownLatch _ready;
+    private volatile File _file;
+    private volatile Exception _failure;
+    private int _users;
+    private boolean _retired;
+
+
+    private RangeSpool(String key) {
+        _key = key;
+        _ready = new CountDownLatch(1);
+        _file = null;
+        _failure = null;
+        _users = 0;
+        _retired = key == null;
+    }
+
+
+    /**
+     * Gets a complete copy of the content, making it if need be. Every spool acquired must be
+     * released.
+     *
+     * @param key The strong entity tag of the content. If it is null the copy is not kept.
+     * @param contentLength The expected length of the content.
+     * @param source Writes the content, if it needs to be copied.
+     * @return The copy.
+     * @throws Exception When the content can't be copied.
+     */
+    static RangeSpool acquire(String key, long contentLength, ByteRanges.Source source) throws Exception {
+        RangeSpool spool;
+        boolean copy = false;
+        synchronized (_spools) {
+            spool = key == null ? null : _spools.get(key);
+            if (spool == null) {
+                spool = new RangeSpool(key);
+                copy = true;
+                if (key != null) {
+                    _spools.put(key, spool);
+                    evict();
+                }
+            }
+            spool._users++;
+        }
+
+        try {
+            if (copy)
+                spool.copy(contentLength, source);
+            else
+                spool.await();
+        } catch (Exception e) {
+            release(spool);
+            throw e;
+        }
+        return spool;
+    }
+
+
+    /**
+     * Hands back a spool returned by acquire().
+     */
+    static void release(RangeSpool spool) {
+        synchronized (_spools) {
+            spool._users--;
+            if (spool._retired && spool._users == 0)
+                spool.delete();
+        }
+    }
+
+
+    /**
+     * @return The file holding the copy.
+     */
+    File getFile() {
+        return _file;
+    }
+
+
+    private void copy(long contentLength, ByteRanges.Source source) throws Exception {
+        try {
+            File file = File.createTempFile("olfs-range-", ".spool");
+            _file = file;
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+            try {
+                source.writeTo(os);
+            } finally {
+                os.close();
+            }
+            if (file.length() != contentLength) {
+                _log.warn("copy() - Spooled {} bytes, expected {}", file.length(), contentLength);
+                retire();
+            }
+            _log.debug("copy() - Spooled {} to {}", _key, file);
+        } catch (Exception e) {
+            _failure = e;
+            retire();
+            throw e;
+        } finally {
+            _ready.countDown();
+        }
+    }
+
+    private void await() throws Exception {
+        _ready.await();
+        Exception failure = _failure;
+        if (failure != null)
+            throw new IOException("The content could not be spooled: " + failure.getMessage(), failure);
+    }
+
+    // Stops the spool from being handed to later requests.
+    private void retire() {
+        synchronized (_spools) {
+            if (_key != null && _spools.get(_key) == this)
+                _spools.remove(_key);
+            _retired = true;
+        }
+    }
+
+    private void delete() {
+        File file = _file;
+        if (file != null && file.exists() && !file.delete())
+            _log.warn("delete() - Unable to delete spool file {}", file);
+    }
+
+    // Called holding _spools.
+    private static void evict() {
+        Iterator<Map.Entry<String, RangeSpool>> entries = _spools.entrySet().iterator();
+        while (_spools.size() > MAX_SPOOLS && entries.hasNext()) {
+            RangeSpool spool = entries.next().getValue();
+            entries.remove();
+            spool._retired = true;
+            if (spool._users == 0)
+                spool.delete();
+        }
+    }
+
+}
@@ -93,6 +93,30 @@ public class RequestCache {
     }
 
 
+    /**
+     * Removes the current thread's cache, so that it can be attached to the thread that
+     * finishes the request.
+     * @return The cache, to hand to attachThreadCache(). Null if the thread has no cache.
+     */
+    public static Object detachThreadCache(){
+        return cache.remove(Thread.currentThread());
+    }
+
+    /**
+     * Makes a cache removed by detachThreadCache() the current thread's cache.
+     * @param threadCache The value returned by detachThreadCache(). If null a new, empty, cache is opened.
+     */
+    @SuppressWarnings("unchecked")
+    public static void attachThreadCache(Object threadCache){
+        if(threadCache == null){
+            openThreadCache();
+            return;
+        }
+        cache.put(Thread.currentThread(), (HashMap<String, CachedObj>) threadCache);
+        log.debug("Attached request cache to thread: {}",Thread.currentThread());
+    }
+
+
     public static void put(String key, Object o){
 
 
@@ -0,0 +1,311 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.coreServlet;
+
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Decides which responses are sent with a gzip or deflate content coding, and keeps count of
+ * what the compression achieved.
+ *
+ * A response is compressed when the client accepts gzip or deflate, the response is larger than
+ * minimumSize, and its media type is compressible. Text, XML and JSON media types are
+ * compressible, as are the types listed in Compress elements, unless they appear in a
+ * NeverCompress element. A listed type without parameters also covers that type with any
+ * parameters, so image/tiff covers image/tiff;application=geotiff.
+ *
+ * The policy is configured from the BESManager section of olfs.xml:
+ * <pre>
+ *     &lt;ResponseCompression enabled="true" level="6" minimumSize="1024"&gt;
+ *         &lt;Compress&gt;application/octet-stream&lt;/Compress&gt;
+ *         &lt;NeverCompress&gt;application/x-netcdf;ver=4&lt;/NeverCompress&gt;
+ *     &lt;/ResponseCompression&gt;
+ * </pre>
+ * When the element has no NeverCompress children the netCDF-4, GeoTIFF and JPEG2000 media types
+ * are never compressed.
+ *
+ * @see CompressingResponse
+ */
+public class ResponseCompression {
+
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+
+    private static final List<String> DEFAULT_NEVER_COMPRESS =
+            Collections.unmodifiableList(Arrays.asList(
+                    "application/x-netcdf;ver=4",
+                    "image/tiff",
+                    "image/jp2"));
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseCompression.class);
+
+    private static volatile boolean _enabled = true;
+    private static volatile int _level = 6;
+    private static volatile int _minimumSize = 1024;
+    private static volatile List<String> _compress = Collections.emptyList();
+    private static volatile List<String> _neverCompress = DEFAULT_NEVER_COMPRESS;
+
+    private static final AtomicLong _compressedCount = new AtomicLong(0);
+    private static final AtomicLong _bytesIn = new AtomicLong(0);
+    private static final AtomicLong _bytesOut = new AtomicLong(0);
+    private static final AtomicLong _cpuNanos = new AtomicLong(0);
+
+
+    private ResponseCompression() {
+    }
+
+
+    /**
+     * Configures the policy. Settings missing from the element get their default values.
+     * @param config The ResponseCompression element. May be null, in which case the defaults are used.
+     * @throws Exception When an attribute value is not usable.
+     */
+    public static void init(Element config) throws Exception {
+        boolean enabled = true;
+        int level = 6;
+        int minimumSize = 1024;
+        List<String> compress = new ArrayList<String>();
+        List<String> neverCompress = new ArrayList<String>();
+
+        if (config != null) {
+            String s = config.getAttributeValue("enabled");
+            if (s != null)
+                enabled = Boolean.parseBoolean(s);
+
+            s = config.getAttributeValue("level");
+            if (s != null) {
+                level = Integer.parseInt(s);
+                if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)
+                    throw new Exception("The level attribute of the ResponseCompression element must be " +
+                            "an integer from 1 to 9. Found: \"" + s + "\"");
+            }
+
+            s = config.getAttributeValue("minimumSize");
+            if (s != null) {
+                minimumSize = Integer.parseInt(s);
+                if (minimumSize < 0)
+                    throw new Exception("The minimumSize attribute of the ResponseCompression element must " +
+                            "not be negative. Found: \"" + s + "\"");
+            }
+
+            for (Object o : config.getChildren("Compress"))
+                compress.add(normalize(((Element) o).getTextTrim()));
+            for (Object o : config.getChildren("NeverCompress"))
+                neverCompress.add(normalize(((Element) o).getTextTrim()));
+        }
+
+        _enabled = enabled;
+        _level = level;
+        _minimumSize = minimumSize;
+        _compress = Collections.unmodifiableList(compress);
+        _neverCompress = neverCompress.isEmpty() ? DEFAULT_NEVER_COMPRESS : Collections.unmodifiableList(neverCompress);
+
+        log.info("init() - Response compression enabled: {} level: {} minimumSize: {} compress: {} neverCompress: {}",
+                new Object[]{_enabled, _level, _minimumSize, _compress, _neverCompress});
+    }
+
+
+    public static boolean isEnabled() {
+        return _enabled;
+    }
+
+    public static int getLevel() {
+        return _level;
+    }
+
+    public static int getMinimumSize() {
+        return _minimumSize;
+    }
+
+
+    /**
+     * Wraps a response so that what is written to it is compressed when the policy allows.
+     *
+     * @param request The client request, whose Accept-Encoding header is used.
+     * @param response The response to the client.
+     * @return The wrapped response. Call finish() on it when the response is complete.
+     */
+    public static CompressingResponse wrap(HttpServletRequest request, HttpServletResponse response) {
+        String encoding = _enabled ? selectEncoding(request.getHeader(ACCEPT_ENCODING)) : null;
+        return new CompressingResponse(response, encoding, _level, _minimumSize);
+    }
+
+
+    /**
+     * Picks the content coding for a response from the client's Accept-Encoding header.
+     *
+     * @param acceptEncoding The Accept-Encoding header value. May be null.
+     * @return gzip or deflate, whichever the client prefers (gzip on a tie), or null if the
+     * client accepts neither.
+     */
+    public static String selectEncoding(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+
+        double gzip = -1;
+        double deflate = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals(GZIP) || name.equals("x-gzip"))
+                gzip = Math.max(gzip, q);
+            else if (name.equals(DEFLATE))
+                deflate = Math.max(deflate, q);
+            else if (name.equals("*"))
+                any = q;
+        }
+        if (gzip < 0)
+            gzip = any;
+        if (deflate < 0)
+            deflate = any;
+
+        if (gzip > 0 && gzip >= deflate)
+            return GZIP;
+        if (deflate > 0)
+            return DEFLATE;
+        return null;
+    }
+
+
+    /**
+     * @param contentType The response content type. May be null.
+     * @return True if responses of this type are worth compressing.
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null)
+            return false;
+
+        String type = normalize(contentType);
+        if (matchesAny(type, _neverCompress))
+            return false;
+        if (matchesAny(type, _compress))
+            return true;
+
+        String baseType = type.indexOf(';') < 0 ? type : type.substring(0, type.indexOf(';'));
+        return baseType.startsWith("text/") ||
+                baseType.contains("xml") ||
+                baseType.contains("json") ||
+                baseType.contains("javascript");
+    }
+
+    private static boolean matchesAny(String type, List<String> types) {
+        for (String t : types) {
+            if (type.equals(t) || type.startsWith(t + ";"))
+                return true;
+        }
+        return false;
+    }
+
+    private static String normalize(String contentType) {
+        StringBuilder sb = new StringBuilder(contentType.length());
+        for (int i = 0; i < contentType.length(); i++) {
+            char c = contentType.charAt(i);
+            if (!Character.isWhitespace(c))
+                sb.append(Character.toLowerCase(c));
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Records a compressed response.
+     */
+    static void compressed(long bytesIn, long bytesOut, long cpuNanos) {
+        _compressedCount.incrementAndGet();
+        _bytesIn.addAndGet(bytesIn);
+        _bytesOut.addAndGet(bytesOut);
+        _cpuNanos.addAndGet(cpuNanos);
+    }
+
+    /**
+     * @return The number of responses that were compressed.
+     */
+    public static long getCompressedCount() {
+        return _compressedCount.get();
+    }
+
+    /**
+     * @return The number of bytes the responders wrote to compressed responses.
+     */
+    public static long getBytesIn() {
+        return _bytesIn.get();
+    }
+
+    /**
+     * @return The number of bytes sent to clients in compressed responses.
+     */
+    public static long getBytesOut() {
+        return _bytesOut.get();
+    }
+
+    /**
+     * @return The CPU time, in nanoseconds, spent compressing.
+     */
+    public static long getCpuNanos() {
+        return _cpuNanos.get();
+    }
+
+    public static String getStatistics() {
+        long in = getBytesIn();
+        long out = getBytesOut();
+        return "[ResponseCompression enabled: " + _enabled +
+                " level: " + _level +
+                " compressed: " + getCompressedCount() +
+                " bytesIn: " + in +
+                " bytesOut: " + out +
+                " ratio: " + (out == 0 ? 0 : Math.round(10.0 * in / out) / 10.0) +
+                " cpuMs: " + getCpuNanos() / 1000000 +
+                "]";
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.coreServlet;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stand-in servlet requests and responses for the unit tests. A stand-in answers only the
+ * methods the code under test is expected to call, and throws UnsupportedOperationException
+ * for the rest, so that a test notices when the code starts to depend on something new.
+ */
+public class ServletFixtures {
+
+    private ServletFixtures() {
+    }
+
+
+    /**
+     * @return An instance of the interface whose calls all go to the handler.
+     */
+    public static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(ServletFixtures.class.getClassLoader(),
+                new Class<?>[]{type}, handler));
+    }
+
+
+    /**
+     * @param nameValuePairs Header names, each followed by its value.
+     * @return A request that has only the given headers.
+     */
+    public static HttpServletRequest request(String... nameValuePairs) {
+        final Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 0; i < nameValuePairs.length; i += 2)
+            headers.put(nameValuePairs[i], nameValuePairs[i + 1]);
+
+        return proxy(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getHeader"))
+                    return headers.get(args[0]);
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+
+    /**
+     * A response that records its status, headers and body. It is committed once anything is
+     * written to it, or it is flushed.
+     */
+    public static class RecordingResponse implements InvocationHandler {
+
+        private final HttpServletResponse _response;
+        private final Map<String, String> _headers;
+        private final ByteArrayOutputStream _body;
+        private int _status;
+        private String _contentType;
+        private boolean _committed;
+
+        public RecordingResponse() {
+            this(null);
+        }
+
+        public RecordingResponse(String contentType) {
+            _response = proxy(HttpServletResponse.class, this);
+            _headers = new HashMap<String, String>();
+            _body = new ByteArrayOutputStream();
+            _status = HttpServletResponse.SC_OK;
+            _contentType = contentType;
+            _committed = false;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("setStatus"))
+                _status = (Integer) args[0];
+            else if (name.equals("setHeader") || name.equals("addHeader"))
+                _headers.put((String) args[0], (String) args[1]);
+            else if (name.equals("containsHeader"))
+                return _headers.containsKey(args[0]);
+            else if (name.equals("getHeader"))
+                return _headers.get(args[0]);
+            else if (name.equals("setContentType"))
+                _contentType = (String) args[0];
+            else if (name.equals("getContentType"))
+                return _contentType;
+            else if (name.equals("getCharacterEncoding"))
+                return "UTF-8";
+            else if (name.equals("isCommitted"))
+                return _committed;
+            else if (name.equals("flushBuffer"))
+                _committed = true;
+            else if (name.equals("getOutputStream"))
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        _committed = true;
+                        _body.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        _committed = true;
+                        _body.write(b, off, len);
+                    }
+                };
+            else
+                throw new UnsupportedOperationException(name);
+            return null;
+        }
+
+        /**
+         * @return The response the code under test writes to.
+         */
+        public HttpServletResponse getResponse() {
+            return _response;
+        }
+
+        public int getStatus() {
+            return _status;
+        }
+
+        public String getContentType() {
+            return _contentType;
+        }
+
+        public String getHeader(String name) {
+            return _headers.get(name);
+        }
+
+        public boolean isCommitted() {
+            return _committed;
+        }
+
+        public byte[] getBody() {
+            return _body.toByteArray();
+        }
+
+        public String getBodyString() {
+            return new String(_body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+}
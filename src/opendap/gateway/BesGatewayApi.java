@@ -147,6 +147,16 @@ public class BesGatewayApi extends BesApi {
     }
 
 
+    /**
+     * The gateway's besDataSourceId is the remote URL hex encoded in the relative URL, so it is
+     * found with the suffix regex, as getBesDataSourceID(String, Pattern, boolean) does.
+     */
+    @Override
+    public String getBesDataSourceID(String relativeUrl, String besDataSourceId, Pattern suffixMatchPattern, boolean checkWithBes){
+        return getBesDataSourceID(relativeUrl, suffixMatchPattern, checkWithBes);
+    }
+
+
     @Override
     public void getBesCatalog(String dataSourceUrl, Document response) throws IOException {
         // Go get the HEAD for the catalog
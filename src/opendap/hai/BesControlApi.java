@@ -273,7 +273,8 @@ public class BesControlApi extends HttpResponder {
         cmd, prefix,
         Start, StopNice, StopNow,
         getConfig, module, setConfig, CONFIGURATION,
-        getLog, lines, getLoggerState, setLoggerState, logger, state, setLoggerStates, enable, disable, on, off
+        getLog, lines, getLoggerState, setLoggerState, logger, state, setLoggerStates, enable, disable, on, off,
+        getRouting
     }
 
 
@@ -426,6 +427,11 @@ public class BesControlApi extends HttpResponder {
                         break;
 
 
+                    case getRouting:
+                        sb.append(StringEscapeUtils.escapeXml(besGroup.getRoutingStatistics()));
+                        break;
+
+
                     default:
                         sb.append(" Unrecognized BES command: ").append(Scrub.simpleString(besCmd));
                         break;
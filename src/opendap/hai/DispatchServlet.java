@@ -78,6 +78,7 @@ public class DispatchServlet extends opendap.coreServlet.DispatchServlet {
         systemPath = ServletUtil.getSystemPath(this, "");
         responders.add(new OlfsControlApi(systemPath));
         responders.add(new BesControlApi(systemPath));
+        responders.add(new MetricsApi(systemPath));
         log.info("masterDispatchRegex=\"" + getDispatchRegex() + "\"");
         
         String devMode = getInitParameter("DeveloperMode");
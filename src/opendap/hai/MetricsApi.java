@@ -0,0 +1,470 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.hai;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import opendap.bes.BES;
+import opendap.bes.BESManager;
+import opendap.bes.BESResourceCache;
+import opendap.bes.BesClientPool;
+import opendap.bes.BesGroup;
+import opendap.bes.BesHealth;
+import opendap.bes.caching.BesCatalogCache;
+import opendap.bes.hashing.DapResponseCache;
+import opendap.bes.hashing.HashLogWriter;
+import opendap.coreServlet.AsyncRequestExecutor;
+import opendap.coreServlet.HttpResponder;
+import opendap.coreServlet.ResourceInfo;
+import opendap.coreServlet.ResponseCompression;
+import opendap.io.ResponseFlushPolicy;
+import opendap.logging.LatencyHistogram;
+import opendap.logging.ResponderMetrics;
+import opendap.logging.Timer;
+import opendap.threddsHandler.CatalogManager;
+import opendap.threddsHandler.CatalogWatcher;
+import opendap.xml.XsltCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports the server's operational metrics: request counts, latency percentiles,
+ * bytes sent and errors for each responder, the state of each BES client pool,
+ * and the effectiveness of the catalog and response caches.
+ *
+ * The metrics are sent as JSON, or in the Prometheus text exposition format
+ * when the query has format=prometheus or the client accepts text/plain (as
+ * the Prometheus scraper does). Both are built from the counters the
+ * components keep anyway, so a request costs a read of each counter and
+ * nothing is collected between requests.
+ */
+public class MetricsApi extends HttpResponder {
+
+    private Logger log;
+
+    private static String defaultRegex = ".*\\/metrics";
+
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+
+    public MetricsApi(String sysPath) {
+        super(sysPath, null, defaultRegex);
+        log = LoggerFactory.getLogger(getClass());
+    }
+
+    @Override
+    public ResourceInfo getResourceInfo(String resourceName) throws Exception {
+        return null;
+    }
+
+    @Override
+    public long getLastModified(HttpServletRequest request) throws Exception {
+        return -1;
+    }
+
+    @Override
+    public void respondToHttpGetRequest(HttpServletRequest request, HttpServletResponse response) throws Exception {
+
+        HashMap<String, String> kvp = Util.processQuery(request);
+        boolean prometheus = wantsPrometheus(kvp.get("format"), request.getHeader("Accept"));
+
+        List<Metric> metrics = collect();
+        log.debug("respondToHttpGetRequest() - Sending {} metrics as {}", metrics.size(), prometheus ? "Prometheus text" : "JSON");
+
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentType(prometheus ? PROMETHEUS_CONTENT_TYPE : JSON_CONTENT_TYPE);
+        PrintWriter pw = response.getWriter();
+        if (prometheus)
+            writePrometheus(metrics, pw);
+        else
+            writeJson(metrics, pw);
+        pw.flush();
+    }
+
+
+    /**
+     * @param format The value of the format parameter, if any.
+     * @param accept The Accept header, if any.
+     * @return True if the metrics should be sent in the Prometheus format.
+     */
+    static boolean wantsPrometheus(String format, String accept) {
+        if (format != null)
+            return format.equalsIgnoreCase("prometheus");
+        return accept != null &&
+                (accept.contains("text/plain") || accept.contains("application/openmetrics-text"));
+    }
+
+
+    /**
+     * One metric, in the Prometheus sense: a name, a type and some samples,
+     * each told apart by its labels.
+     */
+    static class Metric {
+        final String name;
+        final String type;
+        final String help;
+        final List<Sample> samples;
+
+        Metric(String name, String type, String help) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            samples = new ArrayList<>();
+        }
+
+        Metric add(double value, String... labels) {
+            return add("", value, labels);
+        }
+
+        /**
+         * @param suffix Appended to the metric name, for the _sum and _count samples of a summary.
+         * @param value The value.
+         * @param labels Label names and values, in pairs.
+         */
+        Metric add(String suffix, double value, String... labels) {
+            samples.add(new Sample(suffix, value, labels));
+            return this;
+        }
+    }
+
+    static class Sample {
+        final String suffix;
+        final double value;
+        final Map<String, String> labels;
+
+        Sample(String suffix, double value, String... labels) {
+            this.suffix = suffix;
+            this.value = value;
+            this.labels = new LinkedHashMap<>();
+            for (int i = 0; i + 1 < labels.length; i += 2)
+                this.labels.put(labels[i], labels[i + 1]);
+        }
+    }
+
+
+    /**
+     * Reads the metrics from the components that keep them.
+     * @return The metrics.
+     */
+    static List<Metric> collect() {
+        List<Metric> metrics = new ArrayList<>();
+        collectResponders(metrics);
+        collectTimers(metrics);
+        collectBesPools(metrics);
+        collectCaches(metrics);
+        collectRequestHandling(metrics);
+        return metrics;
+    }
+
+    private static void collectResponders(List<Metric> metrics) {
+        Metric requests = new Metric("olfs_responder_requests_total", "counter", "Requests handled by each responder.");
+        Metric errors = new Metric("olfs_responder_errors_total", "counter", "Requests that failed, by responder.");
+        Metric bytes = new Metric("olfs_responder_bytes_sent_total", "counter", "Bytes sent to clients, by responder.");
+        Metric latency = new Metric("olfs_responder_latency_seconds", "summary", "Time taken to respond, by responder.");
+
+        for (ResponderMetrics r : ResponderMetrics.getAll().values()) {
+            String name = r.getName();
+            requests.add(r.getRequests(), "responder", name);
+            errors.add(r.getErrors(), "responder", name);
+            bytes.add(r.getBytesSent(), "responder", name);
+            addSummary(latency, r.getLatency(), "responder", name);
+        }
+        metrics.add(requests);
+        metrics.add(errors);
+        metrics.add(bytes);
+        metrics.add(latency);
+    }
+
+    private static void collectTimers(List<Metric> metrics) {
+        if (!Timer.isEnabled())
+            return;
+        Metric latency = new Metric("olfs_procedure_latency_seconds", "summary", "Time taken by each procedure the Timer measures.");
+        for (LatencyHistogram h : Timer.getHistograms().values())
+            addSummary(latency, h, "procedure", h.getName());
+        metrics.add(latency);
+    }
+
+    private static void addSummary(Metric metric, LatencyHistogram h, String label, String value) {
+        for (double q : QUANTILES)
+            metric.add(h.getPercentile_ms(q * 100) / 1000.0, label, value, "quantile", Double.toString(q));
+        metric.add("_sum", h.getTotal_ms() / 1000.0, label, value);
+        metric.add("_count", h.getCount(), label, value);
+    }
+
+    private static void collectBesPools(List<Metric> metrics) {
+        Metric max = new Metric("olfs_bes_pool_max_clients", "gauge", "The most clients the pool may hold.");
+        Metric inUse = new Metric("olfs_bes_pool_in_use", "gauge", "Clients checked out of the pool.");
+        Metric idle = new Metric("olfs_bes_pool_idle", "gauge", "Clients waiting in the pool.");
+        Metric checkOuts = new Metric("olfs_bes_pool_checkouts_total", "counter", "Clients checked out of the pool.");
+        Metric waits = new Metric("olfs_bes_pool_waits_total", "counter", "Checkouts that had to wait for a client.");
+        Metric waitTime = new Metric("olfs_bes_pool_wait_seconds_total", "counter", "Time spent waiting for a client.");
+        Metric maxWait = new Metric("olfs_bes_pool_max_wait_seconds", "gauge", "The longest wait for a client.");
+        Metric created = new Metric("olfs_bes_pool_created_total", "counter", "Clients created.");
+        Metric discarded = new Metric("olfs_bes_pool_discarded_total", "counter", "Clients discarded after an error.");
+        Metric evicted = new Metric("olfs_bes_pool_evicted_total", "counter", "Idle clients closed by the pool.");
+        Metric transactions = new Metric("olfs_bes_transactions_total", "counter", "Transactions sent to the BES.");
+        Metric failures = new Metric("olfs_bes_failures_total", "counter", "Transactions that failed.");
+        Metric outstanding = new Metric("olfs_bes_outstanding", "gauge", "Transactions under way.");
+        Metric available = new Metric("olfs_bes_available", "gauge", "1 if the BES's circuit breaker is closed, 0 if it is open or half open.");
+        Metric latency = new Metric("olfs_bes_latency_average_seconds", "gauge", "The moving average of the transaction time.");
+
+        Iterator<BesGroup> groups = BESManager.getBesGroups();
+        while (groups.hasNext()) {
+            BesGroup group = groups.next();
+            for (BES bes : group.toArray()) {
+                String[] labels = {"prefix", group.getGroupPrefix(), "bes", bes.getHost() + ":" + bes.getPort()};
+
+                BesClientPool pool = bes.getClientPool();
+                max.add(pool.getMaxClients(), labels);
+                inUse.add(pool.getInUseCount(), labels);
+                idle.add(pool.getIdleCount(), labels);
+                checkOuts.add(pool.getCheckOutCount(), labels);
+                waits.add(pool.getCheckOutWaitCount(), labels);
+                waitTime.add(pool.getTotalWaitTimeNanos() / 1e9, labels);
+                maxWait.add(pool.getMaxWaitTimeNanos() / 1e9, labels);
+                created.add(pool.getCreatedCount(), labels);
+                discarded.add(pool.getDiscardedCount(), labels);
+                evicted.add(pool.getEvictedCount(), labels);
+
+                BesHealth health = bes.getHealth();
+                transactions.add(health.getTransactions(), labels);
+                failures.add(health.getFailures(), labels);
+                outstanding.add(health.getOutstanding(), labels);
+                available.add(health.getState() == BesHealth.State.CLOSED ? 1 : 0, labels);
+                latency.add(health.getLatencyAverage() / 1e9, labels);
+            }
+        }
+        metrics.add(max);
+        metrics.add(inUse);
+        metrics.add(idle);
+        metrics.add(checkOuts);
+        metrics.add(waits);
+        metrics.add(waitTime);
+        metrics.add(maxWait);
+        metrics.add(created);
+        metrics.add(discarded);
+        metrics.add(evicted);
+        metrics.add(transactions);
+        metrics.add(failures);
+        metrics.add(outstanding);
+        metrics.add(available);
+        metrics.add(latency);
+    }
+
+    private static void collectCaches(List<Metric> metrics) {
+        String[] catalog = {"cache", "BesCatalogCache"};
+        String[] resource = {"cache", "BESResourceCache"};
+        String[] response = {"cache", "DapResponseCache"};
+        String[] xslt = {"cache", "XsltCache"};
+
+        metrics.add(new Metric("olfs_cache_entries", "gauge", "Entries held in the cache.")
+                .add(BesCatalogCache.getCurrentCacheSize(), catalog)
+                .add(BESResourceCache.getSize(), resource)
+                .add(DapResponseCache.getEntryCount(), response)
+                .add(XsltCache.getSize(), xslt));
+        metrics.add(new Metric("olfs_cache_bytes", "gauge", "The approximate size of the cache.")
+                .add(BesCatalogCache.getCurrentCacheBytes(), catalog)
+                .add(DapResponseCache.getSize(), response));
+        metrics.add(new Metric("olfs_cache_hits_total", "counter", "Lookups answered from the cache.")
+                .add(BesCatalogCache.getHits(), catalog)
+                .add(BESResourceCache.getHits(), resource)
+                .add(DapResponseCache.getHits(), response)
+                .add(XsltCache.getHits() + XsltCache.getRevalidations(), xslt));
+        metrics.add(new Metric("olfs_cache_stale_hits_total", "counter", "Lookups answered with a stale entry while it was refreshed.")
+                .add(BesCatalogCache.getStaleHits(), catalog));
+        metrics.add(new Metric("olfs_cache_misses_total", "counter", "Lookups the cache could not answer.")
+                .add(BesCatalogCache.getMisses(), catalog)
+                .add(BESResourceCache.getLoads(), resource)
+                .add(DapResponseCache.getMisses(), response)
+                .add(XsltCache.getCompiles() + XsltCache.getFailures(), xslt));
+        metrics.add(new Metric("olfs_cache_evictions_total", "counter", "Entries removed to make room.")
+                .add(BesCatalogCache.getEvictions(), catalog)
+                .add(DapResponseCache.getEvicted(), response));
+        metrics.add(new Metric("olfs_cache_expired_total", "counter", "Entries removed because they were too old.")
+                .add(BesCatalogCache.getExpired(), catalog));
+        metrics.add(new Metric("olfs_cache_refreshes_total", "counter", "Entries refreshed in the background.")
+                .add(BesCatalogCache.getRefreshes(), catalog));
+        metrics.add(new Metric("olfs_cache_refresh_failures_total", "counter", "Background refreshes that failed.")
+                .add(BesCatalogCache.getRefreshFailures(), catalog));
+
+        metrics.add(new Metric("olfs_thredds_catalogs", "gauge", "THREDDS catalogs held.")
+                .add(CatalogManager.getCatalogCount())
+                .add(CatalogManager.getMemoryCachedCatalogCount(), "content", "memory"));
+        metrics.add(new Metric("olfs_thredds_dataset_scans", "gauge", "THREDDS datasetScan elements held.")
+                .add(CatalogManager.getDatasetScanCount()));
+        metrics.add(new Metric("olfs_thredds_catalog_reloads_total", "counter", "THREDDS catalogs reloaded because their file changed.")
+                .add(CatalogManager.getReloads()));
+        metrics.add(new Metric("olfs_thredds_catalog_reload_failures_total", "counter", "THREDDS catalogs that could not be reloaded.")
+                .add(CatalogManager.getReloadFailures()));
+        metrics.add(new Metric("olfs_thredds_catalogs_restored_total", "counter", "THREDDS catalogs restored from the snapshot file instead of being ingested.")
+                .add(CatalogManager.getRestoredCatalogCount()));
+        metrics.add(new Metric("olfs_thredds_ready", "gauge", "1 once the THREDDS catalogs have been ingested, else 0.")
+                .add(CatalogManager.isReady() ? 1 : 0));
+        metrics.add(new Metric("olfs_thredds_catalog_pending_refreshes", "gauge", "THREDDS catalogs waiting for or being rebuilt.")
+                .add(CatalogManager.getPendingRefreshCount()));
+
+        CatalogWatcher watcher = CatalogManager.getCatalogWatcher();
+        if (watcher != null) {
+            metrics.add(new Metric("olfs_thredds_catalog_watch_events_total", "counter", "File system events for the watched THREDDS catalog directories.")
+                    .add(watcher.getEvents()));
+            metrics.add(new Metric("olfs_thredds_catalog_polls_total", "counter", "Checks of every THREDDS catalog file.")
+                    .add(watcher.getPolls()));
+        }
+    }
+
+    private static void collectRequestHandling(List<Metric> metrics) {
+        metrics.add(new Metric("olfs_request_pool_threads", "gauge", "The size of the request pool.")
+                .add(AsyncRequestExecutor.getThreadCount()));
+        metrics.add(new Metric("olfs_request_pool_active", "gauge", "Requests the request pool is working on.")
+                .add(AsyncRequestExecutor.getActiveCount()));
+        metrics.add(new Metric("olfs_request_pool_queued", "gauge", "Requests waiting for a request pool thread.")
+                .add(AsyncRequestExecutor.getQueuedCount()));
+        metrics.add(new Metric("olfs_request_pool_dispatched_total", "counter", "Requests handed to the request pool.")
+                .add(AsyncRequestExecutor.getDispatchedCount()));
+        metrics.add(new Metric("olfs_request_pool_rejected_total", "counter", "Requests turned away because the request pool was full.")
+                .add(AsyncRequestExecutor.getRejectedCount()));
+
+        metrics.add(new Metric("olfs_compressed_responses_total", "counter", "Responses sent compressed.")
+                .add(ResponseCompression.getCompressedCount()));
+        metrics.add(new Metric("olfs_compression_bytes_in_total", "counter", "Bytes given to the compressor.")
+                .add(ResponseCompression.getBytesIn()));
+        metrics.add(new Metric("olfs_compression_bytes_out_total", "counter", "Compressed bytes sent to clients.")
+                .add(ResponseCompression.getBytesOut()));
+
+        metrics.add(new Metric("olfs_response_flushes_total", "counter", "Flushes of streamed responses.")
+                .add(ResponseFlushPolicy.getFlushCount()));
+        metrics.add(new Metric("olfs_response_flushed_bytes_total", "counter", "Bytes of streamed responses written and then flushed.")
+                .add(ResponseFlushPolicy.getBytesFlushed()));
+
+        metrics.add(new Metric("olfs_hash_log_pending", "gauge", "Hash records waiting to be written.")
+                .add(HashLogWriter.getPending()));
+        metrics.add(new Metric("olfs_hash_log_dropped_total", "counter", "Hash records dropped because the queue was full.")
+                .add(HashLogWriter.getDropped()));
+    }
+
+
+    /**
+     * Writes the metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    static void writePrometheus(List<Metric> metrics, PrintWriter pw) {
+        for (Metric m : metrics) {
+            if (m.samples.isEmpty())
+                continue;
+            pw.print("# HELP ");
+            pw.print(m.name);
+            pw.print(' ');
+            pw.print(escape(m.help, false));
+            pw.print('\n');
+            pw.print("# TYPE ");
+            pw.print(m.name);
+            pw.print(' ');
+            pw.print(m.type);
+            pw.print('\n');
+            for (Sample s : m.samples) {
+                pw.print(m.name);
+                pw.print(s.suffix);
+                if (!s.labels.isEmpty()) {
+                    pw.print('{');
+                    boolean first = true;
+                    for (Map.Entry<String, String> label : s.labels.entrySet()) {
+                        if (!first)
+                            pw.print(',');
+                        first = false;
+                        pw.print(label.getKey());
+                        pw.print("=\"");
+                        pw.print(escape(label.getValue(), true));
+                        pw.print('"');
+                    }
+                    pw.print('}');
+                }
+                pw.print(' ');
+                pw.print(format(s.value));
+                pw.print('\n');
+            }
+        }
+    }
+
+    /**
+     * Writes the metrics as a JSON object with a member for each metric.
+     */
+    static void writeJson(List<Metric> metrics, PrintWriter pw) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        for (Metric m : metrics) {
+            Map<String, Object> metric = new LinkedHashMap<>();
+            metric.put("type", m.type);
+            metric.put("help", m.help);
+            List<Map<String, Object>> samples = new ArrayList<>();
+            for (Sample s : m.samples) {
+                Map<String, Object> sample = new LinkedHashMap<>();
+                if (!s.suffix.isEmpty())
+                    sample.put("name", m.name + s.suffix);
+                sample.put("labels", s.labels);
+                sample.put("value", s.value);
+                samples.add(sample);
+            }
+            metric.put("samples", samples);
+            json.put(m.name, metric);
+        }
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        pw.print(gson.toJson(json));
+    }
+
+    private static String escape(String s, boolean quotes) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\')
+                sb.append("\\\\");
+            else if (c == '\n')
+                sb.append("\\n");
+            else if (c == '"' && quotes)
+                sb.append("\\\"");
+            else
+                sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.hai;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import opendap.logging.ResponderMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MetricsApiTest {
+
+    private static String prometheus(List<MetricsApi.Metric> metrics) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        MetricsApi.writePrometheus(metrics, pw);
+        pw.flush();
+        return sw.toString();
+    }
+
+    @Test
+    public void testFormatChoice() {
+        Assert.assertTrue(MetricsApi.wantsPrometheus("prometheus", null));
+        Assert.assertFalse(MetricsApi.wantsPrometheus("json", "text/plain"));
+        Assert.assertTrue(MetricsApi.wantsPrometheus(null, "application/openmetrics-text;version=0.0.1,text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
+        Assert.assertFalse(MetricsApi.wantsPrometheus(null, "text/html,application/xhtml+xml,*/*;q=0.8"));
+        Assert.assertFalse(MetricsApi.wantsPrometheus(null, null));
+    }
+
+    @Test
+    public void testPrometheusFormat() {
+        List<MetricsApi.Metric> metrics = new ArrayList<>();
+        metrics.add(new MetricsApi.Metric("test_total", "counter", "A line\nand a \\.")
+                .add(3, "name", "a \"quoted\" value")
+                .add(0.25, "name", "b"));
+        metrics.add(new MetricsApi.Metric("test_empty", "gauge", "Not shown."));
+
+        Assert.assertEquals(
+                "# HELP test_total A line\\nand a \\\\.\n" +
+                "# TYPE test_total counter\n" +
+                "test_total{name=\"a \\\"quoted\\\" value\"} 3\n" +
+                "test_total{name=\"b\"} 0.25\n",
+                prometheus(metrics));
+    }
+
+    @Test
+    public void testResponderMetrics() {
+        ResponderMetrics.get("MetricsApiTestResponder").record(2000000L, 100, false);
+        ResponderMetrics.get("MetricsApiTestResponder").record(4000000L, 50, true);
+
+        String text = prometheus(MetricsApi.collect());
+        Assert.assertTrue(text, text.contains("olfs_responder_requests_total{responder=\"MetricsApiTestResponder\"} 2\n"));
+        Assert.assertTrue(text, text.contains("olfs_responder_errors_total{responder=\"MetricsApiTestResponder\"} 1\n"));
+        Assert.assertTrue(text, text.contains("olfs_responder_bytes_sent_total{responder=\"MetricsApiTestResponder\"} 150\n"));
+        Assert.assertTrue(text, text.contains("olfs_responder_latency_seconds_count{responder=\"MetricsApiTestResponder\"} 2\n"));
+        Assert.assertTrue(text, text.contains("olfs_responder_latency_seconds{responder=\"MetricsApiTestResponder\",quantile=\"0.5\"} "));
+        Assert.assertTrue(text, text.contains("# TYPE olfs_cache_hits_total counter\n"));
+
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        MetricsApi.writeJson(MetricsApi.collect(), pw);
+        pw.flush();
+        JsonObject json = new JsonParser().parse(sw.toString()).getAsJsonObject();
+        JsonObject requests = json.getAsJsonObject("olfs_responder_requests_total");
+        Assert.assertEquals("counter", requests.get("type").getAsString());
+        Assert.assertTrue(requests.getAsJsonArray("samples").size() >= 1);
+    }
+
+}
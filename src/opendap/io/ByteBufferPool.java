@@ -0,0 +1,118 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free pool of equally sized ByteBuffers. Buffers that are released when the pool
+ * already holds its maximum number of buffers are left for the garbage collector.
+ */
+public class ByteBufferPool {
+
+    private final int _bufferSize;
+    private final int _maxPooled;
+    private final boolean _direct;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> _pool;
+    private final AtomicInteger _pooledCount;
+    private final AtomicLong _allocatedCount;
+    private final AtomicLong _reusedCount;
+
+    /**
+     * @param bufferSize The capacity, in bytes, of each buffer.
+     * @param maxPooled  The maximum number of idle buffers held by the pool.
+     * @param direct     If true the pool holds direct buffers, otherwise heap buffers.
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled, boolean direct) {
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+        _direct = direct;
+        _pool = new ConcurrentLinkedQueue<>();
+        _pooledCount = new AtomicInteger(0);
+        _allocatedCount = new AtomicLong(0);
+        _reusedCount = new AtomicLong(0);
+    }
+
+    /**
+     * @return A cleared buffer, either from the pool or newly allocated.
+     */
+    public ByteBuffer take() {
+        ByteBuffer buffer = _pool.poll();
+        if (buffer != null) {
+            _pooledCount.decrementAndGet();
+            _reusedCount.incrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        _allocatedCount.incrementAndGet();
+        return _direct ? ByteBuffer.allocateDirect(_bufferSize) : ByteBuffer.allocate(_bufferSize);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use the buffer afterwards.
+     * @param buffer The buffer to return. Buffers that did not come from this pool are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != _bufferSize || buffer.isDirect() != _direct)
+            return;
+
+        if (_pooledCount.incrementAndGet() <= _maxPooled) {
+            _pool.offer(buffer);
+        } else {
+            _pooledCount.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    public int getPooledCount() {
+        return _pooledCount.get();
+    }
+
+    public long getAllocatedCount() {
+        return _allocatedCount.get();
+    }
+
+    public long getReusedCount() {
+        return _reusedCount.get();
+    }
+
+    public String toString() {
+        return "[ByteBufferPool bufferSize: " + _bufferSize +
+                " direct: " + _direct +
+                " pooled: " + getPooledCount() +
+                " allocated: " + getAllocatedCount() +
+                " reused: " + getReusedCount() +
+                "]";
+    }
+}
@@ -31,6 +31,7 @@ import org.slf4j.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * User: ndp
@@ -129,6 +130,47 @@ public class Chunk {
 
 
 
+    /**
+     * Parses the data size field of a chunk header held in a ByteBuffer, without
+     * copying it out of the buffer. The buffer's position is not changed.
+     *
+     * @param chunkHeader The buffer holding the header.
+     * @param off The index in the buffer of the first byte of the header.
+     * @return The size, in bytes, of the data section of this chunk. If the
+     * passed header is the closing chunk (Size is all zeros) this is taken to
+     * indicate that the transmission is at an end and a -1 is returned.
+     * @throws IOException If the size field is not a hex encoded integer.
+     */
+    public static int getDataSize(ByteBuffer chunkHeader, int off) throws IOException {
+        int chunkSize = 0;
+        for(int i=0; i<HEADER_SIZE_ENCODING_BYTES; i++){
+            int digit = Character.digit(chunkHeader.get(off+i), 16);
+            if(digit<0){
+                throw new IOException("Failed to parse Chunk header data size field. " +
+                        "Found non hex character '"+(char)chunkHeader.get(off+i)+"'");
+            }
+            chunkSize = (chunkSize<<4) + digit;
+        }
+
+        if(chunkSize==0){
+            return -1;
+        }
+
+        return chunkSize;
+    }
+
+
+    /**
+     *
+     * @param chunkHeader The buffer holding the header.
+     * @param off The index in the buffer of the first byte of the header.
+     * @return The type of the chunk.
+     */
+    public static int getType(ByteBuffer chunkHeader, int off) {
+        return chunkHeader.get(off + HEADER_SIZE_ENCODING_BYTES);
+    }
+
+
     public static boolean isLastChunk(byte[] chunkHeader){
 
         StringBuilder sizestr = new StringBuilder();
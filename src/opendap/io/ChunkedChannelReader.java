@@ -0,0 +1,352 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.io;
+
+import org.slf4j.Logger;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads chunked messages from a ReadableByteChannel. This is the NIO counterpart
+ * of ChunkedInputStream.
+ *
+ * Chunk headers are read into a small direct buffer and parsed in place. The body
+ * of a DATA chunk is relayed to its destination through a pooled direct buffer, in
+ * buffer sized slices, so no per-connection buffer has to grow to the size of the
+ * largest chunk. When the destination is backed by a FileChannel the payload is
+ * written straight from the direct buffer with no copy into the Java heap.
+ * EXTENSION chunks are handled exactly as ChunkedInputStream handles them.
+ *
+ * @see ChunkedInputStream
+ */
+public class ChunkedChannelReader {
+
+    private static final int MaxExtensionSize = 16777216;
+
+    private static final ByteBufferPool _directBufferPool = new ByteBufferPool(Chunk.DEFAULT_SIZE + 1, 256, true);
+
+    private Logger log;
+
+    protected ReadableByteChannel channel;
+    protected boolean isClosed;
+
+    private ByteBuffer currentChunkHeader;
+    private int currentChunkDataSize;
+    private int chunkReadPosition;
+    private int currentChunkType;
+
+    private byte[] scratch;
+
+
+    /**
+     * Wraps a (blocking) channel and interprets it as a chunked stream.
+     * @param channel to wrap
+     */
+    public ChunkedChannelReader(ReadableByteChannel channel) {
+        log = org.slf4j.LoggerFactory.getLogger(getClass());
+
+        this.channel = channel;
+        currentChunkHeader = ByteBuffer.allocateDirect(Chunk.HEADER_SIZE);
+        currentChunkType = Chunk.DATA;
+        isClosed = false;
+        scratch = null;
+    }
+
+
+    /**
+     * @return The pool of direct buffers shared by all ChunkedChannelReaders.
+     */
+    public static ByteBufferPool getBufferPool() {
+        return _directBufferPool;
+    }
+
+
+    /**
+     * Reads the next chunk header.
+     *
+     * @return The number of bytes in the chunk, or -1 if the underlying channel
+     * has no more bytes to read.
+     * @throws IOException When the underlying channel does, or if the header is bogus
+     */
+    public int readChunkHeader() throws IOException {
+        if (isClosed) throw new IOException("Cannot read from a closed channel.");
+
+        currentChunkHeader.clear();
+        if (readFully(currentChunkHeader) == -1) {
+            currentChunkDataSize = -1;
+            return currentChunkDataSize;
+        }
+
+        currentChunkDataSize = Chunk.getDataSize(currentChunkHeader, 0);
+        currentChunkType = Chunk.getType(currentChunkHeader, 0);
+        chunkReadPosition = 0;
+
+        log.debug("Chunk Data Size: {}    Chunk Type: {}", currentChunkDataSize, (char) currentChunkType);
+
+        return currentChunkDataSize;
+    }
+
+
+    public int getCurrentChunkType() {
+        return currentChunkType;
+    }
+
+
+    public int availableInChunk() {
+        return currentChunkDataSize - chunkReadPosition;
+    }
+
+
+    /**
+     * @return True if current chunk is the last chunk in the message.
+     */
+    public boolean isLastChunk() {
+        return currentChunkDataSize <= 0 && currentChunkType == Chunk.DATA;
+    }
+
+
+    public void close() throws IOException {
+        isClosed = true;
+        currentChunkDataSize = 0;
+        chunkReadPosition = 0;
+        channel.close();
+    }
+
+
+    /**
+     * Reads a chunked message from the underlying channel and transmits it to the passed OutputStream,
+     * <code>dstream</code>. If an error condition is encountered in the chunked message then the error content
+     * will be written to the OutputStream <code>errStream</code>.
+     *
+     * @param dStream The stream into which to transfer the message data.
+     * @param errStream The stream into which to transfer error content if the
+     * message contains it.
+     * @return False if the chunked message contained an extension with status equal to
+     * error (Which is another way of saying that the source passed an error
+     * message in the stream). True otherwise.
+     * @throws IOException When there are problems reading from or interpreting
+     * the chunked message stream.
+     */
+    public boolean readChunkedMessage(OutputStream dStream, OutputStream errStream) throws IOException {
+
+        boolean isError = false;
+        boolean moreData = true;
+
+        ResponseFlushPolicy.Flusher flusher = ResponseFlushPolicy.newFlusher();
+
+        while (moreData && !isClosed) {
+
+            if (availableInChunk() <= 0) {
+
+                int ret = readChunkHeader();
+
+                if (ret == -1 || isLastChunk()) {
+                    moreData = false;
+                }
+            }
+            else {
+                switch (getCurrentChunkType()) {
+
+                    case Chunk.DATA:
+                        // write the data out to the appropriate stream,
+                        // depending on the error status.
+                        OutputStream target = isError ? errStream : dStream;
+                        // A blocking channel can't tell us if more data is waiting, so leave it to the
+                        // size and time limits.
+                        flusher.wrote(target, relayChunkData(target));
+                        break;
+
+                    case Chunk.EXTENSION:
+                        // Process the extension content & preserve any previously encountered errors found in the message.
+                        isError = processExtensionContent(readExtensionContent()) || isError;
+                        break;
+
+                    default:
+                        throw new IOException("Unknown Chunk Type.");
+                }
+            }
+        }
+
+        flusher.finish();
+
+        return !isError;
+    }
+
+
+    /**
+     * Moves the body of the current DATA chunk to the target, one pooled buffer at a time.
+     * @return The number of bytes relayed.
+     */
+    private int relayChunkData(OutputStream target) throws IOException {
+
+        int relayed = 0;
+
+        WritableByteChannel targetChannel = null;
+        if (target instanceof FileOutputStream)
+            targetChannel = ((FileOutputStream) target).getChannel();
+
+        ByteBuffer buffer = _directBufferPool.take();
+        try {
+            while (availableInChunk() > 0) {
+                buffer.clear();
+                buffer.limit(Math.min(buffer.capacity(), availableInChunk()));
+
+                int bytesReceived = readFully(buffer);
+                if (bytesReceived == -1)
+                    throw new EOFException("Channel reached End Of Stream in the middle of a chunk. " +
+                            "Expected " + availableInChunk() + " more bytes.");
+
+                chunkReadPosition += bytesReceived;
+                relayed += bytesReceived;
+                buffer.flip();
+
+                if (targetChannel != null) {
+                    while (buffer.hasRemaining())
+                        targetChannel.write(buffer);
+                }
+                else {
+                    // The Servlet API only accepts byte arrays, so this is the one unavoidable heap copy.
+                    if (scratch == null)
+                        scratch = new byte[buffer.capacity()];
+                    buffer.get(scratch, 0, bytesReceived);
+                    target.write(scratch, 0, bytesReceived);
+                }
+            }
+        }
+        finally {
+            _directBufferPool.release(buffer);
+        }
+        return relayed;
+    }
+
+
+    private String readExtensionContent() throws IOException {
+
+        int size = availableInChunk();
+        if (size > MaxExtensionSize) {
+            String msg = "Found a chunk size larger than I support. My max size " +
+                    MaxExtensionSize + " bytes, currentChunkDataSize: " + size;
+            log.error(msg);
+            throw new IOException(msg);
+        }
+
+        ByteBuffer extension = ByteBuffer.allocate(size);
+        if (readFully(extension) == -1)
+            throw new EOFException("Channel reached End Of Stream while reading a chunk extension.");
+        chunkReadPosition += size;
+
+        return new String(extension.array(), 0, size, HyraxStringEncoding.getCharset());
+    }
+
+
+    /**
+     *
+     * @param e  The content of the chunk extension held in a String.
+     * @return True if the extension contains the "status=error;"
+     * extension name value pair, false otherwise.
+     *
+     * @throws IOException When there are problems reading from or interpreting
+     * the message stream.
+     */
+    private boolean processExtensionContent(String e) throws IOException {
+
+        boolean isError = false;
+
+        String[] extensions = e.split(";");
+
+        // Evaluate the extension information
+        for (String extension : extensions) {
+
+            // Is it a "status" extension?
+            if (extension.startsWith(Chunk.STATUS_EXTENSION)) {
+
+                String status = extension.substring(extension.indexOf('=') + 1, extension.length());
+
+                // Is the status an error?
+                if (status.equalsIgnoreCase(Chunk.ERROR_STATUS)) {
+                    isError = true;
+                }
+                // Is the status an emergency exit?
+                else if (status.equalsIgnoreCase(Chunk.EMERGENCY_EXIT_STATUS)) {
+                    log.error("Stream source requested an emergency exit! Closing connection immediately.");
+                    isClosed = true;
+                    channel.close();
+                }
+                // Is the status a mandatory exit?
+                else if (status.equalsIgnoreCase(Chunk.EXIT_STATUS)) {
+                    int ret = readChunkHeader();
+                    if (ret == -1 || isLastChunk()) {
+                        isClosed = true;
+                    }
+                    log.debug("Stream closed by Source.");
+                }
+                else {
+                    log.debug("Received status extension: " + extension);
+                }
+            }
+            else {
+                log.debug("Received extension: " + extension);
+            }
+        }
+        return isError;
+    }
+
+
+    /**
+     * Reads from the channel until the buffer has no space remaining.
+     *
+     * @param buffer The buffer to fill.
+     * @return The number of bytes read, or -1 if the channel reached End Of Stream before anything was read.
+     * @throws IOException When the channel does, or if End Of Stream is reached part way through.
+     */
+    private int readFully(ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer);
+            if (n == -1) {
+                if (total == 0)
+                    return -1;
+                throw new EOFException("Channel reached End Of Stream after " + total + " of " +
+                        (total + buffer.remaining()) + " bytes.");
+            }
+            total += n;
+        }
+        return total;
+    }
+
+
+    public int getChunkedReadBufferSize() {
+        return _directBufferPool.getBufferSize();
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.io;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+/**
+ * Checks that ChunkedChannelReader decodes chunked messages exactly as ChunkedInputStream does.
+ */
+public class ChunkedChannelReaderTest {
+
+    private static void writeChunk(ByteArrayOutputStream message, int type, byte[] body) throws IOException {
+        Chunk.writeChunkHeader(message, body.length, type);
+        message.write(body);
+    }
+
+    private static byte[] data(int size) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++)
+            b[i] = (byte) (i % 251);
+        return b;
+    }
+
+    private static void assertSameResult(byte[] message) throws IOException {
+
+        ByteArrayOutputStream streamOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream streamErr = new ByteArrayOutputStream();
+        ChunkedInputStream cis = new ChunkedInputStream(new ByteArrayInputStream(message));
+        boolean streamResult = cis.readChunkedMessage(streamOut, streamErr);
+
+        ByteArrayOutputStream channelOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream channelErr = new ByteArrayOutputStream();
+        ChunkedChannelReader ccr = new ChunkedChannelReader(Channels.newChannel(new ByteArrayInputStream(message)));
+        boolean channelResult = ccr.readChunkedMessage(channelOut, channelErr);
+
+        Assert.assertEquals(streamResult, channelResult);
+        Assert.assertArrayEquals(streamOut.toByteArray(), channelOut.toByteArray());
+        Assert.assertArrayEquals(streamErr.toByteArray(), channelErr.toByteArray());
+    }
+
+    @Test
+    public void testDataChunks() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        writeChunk(message, Chunk.DATA, data(10));
+        writeChunk(message, Chunk.DATA, data(Chunk.DEFAULT_SIZE));
+        // Bigger than a pooled buffer, so it is relayed in slices.
+        writeChunk(message, Chunk.DATA, data(200000));
+        Chunk.writeClosingChunkHeader(message);
+
+        assertSameResult(message.toByteArray());
+    }
+
+    @Test
+    public void testErrorExtension() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        writeChunk(message, Chunk.DATA, data(100));
+        writeChunk(message, Chunk.EXTENSION, "status=error;".getBytes(HyraxStringEncoding.getCharset()));
+        writeChunk(message, Chunk.DATA, "<BESError/>".getBytes(HyraxStringEncoding.getCharset()));
+        Chunk.writeClosingChunkHeader(message);
+
+        assertSameResult(message.toByteArray());
+    }
+
+    @Test
+    public void testOtherExtensions() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        writeChunk(message, Chunk.EXTENSION, "count=5;status=ok;".getBytes(HyraxStringEncoding.getCharset()));
+        writeChunk(message, Chunk.DATA, data(5));
+        Chunk.writeClosingChunkHeader(message);
+
+        assertSameResult(message.toByteArray());
+    }
+
+    @Test
+    public void testTwoMessages() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        writeChunk(message, Chunk.DATA, data(42));
+        Chunk.writeClosingChunkHeader(message);
+        writeChunk(message, Chunk.DATA, data(24));
+        Chunk.writeClosingChunkHeader(message);
+
+        ChunkedChannelReader ccr = new ChunkedChannelReader(Channels.newChannel(new ByteArrayInputStream(message.toByteArray())));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(ccr.readChunkedMessage(out, out));
+        Assert.assertEquals(42, out.size());
+        out.reset();
+        Assert.assertTrue(ccr.readChunkedMessage(out, out));
+        Assert.assertEquals(24, out.size());
+    }
+
+    private static class FlushCountingStream extends ByteArrayOutputStream {
+        int flushes = 0;
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Test
+    public void testCoalescedFlushes() throws Exception {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++)
+            writeChunk(message, Chunk.DATA, data(Chunk.DEFAULT_SIZE));
+        Chunk.writeClosingChunkHeader(message);
+
+        // 20 chunks of 64 KB are 1.25 MB, so with the default 512 KB limit we expect a
+        // couple of size triggered flushes and one at the end, not one per chunk.
+        FlushCountingStream out = new FlushCountingStream();
+        ChunkedInputStream cis = new ChunkedInputStream(new ByteArrayInputStream(message.toByteArray()));
+        Assert.assertTrue(cis.readChunkedMessage(out, out));
+        Assert.assertEquals(20 * Chunk.DEFAULT_SIZE, out.size());
+        Assert.assertTrue("Expected fewer flushes than chunks, got " + out.flushes, out.flushes < 20);
+        Assert.assertTrue(out.flushes >= 1);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBadHeader() throws Exception {
+        byte[] message = "0000zz0d".getBytes(HyraxStringEncoding.getCharset());
+        ChunkedChannelReader ccr = new ChunkedChannelReader(Channels.newChannel(new ByteArrayInputStream(message)));
+        ccr.readChunkedMessage(new ByteArrayOutputStream(), new ByteArrayOutputStream());
+    }
+
+}
@@ -30,6 +30,7 @@ import org.slf4j.Logger;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * User: ndp
@@ -40,16 +41,21 @@ public class ChunkedInputStream  {
 
     private Logger log;
 
-    private static int defaultBufferSize = 10240;
     private static int MaxBufferSize = 16777216;
 
+    /**
+     * Chunk bodies are read through buffers from this pool, one slice at a time, so
+     * that a ChunkedInputStream does not hold on to a buffer the size of the largest
+     * chunk it has ever seen.
+     */
+    private static final ByteBufferPool _bufferPool = new ByteBufferPool(Chunk.DEFAULT_SIZE + 1, 256, false);
+
     protected InputStream is;
     protected boolean isClosed;
 
 
     private byte[] currentChunkHeader;
 
-    private byte[] chunkBuffer;
     private int largestChunkDataSize;
 
     private int currentChunkDataSize;
@@ -75,7 +81,6 @@ public class ChunkedInputStream  {
             currentChunkType   = Chunk.DATA;
             isClosed           = false;
             largestChunkDataSize = 0;
-            chunkBuffer = new byte[defaultBufferSize];
         }
 
 
@@ -196,74 +201,77 @@ public class ChunkedInputStream  {
         boolean moreData = true;
         String extensionContent;
 
-        while(moreData && !isClosed){
+        ResponseFlushPolicy.Flusher flusher = ResponseFlushPolicy.newFlusher();
+        ByteBuffer buffer = _bufferPool.take();
+        byte[] chunkBuffer = buffer.array();
 
-            if(availableInChunk()<=0){
+        try {
+            while(moreData && !isClosed){
 
-                ret = readChunkHeader();
+                if(availableInChunk()<=0){
 
-                if(ret == -1 || isLastChunk()){
-                    moreData = false;
-                }
-                else {
-
-                    // Check to see if the chunk size is bigger than the buffer
-                    if(chunkBuffer.length < currentChunkDataSize){
+                    ret = readChunkHeader();
 
+                    if(ret == -1 || isLastChunk()){
+                        moreData = false;
+                    }
+                    else if(currentChunkDataSize > MaxBufferSize){
                         // If the new chunk size is too big, bail.
-                        if(currentChunkDataSize > MaxBufferSize){
-                            String msg = "Found a chunk size larger than I support. My max size " +
-                                         MaxBufferSize + " bytes, currentChunkDataSize: "+currentChunkDataSize;
-                            log.error(msg);
-                            throw new IOException(msg);
-                        }
-                        else {
-
-                            // Since it's safe to do so, upgrade the chunk buffer.
-                            log.debug("Increasing chunkBuffer size to: {} bytes.",currentChunkDataSize);
-                            chunkBuffer = new byte[currentChunkDataSize];
-                        }
-
+                        String msg = "Found a chunk size larger than I support. My max size " +
+                                     MaxBufferSize + " bytes, currentChunkDataSize: "+currentChunkDataSize;
+                        log.error(msg);
+                        throw new IOException(msg);
                     }
 
                 }
+                else {
 
-            }
-            else {
-
-                // read the chunk body
-                bytesReceived = Chunk.readFully(is,chunkBuffer,0, availableInChunk());
-
-                log.debug("CurrentChunksize: "+ currentChunkDataSize+ " bytesReceived: "+ bytesReceived);
-                
-                // update the read pointer.
-                chunkReadPosition += bytesReceived;
-
-                switch (getCurrentChunkType()){
-
-                    case Chunk.DATA:
-                        // write the data out to the appropriate stream,
-                        // depending on the error status.
-                        (isError?errStream:dStream).write(chunkBuffer,0,bytesReceived);
-                        (isError?errStream:dStream).flush();
-                        break;
-
-                    case Chunk.EXTENSION:
-
-                        // Build a String from the content of the chunk extension.
-                        extensionContent =  new String(chunkBuffer,0,bytesReceived,HyraxStringEncoding.getCharset());
-
-                        // Process the extension content & preserve any previously encountered errors found in the message.
-                        isError = processExtensionContent(extensionContent) || isError;
-                        break;
+                    switch (getCurrentChunkType()){
+
+                        case Chunk.DATA:
+                            // read the chunk body, one buffer at a time, and write the data out to the
+                            // appropriate stream, depending on the error status.
+                            OutputStream target = isError?errStream:dStream;
+                            int chunkBytes = 0;
+                            while(availableInChunk()>0){
+                                bytesReceived = Chunk.readFully(is,chunkBuffer,0, Math.min(chunkBuffer.length,availableInChunk()));
+                                if(bytesReceived == -1)
+                                    throw new IOException("Reached End Of Stream in the middle of a chunk.");
+                                chunkReadPosition += bytesReceived;
+                                target.write(chunkBuffer,0,bytesReceived);
+                                chunkBytes += bytesReceived;
+                            }
+                            log.debug("CurrentChunksize: "+ currentChunkDataSize+ " bytesReceived: "+ chunkBytes);
+                            flusher.wrote(target, chunkBytes);
+                            break;
+
+                        case Chunk.EXTENSION:
+
+                            // Build a String from the content of the chunk extension.
+                            byte[] extension = availableInChunk()<=chunkBuffer.length?chunkBuffer:new byte[availableInChunk()];
+                            bytesReceived = Chunk.readFully(is,extension,0, availableInChunk());
+                            if(bytesReceived == -1)
+                                throw new IOException("Reached End Of Stream in the middle of a chunk.");
+                            chunkReadPosition += bytesReceived;
+                            extensionContent =  new String(extension,0,bytesReceived,HyraxStringEncoding.getCharset());
+
+                            // Process the extension content & preserve any previously encountered errors found in the message.
+                            isError = processExtensionContent(extensionContent) || isError;
+                            break;
+
+                        default:
+                            throw new IOException("Unknown Chunk Type.");
 
-                    default:
-                        throw new IOException("Unknown Chunk Type.");
+                    }
 
                 }
 
             }
 
+            flusher.finish();
+        }
+        finally {
+            _bufferPool.release(buffer);
         }
 
         return !isError;
@@ -335,7 +343,14 @@ public class ChunkedInputStream  {
 
 
     public int getChunkedReadBufferSize(){
-        return chunkBuffer.length;
+        return _bufferPool.getBufferSize();
+    }
+
+    /**
+     * @return The largest chunk body, in bytes, this stream has read.
+     */
+    public int getLargestChunkDataSize(){
+        return largestChunkDataSize;
     }
 
 
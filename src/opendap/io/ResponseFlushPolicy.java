@@ -0,0 +1,242 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.io;
+
+import org.jdom.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the chunked message readers (ChunkedInputStream and ChunkedChannelReader)
+ * flush the stream they are relaying a BES response to, and keeps count of the flushes.
+ *
+ * In CHUNK mode the destination is flushed after every DATA chunk, which is how the OLFS
+ * has always behaved. In ADAPTIVE mode chunk writes are coalesced and the destination is
+ * flushed when:
+ * <ul>
+ *     <li>the bytes written since the last flush reach maxBytes, or</li>
+ *     <li>a chunk arrives more than maxInterval milliseconds after the last flush, or</li>
+ *     <li>the message is complete.</li>
+ * </ul>
+ * Small (metadata) responses are a single chunk, so they are flushed as soon as they arrive.
+ *
+ * The policy is configured from the BESManager section of olfs.xml:
+ * <pre>
+ *     &lt;ResponseFlushing mode="adaptive" maxBytes="524288" maxInterval="250" /&gt;
+ * </pre>
+ */
+public class ResponseFlushPolicy {
+
+    public enum Mode { CHUNK, ADAPTIVE }
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseFlushPolicy.class);
+
+    private static volatile Mode _mode = Mode.ADAPTIVE;
+    private static volatile int _maxBytes = 524288; // 512 KB
+    private static volatile long _maxInterval = 250; // ms
+
+    private static final AtomicLong _messageCount = new AtomicLong(0);
+    private static final AtomicLong _flushCount = new AtomicLong(0);
+    private static final AtomicLong _bytesFlushed = new AtomicLong(0);
+
+
+    private ResponseFlushPolicy() {
+    }
+
+
+    /**
+     * Configures the policy.
+     * @param config The ResponseFlushing element. May be null, in which case the defaults are used.
+     * @throws Exception When an attribute value is not usable.
+     */
+    public static void init(Element config) throws Exception {
+        if (config == null)
+            return;
+
+        String s = config.getAttributeValue("mode");
+        if (s != null) {
+            if (s.equalsIgnoreCase("chunk"))
+                _mode = Mode.CHUNK;
+            else if (s.equalsIgnoreCase("adaptive"))
+                _mode = Mode.ADAPTIVE;
+            else
+                throw new Exception("The mode attribute of the ResponseFlushing element must be " +
+                        "either \"chunk\" or \"adaptive\". Found: \"" + s + "\"");
+        }
+
+        s = config.getAttributeValue("maxBytes");
+        if (s != null) {
+            int maxBytes = Integer.parseInt(s);
+            if (maxBytes < 1)
+                throw new Exception("The maxBytes attribute of the ResponseFlushing element must be " +
+                        "an integer greater than 0 (zero).");
+            _maxBytes = maxBytes;
+        }
+
+        s = config.getAttributeValue("maxInterval");
+        if (s != null) {
+            _maxInterval = Long.parseLong(s);
+        }
+
+        log.info("init() - Response flushing mode: {} maxBytes: {} maxInterval: {} ms",
+                new Object[]{_mode, _maxBytes, _maxInterval});
+    }
+
+
+    public static Mode getMode() {
+        return _mode;
+    }
+
+    public static int getMaxBytes() {
+        return _maxBytes;
+    }
+
+    public static long getMaxInterval() {
+        return _maxInterval;
+    }
+
+    /**
+     * @return The number of messages relayed.
+     */
+    public static long getMessageCount() {
+        return _messageCount.get();
+    }
+
+    /**
+     * @return The number of times a destination stream was flushed.
+     */
+    public static long getFlushCount() {
+        return _flushCount.get();
+    }
+
+    /**
+     * @return The number of bytes written to destination streams and subsequently flushed.
+     */
+    public static long getBytesFlushed() {
+        return _bytesFlushed.get();
+    }
+
+    public static String getStatistics() {
+        long flushes = getFlushCount();
+        return "[ResponseFlushPolicy mode: " + _mode +
+                " messages: " + getMessageCount() +
+                " flushes: " + flushes +
+                " bytesFlushed: " + getBytesFlushed() +
+                " bytesPerFlush: " + (flushes == 0 ? 0 : getBytesFlushed() / flushes) +
+                "]";
+    }
+
+
+    /**
+     * @return A Flusher, configured with the current policy, for relaying one message.
+     */
+    public static Flusher newFlusher() {
+        return new Flusher(_mode, _maxBytes, _maxInterval);
+    }
+
+
+    /**
+     * Tracks the writes to the destination(s) of a single message and flushes them according
+     * to the policy. Not thread safe; a Flusher belongs to the thread reading the message.
+     */
+    public static class Flusher {
+
+        private final Mode mode;
+        private final int maxBytes;
+        private final long maxInterval;
+
+        private OutputStream pendingStream;
+        private long pendingBytes;
+        private long lastFlush;
+        private int flushes;
+        private long bytes;
+
+        Flusher(Mode mode, int maxBytes, long maxInterval) {
+            this.mode = mode;
+            this.maxBytes = maxBytes;
+            this.maxInterval = maxInterval;
+            pendingStream = null;
+            pendingBytes = 0;
+            lastFlush = System.currentTimeMillis();
+            flushes = 0;
+            bytes = 0;
+        }
+
+        /**
+         * Records that a DATA chunk was written and flushes if the policy says so.
+         *
+         * @param os The stream the chunk was written to.
+         * @param len The number of bytes written.
+         * @throws IOException When the flush fails.
+         */
+        public void wrote(OutputStream os, int len) throws IOException {
+
+            if (pendingStream != null && pendingStream != os)
+                flush();
+
+            pendingStream = os;
+            pendingBytes += len;
+
+            if (mode == Mode.CHUNK ||
+                    pendingBytes >= maxBytes ||
+                    (System.currentTimeMillis() - lastFlush) >= maxInterval) {
+                flush();
+            }
+        }
+
+        /**
+         * Flushes anything that is still pending. Call when the message is complete.
+         * @throws IOException When the flush fails.
+         */
+        public void finish() throws IOException {
+            flush();
+            _messageCount.incrementAndGet();
+            if (log.isDebugEnabled())
+                log.debug("finish() - Relayed {} bytes with {} flush(es).", bytes, flushes);
+        }
+
+        private void flush() throws IOException {
+            if (pendingStream == null)
+                return;
+
+            pendingStream.flush();
+            flushes++;
+            bytes += pendingBytes;
+            _flushCount.incrementAndGet();
+            _bytesFlushed.addAndGet(pendingBytes);
+
+            pendingStream = null;
+            pendingBytes = 0;
+            lastFlush = System.currentTimeMillis();
+        }
+    }
+
+}
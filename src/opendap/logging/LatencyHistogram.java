@@ -0,0 +1,169 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram. Times are kept in microseconds in buckets
+ * whose width grows with the value (8 buckets for each power of two), so a
+ * percentile read from it is within about 6% of the true value, from 1 us up to
+ * days, in a fixed 2.5 KB.
+ *
+ * Recording is a few atomic increments and never blocks, so it is safe to
+ * leave on for every request.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_POWER = 40; // 2^40 us is about 12 days.
+    private static final int BUCKETS = (MAX_POWER - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts;
+    private final AtomicLong count;
+    private final AtomicLong totalNanos;
+    private final AtomicLong maxNanos;
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong(0);
+        totalNanos = new AtomicLong(0);
+        maxNanos = new AtomicLong(0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records one timing.
+     * @param nanos The elapsed time in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+
+        counts.incrementAndGet(bucket(nanos / 1000));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+            max = maxNanos.get();
+    }
+
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = power - SUB_BUCKET_BITS;
+        int sub = (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+        int b = (shift + 1) * SUB_BUCKETS + sub;
+        return Math.min(b, BUCKETS - 1);
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub)) << shift;
+    }
+
+
+    /**
+     * @return The number of timings recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return The sum of the timings recorded, in milliseconds.
+     */
+    public double getTotal_ms() {
+        return totalNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @return The mean timing in milliseconds, 0 if there are none.
+     */
+    public double getMean_ms() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / 1000000.0 / n;
+    }
+
+    /**
+     * @return The longest timing in milliseconds.
+     */
+    public double getMax_ms() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @param percentile The percentile, from 0 to 100.
+     * @return The timing, in milliseconds, that the given percentage of the timings
+     * are no longer than. 0 if there are none.
+     */
+    public double getPercentile_ms(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100.0 * total);
+        if (rank < 1)
+            rank = 1;
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                long upper = i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : lowerBound(i);
+                double micros = (lowerBound(i) + upper) / 2.0;
+                return Math.min(micros / 1000.0, getMax_ms());
+            }
+        }
+        return getMax_ms();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%s count: %d mean: %.3f ms p50: %.3f ms p90: %.3f ms p99: %.3f ms max: %.3f ms]",
+                name, getCount(), getMean_ms(), getPercentile_ms(50), getPercentile_ms(90),
+                getPercentile_ms(99), getMax_ms());
+    }
+
+}
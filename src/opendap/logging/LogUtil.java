@@ -40,6 +40,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 import java.io.File;
+import java.util.Map;
 
 
 /**
@@ -437,4 +438,18 @@ public class LogUtil {
     }
 
 
+    /**
+     * Copies the logging context (MDC) of the current thread, so that work handed to another
+     * thread can be logged as part of the same request. Restore it there with
+     * MDC.setContextMap().
+     *
+     * @return The copy, or null if the current thread has no logging context.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, String> getMdcCopy() {
+        // slf4j 1.6 returns a raw Map; the MDC only ever holds String keys and values.
+        return MDC.getCopyOfContextMap();
+    }
+
+
 }
@@ -38,6 +38,22 @@ public class Procedure {
     long start;
     long end;
 
+    String thread;
+    int depth;
+    LatencyHistogram histogram;
+    RequestTrace trace;
+
+    public Procedure() {
+    }
+
+    Procedure(String name, LatencyHistogram histogram, RequestTrace trace) {
+        this.name = name;
+        this.histogram = histogram;
+        this.trace = trace;
+        thread = Thread.currentThread().getName();
+        depth = trace == null ? 0 : trace.started();
+    }
+
     /**
      * Records System.nanoTime() as the start value and sets end to same value as start;
      */
@@ -62,5 +78,12 @@ public class Procedure {
         return (end - start)/1000000.00;
     }
 
+    /**
+     * @return The name of the timed procedure.
+     */
+    public String getName(){
+        return name;
+    }
+
 
 }
@@ -0,0 +1,116 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.logging;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The timed procedures (spans) of one request, in a buffer of fixed size. When
+ * the buffer is full further spans are counted but not kept, so a request
+ * that loops over thousands of BES transactions can't use up the heap.
+ */
+public class RequestTrace {
+
+    public static final int MAX_SPANS = 256;
+
+    private final long origin;
+    private final AtomicReferenceArray<Procedure> spans;
+    private final AtomicInteger next;
+    private final AtomicInteger open;
+
+    public RequestTrace() {
+        origin = System.nanoTime();
+        spans = new AtomicReferenceArray<>(MAX_SPANS);
+        next = new AtomicInteger(0);
+        open = new AtomicInteger(0);
+    }
+
+    /**
+     * @return The nesting depth of a procedure that is starting.
+     */
+    int started() {
+        return open.getAndIncrement();
+    }
+
+    void stopped(Procedure procedure) {
+        open.decrementAndGet();
+        int i = next.getAndIncrement();
+        if (i < MAX_SPANS)
+            spans.set(i, procedure);
+    }
+
+    /**
+     * @return The number of spans that didn't fit in the buffer.
+     */
+    public int getDropped() {
+        return Math.max(0, next.get() - MAX_SPANS);
+    }
+
+    /**
+     * @return The spans kept, in the order they started.
+     */
+    public List<Procedure> getSpans() {
+        int n = Math.min(next.get(), MAX_SPANS);
+        List<Procedure> list = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Procedure p = spans.get(i);
+            if (p != null)
+                list.add(p);
+        }
+        Collections.sort(list, new Comparator<Procedure>() {
+            @Override
+            public int compare(Procedure a, Procedure b) {
+                return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return One line for each span: when it started, relative to the start of
+     * the request, how long it took, and the procedure name, indented by depth.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Procedure p : getSpans()) {
+            sb.append(String.format("%10.3f ms %10.3f ms  ", (p.start - origin) / 1000000.0, p.elapsedTime()));
+            for (int i = 0; i < p.depth; i++)
+                sb.append("  ");
+            sb.append(p.name).append(" [").append(p.thread).append("]\n");
+        }
+        int dropped = getDropped();
+        if (dropped > 0)
+            sb.append(dropped).append(" more spans were not kept.\n");
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.logging;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counts, latencies, bytes sent and errors for one responder. Unlike
+ * the Timer these are always collected: recording a request is a handful of
+ * atomic increments, so they cost nothing worth measuring under load.
+ */
+public class ResponderMetrics {
+
+    private static ConcurrentHashMap<String, ResponderMetrics> responders = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final LatencyHistogram latency;
+    private final AtomicLong errors;
+    private final AtomicLong bytesSent;
+
+    private ResponderMetrics(String name) {
+        this.name = name;
+        latency = new LatencyHistogram(name);
+        errors = new AtomicLong(0);
+        bytesSent = new AtomicLong(0);
+    }
+
+    /**
+     * @param name The name of a responder.
+     * @return The responder's metrics, created the first time they are asked for.
+     */
+    public static ResponderMetrics get(String name) {
+        ResponderMetrics metrics = responders.get(name);
+        if (metrics == null) {
+            ResponderMetrics newMetrics = new ResponderMetrics(name);
+            metrics = responders.putIfAbsent(name, newMetrics);
+            if (metrics == null)
+                metrics = newMetrics;
+        }
+        return metrics;
+    }
+
+    /**
+     * @return The metrics of every responder that has been asked for, by name.
+     */
+    public static Map<String, ResponderMetrics> getAll() {
+        return Collections.unmodifiableMap(new TreeMap<>(responders));
+    }
+
+    /**
+     * Records one request.
+     * @param nanos How long the responder took, in nanoseconds.
+     * @param bytes The number of bytes sent to the client.
+     * @param failed True if the request failed.
+     */
+    public void record(long nanos, long bytes, boolean failed) {
+        latency.record(nanos);
+        if (bytes > 0)
+            bytesSent.addAndGet(bytes);
+        if (failed)
+            errors.incrementAndGet();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRequests() {
+        return latency.getCount();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        return "[ResponderMetrics " + name +
+                " requests: " + getRequests() +
+                " errors: " + getErrors() +
+                " bytesSent: " + getBytesSent() +
+                " latency: " + latency +
+                "]";
+    }
+
+}
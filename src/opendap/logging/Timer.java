@@ -30,18 +30,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This Timer is thread safe.
+ *
+ * Each timer is named by the code that starts it. Every stopped timer is recorded in
+ * the latency histogram for its name, which collects the timings of all requests, and
+ * in the trace of the current request, which Timer.report() prints. Neither needs a
+ * lock or logs at INFO, so the Timer is cheap enough to leave enabled in production.
+ * When the Timer is disabled start() returns null and stop() returns at once.
  */
 public class Timer {
 
     private static Logger _log = LoggerFactory.getLogger(Timer.class);
 
-    private static ConcurrentHashMap<String, StringBuilder> threadLogs = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
 
-    private static boolean enabled = false;
+    private static ThreadLocal<RequestTrace> threadTraces = new ThreadLocal<>();
+
+    private static volatile boolean enabled = false;
 
     /**
      * Turn on the Timer.
@@ -67,81 +78,114 @@ public class Timer {
 
 
     /**
-     * @return A StringBuilder for logging the current thread's timers
+     * @return The trace for the current thread's request.
      */
-    private static StringBuilder getThreadLog(){
-        String threadName = Thread.currentThread().getName();
-        threadLogs.putIfAbsent(threadName, new StringBuilder());
-        return threadLogs.get(threadName);
+    private static RequestTrace getThreadTrace(){
+        RequestTrace trace = threadTraces.get();
+        if(trace == null){
+            trace = new RequestTrace();
+            threadTraces.set(trace);
+        }
+        return trace;
     }
 
+    /**
+     * @param name The name of a timed procedure.
+     * @return The histogram that collects the procedure's timings.
+     */
+    public static LatencyHistogram getHistogram(String name){
+        LatencyHistogram histogram = histograms.get(name);
+        if(histogram == null){
+            LatencyHistogram newHistogram = new LatencyHistogram(name);
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if(histogram == null)
+                histogram = newHistogram;
+        }
+        return histogram;
+    }
 
     /**
-     * Starts (and logs) a timer associated with the current thread. The time will back up the call stack and
-     * name the Timer for the calling class and method.
-     * @return A an object to hand the Timer.stop() method.
+     * @return The histograms of all of the procedures timed so far, by name.
      */
-    public static Procedure start(){
+    public static Map<String, LatencyHistogram> getHistograms(){
+        return Collections.unmodifiableMap(new TreeMap<>(histograms));
+    }
+
+
+    /**
+     * Removes the current thread's request trace so that the thread that finishes the request can
+     * carry on with it.
+     * @return The trace, to hand to attachThreadLog(). Null if the Timer is not enabled.
+     */
+    public static RequestTrace detachThreadLog(){
         if(!enabled)
             return null;
+        RequestTrace trace = threadTraces.get();
+        threadTraces.remove();
+        return trace;
+    }
 
+    /**
+     * Makes a trace removed by detachThreadLog() the current thread's request trace.
+     * @param threadLog The value returned by detachThreadLog(). May be null.
+     */
+    public static void attachThreadLog(RequestTrace threadLog){
+        if(!enabled || threadLog == null)
+            return;
+        threadTraces.set(threadLog);
+    }
 
-        //List<Procedure> timedProcedures  = getTimedProcedures();
 
-        StringBuilder threadLog = getThreadLog();
+    /**
+     * Starts a timer associated with the current thread's request.
+     * @param name The name of the timed procedure, by convention "Class.method".
+     * @return A an object to hand the Timer.stop() method. Null if the Timer is not enabled.
+     */
+    public static Procedure start(String name){
+        if(!enabled)
+            return null;
 
-        String threadName = Thread.currentThread().getName();
+        Procedure p = new Procedure(name, getHistogram(name), getThreadTrace());
+        p.start();
+        return p;
+    }
 
+    /**
+     * Starts a timer associated with the current thread. The time will back up the call stack and
+     * name the Timer for the calling class and method.
+     * @return A an object to hand the Timer.stop() method.
+     * @deprecated Walking the stack costs more than the timing; use start(String).
+     */
+    @Deprecated
+    public static Procedure start(){
+        if(!enabled)
+            return null;
 
         StackTraceElement st[] = Thread.currentThread().getStackTrace();
 
         int callingMethodStackIndex = 2;
 
-
-        StringBuilder key = new StringBuilder();
-        key.append(st[callingMethodStackIndex].getClassName()).append(".")
-                .append(st[callingMethodStackIndex].getMethodName());
-
-
-        Procedure p = new Procedure();
-        p.name = key.toString();
-        p.start();
-
-        threadLog.append("[").append(threadName).append("] ").append(key.toString()).append("  STARTED: ").append(p.start).append("\n");
-
-        _log.info("start() - {} started:  {} ", key.toString(), p.start);
-
-
-        return p;
-
+        return start(st[callingMethodStackIndex].getClassName() + "." + st[callingMethodStackIndex].getMethodName());
     }
 
     /**
-     * Stops and logs the timing of the associated procedure.
+     * Stops the timing of the associated procedure and records it.
      *
-     * @param procedure  The Procedure to stop timing.
+     * @param procedure  The Procedure to stop timing. May be null, in which case nothing is done.
      */
     public static void stop(Procedure procedure){
-        if(!enabled)
+        if(procedure == null)
             return;
 
-        StringBuilder sb = new StringBuilder();
         procedure.end();
 
-        String threadName = Thread.currentThread().getName();
-
-
-        sb.append("stop() - ").append(procedure.name).append(" stopped:  ");
-        sb.append(procedure.end).append(" (").append(procedure.elapsedTime()).append(" ms)");
-
-        _log.info(sb.toString());
-
-        StringBuilder threadLog = getThreadLog();
-        threadLog.append("[").append(threadName).append("] ").append(procedure.name).append(" STOPPED: ").append(procedure.end);
-        threadLog.append(" ELAPSED: ").append(procedure.elapsedTime()).append("\n");
-
-
+        if(procedure.histogram != null)
+            procedure.histogram.record(procedure.end - procedure.start);
+        if(procedure.trace != null)
+            procedure.trace.stopped(procedure);
 
+        if(_log.isDebugEnabled())
+            _log.debug("stop() - {} elapsed: {} ms", procedure.name, procedure.elapsedTime());
     }
 
     /**
@@ -162,32 +206,35 @@ public class Timer {
      * Resets the Timer for the current thread.
      */
     public static void reset() {
-        if(!enabled)
-            return;
-
-
-        String threadName = Thread.currentThread().getName();
-
-        threadLogs.remove(threadName);
+        threadTraces.remove();
     }
 
 
     /**
      *
-     * @return A summary of the current timing activities since the last call to Timer.reset()
+     * @return The trace of the current request: the procedures timed since the last call to Timer.reset()
      */
     public static String report() {
         if (!enabled)
             return "Timer is NOT enabled";
 
-        return getThreadLog().toString();
+        return getThreadTrace().report();
 
     }
 
 
+    /**
+     * @return One line for each timed procedure: the count, mean, median, 90th and 99th
+     * percentile and longest of its timings.
+     */
+    public static String getStatistics() {
+        if (!enabled)
+            return "[Timer disabled]";
 
-
-
-
+        StringBuilder sb = new StringBuilder();
+        for (LatencyHistogram histogram : getHistograms().values())
+            sb.append(histogram).append("\n");
+        return sb.toString();
+    }
 
 }
@@ -0,0 +1,139 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.logging;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Checks the Timer's named timers, latency histograms and request traces.
+ */
+public class TimerTest {
+
+    @After
+    public void tearDown() {
+        Timer.reset();
+        Timer.disable();
+    }
+
+    @Test
+    public void testDisabled() {
+        Timer.disable();
+        Procedure p = Timer.start("TimerTest.testDisabled");
+        Assert.assertNull(p);
+        Timer.stop(p);
+        Assert.assertEquals("Timer is NOT enabled", Timer.report());
+    }
+
+    @Test
+    public void testBuckets() {
+        for (long v = 0; v < 100000; v += 7) {
+            int b = LatencyHistogram.bucket(v);
+            Assert.assertTrue(v + " is below its bucket", LatencyHistogram.lowerBound(b) <= v);
+            Assert.assertTrue(v + " is above its bucket", LatencyHistogram.lowerBound(b + 1) > v);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram("test");
+        Assert.assertEquals(0, h.getPercentile_ms(50), 0);
+
+        // 1 ms to 100 ms, one of each.
+        for (int i = 1; i <= 100; i++)
+            h.record(i * 1000000L);
+
+        Assert.assertEquals(100, h.getCount());
+        Assert.assertEquals(50.5, h.getMean_ms(), 0.001);
+        Assert.assertEquals(100, h.getMax_ms(), 0.001);
+        Assert.assertEquals(50, h.getPercentile_ms(50), 50 * 0.07);
+        Assert.assertEquals(90, h.getPercentile_ms(90), 90 * 0.07);
+        Assert.assertEquals(99, h.getPercentile_ms(99), 99 * 0.07);
+        Assert.assertTrue(h.getPercentile_ms(100) <= h.getMax_ms());
+    }
+
+    @Test
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram h = new LatencyHistogram("concurrent");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        h.record(i * 1000L);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        Assert.assertEquals(40000, h.getCount());
+        Assert.assertEquals(9.999, h.getMax_ms(), 0.0001);
+    }
+
+    @Test
+    public void testTrace() {
+        Timer.enable();
+        Timer.reset();
+
+        Procedure outer = Timer.start("TimerTest.outer");
+        Procedure inner = Timer.start("TimerTest.inner");
+        Timer.stop(inner);
+        Timer.stop(outer);
+
+        String report = Timer.report();
+        Assert.assertTrue(report, report.indexOf("TimerTest.outer") < report.indexOf("  TimerTest.inner"));
+        Assert.assertTrue(Timer.getHistogram("TimerTest.inner").getCount() >= 1);
+        Assert.assertTrue(Timer.getHistograms().containsKey("TimerTest.outer"));
+
+        RequestTrace trace = Timer.detachThreadLog();
+        Assert.assertNotNull(trace);
+        Assert.assertEquals("", Timer.report());
+        Timer.attachThreadLog(trace);
+        Assert.assertEquals(report, Timer.report());
+    }
+
+    @Test
+    public void testTraceIsBounded() {
+        Timer.enable();
+        Timer.reset();
+
+        for (int i = 0; i < RequestTrace.MAX_SPANS + 10; i++)
+            Timer.stop(Timer.start("TimerTest.loop"));
+
+        RequestTrace trace = Timer.detachThreadLog();
+        List<Procedure> spans = trace.getSpans();
+        Assert.assertEquals(RequestTrace.MAX_SPANS, spans.size());
+        Assert.assertEquals(10, trace.getDropped());
+    }
+
+}
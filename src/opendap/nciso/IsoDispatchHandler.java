@@ -25,7 +25,7 @@
  */
 package opendap.nciso;
 
-import opendap.bes.BESResource;
+import opendap.bes.BESResourceCache;
 import opendap.bes.Version;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.bes.dap4Responders.MediaType;
@@ -120,7 +120,7 @@ public class IsoDispatchHandler implements opendap.coreServlet.DispatchHandler {
 
 
         try {
-            ResourceInfo dsi = new BESResource(name, _besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(name, _besApi);
             log.debug("getLastModified(): Returning: " + new Date(dsi.lastModified()));
 
             return dsi.lastModified();
@@ -164,7 +164,7 @@ public class IsoDispatchHandler implements opendap.coreServlet.DispatchHandler {
         if(isoRequestPattern.matcher(requestURL).matches())   {
             String relativeUrl = ReqInfo.getLocalUrl(request);
             String dataSource = ReqInfo.getBesDataSourceID(relativeUrl);
-            ResourceInfo dsi = new BESResource(dataSource,_besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(dataSource,_besApi);
 
             if (dsi.sourceExists() && dsi.isDataset()) {
                 isIsoResponse = true;
@@ -26,7 +26,7 @@
 package opendap.nciso;
 
 import opendap.bes.BESError;
-import opendap.bes.BESResource;
+import opendap.bes.BESResourceCache;
 import opendap.bes.Version;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.bes.dap4Responders.MediaType;
@@ -124,7 +124,7 @@ public class RubricDispatchHandler implements opendap.coreServlet.DispatchHandle
 
 
         try {
-            ResourceInfo dsi = new BESResource(name,_besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(name,_besApi);
             log.debug("getLastModified(): Returning: " + new Date(dsi.lastModified()));
 
             return dsi.lastModified();
@@ -168,7 +168,7 @@ public class RubricDispatchHandler implements opendap.coreServlet.DispatchHandle
         if(rubricRequestPattern.matcher(requestURL).matches())   {
             String relativeUrl = ReqInfo.getLocalUrl(request);
             String dataSource = ReqInfo.getBesDataSourceID(relativeUrl);
-            ResourceInfo dsi = new BESResource(dataSource,_besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(dataSource,_besApi);
 
             if (dsi.sourceExists() && dsi.isDataset()) {
                 isrubricResponse = true;
@@ -26,7 +26,7 @@
 package opendap.ncml;
 
 import opendap.bes.BESError;
-import opendap.bes.BESResource;
+import opendap.bes.BESResourceCache;
 import opendap.bes.BadConfigurationException;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.bes.BesDapDispatcher;
@@ -123,7 +123,7 @@ public class NcmlFileDispatcher implements opendap.coreServlet.DispatchHandler {
 
 
         try {
-            ResourceInfo dsi = new BESResource(name, _besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(name, _besApi);
             log.debug("getLastModified(): Returning: " + new Date(dsi.lastModified()));
 
             return dsi.lastModified();
@@ -166,7 +166,7 @@ public class NcmlFileDispatcher implements opendap.coreServlet.DispatchHandler {
 
         if(ncmlRequestPattern.matcher(requestURL).matches())   {
             String relativeUrl = ReqInfo.getLocalUrl(request);
-            ResourceInfo dsi = new BESResource(relativeUrl,_besApi);
+            ResourceInfo dsi = BESResourceCache.getResourceInfo(relativeUrl,_besApi);
 
             if (dsi.sourceExists() && dsi.isDataset() && BesDapDispatcher.allowDirectDataSourceAccess()) {
                 isNcmlRequest = true;
@@ -170,11 +170,28 @@ public class NcmlManager {
             }
         }
 
-        if(_ncmlDatasetIdsByCatalogKey.replace(catalog.getCatalogKey(),ncmlDatasetIds)==null){
-            _ncmlDatasetIdsByCatalogKey.put(catalog.getCatalogKey(),ncmlDatasetIds);
-        }
+        replaceNcmlDatasetIds(catalog.getCatalogKey(), ncmlDatasetIds);
+
+    }
 
 
+    /**
+     * Records the NcML datasets now held for a catalog, and drops the ones it held before
+     * that it no longer has. A dataset the catalog had before and still has is replaced in
+     * place, so it is never missing while the catalog is re-ingested.
+     */
+    private static void replaceNcmlDatasetIds(String catalogKey, Vector<String> ncmlDatasetIds) {
+
+        Vector<String> previousIds = _ncmlDatasetIdsByCatalogKey.put(catalogKey, ncmlDatasetIds);
+
+        if(previousIds!=null){
+            for(String ncmlDatasetId: previousIds){
+                if(!ncmlDatasetIds.contains(ncmlDatasetId)){
+                    _ncmlDatasets.remove(ncmlDatasetId);
+                    _ncmlDatasetsLastModifiedTimes.remove(ncmlDatasetId);
+                }
+            }
+        }
     }
 
     public static  void purgeNcmlDatasets(Catalog catalog)  {
@@ -199,6 +216,70 @@ public class NcmlManager {
     }
 
 
+    /**
+     * Copies the NcML datasets that were ingested from a catalog, so that they can be
+     * restored with restoreNcml() without looking through the catalog again.
+     *
+     * @param catalog The catalog.
+     * @return An ncmlDatasets element holding a dataset element, with the ncml:netcdf
+     * element, for each NcML dataset in the catalog.
+     */
+    public static Element exportNcml(Catalog catalog) {
+
+        Element datasets = new Element("ncmlDatasets");
+
+        Vector<String> ncmlDatasetIds = _ncmlDatasetIdsByCatalogKey.get(catalog.getCatalogKey());
+        if (ncmlDatasetIds == null)
+            return datasets;
+
+        for (String dapAccessID : ncmlDatasetIds) {
+            Element netcdf = _ncmlDatasets.get(dapAccessID);
+            Long lastModified = _ncmlDatasetsLastModifiedTimes.get(dapAccessID);
+            if (netcdf == null || lastModified == null)
+                continue;
+
+            Element dataset = new Element("dataset");
+            dataset.setAttribute("dapAccessID", dapAccessID);
+            dataset.setAttribute("lastModified", Long.toString(lastModified));
+            dataset.addContent((Element) netcdf.clone());
+            datasets.addContent(dataset);
+        }
+        return datasets;
+    }
+
+
+    /**
+     * Puts the NcML datasets copied by exportNcml() back, sending them to the BES if
+     * preloadBes() is true.
+     *
+     * @param catalog The catalog they came from.
+     * @param datasets The element returned by exportNcml().
+     */
+    public static void restoreNcml(Catalog catalog, Element datasets) {
+
+        Vector<String> ncmlDatasetIds = new Vector<String>();
+
+        for (Object o : datasets.getChildren("dataset")) {
+            Element dataset = (Element) o;
+            String dapAccessID = dataset.getAttributeValue("dapAccessID");
+            Element netcdf = dataset.getChild(NCML.NETCDF, NCML.NS);
+            if (dapAccessID == null || netcdf == null)
+                continue;
+
+            _ncmlDatasets.put(dapAccessID, (Element) netcdf.clone());
+            _ncmlDatasetsLastModifiedTimes.put(dapAccessID, Long.parseLong(dataset.getAttributeValue("lastModified")));
+            ncmlDatasetIds.add(dapAccessID);
+
+            if (preloadBes()) {
+                log.debug("restoreNcml() - Sending NcML content to BES.");
+                sendNcmlToBes(dapAccessID, netcdf);
+            }
+        }
+
+        replaceNcmlDatasetIds(catalog.getCatalogKey(), ncmlDatasetIds);
+    }
+
+
     public static boolean isNcmlDataset(String dapAccessID){
 
         if(dapAccessID==null)
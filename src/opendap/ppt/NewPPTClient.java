@@ -43,7 +43,7 @@ import java.net.*;
  * Date: Jan 7, 2008
  * Time: 3:28:18 PM
  */
-public class NewPPTClient {
+public class NewPPTClient implements PPTConnection {
     private Socket _mySock = null;
     private BESChunkedOutputStream _out = null;
     private ChunkedInputStream _in = null;
@@ -161,6 +161,53 @@ public class NewPPTClient {
     }
 
 
+    /**
+     * Checks that an idle connection is still usable. A connection that has been closed by the server
+     * will return End Of Stream, and one that has unread bytes waiting is out of step with the protocol,
+     * so a healthy idle connection is one where a very short read times out.
+     *
+     * This must only be called on a connection that is not in the middle of a transaction.
+     *
+     * @return True if the connection appears to be usable, false otherwise.
+     */
+    public boolean probeConnection() {
+
+        if(_mySock==null || _mySock.isClosed() || !_mySock.isConnected() ||
+                _mySock.isInputShutdown() || _mySock.isOutputShutdown())
+            return false;
+
+        int soTimeout = 0;
+        try {
+            soTimeout = _mySock.getSoTimeout();
+
+            if(_rawIn.available()>0){
+                log.warn("probeConnection() - Found {} unexpected bytes in the input stream.",_rawIn.available());
+                return false;
+            }
+            _mySock.setSoTimeout(1);
+            int b = _rawIn.read();
+            log.warn("probeConnection() - Read unexpected value {} from idle connection.",b);
+            return false;
+        }
+        catch (SocketTimeoutException e){
+            // Nothing to read and the connection is open. Good.
+            return true;
+        }
+        catch (IOException e){
+            log.debug("probeConnection() - Caught {} Msg: {}",e.getClass().getName(),e.getMessage());
+            return false;
+        }
+        finally {
+            try {
+                if(!_mySock.isClosed())
+                    _mySock.setSoTimeout(soTimeout);
+            } catch (SocketException e) {
+                log.error("probeConnection() - Failed to restore socket timeout. Msg: {}",e.getMessage());
+            }
+        }
+    }
+
+
     public int getChunkReadBufferSize(){
 
         return _in.getChunkedReadBufferSize();
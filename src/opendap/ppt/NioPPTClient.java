@@ -0,0 +1,313 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.ppt;
+
+import opendap.bes.BESChunkedOutputStream;
+import opendap.io.ChunkedChannelReader;
+import opendap.io.HyraxStringEncoding;
+import org.jdom.Document;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A PPT client built on a (blocking) SocketChannel. Requests are written exactly as
+ * NewPPTClient writes them, but responses are read with a ChunkedChannelReader, which
+ * parses chunk headers in place and relays DATA chunk payloads through pooled direct
+ * buffers.
+ *
+ * Note that a SocketChannel read does not honor the socket's SO_TIMEOUT. Since the
+ * OPeNDAPClient currently starts every connection with a timeout of zero (wait forever)
+ * this makes no difference in practice.
+ *
+ * @see NewPPTClient
+ * @see ChunkedChannelReader
+ */
+public class NioPPTClient implements PPTConnection {
+
+    private SocketChannel _channel = null;
+    private BESChunkedOutputStream _out = null;
+    private ChunkedChannelReader _in = null;
+
+    private Logger log;
+
+    NioPPTClient(String hostStr, int portVal, int timeOut) throws PPTException {
+
+        log = org.slf4j.LoggerFactory.getLogger(getClass());
+
+        InetSocketAddress address;
+
+        try {
+            InetAddress host = InetAddress.getByName(hostStr);
+            address = new InetSocketAddress(host, portVal);
+        }
+        catch (UnknownHostException e) {
+            String msg = "Unknown Host: " + e.getMessage();
+            closeConnection(true);
+            throw new PPTException(msg, e);
+        }
+
+        try {
+            _channel = SocketChannel.open();
+            _channel.configureBlocking(true);
+            _channel.socket().connect(address, timeOut);
+            _channel.socket().setSoTimeout(timeOut);
+
+            log.info("NioPPTClient() - Connected SocketChannel to {}", address);
+        }
+        catch (IOException e) {
+            String msg = "Could not connect to host " + hostStr + " on port " + portVal + ".  ";
+            msg += e.getMessage();
+            closeConnection(true);
+            throw new PPTException(msg, e);
+        }
+    }
+
+
+    @Override
+    public String showConnectionProperties() {
+        return NewPPTClient.showConnectionProperties(_channel.socket());
+    }
+
+    @Override
+    public boolean isClosed() {
+        return _channel == null || !_channel.isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return _channel != null && _channel.isConnected();
+    }
+
+    @Override
+    public int getChunkReadBufferSize() {
+        return _in.getChunkedReadBufferSize();
+    }
+
+    @Override
+    public void dieNow() {
+        try {
+            _channel.close();
+        }
+        catch (Throwable t) {
+            log.error(t.getMessage());
+        }
+    }
+
+
+    @Override
+    public boolean initConnection() throws PPTException {
+
+        log.debug("initConnection() -  START");
+
+        try {
+            ByteBuffer hello = ByteBuffer.wrap(PPTSessionProtocol.PPTCLIENT_TESTING_CONNECTION.getBytes(HyraxStringEncoding.getCharset()));
+            while (hello.hasRemaining())
+                _channel.write(hello);
+        }
+        catch (IOException e) {
+            String msg = "Failed to initialize connection to server. ";
+            msg += e.getMessage();
+            closeConnection(true);
+            throw new PPTException(msg, e);
+        }
+
+        log.debug("initConnection() -  Sent '" + PPTSessionProtocol.PPTCLIENT_TESTING_CONNECTION + "' to server.");
+
+        ByteBuffer inBuff = ByteBuffer.allocate(4096);
+        int bytesRead;
+
+        try {
+            bytesRead = _channel.read(inBuff);
+        }
+        catch (IOException e) {
+            String msg = "Caught " + e.getClass().getSimpleName() + " attempting to read initialization response from server.  Message: ";
+            msg += e.getMessage();
+            log.error(msg);
+            closeConnection(false);
+            throw new PPTException(msg, e);
+        }
+
+        if (bytesRead < 0) {
+            log.error("initConnection() -  Encountered End Of Stream when attempting to read server handshake response!");
+            throw new PPTEndOfStreamException("PPT Connection encounter a premature End Of Stream - The connection appears to have been prematurely closed.");
+        }
+
+        String status = new String(inBuff.array(), 0, bytesRead, HyraxStringEncoding.getCharset());
+        if (status.compareTo(PPTSessionProtocol.PPT_PROTOCOL_UNDEFINED) == 0) {
+            log.error("initConnection() -  Received '" + PPTSessionProtocol.PPT_PROTOCOL_UNDEFINED + "' from server. That's a bad thing!");
+            throw new PPTException("Could not connect to server, server may be down or busy");
+        }
+        if (status.compareTo(PPTSessionProtocol.PPTSERVER_CONNECTION_OK) != 0) {
+            log.error("initConnection() -  Received unrecognized status '" + status + "' from server. That's a bummer man...");
+            throw new PPTException("Server reported an invalid connection status , \"" + status + "\"");
+        }
+        log.debug("initConnection() -  Received '" + PPTSessionProtocol.PPTSERVER_CONNECTION_OK + "' from server.");
+
+        _out = new BESChunkedOutputStream(Channels.newOutputStream(_channel));
+        _in = new ChunkedChannelReader(_channel);
+
+        log.debug("initConnection() -  END");
+
+        return true;
+    }
+
+
+    @Override
+    public boolean probeConnection() {
+
+        if (_channel == null || !_channel.isOpen() || !_channel.isConnected())
+            return false;
+
+        try {
+            _channel.configureBlocking(false);
+            try {
+                ByteBuffer b = ByteBuffer.allocate(1);
+                int n = _channel.read(b);
+                if (n == 0)
+                    return true;
+                log.warn("probeConnection() - Read {} from idle connection.", n < 0 ? "End Of Stream" : "unexpected bytes");
+                return false;
+            }
+            finally {
+                _channel.configureBlocking(true);
+            }
+        }
+        catch (IOException e) {
+            log.debug("probeConnection() - Caught {} Msg: {}", e.getClass().getName(), e.getMessage());
+            return false;
+        }
+    }
+
+
+    @Override
+    public void closeConnection(boolean informServer) {
+
+        StringBuilder msg = new StringBuilder("Closing Connection.");
+        if (_channel != null) {
+            msg.append(" SocketChannel.isOpen(): ").append(_channel.isOpen());
+        }
+        else {
+            msg.append(" _channel is null");
+        }
+        log.info(msg.toString());
+
+        try {
+            if (informServer && _out != null && _channel != null && _channel.isOpen()) {
+                // This closes the channel once the exit command has been sent.
+                _out.close();
+            }
+        }
+        catch (IOException e) {
+            log.error("closeConnection(): Unable to inform server that client is exiting, continuing. Base message: '" + e.getMessage() + "'");
+        }
+        finally {
+            _out = null;
+            _in = null;
+        }
+
+        try {
+            if (_channel != null && _channel.isOpen()) {
+                _channel.socket().shutdownOutput();   // Send 'FIN' to the other end of TCP connection
+                ByteBuffer drain = ByteBuffer.allocate(4096);
+                while (_channel.read(drain) >= 0)    // Drain the pipe
+                    drain.clear();
+                _channel.close();
+            }
+        }
+        catch (IOException e) {
+            log.error("closeConnection(): Unable to close channel, continuing. Base message: '" + e.getMessage() + "'");
+        }
+        finally {
+            _channel = null;
+        }
+    }
+
+
+    @Override
+    public boolean sendRequest(String buffer) throws PPTException {
+        try {
+            _out.write(buffer.getBytes(HyraxStringEncoding.getCharset()));
+            _out.finish();
+            _out.flush();
+        } catch (IOException e) {
+            String msg = "Failed to write to channel:  ";
+            msg += e.getMessage();
+            closeConnection(false);
+            throw new PPTException(msg, e);
+        }
+
+        return true;
+    }
+
+
+    @Override
+    public boolean sendXMLRequest(Document req) throws PPTException {
+        try {
+            XMLOutputter xmlo = new XMLOutputter(Format.getPrettyFormat());
+            log.debug("\n" + xmlo.outputString(req));
+            xmlo.output(req, _out);
+            _out.finish();
+            _out.flush();
+        } catch (IOException e) {
+            String msg = "Failed to write to channel: ";
+            msg += e.getMessage();
+            closeConnection(false);
+            throw new PPTException(msg, e);
+        }
+
+        return true;
+    }
+
+
+    @Override
+    public boolean getResponse(OutputStream strm, OutputStream errorStream) throws PPTException {
+
+        try {
+            if (strm == null)
+                throw new PPTException("Cannot write response to a \"null\" " +
+                        "OutputStream. ");
+
+            return _in.readChunkedMessage(strm, errorStream);
+
+        }
+        catch (IOException e) {
+            closeConnection(true);
+            throw new PPTException(e.getMessage(), e);
+        }
+    }
+
+}
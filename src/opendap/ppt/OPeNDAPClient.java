@@ -68,7 +68,7 @@ import java.io.*;
 
 public class OPeNDAPClient {
     private int commandCount;
-    private NewPPTClient _client = null;
+    private PPTConnection _client = null;
     private OutputStream _stream = null;
     private boolean _isRunning;
     private Logger log = null;
@@ -114,6 +114,14 @@ public class OPeNDAPClient {
         return _client.isConnected();
     }
 
+    /**
+     * Probes an idle connection to the BES.
+     * @return True if the client is running and its connection to the BES appears to be usable.
+     */
+    public boolean isHealthy() {
+        return _isRunning && _client != null && _client.probeConnection();
+    }
+
     public String showConnectionProperties()  {
         return _client.showConnectionProperties();
     }
@@ -137,10 +145,34 @@ public class OPeNDAPClient {
      * @see PPTException
      */
     public void startClient(String hostStr, int portVal, int timeOut) throws PPTException {
+        startClient(hostStr, portVal, timeOut, false);
+    }
+
+    /**
+     * Connect the OpenDAP client to the OpenDAP server.
+     *
+     * @param hostStr The name of the host machine where the server is
+     *                running.
+     * @param portVal The port on which the server on the host hostStr is
+     *                listening for requests.
+     * @param timeOut The number of milliseconds for the client to wait for the BES
+     *                to reply before timing out.
+     * @param useNio  If true the connection is made with the NIO (SocketChannel)
+     *                transport, otherwise with the java.net.Socket transport.
+     * @throws PPTException Thrown if unable to connect to the specified host
+     *                      machine given the specified port.
+     * @see NioPPTClient
+     * @see NewPPTClient
+     */
+    public void startClient(String hostStr, int portVal, int timeOut, boolean useNio) throws PPTException {
 
         int paddedTimeout = 0; // (int)(timeOut + 10000);  // padded by 10 seconds
-        
-        _client = new NewPPTClient(hostStr, portVal, paddedTimeout);
+
+        if(useNio)
+            _client = new NioPPTClient(hostStr, portVal, paddedTimeout);
+        else
+            _client = new NewPPTClient(hostStr, portVal, paddedTimeout);
+
         _client.initConnection();
         _isRunning = true;
     }
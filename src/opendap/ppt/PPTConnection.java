@@ -0,0 +1,90 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+
+package opendap.ppt;
+
+import org.jdom.Document;
+
+import java.io.OutputStream;
+
+/**
+ * The transport level connection to a BES used by an OPeNDAPClient. Implementations
+ * handle the PPT handshake and move chunked messages between the OLFS and the BES.
+ *
+ * @see NewPPTClient
+ * @see NioPPTClient
+ */
+public interface PPTConnection {
+
+    /**
+     * Performs the PPT handshake with the server.
+     * @return True if the connection was initialized.
+     * @throws PPTException When the handshake fails.
+     */
+    boolean initConnection() throws PPTException;
+
+    /**
+     * Attempts to gracefully close the connection to the Server.
+     * @param informServer A true value will result in an attempt to inform the Server that the client is disconnecting.
+     * A false value will simple cause the client to close connections with out informing the server.
+     */
+    void closeConnection(boolean informServer);
+
+    void dieNow();
+
+    boolean sendRequest(String buffer) throws PPTException;
+
+    boolean sendXMLRequest(Document req) throws PPTException;
+
+    /**
+     * Get the response from the BES and write it to the passed OutputStream
+     *
+     * @param strm The stream to which to write the response.
+     * @param errorStream The stream to which to write any errors sent from
+     * the server.
+     * @return False if the server returns an error extension in the message,
+     * true otherwise.
+     * @throws PPTException Stuff happens
+     */
+    boolean getResponse(OutputStream strm, OutputStream errorStream) throws PPTException;
+
+    boolean isClosed();
+
+    boolean isConnected();
+
+    /**
+     * Checks that an idle connection is still usable. This must only be called on a
+     * connection that is not in the middle of a transaction.
+     *
+     * @return True if the connection appears to be usable, false otherwise.
+     */
+    boolean probeConnection();
+
+    int getChunkReadBufferSize();
+
+    String showConnectionProperties();
+
+}
@@ -498,6 +498,7 @@ public class BesCatalog implements Catalog {
 
             Document besShowCatalogDoc = new Document();
             _besApi.getBesCatalog(_besCatalogResourceId, besShowCatalogDoc);
+            _besApi.prefetchChildCatalogs(_besCatalogResourceId, besShowCatalogDoc);
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
@@ -31,7 +31,6 @@ import opendap.bes.BESError;
 import opendap.bes.BadConfigurationException;
 import opendap.bes.dap2Responders.BesApi;
 import opendap.coreServlet.RequestCache;
-import opendap.coreServlet.Scrub;
 import opendap.namespaces.THREDDS;
 import opendap.ncml.NcmlManager;
 import opendap.ppt.PPTException;
@@ -44,9 +43,31 @@ import org.jdom.output.XMLOutputter;
 import org.slf4j.Logger;
 
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -54,11 +75,26 @@ import java.util.concurrent.locks.ReentrantLock;
  * User: ndp
  * Date: Apr 18, 2008
  * Time: 3:55:43 PM
+ *
+ * The ingested catalogs are held in an immutable Snapshot. Lookups read the
+ * current Snapshot without locking. When a catalog's file changes the catalog
+ * and everything below it are rebuilt on a background thread, and the new
+ * Snapshot replaces the old one in a single step. Until then the old catalog
+ * continues to be served.
+ *
+ * Catalogs are ingested by a bounded fork-join pool, which reads and ingests the
+ * catalogs referenced by a catalog in parallel. A catalog tree added with
+ * addCatalogInBackground() is published when all of it has been ingested;
+ * until then isReady() is false and the catalogs not yet published are read
+ * from their files when asked for.
+ *
+ * Once startCatalogWatcher() has been called, changed files are found by a
+ * CatalogWatcher and lookups no longer look at the catalog files at all.
  */
 public class CatalogManager {
 
 
-    private static Logger _log;
+    private static Logger _log = org.slf4j.LoggerFactory.getLogger(CatalogManager.class);
     private static String _contentPath;
     private static String _catalogIngestTransformFilename;
     private static String _besCatalogToThreddsCatalogTransformFilename;
@@ -66,13 +102,227 @@ public class CatalogManager {
     private static BesApi _besApi;
 
 
-    private static ConcurrentHashMap<String, DatasetScan>   _datasetScans = new ConcurrentHashMap<>();
-    private static ConcurrentHashMap<String, Catalog>       _catalogs     = new ConcurrentHashMap<>();
-    private static ConcurrentHashMap<String, String[]>      _children     = new ConcurrentHashMap<>();
+    /**
+     * The catalogs, their children and their datasetScans, as published by the
+     * last change. Never modified; a change publishes a new Snapshot.
+     */
+    private static class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(
+                new HashMap<String, Catalog>(),
+                new HashMap<String, String[]>(),
+                new HashMap<String, DatasetScan>(),
+                new HashMap<String, String[]>(),
+                new HashMap<String, String>(),
+                new HashMap<String, String[][]>());
+
+        final Map<String, Catalog>     catalogs;
+        final Map<String, String[]>    children;
+        final Map<String, DatasetScan> datasetScans;
+
+        /** catalogKey -> the keys in datasetScans of the datasetScans in that catalog. */
+        final Map<String, String[]>    datasetScanKeys;
+
+        /** catalog file name -> catalogKey. */
+        final Map<String, String>      files;
+
+        /** catalogKey -> pathPrefix, urlPrefix and fileName of each catalogRef followed from it. */
+        final Map<String, String[][]>  catalogRefs;
+
+        Snapshot(Map<String, Catalog> catalogs,
+                 Map<String, String[]> children,
+                 Map<String, DatasetScan> datasetScans,
+                 Map<String, String[]> datasetScanKeys,
+                 Map<String, String> files,
+                 Map<String, String[][]> catalogRefs) {
+            this.catalogs = Collections.unmodifiableMap(catalogs);
+            this.children = Collections.unmodifiableMap(children);
+            this.datasetScans = Collections.unmodifiableMap(datasetScans);
+            this.datasetScanKeys = Collections.unmodifiableMap(datasetScanKeys);
+            this.files = Collections.unmodifiableMap(files);
+            this.catalogRefs = Collections.unmodifiableMap(catalogRefs);
+        }
+    }
+
+
+    /**
+     * A catalog and the catalogs below it, built from their files but not yet published.
+     * Built by many threads at once.
+     */
+    private static class Subtree {
+        final ConcurrentHashMap<String, Catalog>     catalogs        = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, String[]>    children        = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, DatasetScan> datasetScans    = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, String[]>    datasetScanKeys = new ConcurrentHashMap<>();
+        final ConcurrentHashMap<String, String[][]>  catalogRefs     = new ConcurrentHashMap<>();
+
+        /** The catalogs whose inherited metadata and NcML have already been ingested. */
+        final ConcurrentHashMap<String, Catalog> ingested = new ConcurrentHashMap<>();
+
+        /** catalogKey -> What the catalog was when the snapshot file was written. */
+        final Map<String, CatalogSnapshotFile.Entry> restorable;
+
+        /** catalogKey -> The entries the catalogs were restored from. */
+        final ConcurrentHashMap<String, CatalogSnapshotFile.Entry> restored = new ConcurrentHashMap<>();
+
+        Subtree(Map<String, CatalogSnapshotFile.Entry> restorable) {
+            this.restorable = restorable;
+        }
+
+        Subtree() {
+            this(Collections.<String, CatalogSnapshotFile.Entry>emptyMap());
+        }
+    }
+
+
+    /**
+     * Builds one catalog of a Subtree, forking a task for each of the catalogs it references
+     * so that sibling catalogs are read and ingested at the same time.
+     */
+    private static class CatalogIngest extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String pathPrefix;
+        private final String urlPrefix;
+        private final String fileName;
+        private final boolean cacheCatalogFileContent;
+        private final Subtree subtree;
+
+        /** The files of the catalogs above this one. */
+        private final Set<String> ancestorFiles;
+
+        private Catalog catalog;
+        private Exception failure;
 
+        CatalogIngest(Catalog catalog, boolean cacheCatalogFileContent, Subtree subtree) {
+            this(catalog.getPathPrefix(), catalog.getUrlPrefix(), catalog.getFileName(), cacheCatalogFileContent, subtree,
+                    Collections.<String>emptySet());
+            this.catalog = catalog;
+        }
+
+        CatalogIngest(String pathPrefix, String urlPrefix, String fileName, boolean cacheCatalogFileContent, Subtree subtree,
+                      Set<String> ancestorFiles) {
+            this.pathPrefix = pathPrefix;
+            this.urlPrefix = urlPrefix;
+            this.fileName = fileName;
+            this.cacheCatalogFileContent = cacheCatalogFileContent;
+            this.subtree = subtree;
+            this.ancestorFiles = ancestorFiles;
+            catalog = null;
+            failure = null;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (catalog == null)
+                    catalog = loadCatalog(pathPrefix, urlPrefix, fileName, cacheCatalogFileContent, subtree);
+
+                // A catalogRef that leads back to a catalog above it (say through "..") has a
+                // new catalogKey every time around, so the loop is found by file.
+                String file = catalogFile(catalog);
+                if (ancestorFiles.contains(file))
+                    throw new BadConfigurationException("The catalogRef to " + file + " is a loop.");
+
+                Set<String> files = new HashSet<>(ancestorFiles);
+                files.add(file);
+                buildCatalog(catalog, cacheCatalogFileContent, subtree, files);
+            }
+            catch (Exception e) {
+                failure = e;
+                _log.error("compute() - Failed to build catalog. Dropping. File: " + pathPrefix + fileName + " Msg: " + e.getMessage());
+            }
+        }
+    }
+
+
+    private static volatile Snapshot _snapshot = Snapshot.EMPTY;
+
+    /**
+     * Serializes the publication of new Snapshots. Lookups never take it.
+     */
     private static ReentrantLock _catalogLock  = new ReentrantLock();
 
 
+    /**
+     * Rebuilds changed catalogs in the background.
+     */
+    private static ExecutorService _refresher;
+
+    /**
+     * The catalogKeys of the catalogs waiting for or being rebuilt.
+     */
+    private static Set<String> _refreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * catalogKey -> When the last attempt to rebuild that catalog failed.
+     */
+    private static ConcurrentHashMap<String, Long> _refreshFailures = new ConcurrentHashMap<>();
+
+    /**
+     * Milliseconds to wait before trying again to rebuild a catalog that couldn't be rebuilt.
+     */
+    public static final long REFRESH_RETRY_INTERVAL = 10000;
+
+    /**
+     * Finds the changed catalog files. When null, lookups check the files themselves.
+     */
+    private static volatile CatalogWatcher _watcher;
+
+
+    /**
+     * The most catalogs read and ingested at once.
+     */
+    public static final int INGEST_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    private static ForkJoinPool _ingestPool;
+
+    /**
+     * The number of catalog trees being added. Also the monitor for awaitReady().
+     */
+    private static final AtomicInteger _ingesting = new AtomicInteger(0);
+
+    /**
+     * catalogKey -> Catalogs read from their files because they were asked for before
+     * they were published. Dropped once everything is published.
+     */
+    private static ConcurrentHashMap<String, Catalog> _unpublished = new ConcurrentHashMap<>();
+
+    private static volatile String _rootPathPrefix;
+    private static volatile String _rootUrlPrefix;
+
+    /**
+     * Where the ingested catalogs are saved between restarts. Null if they aren't.
+     */
+    private static volatile String _snapshotFileName;
+
+    /**
+     * How long after a change the snapshot file is written, so that a burst of changes is
+     * saved once.
+     */
+    static final long SNAPSHOT_WRITE_DELAY = 5000; // ms
+
+    /**
+     * Writes the snapshot file; nothing else does.
+     */
+    private static ScheduledExecutorService _snapshotWriter;
+    private static final AtomicBoolean _snapshotWritePending = new AtomicBoolean(false);
+    private static final Runnable _snapshotWrite = new Runnable() {
+        @Override
+        public void run() {
+            if (_snapshotWritePending.getAndSet(false))
+                writeSnapshotFile();
+        }
+    };
+
+    private static AtomicLong _restoredCatalogs = new AtomicLong(0);
+
+
+    private static AtomicLong _reloads = new AtomicLong(0);
+    private static AtomicLong _reloadFailures = new AtomicLong(0);
+
+
     private static boolean _isInitialized = false;
 
 
@@ -84,8 +334,6 @@ public class CatalogManager {
                             String besCatalogToThreddsCatalogTransformFilename,
                             BesApi besApi) {
 
-        _log = org.slf4j.LoggerFactory.getLogger(CatalogManager.class);
-
         _log.debug("Configuring...");
 
         if (_isInitialized) {
@@ -106,133 +354,394 @@ public class CatalogManager {
                                   boolean cacheCatalogFileContent)
             throws Exception {
 
-        LocalFileCatalog catalog = null;
-
+        _ingesting.incrementAndGet();
         try {
-             catalog = new LocalFileCatalog(pathPrefix, urlPrefix, fname, _catalogIngestTransformFilename, cacheCatalogFileContent);
+            ingestRootCatalog(pathPrefix, urlPrefix, fname, cacheCatalogFileContent);
         }
-        catch (Exception e){
-            _log.error("Failed to build catalog from file: "+fname);
+        finally {
+            ingestDone();
         }
+    }
 
-        if(catalog !=null){
-            try{
-                _catalogLock.lock();
-                _log.debug("addCatalog(): Catalog locked.");
 
-                addCatalog(catalog, cacheCatalogFileContent);
+    /**
+     * Starts adding the catalog, and the catalogs below it, on a background thread and
+     * returns. Until all of them have been published isReady() is false and catalogs that
+     * have not been published yet are read from their files when asked for.
+     */
+    public static void addCatalogInBackground(final String pathPrefix,
+                                              final String urlPrefix,
+                                              final String fname,
+                                              final boolean cacheCatalogFileContent) {
+
+        _ingesting.incrementAndGet();
+        _rootPathPrefix = pathPrefix;
+        _rootUrlPrefix = urlPrefix;
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long start = System.currentTimeMillis();
+                    ingestRootCatalog(pathPrefix, urlPrefix, fname, cacheCatalogFileContent);
+                    _log.info("run() - Ingested {} THREDDS catalogs in {} ms.", getCatalogCount(), System.currentTimeMillis() - start);
+                }
+                catch (Throwable e) {
+                    _log.error("run() - Failed to ingest THREDDS catalog {} Msg: {}", pathPrefix + fname, e.getMessage());
+                }
+                finally {
+                    ingestDone();
+                }
             }
-            finally {
-                _catalogLock.unlock();
-                _log.debug("addCatalog(): Catalog unlocked.");
+        }, "olfs-catalog-ingest");
+        t.setDaemon(true);
+        t.start();
+    }
 
-            }
+
+    private static void ingestRootCatalog(String pathPrefix,
+                                          String urlPrefix,
+                                          String fname,
+                                          boolean cacheCatalogFileContent)
+            throws Exception {
+
+        String catalogKey = urlPrefix + fname;
+
+        // If this catalog has already been added,  then don't mess with it.
+        if (_snapshot.catalogs.containsKey(catalogKey)){
+            _log.warn("addCatalog() - The catalog '"+catalogKey+"' is already in the collection.");
+            return;
+        }
+
+        String snapshotFileName = _snapshotFileName;
+        Subtree subtree = new Subtree(snapshotFileName == null ? Collections.<String, CatalogSnapshotFile.Entry>emptyMap() :
+                CatalogSnapshotFile.read(snapshotFileName, _catalogIngestTransformFilename));
+
+        buildSubtree(new CatalogIngest(pathPrefix, urlPrefix, fname, cacheCatalogFileContent, subtree,
+                Collections.<String>emptySet()), subtree);
+        publish(catalogKey, subtree);
+
+        _log.info("ingestRootCatalog() - Restored {} of {} catalogs from the snapshot file.",
+                subtree.restored.size(), subtree.catalogs.size());
+        scheduleSnapshotWrite();
+    }
+
+
+    /**
+     * Sets the file the ingested catalogs are saved to, so that a restart only has to
+     * ingest the catalogs whose files have changed. Catalogs added after this call are
+     * restored from the file, if it's there.
+     *
+     * @param fileName The file, or null to not save the catalogs.
+     */
+    public static void setSnapshotFile(String fileName) {
+        _snapshotFileName = fileName;
+    }
+
+
+    /**
+     * Has the snapshot writer save the published catalogs to the snapshot file once
+     * SNAPSHOT_WRITE_DELAY has passed, unless a write is already waiting.
+     */
+    private static void scheduleSnapshotWrite() {
+        if (_snapshotFileName == null || !_snapshotWritePending.compareAndSet(false, true))
+            return;
+        try {
+            getSnapshotWriter().schedule(_snapshotWrite, SNAPSHOT_WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+        catch (RejectedExecutionException e) {
+            _snapshotWritePending.set(false);
+        }
+    }
+
+
+    /**
+     * Writes the snapshot file now if a write is waiting, and returns once it's written.
+     */
+    static void flushSnapshotFile() throws Exception {
+        getSnapshotWriter().submit(_snapshotWrite).get();
+    }
+
+
+    private static synchronized ScheduledExecutorService getSnapshotWriter() {
+        if (_snapshotWriter == null) {
+            _snapshotWriter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "olfs-catalog-snapshot");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
         }
+        return _snapshotWriter;
+    }
 
+
+    /**
+     * Saves the published catalogs to the snapshot file. Only run by the snapshot writer,
+     * or by destroy() once the snapshot writer has stopped.
+     */
+    private static void writeSnapshotFile() {
+
+        String snapshotFileName = _snapshotFileName;
+        if (snapshotFileName == null)
+            return;
+
+        Snapshot snapshot = _snapshot;
+        List<CatalogSnapshotFile.Entry> entries = new ArrayList<>();
+        for (Catalog catalog : snapshot.catalogs.values()) {
+            if (!(catalog instanceof LocalFileCatalog))
+                continue;
+            String key = catalog.getCatalogKey();
+            String[][] catalogRefs = snapshot.catalogRefs.get(key);
+            entries.add(new CatalogSnapshotFile.Entry((LocalFileCatalog) catalog,
+                    catalogRefs == null ? new String[0][] : catalogRefs,
+                    snapshot.datasetScanKeys.containsKey(key),
+                    InheritedMetadataManager.exportInheritedMetadata(key),
+                    NcmlManager.exportNcml(catalog)));
+        }
+
+        try {
+            CatalogSnapshotFile.write(snapshotFileName, _catalogIngestTransformFilename, entries);
+        }
+        catch (IOException e) {
+            _log.warn("writeSnapshotFile() - Unable to write {} Msg: {}", snapshotFileName, e.getMessage());
+        }
     }
 
 
-    private static void addCatalog(Catalog catalog,
-                                   boolean cacheCatalogFileContent)
+    /**
+     * Restores the catalog from the subtree's snapshot file entry if its file hasn't
+     * changed since the entry was written, else reads it from its file.
+     */
+    private static LocalFileCatalog loadCatalog(String pathPrefix,
+                                                String urlPrefix,
+                                                String fileName,
+                                                boolean cacheCatalogFileContent,
+                                                Subtree subtree)
             throws Exception {
 
+        String catalogKey = urlPrefix + fileName;
+        CatalogSnapshotFile.Entry entry = subtree.restorable.get(catalogKey);
+        if (entry != null && entry.isCurrent(pathPrefix, urlPrefix, fileName, cacheCatalogFileContent)) {
+            LocalFileCatalog catalog = entry.toCatalog(_catalogIngestTransformFilename);
+            subtree.restored.put(catalogKey, entry);
+            _restoredCatalogs.incrementAndGet();
+            return catalog;
+        }
+        return new LocalFileCatalog(pathPrefix, urlPrefix, fileName, _catalogIngestTransformFilename, cacheCatalogFileContent);
+    }
 
-        String catalogKey = catalog.getCatalogKey();
 
-        // If this catalog has already been added,  then don't mess with it.
-        if (_catalogs.containsKey(catalogKey)){
-            _log.warn("The catalog '"+catalogKey+"' is already in the collection. It must be removed (purgeCatalog()) " +
-                    "before it can be added again.");
+    private static void ingestDone() {
+        if (_ingesting.decrementAndGet() > 0)
             return;
+
+        _unpublished.clear();
+        synchronized (_ingesting) {
+            _ingesting.notifyAll();
         }
 
+        // Files changed while they were being ingested weren't being watched yet.
+        if (_watcher != null)
+            refreshChangedCatalogs();
+    }
+
+
+    /**
+     * @return False while catalogs added with addCatalogInBackground() are being ingested.
+     */
+    public static boolean isReady() {
+        return _ingesting.get() == 0;
+    }
+
+    /**
+     * Waits for the catalogs being ingested to be published.
+     *
+     * @param timeout Milliseconds to wait.
+     * @return True if they were published, false if the wait timed out.
+     * @throws InterruptedException When interrupted while waiting.
+     */
+    public static boolean awaitReady(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (_ingesting) {
+            long remaining;
+            while (!isReady() && (remaining = deadline - System.currentTimeMillis()) > 0)
+                _ingesting.wait(remaining);
+        }
+        return isReady();
+    }
+
+
+    private static synchronized ForkJoinPool getIngestPool() {
+        if (_ingestPool == null)
+            _ingestPool = new ForkJoinPool(INGEST_PARALLELISM);
+        return _ingestPool;
+    }
+
+
+    /**
+     * Builds the catalog and the catalogs below it, in parallel.
+     *
+     * @param ingest The task for the catalog at the top of the subtree.
+     * @param subtree The subtree the task builds.
+     * @throws Exception When the top catalog can't be built. Catalogs below it that can't
+     * be built are dropped.
+     */
+    private static void buildSubtree(CatalogIngest ingest, Subtree subtree) throws Exception {
+
+        getIngestPool().invoke(ingest);
 
-        if (_children.containsKey(catalogKey)) {
-            String msg = "addCatalog() Invalid State! Although the list of catalogs does not contain a " +
-                    "reference to the catalog '" + catalogKey + "' the list of children does!!!";
-            _log.error(msg);
-            throw new Exception(msg);
+        if (ingest.failure != null) {
+            // Nothing will be published, so drop what was ingested along the way.
+            for (Map.Entry<String, Catalog> e : subtree.ingested.entrySet()) {
+                InheritedMetadataManager.purgeInheritedMetadata(e.getKey());
+                NcmlManager.purgeNcmlDatasets(e.getValue());
+            }
+            throw ingest.failure;
         }
+    }
+
+
+    /**
+     * Adds the catalog, the catalogs it references and their datasetScans to the subtree.
+     * Runs in the ingest pool; the referenced catalogs are built by forked tasks.
+     * Nothing is published, but the inherited metadata and NcML of a catalog that
+     * isn't published yet are ingested here rather than by publish().
+     *
+     * @param catalog The catalog to add.
+     * @param cacheCatalogFileContent Whether the child catalogs keep their content in memory.
+     * @param subtree The subtree being built.
+     * @param files The files of this catalog and the catalogs above it.
+     * @throws Exception When the catalog document can't be read or ingested.
+     */
+    private static void buildCatalog(Catalog catalog,
+                                     boolean cacheCatalogFileContent,
+                                     Subtree subtree,
+                                     Set<String> files)
+            throws Exception {
+
 
+        String catalogKey = catalog.getCatalogKey();
 
-        Document catDoc = catalog.getRawCatalogDocument();
-        if(catDoc==null){
-            String msg = "FAILED to get catalog Document object for the catalog associated with file "+catalog.getFileName()+"'";
-            _log.error("addCatalog() - {}", msg);
-            throw new BadConfigurationException(msg);
+        // If this catalog has already been claimed by another catalogRef, then don't mess
+        // with it. Claiming it before its children are built ends catalogRef loops.
+        if (subtree.catalogs.putIfAbsent(catalogKey, catalog) != null){
+            _log.warn("The catalog '"+catalogKey+"' is referenced more than once. Only the first reference " +
+                    "is followed.");
+            return;
         }
-        _log.debug("addCatalog() - Loaded Catalog document: \n{}",new XMLOutputter(Format.getPrettyFormat()).outputString(catDoc));
 
-        Element catRef;
-        String href, catFname, thisUrlPrefix, thisPathPrefix;
+        try {
+            buildClaimedCatalog(catalog, cacheCatalogFileContent, subtree, files);
+        }
+        catch (Exception e) {
+            subtree.catalogs.remove(catalogKey);
+            subtree.children.remove(catalogKey);
+            subtree.datasetScanKeys.remove(catalogKey);
+            subtree.catalogRefs.remove(catalogKey);
+            throw e;
+        }
+    }
 
 
-        // Get all of the catalogRef elements in the  catalog document.
-        Iterator i = catDoc.getRootElement().getDescendants(new ElementFilter(THREDDS.CATALOG_REF, opendap.namespaces.THREDDS.NS));
+    private static void buildClaimedCatalog(Catalog catalog,
+                                            boolean cacheCatalogFileContent,
+                                            Subtree subtree,
+                                            Set<String> files)
+            throws Exception {
 
-        Vector<String> catalogChildren = new Vector<String>();
-        while (i.hasNext()) {
-
-            // For each one of them...
-            catRef = (Element) i.next();
-
-            // get the URL of the catalog.
-            href = catRef.getAttributeValue(XLINK.HREF, XLINK.NS);
-
-            if (href.startsWith("http://")) {
-                _log.info("Found catalogRef that references an external " +
-                        "catalog: '"+href+"' Target catalog not processed. The catalogRef element " +
-                        "will remain in the catalog and will not be cached.");
-                // @todo Add remote catalog caching support?
-            } else if (href.startsWith("/")) {
-                _log.info("Found thredds:catalogRef whose xlink:href attribute " +
-                        "begins with a \"/\" character: '" + href +"' "+
-                        "This may mean that the catalog is pointing " +
-                        "to another catalog service. Also, it is not an href " +
-                        "expressed in terms of the relative content path. " +
-                        "Target catalog not processed as a file. " +
-                        "The catalogRef element " +
-                        "will remain in the catalog. This will allow it to " +
-                        "appear correctly in thredds catalog output. But it's contents " +
-                        "will not be cached.");
-                // @todo Add support for catalog caching within the local server? Mabye not.
-            } else {
-
-                // Since it's not a remote catalog, or an absolute path (starting with '/') then
-                // we will conclude that it is a static THREDDS catalog file. Let's slurp it up into
-                // a LocalFileCatalog object.
-
-                thisUrlPrefix = catalog.getUrlPrefix() + href.substring(0, href.length() - Util.basename(href).length());
-
-                thisPathPrefix = catalog.getPathPrefix() + href;
-                catFname = Util.basename(thisPathPrefix);
-                thisPathPrefix = thisPathPrefix.substring(0, thisPathPrefix.lastIndexOf(catFname));
-
-                LocalFileCatalog thisCatalog = null;
-                try {
-                    thisCatalog = new LocalFileCatalog(thisPathPrefix,
-                        thisUrlPrefix,
-                        catFname,
-                        _catalogIngestTransformFilename,
-                        cacheCatalogFileContent);
+        String catalogKey = catalog.getCatalogKey();
 
-                    addCatalog(thisCatalog, cacheCatalogFileContent);
-                    String thisCatalogIndex = thisCatalog.getCatalogKey();
-                    catalogChildren.add(thisCatalogIndex);
+        // A catalog restored from the snapshot file already knows which catalogRefs it
+        // follows, and whether it has any datasetScans.
+        CatalogSnapshotFile.Entry restored = subtree.restored.get(catalogKey);
 
-                }
-                catch( Exception e){
-                    _log.error("addCatalog() - Failed to build catalog. Dropping. File: "+thisPathPrefix + catFname+ " Msg: "+e.getMessage());
-                }
+        List<CatalogIngest> childIngests = new ArrayList<>();
+        List<String[]> catalogRefs = new ArrayList<>();
+        Iterator i;
 
+        if (restored != null) {
+            for (String[] ref : restored.catalogRefs) {
+                catalogRefs.add(ref);
+                childIngests.add(new CatalogIngest(ref[0], ref[1], ref[2], cacheCatalogFileContent, subtree, files));
+            }
+        }
+        else {
+
+            Document catDoc = catalog.getRawCatalogDocument();
+            if(catDoc==null){
+                String msg = "FAILED to get catalog Document object for the catalog associated with file "+catalog.getFileName()+"'";
+                _log.error("buildCatalog() - {}", msg);
+                throw new BadConfigurationException(msg);
+            }
+            _log.debug("buildCatalog() - Loaded Catalog document: \n{}",new XMLOutputter(Format.getPrettyFormat()).outputString(catDoc));
+
+            Element catRef;
+            String href, catFname, thisUrlPrefix, thisPathPrefix;
+
+
+            // Get all of the catalogRef elements in the  catalog document.
+            i = catDoc.getRootElement().getDescendants(new ElementFilter(THREDDS.CATALOG_REF, opendap.namespaces.THREDDS.NS));
+
+            while (i.hasNext()) {
+
+                // For each one of them...
+                catRef = (Element) i.next();
+
+                // get the URL of the catalog.
+                href = catRef.getAttributeValue(XLINK.HREF, XLINK.NS);
+
+                if (href.startsWith("http://")) {
+                    _log.info("Found catalogRef that references an external " +
+                            "catalog: '"+href+"' Target catalog not processed. The catalogRef element " +
+                            "will remain in the catalog and will not be cached.");
+                    // @todo Add remote catalog caching support?
+                } else if (href.startsWith("/")) {
+                    _log.info("Found thredds:catalogRef whose xlink:href attribute " +
+                            "begins with a \"/\" character: '" + href +"' "+
+                            "This may mean that the catalog is pointing " +
+                            "to another catalog service. Also, it is not an href " +
+                            "expressed in terms of the relative content path. " +
+                            "Target catalog not processed as a file. " +
+                            "The catalogRef element " +
+                            "will remain in the catalog. This will allow it to " +
+                            "appear correctly in thredds catalog output. But it's contents " +
+                            "will not be cached.");
+                    // @todo Add support for catalog caching within the local server? Mabye not.
+                } else {
+
+                    // Since it's not a remote catalog, or an absolute path (starting with '/') then
+                    // we will conclude that it is a static THREDDS catalog file. Let's slurp it up into
+                    // a LocalFileCatalog object.
 
+                    thisUrlPrefix = catalog.getUrlPrefix() + href.substring(0, href.length() - Util.basename(href).length());
 
+                    thisPathPrefix = catalog.getPathPrefix() + href;
+                    catFname = Util.basename(thisPathPrefix);
+                    thisPathPrefix = thisPathPrefix.substring(0, thisPathPrefix.lastIndexOf(catFname));
+
+                    catalogRefs.add(new String[]{thisPathPrefix, thisUrlPrefix, catFname});
+                    childIngests.add(new CatalogIngest(thisPathPrefix, thisUrlPrefix, catFname, cacheCatalogFileContent, subtree, files));
+
+                }
             }
         }
+        subtree.catalogRefs.put(catalogKey, catalogRefs.toArray(new String[catalogRefs.size()][]));
+
+        // Build the referenced catalogs in parallel.
+        ForkJoinTask.invokeAll(childIngests);
+
+        Vector<String> catalogChildren = new Vector<String>();
+        for (CatalogIngest childIngest : childIngests) {
+            if (childIngest.failure == null)
+                catalogChildren.add(childIngest.catalog.getCatalogKey());
+        }
 
         if (!catalogChildren.isEmpty()) {
             String[] s = new String[catalogChildren.size()];
-            _children.put(catalogKey, catalogChildren.toArray(s));
+            subtree.children.put(catalogKey, catalogChildren.toArray(s));
         }
 
 
@@ -244,39 +753,69 @@ public class CatalogManager {
          *
          */
 
-         Document rawCatalog = catalog.getRawCatalogDocument();
+        Vector<String> datasetScanKeys = new Vector<String>();
+        if (restored == null || restored.hasDatasetScans) {
+
+            Document rawCatalog = catalog.getRawCatalogDocument();
 
 
-         // Get all of the datasetScan elements in the  catalog document.
-         i = rawCatalog.getRootElement().getDescendants(new ElementFilter(THREDDS.DATASET_SCAN, THREDDS.NS));
+            // Get all of the datasetScan elements in the  catalog document.
+            i = rawCatalog.getRootElement().getDescendants(new ElementFilter(THREDDS.DATASET_SCAN, THREDDS.NS));
 
+            while (i.hasNext()) {
+                // For each one of them...
+                Element dssElem = (Element) i.next();
 
-        while (i.hasNext()) {
-            // For each one of them...
-            Element dssElem = (Element) i.next();
+                datasetScanKeys.add(addDatasetScan(catalog, dssElem, subtree));
+            }
+        }
 
-            addDatasetScan(catalog,dssElem);
+        if (!datasetScanKeys.isEmpty()) {
+            String[] s = new String[datasetScanKeys.size()];
+            subtree.datasetScanKeys.put(catalogKey, datasetScanKeys.toArray(s));
         }
 
         /** ###############################################################################  */
 
 
+        // A catalog that replaces a published one is ingested by publish(), so that a
+        // subtree that fails to build leaves the published catalog's metadata alone.
+        if (!_snapshot.catalogs.containsKey(catalogKey)) {
+            try {
+                if (restored != null) {
+                    InheritedMetadataManager.restoreInheritedMetadata(catalogKey, restored.getInheritedMetadata());
+                    NcmlManager.restoreNcml(catalog, restored.getNcml());
+                }
+                else {
+                    ingestCatalog(catalog);
+                }
+                subtree.ingested.put(catalogKey, catalog);
+            }
+            catch (Exception e) {
+                InheritedMetadataManager.purgeInheritedMetadata(catalogKey);
+                NcmlManager.purgeNcmlDatasets(catalog);
+                throw e;
+            }
+        }
+
+    }
+
 
+    /**
+     * Ingests the catalog's inherited metadata and NcML datasets.
+     */
+    private static void ingestCatalog(Catalog catalog) throws Exception {
 
         _log.debug("Ingesting inherited metadata (if any) for catalog '"+catalog.getName()+"'");
         InheritedMetadataManager.ingestInheritedMetadata(catalog);
 
         _log.debug("Ingesting NcML datasets (if any) for catalog '"+catalog.getName()+"'");
         NcmlManager.ingestNcml(catalog);
-
-        _catalogs.put(catalogKey, catalog);
-
-
     }
 
 
 
-    private static void addDatasetScan(Catalog catalog,Element dssElem) throws BadConfigurationException{
+    private static String addDatasetScan(Catalog catalog, Element dssElem, Subtree subtree) throws BadConfigurationException{
 
 
         DatasetScan ds = new DatasetScan(catalog,  dssElem,  _besCatalogToThreddsCatalogTransformFilename, _besApi);
@@ -285,12 +824,137 @@ public class CatalogManager {
         PathBuilder pb = new PathBuilder();
 
         pb.append(catalog.getPathPrefix()).append(ds.getPath());
-        _datasetScans.put(pb.toString(),ds);
+        subtree.datasetScans.put(pb.toString(),ds);
 
+        return pb.toString();
 
     }
 
 
+    /**
+     * Replaces the catalog identified by catalogKey, and the catalogs below it, with the
+     * subtree and publishes the result as the new Snapshot. The inherited metadata and
+     * NcML datasets of the new catalogs are ingested before the Snapshot is published; a
+     * catalog that keeps its catalogKey has its metadata replaced in a single step. The
+     * metadata of catalogs that are gone is purged only after the new Snapshot is published,
+     * so that lookups never find a published catalog without its metadata.
+     *
+     * @param catalogKey The key of the catalog at the top of the subtree.
+     * @param subtree The rebuilt catalogs.
+     */
+    private static void publish(String catalogKey, Subtree subtree) {
+
+        _catalogLock.lock();
+        try {
+            Snapshot current = _snapshot;
+
+            Set<String> replaced = new HashSet<>();
+            collectSubtree(current, catalogKey, replaced);
+            for (String key : subtree.catalogs.keySet()) {
+                if (current.catalogs.containsKey(key))
+                    replaced.add(key);
+            }
+
+            HashMap<String, Catalog> catalogs = new HashMap<>(current.catalogs);
+            HashMap<String, String[]> children = new HashMap<>(current.children);
+            HashMap<String, DatasetScan> datasetScans = new HashMap<>(current.datasetScans);
+            HashMap<String, String[]> datasetScanKeys = new HashMap<>(current.datasetScanKeys);
+            HashMap<String, String> files = new HashMap<>(current.files);
+            HashMap<String, String[][]> catalogRefs = new HashMap<>(current.catalogRefs);
+
+            for (String key : replaced) {
+                _log.debug("publish() - Purging catalog: {}", key);
+                Catalog catalog = catalogs.remove(key);
+                children.remove(key);
+                catalogRefs.remove(key);
+                if (catalog != null)
+                    files.remove(catalogFile(catalog));
+                String[] scanKeys = datasetScanKeys.remove(key);
+                if (scanKeys != null) {
+                    for (String scanKey : scanKeys)
+                        datasetScans.remove(scanKey);
+                }
+                // The catalog is not destroyed, requests holding it may still be using it.
+            }
+
+            // The catalogs whose metadata is purged once the new Snapshot is published.
+            HashMap<String, Catalog> gone = new HashMap<>();
+            for (String key : replaced)
+                gone.put(key, current.catalogs.get(key));
+
+            for (Catalog catalog : subtree.catalogs.values()) {
+                String key = catalog.getCatalogKey();
+                try {
+                    if (replaced.contains(key) || !subtree.ingested.containsKey(key))
+                        ingestCatalog(catalog);
+                }
+                catch (Exception e) {
+                    _log.error("publish() - Failed to ingest catalog. Dropping. Catalog: " + key + " Msg: " + e.getMessage());
+                    gone.put(key, catalog);
+                    continue;
+                }
+
+                catalogs.put(key, catalog);
+                files.put(catalogFile(catalog), key);
+                if (subtree.children.containsKey(key))
+                    children.put(key, subtree.children.get(key));
+                if (subtree.catalogRefs.containsKey(key))
+                    catalogRefs.put(key, subtree.catalogRefs.get(key));
+                String[] scanKeys = subtree.datasetScanKeys.get(key);
+                if (scanKeys != null) {
+                    datasetScanKeys.put(key, scanKeys);
+                    for (String scanKey : scanKeys)
+                        datasetScans.put(scanKey, subtree.datasetScans.get(scanKey));
+                }
+            }
+
+            _snapshot = new Snapshot(catalogs, children, datasetScans, datasetScanKeys, files, catalogRefs);
+            _log.debug("publish() - Published {} catalogs in place of {}", subtree.catalogs.size(), replaced.size());
+
+            for (Map.Entry<String, Catalog> e : gone.entrySet()) {
+                if (catalogs.containsKey(e.getKey()))
+                    continue;
+                _log.debug("publish() - Purging the metadata of catalog: {}", e.getKey());
+                InheritedMetadataManager.purgeInheritedMetadata(e.getKey());
+                NcmlManager.purgeNcmlDatasets(e.getValue());
+            }
+
+            CatalogWatcher watcher = _watcher;
+            if (watcher != null) {
+                for (Catalog catalog : subtree.catalogs.values())
+                    watcher.watch(catalog.getPathPrefix());
+            }
+        }
+        finally {
+            _catalogLock.unlock();
+        }
+    }
+
+
+    /**
+     * @return The absolute, normalized name of the catalog's file.
+     */
+    private static String catalogFile(Catalog catalog) {
+        return Paths.get(catalog.getPathPrefix(), catalog.getFileName()).toAbsolutePath().normalize().toString();
+    }
+
+
+    /**
+     * Adds the catalogKey and the keys of all the catalogs below it to keys.
+     */
+    private static void collectSubtree(Snapshot snapshot, String catalogKey, Set<String> keys) {
+
+        if (!snapshot.catalogs.containsKey(catalogKey) || !keys.add(catalogKey))
+            return;
+
+        String[] childCatalogKeys = snapshot.children.get(catalogKey);
+        if (childCatalogKeys != null) {
+            for (String childCatalogKey : childCatalogKeys)
+                collectSubtree(snapshot, childCatalogKey, keys);
+        }
+    }
+
+
 
 
 
@@ -304,7 +968,7 @@ public class CatalogManager {
             if(datasetScanCatalog == null ){
 
                 DatasetScan datasetScan = null;
-                for(DatasetScan ds : _datasetScans.values()) {
+                for(DatasetScan ds : _snapshot.datasetScans.values()) {
                     if(ds.matches(catalogKey)){
 
                         _log.info("Found DatasetScan matching catalogKey '{}' datasetScan: \n'{}'",catalogKey,ds);
@@ -356,9 +1020,12 @@ public class CatalogManager {
     }
 
     /**
+     * Gets the catalog from the current Snapshot. If no CatalogWatcher is running and
+     * the catalog's file has changed a rebuild is started in the background and the
+     * catalog in hand is returned; the new one is returned once it has been published.
      *
-     * @param catalogKey   Is the    catalogKeyIntoThe
-     * @return
+     * @param catalogKey   The key of the catalog.
+     * @return  The catalog, or null if there is no such catalog.
      */
     private static Catalog getCatalogAndUpdateIfRequired(String catalogKey) {
 
@@ -366,118 +1033,336 @@ public class CatalogManager {
         if (catalogKey == null)
             return null;
 
-        try {
-            _catalogLock.lock();
-            _log.debug("getCatalogAndUpdateIfRequired(): Catalog locked.");
+        Catalog c = _snapshot.catalogs.get(catalogKey);
+        if (c == null)
+            return isReady() ? null : getUnpublishedCatalog(catalogKey);
 
-            Catalog c = _catalogs.get(catalogKey);
-            if (c == null)
-                return null;
+        if (_watcher == null && c.needsRefresh()) {
+            _log.debug("getCatalogAndUpdateIfRequired(): Catalog '" + catalogKey + "' needs to be updated.");
+            refreshCatalog(catalogKey);
+        }
+        return c;
 
-            if (c.needsRefresh()) {
+    }
 
 
-                _log.debug("getCatalogAndUpdateIfRequired(): Catalog '" + catalogKey + "' needs to be updated.");
+    /**
+     * Reads a catalog that hasn't been published yet from its file, without the catalogs
+     * below it or any inherited metadata. The file must be a THREDDS catalog inside the
+     * directory of the catalog given to addCatalogInBackground().
+     *
+     * @param catalogKey   The key of the catalog.
+     * @return  The catalog, or null if there is no such catalog.
+     */
+    static Catalog getUnpublishedCatalog(String catalogKey) {
 
-                LocalFileCatalog newCat;
-                try {
-                    newCat = new LocalFileCatalog(c.getPathPrefix(), c.getUrlPrefix(), c.getFileName(), c.getIngestTransformFilename(), c.usesMemoryCache());
+        Catalog c = _unpublished.get(catalogKey);
+        if (c != null)
+            return c;
 
-                    //Thread.sleep(10000);
+        String rootPathPrefix = _rootPathPrefix;
+        String rootUrlPrefix = _rootUrlPrefix;
+        if (rootPathPrefix == null || !catalogKey.startsWith(rootUrlPrefix))
+            return null;
 
-                    _log.debug("getCatalogAndUpdateIfRequired(): Purging catalog '" + catalogKey +
-                            "' and it's children from catalog collection.");
+        String relative = catalogKey.substring(rootUrlPrefix.length());
+        String fileName = Util.basename(relative);
+        String dir = relative.substring(0, relative.length() - fileName.length());
 
-                    purgeCatalog(catalogKey);
+        Path root = Paths.get(rootPathPrefix).toAbsolutePath().normalize();
+        Path file = root.resolve(relative).normalize();
+        if (fileName.isEmpty() || !file.startsWith(root) || !Files.isRegularFile(file))
+            return null;
 
+        try {
+            c = new LocalFileCatalog(rootPathPrefix + dir, rootUrlPrefix + dir, fileName, _catalogIngestTransformFilename, false);
+            Element catalogElement = c.getRawCatalogDocument().getRootElement();
+            if (!catalogElement.getName().equals(THREDDS.CATALOG) || !THREDDS.NS.equals(catalogElement.getNamespace()))
+                return null;
+        }
+        catch (Exception e) {
+            _log.debug("getUnpublishedCatalog() - Unable to read catalog {} Msg: {}", catalogKey, e.getMessage());
+            return null;
+        }
 
-                    _log.debug("getCatalogAndUpdateIfRequired(): Adding new catalog for catalogKey " +
-                            newCat.getCatalogKey() + " to _catalogs collection.");
+        _log.debug("getUnpublishedCatalog() - Read catalog {} before it was published.", catalogKey);
+        Catalog previous = _unpublished.putIfAbsent(catalogKey, c);
+        return previous != null ? previous : c;
+    }
 
-                    addCatalog(newCat, newCat.usesMemoryCache());
 
-                    return newCat;
-                }
-                catch (Exception e) {
-                    _log.error("getCatalogAndUpdateIfRequired(): Could not update Catalog: " + c.getName()+ "Msg: "+e.getMessage());
-                    return null;
+    /**
+     * Starts rebuilding the catalog identified by catalogKey, and the catalogs below it,
+     * in the background. Does nothing if that catalog is already being rebuilt, or if the
+     * last attempt failed less than REFRESH_RETRY_INTERVAL milliseconds ago.
+     *
+     * @param catalogKey The key of the catalog to rebuild.
+     */
+    static void refreshCatalog(final String catalogKey) {
+
+        Long failed = _refreshFailures.get(catalogKey);
+        if (failed != null && System.currentTimeMillis() - failed < REFRESH_RETRY_INTERVAL)
+            return;
+
+        if (!_refreshing.add(catalogKey))
+            return;
+
+        try {
+            getRefresher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        rebuildCatalog(catalogKey);
+                    }
+                    finally {
+                        _refreshing.remove(catalogKey);
+                    }
                 }
-            } else {
-                _log.debug("getCatalogAndUpdateIfRequired(): Catalog '" + catalogKey + "' does NOT need updated.");
-                return c;
+            });
+        }
+        catch (RuntimeException e) {
+            _refreshing.remove(catalogKey);
+            _log.error("refreshCatalog() - Unable to start the rebuild of catalog {} Msg: {}", catalogKey, e.getMessage());
+        }
+    }
+
+
+    /**
+     * Called when a file in a watched directory has changed. If it is a catalog file
+     * the catalog is rebuilt in the background, even if the last attempt failed
+     * recently, since the file has changed since then.
+     *
+     * @param fileName The absolute name of the file.
+     */
+    static void catalogFileChanged(String fileName) {
+        String catalogKey = _snapshot.files.get(fileName);
+        if (catalogKey == null) {
+            _log.debug("catalogFileChanged() - {} is not a catalog file.", fileName);
+            return;
+        }
+        _log.debug("catalogFileChanged() - Catalog file {} changed.", fileName);
+        _refreshFailures.remove(catalogKey);
+        refreshCatalog(catalogKey);
+    }
+
+
+    /**
+     * Checks the file of every catalog and starts rebuilding the ones that have changed.
+     */
+    static void refreshChangedCatalogs() {
+        for (Map.Entry<String, Catalog> e : _snapshot.catalogs.entrySet()) {
+            if (e.getValue().needsRefresh())
+                refreshCatalog(e.getKey());
+        }
+    }
+
 
+    /**
+     * Starts a CatalogWatcher on the directories of the catalogs added so far, and on
+     * those of any catalogs added later. From then on lookups don't check the catalog
+     * files.
+     *
+     * @param usePolling If true the catalog files are polled instead of watched.
+     */
+    public static void startCatalogWatcher(boolean usePolling) {
+        startCatalogWatcher(new CatalogWatcher(CatalogWatcher.DEFAULT_SETTLE_TIME, CatalogWatcher.DEFAULT_POLL_INTERVAL, usePolling));
+    }
+
+    static void startCatalogWatcher(CatalogWatcher watcher) {
+        _catalogLock.lock();
+        try {
+            if (_watcher != null) {
+                _log.error("startCatalogWatcher() - The catalog watcher is already running.");
+                return;
             }
+            for (Catalog catalog : _snapshot.catalogs.values())
+                watcher.watch(catalog.getPathPrefix());
+            watcher.start();
+            _watcher = watcher;
         }
         finally {
             _catalogLock.unlock();
-            _log.debug("getCatalogAndUpdateIfRequired(): Catalog unlocked.");
         }
+        _log.info("startCatalogWatcher() - {} THREDDS catalog files.", watcher.isPolling() ? "Polling" : "Watching");
+    }
 
-
+    /**
+     * @return The running CatalogWatcher, or null.
+     */
+    public static CatalogWatcher getCatalogWatcher() {
+        return _watcher;
     }
 
 
+    private static synchronized ExecutorService getRefresher() {
+        if (_refresher == null) {
+            _refresher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "olfs-catalog-refresh");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return _refresher;
+    }
+
 
     /**
-     * Purges the  THREDDS catalog connected graph from the system, starting at the catalog associated with the
-     * passed catalogKey.
+     * Rebuilds the catalog and the catalogs below it from their files and publishes them.
      *
-     * @param catalogKey
+     * @param catalogKey The key of the catalog to rebuild.
+     * @return True if the catalog was rebuilt.
      */
-    private static void purgeCatalog(String catalogKey) {
-        Catalog catalog;
-        String childCatalogKeys[];
+    static boolean rebuildCatalog(String catalogKey) {
 
+        Catalog c = _snapshot.catalogs.get(catalogKey);
 
-        if (catalogKey != null) {
+        // It may have been rebuilt along with a catalog above it.
+        if (c == null || !c.needsRefresh())
+            return false;
 
-            _log.debug("purgeCatalog(): Removing catalog: " + catalogKey);
-            catalog = _catalogs.remove(catalogKey);
+        try {
+            LocalFileCatalog newCat = new LocalFileCatalog(c.getPathPrefix(), c.getUrlPrefix(), c.getFileName(), c.getIngestTransformFilename(), c.usesMemoryCache());
 
-            if (catalog == null) {
-                _log.warn("purgeCatalog(): Catalog '" + Scrub.urlContent(catalogKey) + "' not in catalog collection!!");
-            }
+            Subtree subtree = new Subtree();
+            buildSubtree(new CatalogIngest(newCat, newCat.usesMemoryCache(), subtree), subtree);
+
+            _log.debug("rebuildCatalog(): Publishing new catalog for catalogKey " + catalogKey);
+            publish(catalogKey, subtree);
 
-            childCatalogKeys = _children.get(catalogKey);
-            if (childCatalogKeys != null) {
+            _refreshFailures.remove(catalogKey);
+            _reloads.incrementAndGet();
+            scheduleSnapshotWrite();
+            return true;
+        }
+        catch (Exception e) {
+            _refreshFailures.put(catalogKey, System.currentTimeMillis());
+            _reloadFailures.incrementAndGet();
+            _log.error("rebuildCatalog(): Could not update Catalog: " + c.getName()+ " Msg: "+e.getMessage());
+            return false;
+        }
+
+    }
 
-                _log.debug("purgeCatalog(): Purging the childCatalogKeys of catalog: " + catalogKey);
 
-                for (String childCatalogKey : childCatalogKeys) {
-                    purgeCatalog(childCatalogKey);
-                }
+    public static void destroy() {
 
-                _children.remove(catalogKey);
-            } else {
-                _log.info("purgeCatalog(): Catalog '" + Scrub.urlContent(catalogKey) + "' has no childCatalogKeys.");
+        CatalogWatcher watcher = _watcher;
+        _watcher = null;
+        if (watcher != null)
+            watcher.stop();
+
+        ScheduledExecutorService snapshotWriter;
+        synchronized (CatalogManager.class) {
+            snapshotWriter = _snapshotWriter;
+            _snapshotWriter = null;
+            if (_refresher != null) {
+                _refresher.shutdownNow();
+                _refresher = null;
             }
+            if (_ingestPool != null) {
+                _ingestPool.shutdownNow();
+                _ingestPool = null;
+            }
+        }
 
-            _log.debug("purgeCatalog(): Purging inherited metadata (if any) for catalogKey: " +catalogKey);
-            InheritedMetadataManager.purgeInheritedMetadata(catalogKey);
+        if (snapshotWriter != null) {
+            snapshotWriter.shutdownNow();
+            try {
+                snapshotWriter.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Save the changes that were waiting for the snapshot writer.
+        _snapshotWrite.run();
 
-            _log.debug("purgeCatalog(): Purging NcML data sets (if any) for catalogKey: " +catalogKey);
-            NcmlManager.purgeNcmlDatasets(catalog);
+        _catalogLock.lock();
+        try {
+            for (Catalog c : _snapshot.catalogs.values()) {
+                c.destroy();
+            }
+            _snapshot = Snapshot.EMPTY;
+        }
+        finally {
+            _catalogLock.unlock();
+        }
+        _refreshing.clear();
+        _refreshFailures.clear();
+        _unpublished.clear();
+        _rootPathPrefix = null;
+        _rootUrlPrefix = null;
+        _snapshotFileName = null;
+        _isInitialized = false;
+        _log.debug("Destroyed");
 
+    }
 
-            // catalog.destroy();
-            _log.debug("purgeCatalog(): Purged catalog: " + catalogKey);
 
+    /**
+     * @return The number of catalogs held.
+     */
+    public static int getCatalogCount() {
+        return _snapshot.catalogs.size();
+    }
 
+    /**
+     * @return The number of catalogs held whose content is kept in memory.
+     */
+    public static int getMemoryCachedCatalogCount() {
+        int count = 0;
+        for (Catalog c : _snapshot.catalogs.values()) {
+            if (c.usesMemoryCache())
+                count++;
         }
+        return count;
+    }
 
+    public static int getDatasetScanCount() {
+        return _snapshot.datasetScans.size();
+    }
 
+    /**
+     * @return The number of times a catalog was reloaded because its file changed.
+     */
+    public static long getReloads() {
+        return _reloads.get();
     }
 
+    /**
+     * @return The number of times a changed catalog could not be reloaded.
+     */
+    public static long getReloadFailures() {
+        return _reloadFailures.get();
+    }
 
-    public static void destroy() {
+    /**
+     * @return The number of catalogs restored from the snapshot file instead of being ingested.
+     */
+    public static long getRestoredCatalogCount() {
+        return _restoredCatalogs.get();
+    }
 
-        for (Catalog c : _catalogs.values()) {
-            c.destroy();
-        }
-        _catalogs.clear();
-        _children.clear();
-        _log.debug("Destroyed");
+    /**
+     * @return The number of catalogs waiting for or being rebuilt.
+     */
+    public static int getPendingRefreshCount() {
+        return _refreshing.size();
+    }
 
+    public static String getStatistics() {
+        return "[CatalogManager catalogs: " + getCatalogCount() +
+                " memoryCached: " + getMemoryCachedCatalogCount() +
+                " datasetScans: " + getDatasetScanCount() +
+                " reloads: " + getReloads() +
+                " reloadFailures: " + getReloadFailures() +
+                " restored: " + getRestoredCatalogCount() +
+                " pendingRefreshes: " + getPendingRefreshCount() +
+                " ready: " + isReady() +
+                "]";
     }
 
 
@@ -486,7 +1371,7 @@ public class CatalogManager {
 
         s.append("    ContentPath: " + _contentPath + "\n");
 
-        for (Catalog c : _catalogs.values()) {
+        for (Catalog c : _snapshot.catalogs.values()) {
             s.append("    Catalog Name: ").append(c.getName()).append("\n");
             s.append("        file:        ").append(c.getFileName()).append("\n");
             s.append("        pathPrefix:  ").append(c.getPathPrefix()).append("\n");
@@ -0,0 +1,354 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.threddsHandler;
+
+import opendap.ncml.NcmlManager;
+import org.jdom.Element;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
+
+public class CatalogManagerTest {
+
+    private static final String INGEST_TRANSFORM = "resources/hyrax/xsl/threddsCatalogIngest.xsl";
+    private static final String ROOT = "/opendap/catalog.xml";
+
+    private File _dir;
+
+    private static String catalog(String name, String... refs) {
+        StringBuilder s = new StringBuilder();
+        s.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        s.append("<catalog name=\"").append(name).append("\" ");
+        s.append("xmlns=\"http://www.unidata.ucar.edu/namespaces/thredds/InvCatalog/v1.0\" ");
+        s.append("xmlns:xlink=\"http://www.w3.org/1999/xlink\">\n");
+        for (String ref : refs) {
+            s.append("  <catalogRef xlink:title=\"").append(ref).append("\" ");
+            s.append("xlink:href=\"").append(ref).append("/catalog.xml\" name=\"").append(ref).append("\"/>\n");
+        }
+        s.append("</catalog>\n");
+        return s.toString();
+    }
+
+    private File write(String path, String content) throws Exception {
+        File f = new File(_dir, path);
+        f.getParentFile().mkdirs();
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(content.getBytes("UTF-8"));
+        }
+        finally {
+            fos.close();
+        }
+        return f;
+    }
+
+    private static void touch(File f) {
+        Assert.assertTrue(f.setLastModified(f.lastModified() + 10000));
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        f.delete();
+    }
+
+    private static void awaitReload(long reloads) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (CatalogManager.getReloads() == reloads && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        Assert.assertEquals(reloads + 1, CatalogManager.getReloads());
+    }
+
+    private void restart() throws Exception {
+        CatalogManager.destroy();
+        CatalogManager.init(_dir.getAbsolutePath() + "/", INGEST_TRANSFORM, null, null);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _dir = File.createTempFile("CatalogManagerTest", "");
+        Assert.assertTrue(_dir.delete());
+        Assert.assertTrue(_dir.mkdirs());
+
+        write("catalog.xml", catalog("root", "a"));
+        write("a/catalog.xml", catalog("a"));
+
+        CatalogManager.init(_dir.getAbsolutePath() + "/", INGEST_TRANSFORM, null, null);
+        CatalogManager.addCatalog(_dir.getAbsolutePath() + "/", "/opendap/", "catalog.xml", false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CatalogManager.destroy();
+        delete(_dir);
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        Assert.assertEquals(2, CatalogManager.getCatalogCount());
+        Assert.assertEquals("root", CatalogManager.getCatalog(ROOT).getName());
+        Assert.assertEquals("a", CatalogManager.getCatalog("/opendap/a/catalog.xml").getName());
+        Assert.assertNull(CatalogManager.getCatalog("/opendap/b/catalog.xml"));
+    }
+
+    @Test
+    public void testRefreshPublishesSubtree() throws Exception {
+        Catalog old = CatalogManager.getCatalog(ROOT);
+        long reloads = CatalogManager.getReloads();
+
+        write("b/catalog.xml", catalog("b"));
+        touch(write("catalog.xml", catalog("root", "b")));
+
+        // The lookup that notices the change still gets the old catalog.
+        Assert.assertSame(old, CatalogManager.getCatalog(ROOT));
+
+        awaitReload(reloads);
+        Assert.assertNotSame(old, CatalogManager.getCatalog(ROOT));
+        Assert.assertEquals("b", CatalogManager.getCatalog("/opendap/b/catalog.xml").getName());
+        // The child that is no longer referenced went with the old subtree.
+        Assert.assertNull(CatalogManager.getCatalog("/opendap/a/catalog.xml"));
+        Assert.assertEquals(2, CatalogManager.getCatalogCount());
+    }
+
+    @Test
+    public void testBrokenRefreshKeepsOldCatalog() throws Exception {
+        Catalog old = CatalogManager.getCatalog(ROOT);
+        long failures = CatalogManager.getReloadFailures();
+
+        touch(write("catalog.xml", "<catalog"));
+
+        Assert.assertFalse(CatalogManager.rebuildCatalog(ROOT));
+        Assert.assertEquals(failures + 1, CatalogManager.getReloadFailures());
+
+        // The failure is not retried right away, and the old catalogs are still served.
+        Assert.assertSame(old, CatalogManager.getCatalog(ROOT));
+        Assert.assertEquals(0, CatalogManager.getPendingRefreshCount());
+        Assert.assertEquals("a", CatalogManager.getCatalog("/opendap/a/catalog.xml").getName());
+    }
+
+    @Test
+    public void testParallelIngestWithLoops() throws Exception {
+        // "a" is referenced twice, and every child refers back to the root.
+        write("catalog.xml", catalog("root", "a", "b", "c", "d", "e", "a"));
+        for (String name : new String[]{"a", "b", "c", "d", "e"})
+            write(name + "/catalog.xml", catalog(name, ".."));
+
+        restart();
+        CatalogManager.addCatalog(_dir.getAbsolutePath() + "/", "/opendap/", "catalog.xml", false);
+
+        Assert.assertTrue(CatalogManager.isReady());
+        Assert.assertEquals(6, CatalogManager.getCatalogCount());
+        for (String name : new String[]{"a", "b", "c", "d", "e"})
+            Assert.assertEquals(name, CatalogManager.getCatalog("/opendap/" + name + "/catalog.xml").getName());
+        Assert.assertNull(CatalogManager.getCatalog("/opendap/a/../catalog.xml"));
+    }
+
+    @Test
+    public void testBackgroundIngest() throws Exception {
+        write("catalog.xml", catalog("root", "a", "b"));
+        write("b/catalog.xml", catalog("b", "c"));
+        write("b/c/catalog.xml", catalog("c"));
+        write("notes.xml", "<notes>Not a catalog</notes>");
+
+        restart();
+        CatalogManager.addCatalogInBackground(_dir.getAbsolutePath() + "/", "/opendap/", "catalog.xml", false);
+
+        // Whether or not it has been published yet, the catalog is there.
+        Assert.assertEquals("c", CatalogManager.getCatalog("/opendap/b/c/catalog.xml").getName());
+
+        Assert.assertTrue(CatalogManager.awaitReady(10000));
+        Assert.assertEquals(4, CatalogManager.getCatalogCount());
+        Assert.assertEquals("root", CatalogManager.getCatalog(ROOT).getName());
+
+        // Catalogs read before they are published are only read from inside the content directory.
+        Assert.assertEquals("b", CatalogManager.getUnpublishedCatalog("/opendap/b/catalog.xml").getName());
+        Assert.assertNull(CatalogManager.getUnpublishedCatalog("/opendap/../catalog.xml"));
+        Assert.assertNull(CatalogManager.getUnpublishedCatalog("/opendap/notes.xml"));
+        Assert.assertNull(CatalogManager.getUnpublishedCatalog("/opendap/missing/catalog.xml"));
+        Assert.assertNull(CatalogManager.getUnpublishedCatalog("/other/catalog.xml"));
+    }
+
+    private static String ncmlCatalog(String name, boolean withNcml) {
+        StringBuilder s = new StringBuilder();
+        s.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        s.append("<catalog name=\"").append(name).append("\" ");
+        s.append("xmlns=\"http://www.unidata.ucar.edu/namespaces/thredds/InvCatalog/v1.0\">\n");
+        s.append("  <service name=\"dap\" serviceType=\"OPeNDAP\" base=\"/opendap/\"/>\n");
+        if (withNcml) {
+            s.append("  <dataset name=\"sst\" ID=\"sst\" urlPath=\"a/sst.ncml\">\n");
+            s.append("    <serviceName>dap</serviceName>\n");
+            s.append("    <netcdf xmlns=\"http://www.unidata.ucar.edu/namespaces/netcdf/ncml-2.2\"/>\n");
+            s.append("  </dataset>\n");
+        }
+        s.append("</catalog>\n");
+        return s.toString();
+    }
+
+    @Test
+    public void testRefreshKeepsMetadata() throws Exception {
+        String key = "/opendap/a/catalog.xml";
+        touch(write("a/catalog.xml", ncmlCatalog("a", true)));
+        Assert.assertTrue(CatalogManager.rebuildCatalog(key));
+
+        Element datasets = NcmlManager.exportNcml(CatalogManager.getCatalog(key));
+        Assert.assertEquals(1, datasets.getChildren("dataset").size());
+        String dapAccessID = ((Element) datasets.getChildren("dataset").get(0)).getAttributeValue("dapAccessID");
+        Assert.assertTrue(NcmlManager.isNcmlDataset(dapAccessID));
+
+        // The replacement keeps its catalogKey, so its NcML is replaced, not purged.
+        touch(write("a/catalog.xml", ncmlCatalog("a2", true)));
+        Assert.assertTrue(CatalogManager.rebuildCatalog(key));
+        Assert.assertEquals("a2", CatalogManager.getCatalog(key).getName());
+        Assert.assertTrue(NcmlManager.isNcmlDataset(dapAccessID));
+
+        // The dataset that is no longer in the catalog is gone.
+        touch(write("a/catalog.xml", ncmlCatalog("a3", false)));
+        Assert.assertTrue(CatalogManager.rebuildCatalog(key));
+        Assert.assertFalse(NcmlManager.isNcmlDataset(dapAccessID));
+    }
+
+    private long ingestWithSnapshot(File snapshot) throws Exception {
+        restart();
+        CatalogManager.setSnapshotFile(snapshot.getAbsolutePath());
+        long restored = CatalogManager.getRestoredCatalogCount();
+        CatalogManager.addCatalog(_dir.getAbsolutePath() + "/", "/opendap/", "catalog.xml", true);
+        Assert.assertEquals(2, CatalogManager.getCatalogCount());
+        CatalogManager.flushSnapshotFile();
+        return CatalogManager.getRestoredCatalogCount() - restored;
+    }
+
+    @Test
+    public void testSnapshotRestore() throws Exception {
+        File snapshot = new File(_dir, "thredds.snapshot");
+
+        Assert.assertEquals(0, ingestWithSnapshot(snapshot));
+        Assert.assertTrue(snapshot.isFile());
+
+        // Nothing changed, so nothing is ingested, and the restored catalogs aren't reloaded.
+        long reloads = CatalogManager.getReloads();
+        Assert.assertEquals(2, ingestWithSnapshot(snapshot));
+        Assert.assertEquals("root", CatalogManager.getCatalog(ROOT).getName());
+        Assert.assertEquals("a", CatalogManager.getCatalog("/opendap/a/catalog.xml").getName());
+        Assert.assertNotNull(CatalogManager.getCatalog(ROOT).getCatalogDocument());
+        Assert.assertEquals(reloads, CatalogManager.getReloads());
+
+        // Only the changed file is ingested.
+        touch(write("a/catalog.xml", catalog("a2")));
+        Assert.assertEquals(1, ingestWithSnapshot(snapshot));
+        Assert.assertEquals("a2", CatalogManager.getCatalog("/opendap/a/catalog.xml").getName());
+
+        // A broken snapshot file is ignored.
+        write("thredds.snapshot", "Not a snapshot");
+        Assert.assertEquals(0, ingestWithSnapshot(snapshot));
+        Assert.assertEquals("a2", CatalogManager.getCatalog("/opendap/a/catalog.xml").getName());
+    }
+
+    @Test
+    public void testUntrustedSnapshot() throws Exception {
+        File snapshot = new File(_dir, "untrusted.snapshot");
+        ingestWithSnapshot(snapshot);
+        Assert.assertEquals(2, ingestWithSnapshot(snapshot));
+
+        // A snapshot file anyone can write to is ignored.
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(snapshot.toPath());
+        permissions.add(PosixFilePermission.OTHERS_WRITE);
+        Files.setPosixFilePermissions(snapshot.toPath(), permissions);
+        Assert.assertEquals(0, ingestWithSnapshot(snapshot));
+    }
+
+    @Test
+    public void testDamagedSnapshot() throws Exception {
+        File snapshot = new File(_dir, "damaged.snapshot");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(snapshot));
+        try {
+            out.writeInt(0x4f4c4653);
+            out.writeInt(1);
+            out.writeBoolean(false);
+            out.writeLong(0);
+            out.writeInt(1);
+            for (int i = 0; i < 5; i++)
+                out.writeBoolean(false);
+            out.writeBoolean(false);
+            out.writeLong(0);
+            // A raw catalog that claims to be far larger than the file.
+            out.writeInt(Integer.MAX_VALUE);
+            out.write(new byte[64]);
+        }
+        finally {
+            out.close();
+        }
+        Assert.assertTrue(CatalogSnapshotFile.read(snapshot.getAbsolutePath(), null).isEmpty());
+    }
+
+    private void testWatcher(boolean usePolling) throws Exception {
+        CatalogWatcher watcher = new CatalogWatcher(100, 100, usePolling);
+        CatalogManager.startCatalogWatcher(watcher);
+        Assert.assertEquals(usePolling, watcher.isPolling());
+        Assert.assertSame(watcher, CatalogManager.getCatalogWatcher());
+
+        String key = "/opendap/a/catalog.xml";
+        Catalog old = CatalogManager.getCatalog(key);
+        long reloads = CatalogManager.getReloads();
+
+        // A burst of edits. Polling has no settle time, so it gets only one.
+        int edits = usePolling ? 1 : 5;
+        for (int i = 0; i < edits; i++)
+            touch(write("a/catalog.xml", catalog("a" + i)));
+
+        // Lookups leave the files to the watcher.
+        Assert.assertSame(old, CatalogManager.getCatalog(key));
+
+        awaitReload(reloads);
+        Assert.assertEquals("a" + (edits - 1), CatalogManager.getCatalog(key).getName());
+        // The parent was not rebuilt.
+        Assert.assertEquals(2, CatalogManager.getCatalogCount());
+
+        Thread.sleep(500);
+        Assert.assertEquals(reloads + 1, CatalogManager.getReloads());
+    }
+
+    @Test
+    public void testWatchedRefresh() throws Exception {
+        testWatcher(false);
+    }
+
+    @Test
+    public void testPolledRefresh() throws Exception {
+        testWatcher(true);
+    }
+
+}
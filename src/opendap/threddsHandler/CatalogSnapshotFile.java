@@ -0,0 +1,423 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.threddsHandler;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An on-disk copy of the ingested THREDDS catalogs, so that a restart only has to
+ * ingest the catalogs whose files have changed.
+ *
+ * For each catalog the file holds where it came from, the last modified time of its
+ * file when it was ingested, its content and ingest transformed content (if they were
+ * kept in memory), the catalogRefs that were followed from it, and the inherited
+ * metadata and NcML datasets that were ingested from it. The whole file is thrown
+ * away if it was written by a different version of this class or with a different
+ * ingest transform.
+ *
+ * The file is written to a temporary file, readable only by its owner, that then
+ * replaces it, so a reader never sees a half written file. What is in the file is
+ * trusted when it is restored, so it is only read if it belongs to the user the
+ * server runs as and no one else can write to it.
+ */
+public class CatalogSnapshotFile {
+
+    private static Logger _log = org.slf4j.LoggerFactory.getLogger(CatalogSnapshotFile.class);
+
+    /** "OLFS" */
+    private static final int MAGIC = 0x4f4c4653;
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+    /**
+     * One ingested catalog.
+     */
+    static class Entry {
+
+        final String catalogKey;
+        final String pathPrefix;
+        final String urlPrefix;
+        final String fileName;
+        final String name;
+        final boolean useMemoryCache;
+        final long fileLastModified;
+        final byte[] rawCatalog;
+        final byte[] clientResponseCatalog;
+
+        /** pathPrefix, urlPrefix and fileName of each catalogRef that was followed. */
+        final String[][] catalogRefs;
+        final boolean hasDatasetScans;
+
+        /** From InheritedMetadataManager.exportInheritedMetadata() */
+        final byte[] inheritedMetadata;
+        /** From NcmlManager.exportNcml() */
+        final byte[] ncml;
+
+        Entry(String catalogKey, String pathPrefix, String urlPrefix, String fileName, String name,
+              boolean useMemoryCache, long fileLastModified, byte[] rawCatalog, byte[] clientResponseCatalog,
+              String[][] catalogRefs, boolean hasDatasetScans, byte[] inheritedMetadata, byte[] ncml) {
+            this.catalogKey = catalogKey;
+            this.pathPrefix = pathPrefix;
+            this.urlPrefix = urlPrefix;
+            this.fileName = fileName;
+            this.name = name;
+            this.useMemoryCache = useMemoryCache;
+            this.fileLastModified = fileLastModified;
+            this.rawCatalog = rawCatalog;
+            this.clientResponseCatalog = clientResponseCatalog;
+            this.catalogRefs = catalogRefs;
+            this.hasDatasetScans = hasDatasetScans;
+            this.inheritedMetadata = inheritedMetadata;
+            this.ncml = ncml;
+        }
+
+        Entry(LocalFileCatalog catalog, String[][] catalogRefs, boolean hasDatasetScans,
+              Element inheritedMetadata, Element ncml) {
+            this(catalog.getCatalogKey(), catalog.getPathPrefix(), catalog.getUrlPrefix(), catalog.getFileName(),
+                    catalog.getName(), catalog.usesMemoryCache(), catalog.getFileLastModified(),
+                    catalog.getRawCatalogBytes(), catalog.getClientResponseCatalogBytes(),
+                    catalogRefs, hasDatasetScans, toBytes(inheritedMetadata), toBytes(ncml));
+        }
+
+        /**
+         * @return True if this entry is for the same catalog file, and the file hasn't
+         * changed since it was ingested.
+         */
+        boolean isCurrent(String pathPrefix, String urlPrefix, String fileName, boolean useMemoryCache) {
+            return this.pathPrefix.equals(pathPrefix) &&
+                    this.urlPrefix.equals(urlPrefix) &&
+                    this.fileName.equals(fileName) &&
+                    this.useMemoryCache == useMemoryCache &&
+                    new File(pathPrefix + fileName).lastModified() == fileLastModified;
+        }
+
+        LocalFileCatalog toCatalog(String ingestTransformFilename) throws SaxonApiException {
+            return new LocalFileCatalog(pathPrefix, urlPrefix, fileName, ingestTransformFilename, useMemoryCache,
+                    fileLastModified, name, rawCatalog, clientResponseCatalog);
+        }
+
+        Element getInheritedMetadata() throws JDOMException, IOException {
+            return toElement(inheritedMetadata);
+        }
+
+        Element getNcml() throws JDOMException, IOException {
+            return toElement(ncml);
+        }
+    }
+
+
+    private CatalogSnapshotFile() {
+    }
+
+
+    private static byte[] toBytes(Element e) {
+        if (e == null)
+            return null;
+        // The raw format, so the text of the metadata is kept as it is.
+        return new XMLOutputter(Format.getRawFormat()).outputString(e).getBytes(UTF8);
+    }
+
+    private static Element toElement(byte[] bytes) throws JDOMException, IOException {
+        if (bytes == null)
+            return null;
+        return new SAXBuilder().build(new ByteArrayInputStream(bytes)).detachRootElement();
+    }
+
+
+    /**
+     * Writes the entries to the file, replacing it.
+     *
+     * @param fileName The snapshot file.
+     * @param ingestTransformFilename The ingest transform the catalogs were ingested with.
+     * @param entries The catalogs.
+     * @throws IOException When the file can't be written.
+     */
+    static void write(String fileName, String ingestTransformFilename, Collection<Entry> entries) throws IOException {
+
+        File target = new File(fileName);
+        File parent = target.getAbsoluteFile().getParentFile();
+        File temp = Files.createTempFile(parent.toPath(), target.getName(), ".tmp").toFile();
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp.toPath())));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, ingestTransformFilename);
+                out.writeLong(ingestTransformFilename == null ? 0 : new File(ingestTransformFilename).lastModified());
+
+                out.writeInt(entries.size());
+                for (Entry e : entries) {
+                    writeString(out, e.catalogKey);
+                    writeString(out, e.pathPrefix);
+                    writeString(out, e.urlPrefix);
+                    writeString(out, e.fileName);
+                    writeString(out, e.name);
+                    out.writeBoolean(e.useMemoryCache);
+                    out.writeLong(e.fileLastModified);
+                    writeBytes(out, e.rawCatalog);
+                    writeBytes(out, e.clientResponseCatalog);
+                    out.writeInt(e.catalogRefs.length);
+                    for (String[] ref : e.catalogRefs) {
+                        writeString(out, ref[0]);
+                        writeString(out, ref[1]);
+                        writeString(out, ref[2]);
+                    }
+                    out.writeBoolean(e.hasDatasetScans);
+                    writeBytes(out, e.inheritedMetadata);
+                    writeBytes(out, e.ncml);
+                }
+            }
+            finally {
+                out.close();
+            }
+
+            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            if (temp.exists() && !temp.delete())
+                _log.warn("write() - Unable to delete {}", temp);
+        }
+        _log.debug("write() - Wrote {} catalogs to {}", entries.size(), fileName);
+    }
+
+
+    /**
+     * Reads the entries from the file.
+     *
+     * @param fileName The snapshot file.
+     * @param ingestTransformFilename The ingest transform the catalogs will be ingested with.
+     * @return catalogKey -> Entry. Empty if there is no file, or it can't be used.
+     */
+    static Map<String, Entry> read(String fileName, String ingestTransformFilename) {
+
+        Map<String, Entry> entries = new HashMap<>();
+
+        File file = new File(fileName);
+        if (!file.isFile() || !isTrusted(file))
+            return entries;
+
+        try {
+            DataInputStream in = new DataInputStream(new RemainingInputStream(
+                    new BufferedInputStream(new FileInputStream(file)), file.length()));
+            try {
+
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    _log.info("read() - {} was not written by this version. Ignoring it.", fileName);
+                    return entries;
+                }
+                String transform = readString(in);
+                long transformLastModified = in.readLong();
+                if (!equal(transform, ingestTransformFilename) ||
+                        (transform != null && new File(transform).lastModified() != transformLastModified)) {
+                    _log.info("read() - The ingest transform has changed since {} was written. Ignoring it.", fileName);
+                    return entries;
+                }
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String catalogKey = readString(in);
+                    String pathPrefix = readString(in);
+                    String urlPrefix = readString(in);
+                    String catalogFileName = readString(in);
+                    String name = readString(in);
+                    boolean useMemoryCache = in.readBoolean();
+                    long fileLastModified = in.readLong();
+                    byte[] rawCatalog = readBytes(in);
+                    byte[] clientResponseCatalog = readBytes(in);
+                    // Each catalogRef is at least three bytes: the flags of its three strings.
+                    String[][] catalogRefs = new String[readCount(in, 3)][];
+                    for (int r = 0; r < catalogRefs.length; r++)
+                        catalogRefs[r] = new String[]{readString(in), readString(in), readString(in)};
+                    boolean hasDatasetScans = in.readBoolean();
+                    byte[] inheritedMetadata = readBytes(in);
+                    byte[] ncml = readBytes(in);
+
+                    entries.put(catalogKey, new Entry(catalogKey, pathPrefix, urlPrefix, catalogFileName, name,
+                            useMemoryCache, fileLastModified, rawCatalog, clientResponseCatalog,
+                            catalogRefs, hasDatasetScans, inheritedMetadata, ncml));
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            _log.warn("read() - Unable to read {} Ignoring it. Msg: {}", fileName, e.getMessage());
+            entries.clear();
+        }
+
+        _log.debug("read() - Read {} catalogs from {}", entries.size(), fileName);
+        return entries;
+    }
+
+
+    /**
+     * @return True if the file belongs to the user the server runs as, and no other user can
+     * write to it.
+     */
+    private static boolean isTrusted(File file) {
+        Path path = file.toPath();
+        try {
+            UserPrincipal owner = Files.getOwner(path);
+            UserPrincipal self = path.getFileSystem().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!owner.equals(self)) {
+                _log.warn("read() - {} belongs to {}, not {}. Ignoring it.", new Object[]{file, owner.getName(), self.getName()});
+                return false;
+            }
+            if (Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class) &&
+                    Files.getPosixFilePermissions(path).contains(PosixFilePermission.OTHERS_WRITE)) {
+                _log.warn("read() - {} can be written by any user. Ignoring it.", file);
+                return false;
+            }
+            return true;
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            _log.warn("read() - Unable to check the owner of {} Ignoring it. Msg: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        out.writeInt(b == null ? -1 : b.length);
+        if (b != null)
+            out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > in.available())
+            throw new IOException("A length of " + length + " runs past the end of the file.");
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+
+    /**
+     * Reads a count, and checks that the items it counts fit in the rest of the file, so that
+     * a damaged file can't make read() allocate more than the file holds.
+     *
+     * @param bytesEach The fewest bytes each item takes in the file.
+     */
+    private static int readCount(DataInputStream in, int bytesEach) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / bytesEach)
+            throw new IOException("A count of " + count + " runs past the end of the file.");
+        return count;
+    }
+
+
+    /**
+     * Counts down the bytes left in the file, so that available() is the rest of the file
+     * and lengths read from it can be checked against that.
+     */
+    private static class RemainingInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        RemainingInputStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, remaining));
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.threddsHandler;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the directories that hold the THREDDS catalog files and has
+ * CatalogManager rebuild a catalog when its file changes, so that request
+ * threads never have to check the files themselves.
+ *
+ * Changes are collected until a file has been quiet for settleTime
+ * milliseconds, so that a burst of edits to one file causes one rebuild.
+ *
+ * If the file system can't be watched (or the watch fails) the watcher falls
+ * back to asking every catalog whether its file has changed, every
+ * pollInterval milliseconds. An overflow of file system events causes the
+ * same check to be made once.
+ */
+public class CatalogWatcher implements Runnable {
+
+    private static Logger _log = org.slf4j.LoggerFactory.getLogger(CatalogWatcher.class);
+
+    public static final long DEFAULT_SETTLE_TIME = 1000;
+    public static final long DEFAULT_POLL_INTERVAL = 10000;
+
+    private final long _settleTime;
+    private final long _pollInterval;
+
+    private WatchService _watchService;
+    private volatile boolean _polling;
+    private volatile boolean _running;
+    private volatile boolean _overflow;
+
+    private final ConcurrentHashMap<Path, WatchKey> _watched;
+
+    /**
+     * catalog file name -> When the last event for that file arrived.
+     */
+    private final ConcurrentHashMap<String, Long> _changed;
+
+    private final AtomicLong _events;
+    private final AtomicLong _polls;
+
+    private Thread _thread;
+
+
+    /**
+     * @param settleTime Milliseconds a catalog file must go unchanged before it is re-ingested.
+     * @param pollInterval Milliseconds between checks of the catalog files when polling.
+     * @param usePolling If true the file system is not watched; the catalog files are polled.
+     */
+    public CatalogWatcher(long settleTime, long pollInterval, boolean usePolling) {
+        _settleTime = settleTime;
+        _pollInterval = pollInterval;
+        _watched = new ConcurrentHashMap<>();
+        _changed = new ConcurrentHashMap<>();
+        _events = new AtomicLong(0);
+        _polls = new AtomicLong(0);
+        _running = false;
+        _overflow = false;
+
+        _polling = usePolling;
+        if (!_polling) {
+            try {
+                _watchService = FileSystems.getDefault().newWatchService();
+            }
+            catch (IOException | UnsupportedOperationException e) {
+                _log.warn("CatalogWatcher() - Unable to watch the file system, polling instead. Msg: {}", e.getMessage());
+                _polling = true;
+            }
+        }
+    }
+
+    public CatalogWatcher() {
+        this(DEFAULT_SETTLE_TIME, DEFAULT_POLL_INTERVAL, false);
+    }
+
+
+    /**
+     * Starts watching the directory that holds a catalog file. Watching a directory
+     * more than once does nothing.
+     *
+     * @param directory The directory.
+     */
+    public void watch(String directory) {
+        if (_polling)
+            return;
+
+        Path dir = Paths.get(directory).toAbsolutePath().normalize();
+        if (_watched.containsKey(dir))
+            return;
+
+        try {
+            WatchKey key = dir.register(_watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            _watched.put(dir, key);
+            _log.debug("watch() - Watching {}", dir);
+        }
+        catch (IOException | ClosedWatchServiceException e) {
+            _log.warn("watch() - Unable to watch {}, polling the catalog files instead. Msg: {}", dir, e.getMessage());
+            _polling = true;
+        }
+    }
+
+
+    public synchronized void start() {
+        if (_running)
+            return;
+        _running = true;
+        _thread = new Thread(this, "olfs-catalog-watcher");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+
+    public synchronized void stop() {
+        _running = false;
+        if (_watchService != null) {
+            try {
+                _watchService.close();
+            }
+            catch (IOException e) {
+                _log.debug("stop() - Failed to close the watch service. Msg: {}", e.getMessage());
+            }
+        }
+        if (_thread != null) {
+            _thread.interrupt();
+            _thread = null;
+        }
+        _watched.clear();
+        _changed.clear();
+    }
+
+
+    @Override
+    public void run() {
+        _log.info("run() - Watching THREDDS catalog files{}", _polling ? " by polling." : ".");
+        while (_running) {
+            try {
+                if (_polling) {
+                    Thread.sleep(_pollInterval);
+                    poll();
+                }
+                else {
+                    WatchKey key = _watchService.poll(_settleTime, TimeUnit.MILLISECONDS);
+                    if (key != null)
+                        collect(key);
+                    reingestSettled();
+                }
+            }
+            catch (InterruptedException | ClosedWatchServiceException e) {
+                break;
+            }
+            catch (Throwable t) {
+                _log.error("run() - Failed to check the THREDDS catalog files. Msg: {}", t.getMessage());
+            }
+        }
+        _log.info("run() - Stopped watching THREDDS catalog files.");
+    }
+
+
+    private void collect(WatchKey key) {
+        Path dir = (Path) key.watchable();
+        long now = System.currentTimeMillis();
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            _events.incrementAndGet();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                _overflow = true;
+                continue;
+            }
+            Path file = dir.resolve((Path) event.context());
+            _changed.put(file.toString(), now);
+        }
+
+        if (!key.reset()) {
+            _log.debug("collect() - {} can no longer be watched.", dir);
+            _watched.remove(dir);
+        }
+    }
+
+
+    private void reingestSettled() {
+        if (_overflow) {
+            _overflow = false;
+            _changed.clear();
+            poll();
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Long>> i = _changed.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, Long> e = i.next();
+            if (now - e.getValue() >= _settleTime) {
+                i.remove();
+                CatalogManager.catalogFileChanged(e.getKey());
+            }
+        }
+    }
+
+
+    private void poll() {
+        _polls.incrementAndGet();
+        CatalogManager.refreshChangedCatalogs();
+    }
+
+
+    /**
+     * @return True if the catalog files are polled rather than watched.
+     */
+    public boolean isPolling() {
+        return _polling;
+    }
+
+    public int getWatchedDirectoryCount() {
+        return _watched.size();
+    }
+
+    /**
+     * @return The number of file system events received.
+     */
+    public long getEvents() {
+        return _events.get();
+    }
+
+    /**
+     * @return The number of times every catalog file was checked.
+     */
+    public long getPolls() {
+        return _polls.get();
+    }
+
+}
@@ -26,7 +26,9 @@
 
 package opendap.threddsHandler;
 
+import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
 import opendap.io.HyraxStringEncoding;
 import opendap.namespaces.THREDDS;
 import opendap.xml.Transformer;
@@ -178,15 +180,19 @@ public class InheritedMetadataManager {
 
 
     private static Logger log = org.slf4j.LoggerFactory.getLogger(InheritedMetadataManager.class);
-    private static Transformer _dsIngestTransformer;
+    // Compiled once. Each ingest loads its own Transformer from it, so ingests can transform
+    // their catalogs at the same time.
+    private static Processor _dsIngestProcessor;
+    private static XsltExecutable _dsIngestExecutable;
 
     static {
         try {
             ByteArrayInputStream is = new ByteArrayInputStream(transform.getBytes(HyraxStringEncoding.getCharset()));
-            _dsIngestTransformer = new Transformer(new StreamSource(is));
+            _dsIngestProcessor = new Processor(false);
+            _dsIngestExecutable = _dsIngestProcessor.newXsltCompiler().compile(new StreamSource(is));
         } catch (SaxonApiException e) {
             log.error("FAILED to build transform! Msg: " + e.getMessage());
-            _dsIngestTransformer = null;
+            _dsIngestExecutable = null;
         }
     }
 
@@ -216,7 +222,9 @@ public class InheritedMetadataManager {
 
     /**
      * Inspect a THREDDS Catalog object and add any datasetScan metadata whose 'inherited' attribute is set to true
-     * into the inventory.
+     * into the inventory. The catalog is transformed and its metadata collected without holding the inventory
+     * lock; the write lock is only held to swap out anything already held for the catalog for the new metadata,
+     * so readers see either the old metadata or the new, never neither.
      * @param catalog   The Catalog object to inspect.
      * @throws SaxonApiException When Saxon parsing fails.
      * @throws IOException  When reading a catalog fails.
@@ -226,11 +234,7 @@ public class InheritedMetadataManager {
 
         String catalogKey = catalog.getCatalogKey();
 
-
-        ReentrantReadWriteLock.WriteLock writeLock = _inventoryLock.writeLock();
         try {
-            writeLock.lock();
-
             JDOMSource cat = new JDOMSource(catalog.getRawCatalogDocument());
 
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -242,14 +246,15 @@ public class InheritedMetadataManager {
             Iterator datasetScanIngests, metadataRootPathIterator;
             String metadataRootPath;
             Vector<String> metadataRootPaths = new Vector<String>();
-            Vector<Element> metadataElements;
-            ConcurrentHashMap<String, Vector<Element>> metadataForThisRootPath;
-            ConcurrentHashMap<String, Vector<Element>> inheritedServicesForThisRootPath;
+
+            // metadataRootPath -> What this catalog contributes to it. Installed in the inventory below.
+            HashMap<String, Vector<Element>> metadataByRootPath = new HashMap<String, Vector<Element>>();
+            HashMap<String, Vector<Element>> servicesByRootPath = new HashMap<String, Vector<Element>>();
 
 
             log.debug("ingestInheritedMetadata() - datasetIngestTransform: \n{}",transform);
 
-            _dsIngestTransformer.transform(cat, baos);
+            new Transformer(_dsIngestProcessor, _dsIngestExecutable).transform(cat, baos);
 
 
             dsIngest = sb.build(new ByteArrayInputStream(baos.toByteArray()));
@@ -326,62 +331,18 @@ public class InheritedMetadataManager {
                         metadataRootPathElement = (Element) metadataRootPathIterator.next();
                         metadataRootPath = metadataRootPathElement.getTextTrim();
 
-                        int size =  _inheritedMetadata.size();
-                        _inheritedMetadata.putIfAbsent(metadataRootPath, new ConcurrentHashMap<String, Vector<Element>>());
-                        if (size<_inheritedMetadata.size()) {
-                            log.debug("ingestInheritedMetadata() - Added new metadataRootPath: '" + metadataRootPath + "' ConcurrentHashMap storage.");
-                        }
-
-                        metadataForThisRootPath = _inheritedMetadata.get(metadataRootPath);
-
-                        size = metadataForThisRootPath.size();
-                        metadataForThisRootPath.putIfAbsent(catalogKey, new Vector<Element>());
-                        if(size<metadataForThisRootPath.size()){
-                            log.debug("ingestInheritedMetadata() - The catalog '"+catalogKey+"' is a new contributor of metadata to metadataRootPath '"+metadataRootPath+"' Added storage Vector");
-                        }
-
-                        metadataElements = metadataForThisRootPath.get(catalogKey);
-
-                        log.debug("ingestInheritedMetadata() - Adding metadata element to inventory.");
-                        metadataElements.add(metadataElement);
-
+                        if (!metadataByRootPath.containsKey(metadataRootPath))
+                            metadataByRootPath.put(metadataRootPath, new Vector<Element>());
+                        log.debug("ingestInheritedMetadata() - Adding metadata element for metadataRootPath '{}'", metadataRootPath);
+                        metadataByRootPath.get(metadataRootPath).add(metadataElement);
 
                         if(inheritedService!=null){
-                            log.debug("ingestInheritedMetadata() - Processing inheritedService for metadataRootPath: '"+metadataRootPath+"' catalogKey: '",catalogKey+"'");
-
-                            size = _inheritedServices.size();
-                            _inheritedServices.putIfAbsent(metadataRootPath, new ConcurrentHashMap<String, Vector<Element>>());
-                            if(size < _inheritedServices.size()) {
-                                log.debug("ingestInheritedMetadata() - Added new inherited services ConcurrentHashMap storage for " +
-                                        "metadataRootPath: '" + metadataRootPath + "'");
-                            }
-
-                            inheritedServicesForThisRootPath = _inheritedServices.get(metadataRootPath);
-
-                            // New Way
-                            size = inheritedServicesForThisRootPath.size();
-                            inheritedServicesForThisRootPath.putIfAbsent(catalogKey,new Vector<Element>());
-                            if(size<inheritedServicesForThisRootPath.size()){
-                                log.debug("ingestInheritedMetadata() - Added new inherited services storage Vector for " +
-                                        "metadataRootPath: '" + metadataRootPath+"' originating from catalogKey: '",catalogKey+"'");
-                            }
-
-                            /*  OLD WAY
-                            if (!inheritedServicesForThisRootPath.containsKey(catalogKey)) {
-                                inheritedServicesForThisRootPath.put(catalogKey, new Vector<Element>());
-                                log.debug("ingestInheritedMetadata() - Added new inherited services storage Vector for " +
-                                        "metadataRootPath: '" + metadataRootPath+"' originating from catalogKey: '",catalogKey+"'");
-                            }
-                            */
-
-
-
-
                             log.debug("ingestInheritedMetadata() - Adding service '"+inheritedService.getAttributeValue("name")+
-                                    "' to inherited services inventory for metadataRootPath: "+metadataRootPath+"' " +
-                                    "originating from catalogKey: '",catalogKey+"'");
-                            Vector<Element> fromThisCatalogKey =  inheritedServicesForThisRootPath.get(catalogKey);
-                            fromThisCatalogKey.add(inheritedService);
+                                    "' to inherited services for metadataRootPath: '"+metadataRootPath+"' " +
+                                    "originating from catalogKey: '{}'",catalogKey);
+                            if (!servicesByRootPath.containsKey(metadataRootPath))
+                                servicesByRootPath.put(metadataRootPath, new Vector<Element>());
+                            servicesByRootPath.get(metadataRootPath).add(inheritedService);
                         }
                         log.debug("ingestInheritedMetadata() - Adding metadataRootPath '"+metadataRootPath+"'to list of metadataRootPaths " +
                                 "spawned by catalog '"+catalogKey+"'");
@@ -390,11 +351,47 @@ public class InheritedMetadataManager {
                 }
 
             }
-            log.debug("ingestInheritedMetadata() - Adding mapping of catalog '"+catalogKey+"' to a collection of metadataRootPaths to inventory.");
-            _catalog2MetadataMap.put(catalogKey, metadataRootPaths.toArray(new String[metadataRootPaths.size()]));
+
+            install(catalogKey, metadataByRootPath, servicesByRootPath, metadataRootPaths);
 
         } catch (MissingServiceDefinitionException e) {
             e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Replaces whatever the inventory holds for a catalog with newly ingested metadata, holding the write
+     * lock for only as long as that takes.
+     *
+     * @param catalogKey The catalog the metadata came from.
+     * @param metadataByRootPath metadataRootPath -> The catalog's metadata elements for it.
+     * @param servicesByRootPath metadataRootPath -> The catalog's inherited services for it.
+     * @param metadataRootPaths Every metadataRootPath the catalog contributes to.
+     */
+    private static void install(String catalogKey,
+                                HashMap<String, Vector<Element>> metadataByRootPath,
+                                HashMap<String, Vector<Element>> servicesByRootPath,
+                                Vector<String> metadataRootPaths) {
+
+        ReentrantReadWriteLock.WriteLock writeLock = _inventoryLock.writeLock();
+        try {
+            writeLock.lock();
+
+            // The write lock is reentrant, so this purge and the install below are one step to readers.
+            purgeInheritedMetadata(catalogKey);
+
+            for (String metadataRootPath : metadataByRootPath.keySet()) {
+                _inheritedMetadata.putIfAbsent(metadataRootPath, new ConcurrentHashMap<String, Vector<Element>>());
+                _inheritedMetadata.get(metadataRootPath).put(catalogKey, metadataByRootPath.get(metadataRootPath));
+            }
+            for (String metadataRootPath : servicesByRootPath.keySet()) {
+                _inheritedServices.putIfAbsent(metadataRootPath, new ConcurrentHashMap<String, Vector<Element>>());
+                _inheritedServices.get(metadataRootPath).put(catalogKey, servicesByRootPath.get(metadataRootPath));
+            }
+
+            log.debug("install() - Adding mapping of catalog '"+catalogKey+"' to a collection of metadataRootPaths to inventory.");
+            _catalog2MetadataMap.put(catalogKey, metadataRootPaths.toArray(new String[metadataRootPaths.size()]));
         } finally {
             writeLock.unlock();
         }
@@ -491,6 +488,109 @@ public class InheritedMetadataManager {
     }
 
 
+    /**
+     * Copies the inherited metadata and services that were ingested from a catalog, so
+     * that they can be restored with restoreInheritedMetadata() without running the
+     * ingest transform again.
+     *
+     * @param catalogKey The catalogKey of the catalog.
+     * @return An inheritedMetadata element holding a metadataRootPath element, with the
+     * metadata and service elements, for each metadataRootPath of the catalog.
+     */
+    public static Element exportInheritedMetadata(String catalogKey) {
+
+        Element inherited = new Element("inheritedMetadata");
+
+        ReentrantReadWriteLock.ReadLock readLock = _inventoryLock.readLock();
+        try {
+            readLock.lock();
+
+            String[] metadataRootPaths = _catalog2MetadataMap.get(catalogKey);
+            if (metadataRootPaths == null)
+                return inherited;
+
+            for (String metadataRootPath : metadataRootPaths) {
+                Element rootPath = new Element("metadataRootPath");
+                rootPath.setAttribute("path", metadataRootPath);
+
+                Element metadata = new Element("metadata");
+                ConcurrentHashMap<String, Vector<Element>> metadataForThisRootPath = _inheritedMetadata.get(metadataRootPath);
+                if (metadataForThisRootPath != null && metadataForThisRootPath.containsKey(catalogKey)) {
+                    for (Element e : metadataForThisRootPath.get(catalogKey))
+                        metadata.addContent((Element) e.clone());
+                }
+                rootPath.addContent(metadata);
+
+                Element services = new Element("services");
+                ConcurrentHashMap<String, Vector<Element>> servicesForThisRootPath = _inheritedServices.get(metadataRootPath);
+                if (servicesForThisRootPath != null && servicesForThisRootPath.containsKey(catalogKey)) {
+                    for (Element e : servicesForThisRootPath.get(catalogKey))
+                        services.addContent((Element) e.clone());
+                }
+                rootPath.addContent(services);
+
+                inherited.addContent(rootPath);
+            }
+        }
+        finally {
+            readLock.unlock();
+        }
+        return inherited;
+    }
+
+
+    /**
+     * Puts the inherited metadata and services copied by exportInheritedMetadata() back
+     * into the inventory. Anything already held for the catalog is replaced in a single step.
+     *
+     * @param catalogKey The catalogKey of the catalog.
+     * @param inherited The element returned by exportInheritedMetadata().
+     */
+    public static void restoreInheritedMetadata(String catalogKey, Element inherited) {
+
+        ReentrantReadWriteLock.WriteLock writeLock = _inventoryLock.writeLock();
+        try {
+            writeLock.lock();
+
+            purgeInheritedMetadata(catalogKey);
+
+            Vector<String> metadataRootPaths = new Vector<String>();
+
+            for (Object o : inherited.getChildren("metadataRootPath")) {
+                Element rootPath = (Element) o;
+                String metadataRootPath = rootPath.getAttributeValue("path");
+                metadataRootPaths.add(metadataRootPath);
+
+                Vector<Element> metadataElements = copyChildren(rootPath.getChild("metadata"));
+                if (!metadataElements.isEmpty()) {
+                    _inheritedMetadata.putIfAbsent(metadataRootPath, new ConcurrentHashMap<String, Vector<Element>>());
+                    _inheritedMetadata.get(metadataRootPath).put(catalogKey, metadataElements);
+                }
+
+                Vector<Element> serviceElements = copyChildren(rootPath.getChild("services"));
+                if (!serviceElements.isEmpty()) {
+                    _inheritedServices.putIfAbsent(metadataRootPath, new ConcurrentHashMap<String, Vector<Element>>());
+                    _inheritedServices.get(metadataRootPath).put(catalogKey, serviceElements);
+                }
+            }
+
+            _catalog2MetadataMap.put(catalogKey, metadataRootPaths.toArray(new String[metadataRootPaths.size()]));
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static Vector<Element> copyChildren(Element parent) {
+        Vector<Element> children = new Vector<Element>();
+        if (parent != null) {
+            for (Object o : parent.getChildren())
+                children.add((Element) ((Element) o).clone());
+        }
+        return children;
+    }
+
+
     public static boolean hasInheritedMetadata(String catalogKey) {
 
         ReentrantReadWriteLock.ReadLock readLock = _inventoryLock.readLock();
@@ -62,6 +62,11 @@ public class LocalFileCatalog implements Catalog {
     private boolean _useMemoryCache;
     private Date _cacheTime;
 
+    /**
+     * The last modified time of the catalog file when it was read.
+     */
+    private long _fileLastModified;
+
 
     private ReentrantReadWriteLock _catalogLock;
     private byte[] _rawCatalogBuffer;
@@ -122,6 +127,8 @@ public class LocalFileCatalog implements Catalog {
             throw new IOException(msg);
         }
 
+        // Taken before the file is read, so a change made while it's read is seen later.
+        _fileLastModified = catalogFile.lastModified();
 
         _clientResponseCatalogBuffer = null;
         _rawCatalogBuffer = null;
@@ -196,6 +203,49 @@ public class LocalFileCatalog implements Catalog {
 
     }
 
+    /**
+     * Rebuilds a catalog from the content it had when it was last ingested, without
+     * reading the catalog file or running the ingest transform. Used when the catalog
+     * file hasn't changed since then.
+     *
+     * @param fileLastModified The last modified time of the catalog file when it was ingested.
+     * @param name The name of the catalog.
+     * @param rawCatalog The content of the catalog file, or null if not kept in memory.
+     * @param clientResponseCatalog The ingest transformed catalog, or null if not kept in memory.
+     * @throws SaxonApiException When the ingest transform doesn't compile.
+     */
+    LocalFileCatalog(String pathPrefix,
+                     String urlPrefix,
+                     String fname,
+                     String transformOnIngestFilename,
+                     boolean useMemoryCache,
+                     long fileLastModified,
+                     String name,
+                     byte[] rawCatalog,
+                     byte[] clientResponseCatalog) throws SaxonApiException {
+
+        log = org.slf4j.LoggerFactory.getLogger(this.getClass());
+
+        _catalogLock = new ReentrantReadWriteLock();
+
+        _transformOnIngestFilename = transformOnIngestFilename;
+        _fileName = fname;
+        _pathPrefix = pathPrefix;
+        _urlPrefix = urlPrefix;
+        _useMemoryCache = useMemoryCache;
+        _name = name;
+
+        _fileLastModified = fileLastModified;
+        _cacheTime = new Date(fileLastModified);
+        _rawCatalogBuffer = rawCatalog;
+        _clientResponseCatalogBuffer = clientResponseCatalog;
+
+        if (_transformOnIngestFilename != null)
+            _ingestTransformer = new Transformer(_transformOnIngestFilename);
+
+        log.debug("Catalog '" + getName() + "' has been restored.");
+    }
+
     public void destroy() {
 
         ReentrantReadWriteLock.WriteLock lock = _catalogLock.writeLock();
@@ -722,6 +772,41 @@ public class LocalFileCatalog implements Catalog {
         }
     }
 
+    /**
+     * @return The last modified time of the catalog file when it was read.
+     */
+    long getFileLastModified() {
+        return _fileLastModified;
+    }
+
+    /**
+     * @return The content of the catalog file, or null if it isn't kept in memory.
+     */
+    byte[] getRawCatalogBytes() {
+        Lock lock = _catalogLock.readLock();
+        try {
+            lock.lock();
+            return _rawCatalogBuffer;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The ingest transformed catalog, or null if it isn't kept in memory.
+     */
+    byte[] getClientResponseCatalogBytes() {
+        Lock lock = _catalogLock.readLock();
+        try {
+            lock.lock();
+            return _clientResponseCatalogBuffer;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
     public String getIngestTransformFilename() {
         return _transformOnIngestFilename;
     }
@@ -39,6 +39,7 @@ import opendap.logging.Timer;
 import opendap.logging.Procedure;
 import opendap.ppt.PPTException;
 import opendap.xml.Transformer;
+import opendap.xml.TransformerPool;
 import org.apache.commons.httpclient.HttpClient;
 import org.apache.commons.httpclient.HttpStatus;
 import org.apache.commons.httpclient.methods.GetMethod;
@@ -50,10 +51,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.stream.StreamSource;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Date;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides Dispatch Services for the XSLT based THREDDS catalog Handler.
@@ -74,14 +75,13 @@ public class StaticCatalogDispatch implements DispatchHandler {
     private HttpServlet _dispatchServlet;
     private String _prefix;
     boolean _useMemoryCache = false;
+    boolean _useCatalogFilePolling = false;
 
     String _catalogToHtmlTransformFile = "/xsl/threddsCatalogPresentation.xsl";
-    Transformer _catalogToHtmlTransform = null;
-    ReentrantLock _catalogToHtmlTransformLock;
+    TransformerPool _catalogToHtmlTransforms = null;
 
     String _datasetToHtmlTransformFile = "/xsl/threddsDatasetDetail.xsl";
-    Transformer _datasetToHtmlTransform = null;
-    ReentrantLock _datasetToHtmlTransformLock;
+    TransformerPool _datasetToHtmlTransforms = null;
 
 
 
@@ -134,7 +134,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
                                            HttpServletResponse response) throws Exception {
 
 
-        Procedure timedProc = Timer.start();
+        Procedure timedProc = Timer.start("StaticCatalogDispatch.sendThreddsCatalogResponse");
         try {
 
             String catalogKey = getCatalogKeyFromRelativeUrl(ReqInfo.getLocalUrl(request));
@@ -159,17 +159,24 @@ public class StaticCatalogDispatch implements DispatchHandler {
             // Is the request for a presentation view (HTML version) of the catalog?
             else if (requestSuffix != null && requestSuffix.equals("html")) {
 
-                if (query != null) {
-                    if (query.startsWith("dataset=")) {
-                        sendDatasetHtmlPage(request, response, catalogKey, query);
-                    } else {
-                        response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Cannot process query: " + Scrub.urlContent(query));
-                    }
+                CompressingResponse compressingResponse = ResponseCompression.wrap(request, response);
+                try {
+                    if (query != null) {
+                        if (query.startsWith("dataset=")) {
+                            sendDatasetHtmlPage(request, compressingResponse, catalogKey, query);
+                        } else {
+                            compressingResponse.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Cannot process query: " + Scrub.urlContent(query));
+                        }
 
 
-                } else {
-                    sendCatalogHTML(request, response, catalogKey);
+                    } else {
+                        sendCatalogHTML(request, compressingResponse, catalogKey);
+                    }
+                } catch (Exception e) {
+                    compressingResponse.abort();
+                    throw e;
                 }
+                compressingResponse.finish();
 
             } else { // Send the the raw catalog XML.
                 sendCatalogXML(orq, response, catalogKey);
@@ -279,51 +286,44 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
         InputStream catDocIs = null;
 
-        _datasetToHtmlTransformLock.lock();
-
+        Transformer transformer = _datasetToHtmlTransforms.borrow();
         try {
-            try {
-                catDocIs = request.getResponseBodyAsStream();
-                _datasetToHtmlTransform.reloadTransformIfRequired();
+            catDocIs = request.getResponseBodyAsStream();
 
-                // Build the catalog document as an XdmNode.
-                XdmNode catDoc = _datasetToHtmlTransform.build(new StreamSource(catDocIs));
+            // Build the catalog document as an XdmNode.
+            XdmNode catDoc = transformer.build(new StreamSource(catDocIs));
 
-                _datasetToHtmlTransform.setParameter("serviceContext", oRequest.getServiceLocalId());
-                _datasetToHtmlTransform.setParameter("docsService", oRequest.getDocsServiceLocalID());
-                _datasetToHtmlTransform.setParameter("targetDataset", targetDataset);
-                _datasetToHtmlTransform.setParameter("remoteCatalog", remoteCatalog);
-                _datasetToHtmlTransform.setParameter("remoteHost", remoteHost);
+            transformer.setParameter("serviceContext", oRequest.getServiceLocalId());
+            transformer.setParameter("docsService", oRequest.getDocsServiceLocalID());
+            transformer.setParameter("targetDataset", targetDataset);
+            transformer.setParameter("remoteCatalog", remoteCatalog);
+            transformer.setParameter("remoteHost", remoteHost);
 
 
-                // Set up the Http headers.
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
+            // Set up the Http headers.
+            response.setContentType("text/html");
+            response.setHeader("Content-Description", "thredds_catalog");
+            response.setStatus(HttpServletResponse.SC_OK);
 
-                // Send the transformed document.
-                _datasetToHtmlTransform.transform(catDoc, response.getOutputStream());
+            // Send the transformed document.
+            transformer.transform(catDoc, response.getOutputStream());
 
-                _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+            _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
 
 
-            } catch (SaxonApiException sapie) {
-                throw new BadGateway("Remote resource does not appear to reference a THREDDS Catalog.");
-            } finally {
-                _datasetToHtmlTransform.clearAllParameters();
+        } catch (SaxonApiException sapie) {
+            throw new BadGateway("Remote resource does not appear to reference a THREDDS Catalog.");
+        } finally {
+            _datasetToHtmlTransforms.release(transformer);
 
-                if (catDocIs != null) {
-                    try {
-                        catDocIs.close();
-                    } catch (IOException e) {
-                        _log.error("Failed to close InputStream for " + remoteCatalog + " Error Message: " + e.getMessage());
-                    }
+            if (catDocIs != null) {
+                try {
+                    catDocIs.close();
+                } catch (IOException e) {
+                    _log.error("Failed to close InputStream for " + remoteCatalog + " Error Message: " + e.getMessage());
                 }
             }
         }
-        finally {
-            _datasetToHtmlTransformLock.unlock();
-        }
 
 
     }
@@ -369,53 +369,45 @@ public class StaticCatalogDispatch implements DispatchHandler {
         InputStream catDocIs = null;
 
 
-        _catalogToHtmlTransformLock.lock();
+        Transformer transformer = _catalogToHtmlTransforms.borrow();
         try {
-            try {
-                catDocIs = request.getResponseBodyAsStream();
-                _catalogToHtmlTransform.reloadTransformIfRequired();
+            catDocIs = request.getResponseBodyAsStream();
 
-                // Build the catalog document as an XdmNode.
-                XdmNode catDoc = _catalogToHtmlTransform.build(new StreamSource(catDocIs));
+            // Build the catalog document as an XdmNode.
+            XdmNode catDoc = transformer.build(new StreamSource(catDocIs));
 
-                _catalogToHtmlTransform.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
-                _catalogToHtmlTransform.setParameter("dapService", oRequest.getServiceLocalId());
-                _datasetToHtmlTransform.setParameter("serviceContext", oRequest.getServiceLocalId());
-                _catalogToHtmlTransform.setParameter("docsService", oRequest.getDocsServiceLocalID());
+            transformer.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
+            transformer.setParameter("dapService", oRequest.getServiceLocalId());
+            transformer.setParameter("docsService", oRequest.getDocsServiceLocalID());
 
-                _catalogToHtmlTransform.setParameter("remoteHost", remoteHost);
-                _catalogToHtmlTransform.setParameter("remoteRelativeURL", remoteRelativeURL);
-                _catalogToHtmlTransform.setParameter("remoteCatalog", remoteCatalog);
+            transformer.setParameter("remoteHost", remoteHost);
+            transformer.setParameter("remoteRelativeURL", remoteRelativeURL);
+            transformer.setParameter("remoteCatalog", remoteCatalog);
 
 
-                // Set up the Http headers.
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
+            // Set up the Http headers.
+            response.setContentType("text/html");
+            response.setHeader("Content-Description", "thredds_catalog");
+            response.setStatus(HttpServletResponse.SC_OK);
 
-                // Send the transformed documet.
-                _catalogToHtmlTransform.transform(catDoc, response.getOutputStream());
+            // Send the transformed documet.
+            transformer.transform(catDoc, response.getOutputStream());
 
-                _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+            _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
 
-            } catch (SaxonApiException sapie) {
-                throw new BadGateway("Remote resource does not appear to reference a THREDDS Catalog.");
-            } finally {
-                // Clean up the transform before releasing it.
-                _catalogToHtmlTransform.clearAllParameters();
+        } catch (SaxonApiException sapie) {
+            throw new BadGateway("Remote resource does not appear to reference a THREDDS Catalog.");
+        } finally {
+            _catalogToHtmlTransforms.release(transformer);
 
-                if (catDocIs != null) {
-                    try {
-                        catDocIs.close();
-                    } catch (IOException e) {
-                        _log.error("Failed to close InputStream for " + remoteCatalog + " Error Message: " + e.getMessage());
-                    }
+            if (catDocIs != null) {
+                try {
+                    catDocIs.close();
+                } catch (IOException e) {
+                    _log.error("Failed to close InputStream for " + remoteCatalog + " Error Message: " + e.getMessage());
                 }
             }
         }
-        finally {
-            _catalogToHtmlTransformLock.unlock();
-        }
 
 
     }
@@ -429,74 +421,67 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
         XdmNode catDoc;
 
-        _datasetToHtmlTransformLock.lock();
+        Transformer transformer = _datasetToHtmlTransforms.borrow();
         try {
-            try {
-                _datasetToHtmlTransform.reloadTransformIfRequired();
 
-                Request orq = new Request(null, request);
+            Request orq = new Request(null, request);
 
 
-                Catalog cat = CatalogManager.getCatalog(catalogKey);
+            Catalog cat = CatalogManager.getCatalog(catalogKey);
 
-                if (cat != null) {
-                    _log.debug("\nFound catalog: " + catalogKey + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    catDoc = cat.getCatalogAsXdmNode(_datasetToHtmlTransform.getProcessor());
-                    if (catDoc == null) {
-                        String msg = "FAILED to retrieve catalog document associated with file '" + cat.getFileName() + "' UNABLE TO FORMULATE A RESPONSE.";
-                        _log.error("sendCatalogHTML() - {}", msg);
-                        throw new BadConfigurationException(msg);
+            if (cat != null) {
+                _log.debug("\nFound catalog: " + catalogKey + "   " +
+                                "    prefix: " + _prefix
+                );
+                catDoc = cat.getCatalogAsXdmNode(transformer.getProcessor());
+                if (catDoc == null) {
+                    String msg = "FAILED to retrieve catalog document associated with file '" + cat.getFileName() + "' UNABLE TO FORMULATE A RESPONSE.";
+                    _log.error("sendCatalogHTML() - {}", msg);
+                    throw new BadConfigurationException(msg);
 
-                    }
-                    _log.debug("catDoc.getServiceUrl(): " + catDoc.getBaseURI());
-                } else {
-                    _log.error("Can't find catalog: " + Scrub.urlContent(catalogKey) + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "Can't find catalog: " + Scrub.urlContent(catalogKey));
-                    return;
                 }
+                _log.debug("catDoc.getServiceUrl(): " + catDoc.getBaseURI());
+            } else {
+                _log.error("Can't find catalog: " + Scrub.urlContent(catalogKey) + "   " +
+                                "    prefix: " + _prefix
+                );
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Can't find catalog: " + Scrub.urlContent(catalogKey));
+                return;
+            }
 
-                String targetDataset = query.substring("dataset=".length(), query.length());
-
-                //query = "//*";
+            String targetDataset = query.substring("dataset=".length(), query.length());
 
-                _log.debug("targetDataset: " + targetDataset);
+            //query = "//*";
 
-                // Pass the docsService  parameter to the transform
-                _datasetToHtmlTransform.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
-                _datasetToHtmlTransform.setParameter("docsService", orq.getDocsServiceLocalID());
-                _datasetToHtmlTransform.setParameter("targetDataset", targetDataset);
+            _log.debug("targetDataset: " + targetDataset);
 
+            // Pass the docsService  parameter to the transform
+            transformer.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
+            transformer.setParameter("docsService", orq.getDocsServiceLocalID());
+            transformer.setParameter("targetDataset", targetDataset);
 
-                AuthenticationControls.setLoginParameters(_datasetToHtmlTransform, request);
 
+            AuthenticationControls.setLoginParameters(transformer, request);
 
-                // Set up the http headers.
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
 
+            // Set up the http headers.
+            response.setContentType("text/html");
+            response.setHeader("Content-Description", "thredds_catalog");
+            response.setStatus(HttpServletResponse.SC_OK);
 
-                // Send the transformed documet.
-                _datasetToHtmlTransform.transform(catDoc, response.getOutputStream());
 
-                _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+            // Send the transformed documet.
+            transformer.transform(catDoc, response.getOutputStream());
 
+            _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
 
-            } catch (BadConfigurationException e) {
-                e.printStackTrace();
-            } catch (PPTException e) {
-                e.printStackTrace();
-            } finally {
-                _datasetToHtmlTransform.clearAllParameters();
 
-            }
-        }
-        finally {
-            _datasetToHtmlTransformLock.unlock();
+        } catch (BadConfigurationException e) {
+            e.printStackTrace();
+        } catch (PPTException e) {
+            e.printStackTrace();
+        } finally {
+            _datasetToHtmlTransforms.release(transformer);
         }
 
 
@@ -505,63 +490,56 @@ public class StaticCatalogDispatch implements DispatchHandler {
     private void sendCatalogHTML(HttpServletRequest request, HttpServletResponse response, String catalogKey)
             throws SaxonApiException, IOException, JDOMException, BadConfigurationException, PPTException, BESError {
 
-        _catalogToHtmlTransformLock.lock();
+        Transformer transformer = _catalogToHtmlTransforms.borrow();
         try {
+            Request orq = new Request(null, request);
 
-            try {
-                Request orq = new Request(null, request);
-
-
-                _catalogToHtmlTransform.reloadTransformIfRequired();
 
-                XdmNode catDoc;
 
-                Catalog cat = CatalogManager.getCatalog(catalogKey);
+            XdmNode catDoc;
 
-                if (cat != null) {
-                    _log.debug("\nFound catalog: " + catalogKey + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    catDoc = cat.getCatalogAsXdmNode(_catalogToHtmlTransform.getProcessor());
-                    if (catDoc == null) {
-                        String msg = "FAILED to retrieve catalog document associated with file '" + cat.getFileName() + "' UNABLE TO FORMULATE A RESPONSE.";
-                        _log.error("sendCatalogHTML() - {}", msg);
-                        throw new BadConfigurationException(msg);
+            Catalog cat = CatalogManager.getCatalog(catalogKey);
 
-                    }
+            if (cat != null) {
+                _log.debug("\nFound catalog: " + catalogKey + "   " +
+                                "    prefix: " + _prefix
+                );
+                catDoc = cat.getCatalogAsXdmNode(transformer.getProcessor());
+                if (catDoc == null) {
+                    String msg = "FAILED to retrieve catalog document associated with file '" + cat.getFileName() + "' UNABLE TO FORMULATE A RESPONSE.";
+                    _log.error("sendCatalogHTML() - {}", msg);
+                    throw new BadConfigurationException(msg);
 
-                    _log.debug("catDoc.getServiceUrl(): " + catDoc.getBaseURI());
-                } else {
-                    _log.error("Can't find catalog: " + Scrub.urlContent(catalogKey) + "   " +
-                                    "    prefix: " + _prefix
-                    );
-                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "Can't find catalog: " + Scrub.urlContent(catalogKey));
-                    return;
                 }
 
+                _log.debug("catDoc.getServiceUrl(): " + catDoc.getBaseURI());
+            } else {
+                _log.error("Can't find catalog: " + Scrub.urlContent(catalogKey) + "   " +
+                                "    prefix: " + _prefix
+                );
+                response.sendError(HttpServletResponse.SC_NOT_FOUND, "Can't find catalog: " + Scrub.urlContent(catalogKey));
+                return;
+            }
 
-                // Send the catalog using the transform.
 
-                response.setContentType("text/html");
-                response.setHeader("Content-Description", "thredds_catalog");
-                response.setStatus(HttpServletResponse.SC_OK);
+            // Send the catalog using the transform.
 
-                _catalogToHtmlTransform.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
-                _catalogToHtmlTransform.setParameter("dapService", orq.getServiceLocalId());
-                _catalogToHtmlTransform.setParameter("docsService", orq.getDocsServiceLocalID());
+            response.setContentType("text/html");
+            response.setHeader("Content-Description", "thredds_catalog");
+            response.setStatus(HttpServletResponse.SC_OK);
 
-                AuthenticationControls.setLoginParameters(_catalogToHtmlTransform, request);
+            transformer.setParameter("serviceContext", _dispatchServlet.getServletContext().getContextPath());
+            transformer.setParameter("dapService", orq.getServiceLocalId());
+            transformer.setParameter("docsService", orq.getDocsServiceLocalID());
 
-                _catalogToHtmlTransform.transform(catDoc, response.getOutputStream());
+            AuthenticationControls.setLoginParameters(transformer, request);
 
-                _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+            transformer.transform(catDoc, response.getOutputStream());
 
-            } finally {
-                _catalogToHtmlTransform.clearAllParameters();
-            }
-        }
-        finally {
-            _catalogToHtmlTransformLock.unlock();
+            _log.debug("Used saxon to send THREDDS catalog (XML->XSLT(saxon)->HTML).");
+
+        } finally {
+            _catalogToHtmlTransforms.release(transformer);
         }
 
 
@@ -640,6 +618,28 @@ public class StaticCatalogDispatch implements DispatchHandler {
         }
         _log.debug("init() - useMemoryCache: {}", _useMemoryCache);
 
+        // For content directories on file systems that don't report changes, such as NFS.
+        e = _config.getChild("useCatalogFilePolling");
+        if (e != null) {
+            s = e.getTextTrim();
+            if (s.equalsIgnoreCase("true")) {
+                _useCatalogFilePolling = true;
+            }
+        }
+        _log.debug("init() - useCatalogFilePolling: {}", _useCatalogFilePolling);
+
+        // An empty catalogSnapshotFile element turns the snapshot off.
+        String catalogSnapshotFile = null;
+        boolean useCatalogSnapshot = true;
+        e = _config.getChild("catalogSnapshotFile");
+        if (e != null) {
+            s = e.getTextTrim();
+            if (s.length() == 0)
+                useCatalogSnapshot = false;
+            else
+                catalogSnapshotFile = s;
+        }
+
 
         String ingestTransformFile = null;
         e = _config.getChild("ingestTransformFile");
@@ -703,62 +703,50 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
         _log.debug("init() - Memory report prior to static thredds catalog ingest: \n{}", opendap.coreServlet.Util.getMemoryReport());
 
-        CatalogManager.addCatalog(
+        if (useCatalogSnapshot && catalogSnapshotFile == null) {
+            // The OLFS's own cache directory, not a shared one such as java.io.tmpdir, since
+            // what is in the file is trusted when the catalogs are restored from it.
+            File cacheDir = new File(contentPath, "cache");
+            if (cacheDir.isDirectory() || cacheDir.mkdirs()) {
+                catalogSnapshotFile = new File(cacheDir, "thredds.snapshot").getPath();
+            }
+            else {
+                _log.warn("init() - Unable to create {} The THREDDS catalogs will not be saved between restarts.", cacheDir);
+                useCatalogSnapshot = false;
+            }
+        }
+        if (useCatalogSnapshot) {
+            _log.debug("init() - Using THREDDS catalog snapshot file: {}", catalogSnapshotFile);
+            CatalogManager.setSnapshotFile(catalogSnapshotFile);
+        }
+
+        CatalogManager.startCatalogWatcher(_useCatalogFilePolling);
+
+        // Don't hold up the server while the catalog tree is ingested. Until it's done the
+        // catalogs that are asked for are read from their files.
+        CatalogManager.addCatalogInBackground(
                 pathPrefix,
                 thisUrlPrefix,
                 fileName,
                 _useMemoryCache);
 
-        _log.debug("init() - Memory report post static thredds catalog ingest: \n{}", opendap.coreServlet.Util.getMemoryReport());
-
-        _log.debug("init() - THREDDS catalog.xml (and children thereof) have been ingested.");
+        _log.debug("init() - Ingesting THREDDS catalog.xml (and children thereof) in the background.");
 
 
         _log.debug("init() - Loading XSLT for thredds presentation views.");
 
-        // Create a lock for use with the thread-unsafe transformer.
-        _catalogToHtmlTransformLock = new ReentrantLock(true);
-
-        try {
-            _catalogToHtmlTransformLock.lock();
-
-            // ---------------------
-            // Get XSLT document name
-            String catalogToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _catalogToHtmlTransformFile);
-
-            // Build an cache an XSLT transformer for the XSLT document.
-            _catalogToHtmlTransform = new Transformer(catalogToHtmlXslt);
-
-
-            _log.debug("init() - XSLT file \"" + catalogToHtmlXslt + "\"loaded & parsed. " +
-                    "Transfrom object created and cached. " +
-                    "Transform lock created.");
-        }
-        finally {
-            _catalogToHtmlTransformLock.unlock();
-        }
+        // ---------------------
+        // Get XSLT document names
+        String catalogToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _catalogToHtmlTransformFile);
+        String datasetToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _datasetToHtmlTransformFile);
 
+        // Compile each XSLT document once. Every request borrows a transformer of its own
+        // from the pool, so any number of pages can be rendered at once.
+        _catalogToHtmlTransforms = new TransformerPool(catalogToHtmlXslt);
+        _datasetToHtmlTransforms = new TransformerPool(datasetToHtmlXslt);
 
-        // Create a lock for use with the thread-unsafe transformer.
-        _datasetToHtmlTransformLock = new ReentrantLock(true);
-
-        try {
-            _datasetToHtmlTransformLock.lock();
-
-            // ---------------------
-            // Get XSLT document name
-            String datasetToHtmlXslt = ServletUtil.getSystemPath(_dispatchServlet, _datasetToHtmlTransformFile);
-
-            // Build an cache an XSLT transformer for the XSLT document.
-            _datasetToHtmlTransform = new Transformer(datasetToHtmlXslt);
-
-            _log.debug("init() - XSLT file \"" + datasetToHtmlXslt + "\"loaded & parsed. " +
-                    "Transfrom object created and cached. " +
-                    "Transform lock created.");
-        }
-        finally {
-            _datasetToHtmlTransformLock.unlock();
-        }
+        _log.debug("init() - XSLT files \"" + catalogToHtmlXslt + "\" and \"" + datasetToHtmlXslt + "\" " +
+                "loaded & compiled. Transformer pools created.");
 
 
         _log.info("init() - Initialized.");
@@ -811,7 +799,7 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
     public long getLastModified(HttpServletRequest req) {
 
-        Procedure timedProc = Timer.start();
+        Procedure timedProc = Timer.start("StaticCatalogDispatch.getLastModified");
 
         RequestCache.openThreadCache();
 
@@ -836,6 +824,10 @@ public class StaticCatalogDispatch implements DispatchHandler {
 
     public void destroy() {
 
+        if (_catalogToHtmlTransforms != null)
+            _catalogToHtmlTransforms.destroy();
+        if (_datasetToHtmlTransforms != null)
+            _datasetToHtmlTransforms.destroy();
         CatalogManager.destroy();
         _log.info("Destroy Complete");
 
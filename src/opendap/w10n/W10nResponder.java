@@ -29,6 +29,8 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import net.sf.saxon.s9api.SaxonApiException;
 import opendap.bes.BESError;
+import opendap.bes.BESResource;
+import opendap.bes.BESResourceCache;
 import opendap.bes.BadConfigurationException;
 import opendap.bes.BesDapDispatcher;
 import opendap.bes.Version;
@@ -390,6 +392,7 @@ public class W10nResponder {
         Document showCatalogDoc = new Document();
 
         _besApi.getBesCatalog(w10nRequest.getValidResourcePath(), showCatalogDoc);
+        _besApi.prefetchChildCatalogs(w10nRequest.getValidResourcePath(), showCatalogDoc);
 
 
         _log.debug("sendMetaResponseForFileOrDir() - Catalog from BES:\n"+xmlo.outputString(showCatalogDoc));
@@ -1056,13 +1059,20 @@ public class W10nResponder {
         }
 
 
-        ServletOutputStream sos = response.getOutputStream();
-        _besApi.writeFile(name, sos);
-
-        sos.flush();
-
-
+        // Same validators and range handling as FileDispatchHandler.sendFile()
+        final String dataSource = name;
+        BESResource resource = BESResourceCache.getResourceInfo(dataSource, _besApi);
+        long lastModified = resource.lastModified();
+        String entityTag = ConditionalRequest.getStrongEntityTag(dataSource,
+                Long.toString(lastModified), Long.toString(resource.getSize()));
 
+        ByteRanges.send(req, response, resource.getSize(), entityTag, lastModified,
+                new ByteRanges.Source() {
+                    @Override
+                    public void writeTo(OutputStream os) throws Exception {
+                        _besApi.writeFile(dataSource, os);
+                    }
+                });
 
     }
 
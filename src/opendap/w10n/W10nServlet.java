@@ -110,7 +110,7 @@ public class W10nServlet extends HttpServlet   {
 
         long lmt = -1;
 
-        Procedure timedProcedure = Timer.start();
+        Procedure timedProcedure = Timer.start("W10nServlet.getLastModified");
         try {
 
             if (ReqInfo.isServiceOnlyRequest(req)) {
@@ -140,7 +140,7 @@ public class W10nServlet extends HttpServlet   {
 
             int request_status = HttpServletResponse.SC_OK;
             try {
-                Procedure timedProc = Timer.start();
+                Procedure timedProc = Timer.start("W10nServlet.doGet");
                 try {
 
                     if(LicenseManager.isExpired(request)){
@@ -215,7 +215,8 @@ public class W10nServlet extends HttpServlet   {
                 RequestCache.closeThreadCache();
             }
 
-            _log.info(Timer.report());
+            if(Timer.isEnabled())
+                _log.info(Timer.report());
             Timer.reset();
         }
         //**************************************************************************
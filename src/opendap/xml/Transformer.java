@@ -61,6 +61,7 @@ public class Transformer {
 
     private Processor proc;
     private Serializer serializer;
+    private XsltExecutable executable;
     private XsltTransformer transform;
     private Date cacheTime;
     private String xsltDoc;
@@ -69,16 +70,24 @@ public class Transformer {
     private Transformer(){
         proc = null;
         serializer = null;
+        executable = null;
         transform = null;
         cacheTime = null;
         xsltDoc = null;
         builder = null;
     }
 
+    /**
+     * Makes a Transformer for an XSLT document. The compiled document is taken from
+     * the XsltCache, so the Transformer uses the cache's Processor.
+     *
+     * @param xsltDocument The file name or URL of the XSLT document.
+     * @throws SaxonApiException When the XSLT document doesn't compile.
+     */
     public Transformer(String xsltDocument) throws SaxonApiException {
         this();
 
-        proc = new Processor(false);
+        proc = XsltCache.getProcessor();
         xsltDoc = xsltDocument;
         init(proc, new StreamSource(xsltDoc));
 
@@ -101,6 +110,28 @@ public class Transformer {
 
     }
 
+    /**
+     * Makes a Transformer for a transform that has already been compiled. The
+     * XsltExecutable can be shared by any number of Transformers, so this is cheap
+     * compared to compiling the XSLT again.
+     *
+     * @param processor The Processor that compiled the transform.
+     * @param xsltExecutable The compiled transform.
+     */
+    public Transformer(Processor processor, XsltExecutable xsltExecutable) {
+        this();
+
+        proc = processor;
+        serializer = new Serializer();
+        serializer.setOutputProperty(Serializer.Property.METHOD, "xml");
+        serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
+        builder = getDocumentBuilder();
+        executable = xsltExecutable;
+        transform = executable.load();
+        cacheTime = new Date();
+
+    }
+
 
 
     private void init(Processor processor,StreamSource xsltDocument) throws SaxonApiException {
@@ -135,7 +166,16 @@ public class Transformer {
 
 
     public void reloadTransformIfRequired() throws SaxonApiException {
-        if(xsltDoc!=null){
+        if(xsltDoc!=null && proc==XsltCache.getProcessor()){
+            // The cache only compiles the document again if it has changed.
+            XsltExecutable exp = XsltCache.get(xsltDoc);
+            if(exp!=executable){
+                executable = exp;
+                transform = exp.load();
+                cacheTime = new Date();
+            }
+        }
+        else if(xsltDoc!=null){
             File f = new File(xsltDoc);
             if(f.lastModified()>cacheTime.getTime()){
                 loadTransform(new StreamSource(xsltDoc));
@@ -146,9 +186,16 @@ public class Transformer {
 
 
     private void loadTransform(StreamSource xsltDocStream) throws SaxonApiException{
-        // Get an XSLT compiler with our transform in it.
-        XsltCompiler comp = proc.newXsltCompiler();
-        XsltExecutable exp = comp.compile(xsltDocStream);
+        XsltExecutable exp;
+        if(xsltDoc!=null && proc==XsltCache.getProcessor()){
+            exp = XsltCache.get(xsltDoc);
+        }
+        else {
+            // Get an XSLT compiler with our transform in it.
+            XsltCompiler comp = proc.newXsltCompiler();
+            exp = comp.compile(xsltDocStream);
+        }
+        executable = exp;
         transform = exp.load(); // loads the transform file.
         cacheTime = new Date();
 
@@ -158,6 +205,13 @@ public class Transformer {
         return proc;
     }
 
+    /**
+     * @return The compiled transform this Transformer runs.
+     */
+    public XsltExecutable getExecutable(){
+        return executable;
+    }
+
     public void setProcessor(Processor processor){
         proc = processor;
     }
@@ -572,7 +626,7 @@ public class Transformer {
 
         log.debug("Performing transform using Saxon");
 
-        Processor proc = new Processor(false);
+        Processor proc = XsltCache.getProcessor();
 
         XsltTransformer trans = Transformer.getXsltTransformer(proc, xslTransformUri);
         if(trans==null){
@@ -678,8 +732,27 @@ public class Transformer {
 
 
 
+    /**
+     * Gets a transformer for the XSLT document. If the Processor is the XsltCache's the
+     * compiled document comes from the cache, which revalidates it and only compiles it
+     * again when it has changed.
+     */
     private static XsltTransformer getXsltTransformer(Processor proc, String xslTransformUri) throws IOException, SaxonApiException {
 
+        if(proc==XsltCache.getProcessor()){
+            if(!xslTransformUri.startsWith("http://") && !xslTransformUri.startsWith("https://")){
+                File file = new File(xslTransformUri);
+                if(!file.exists()){
+                    throw new IOException("Cannot find file: "+ xslTransformUri);
+                }
+
+                if(!file.canRead()){
+                    throw new IOException("Cannot read file: "+ xslTransformUri);
+                }
+            }
+            return XsltCache.get(xslTransformUri).load();
+        }
+
         XsltCompiler comp = proc.newXsltCompiler();
         XsltExecutable exp;
         XsltTransformer trans;
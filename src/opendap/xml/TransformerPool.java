@@ -0,0 +1,186 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.xml;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of Transformers for one XSLT document, so that any number of threads
+ * can run the transform at once.
+ *
+ * The compiled XSLT comes from the XsltCache, and is shared; each thread
+ * borrows a Transformer of its own (a new one is made if none are idle) and
+ * releases it when it's done. Up to maxIdle released Transformers are kept
+ * for reuse.
+ *
+ * Each borrow asks the XsltCache for the XSLT, so a changed document is
+ * compiled again the next time it's used. Transformers borrowed before the
+ * change finish with the old transform and are then dropped. If the changed
+ * XSLT doesn't compile the XsltCache keeps handing out the old transform.
+ */
+public class TransformerPool {
+
+    private static Logger log;
+    static {
+        log = org.slf4j.LoggerFactory.getLogger(TransformerPool.class);
+    }
+
+    private final String xsltDoc;
+    private final int maxIdle;
+
+    private volatile XsltExecutable executable;
+
+    private final ConcurrentLinkedQueue<Transformer> idle;
+    private final AtomicInteger idleCount;
+    private final AtomicInteger reloads;
+
+
+    /**
+     * Compiles the XSLT, or takes it from the XsltCache.
+     *
+     * @param xsltDocument The file name or URL of the XSLT document.
+     * @param maxIdle The most Transformers kept for reuse.
+     * @throws SaxonApiException When the XSLT doesn't compile.
+     */
+    public TransformerPool(String xsltDocument, int maxIdle) throws SaxonApiException {
+        xsltDoc = xsltDocument;
+        this.maxIdle = maxIdle;
+        idle = new ConcurrentLinkedQueue<>();
+        idleCount = new AtomicInteger(0);
+        reloads = new AtomicInteger(0);
+
+        executable = XsltCache.get(xsltDoc);
+    }
+
+    /**
+     * Makes a pool that keeps a Transformer for each processor.
+     */
+    public TransformerPool(String xsltDocument) throws SaxonApiException {
+        this(xsltDocument, Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+     * @return The Processor that all of this pool's Transformers use. Documents given to
+     * the Transformers must be built with it.
+     */
+    public Processor getProcessor() {
+        return XsltCache.getProcessor();
+    }
+
+
+    /**
+     * Picks up the XsltCache's current compile of the XSLT document, which is compiled
+     * again if it has changed.
+     *
+     * @return True if the transform changed.
+     * @throws SaxonApiException When the XSLT has never compiled.
+     */
+    public boolean reloadIfRequired() throws SaxonApiException {
+        XsltExecutable current = XsltCache.get(xsltDoc);
+        synchronized (this) {
+            if (current == executable)
+                return false;
+            executable = current;
+        }
+
+        // Drop the idle Transformers for the old transform.
+        while (idle.poll() != null)
+            idleCount.decrementAndGet();
+
+        reloads.incrementAndGet();
+        log.info("reloadIfRequired() - Reloaded XSLT document {}", xsltDoc);
+        return true;
+    }
+
+
+    /**
+     * @return A Transformer for this thread's sole use. Return it with release().
+     */
+    public Transformer borrow() throws SaxonApiException {
+        reloadIfRequired();
+        XsltExecutable current = executable;
+        Transformer t;
+        while ((t = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            if (t.getExecutable() == current)
+                return t;
+        }
+        return new Transformer(XsltCache.getProcessor(), current);
+    }
+
+
+    /**
+     * Clears the Transformer's parameters and keeps it for reuse, unless the pool is
+     * full or the transform has been reloaded since the Transformer was made.
+     *
+     * @param transformer A Transformer from borrow(). May be null.
+     */
+    public void release(Transformer transformer) {
+        if (transformer == null)
+            return;
+        transformer.clearAllParameters();
+
+        if (transformer.getExecutable() != executable)
+            return;
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(transformer);
+    }
+
+
+    /**
+     * @return The number of Transformers waiting to be borrowed.
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return The number of times the transform has been reloaded.
+     */
+    public int getReloadCount() {
+        return reloads.get();
+    }
+
+
+    /**
+     * Drops the idle Transformers.
+     */
+    public void destroy() {
+        idle.clear();
+        idleCount.set(0);
+    }
+
+}
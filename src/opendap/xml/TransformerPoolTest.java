@@ -0,0 +1,182 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.xml;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class TransformerPoolTest {
+
+    private File _xslt;
+    private TransformerPool _pool;
+
+    private static String xslt(String greeting) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n" +
+                "  <xsl:param name=\"who\"/>\n" +
+                "  <xsl:template match=\"/\"><p>" + greeting + " <xsl:value-of select=\"$who\"/>/<xsl:value-of select=\"/doc\"/></p></xsl:template>\n" +
+                "</xsl:stylesheet>\n";
+    }
+
+    private void writeXslt(String greeting) throws Exception {
+        FileOutputStream fos = new FileOutputStream(_xslt);
+        try {
+            fos.write(xslt(greeting).getBytes("UTF-8"));
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    /**
+     * @return The transform's output without the XML declaration.
+     */
+    private static String transform(Transformer t, String doc) throws Exception {
+        XdmNode node = t.build(new StreamSource(new StringReader("<doc>" + doc + "</doc>")));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        t.transform(node, baos);
+        String out = baos.toString("UTF-8");
+        return out.substring(out.indexOf("?>") + 2).trim();
+    }
+
+    private static String render(TransformerPool pool, String who, String doc) throws Exception {
+        Transformer t = pool.borrow();
+        try {
+            t.setParameter("who", who);
+            return transform(t, doc);
+        }
+        finally {
+            pool.release(t);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _xslt = File.createTempFile("TransformerPoolTest", ".xsl");
+        writeXslt("Hello");
+        _pool = new TransformerPool(_xslt.getAbsolutePath(), 2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _pool.destroy();
+        _xslt.delete();
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        Assert.assertEquals("<p>Hello a/1</p>", render(_pool, "a", "1"));
+        Assert.assertEquals(1, _pool.getIdleCount());
+
+        // The parameters of the last render don't leak into the next.
+        Transformer t = _pool.borrow();
+        Assert.assertEquals("<p>Hello /2</p>", transform(t, "2"));
+        _pool.release(t);
+    }
+
+    @Test
+    public void testMaxIdle() throws Exception {
+        List<Transformer> borrowed = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            borrowed.add(_pool.borrow());
+        for (Transformer t : borrowed)
+            _pool.release(t);
+        Assert.assertEquals(2, _pool.getIdleCount());
+    }
+
+    @Test
+    public void testConcurrentRendering() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final String n = Integer.toString(i);
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return render(_pool, "w" + n, n);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++)
+                Assert.assertEquals("<p>Hello w" + i + "/" + i + "</p>", results.get(i).get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        Assert.assertFalse(_pool.reloadIfRequired());
+
+        Transformer old = _pool.borrow();
+
+        writeXslt("Goodbye");
+        Assert.assertTrue(_xslt.setLastModified(_xslt.lastModified() + 10000));
+        Assert.assertTrue(_pool.reloadIfRequired());
+        Assert.assertEquals(1, _pool.getReloadCount());
+
+        // A transformer borrowed before the reload is not kept.
+        _pool.release(old);
+        Assert.assertEquals(0, _pool.getIdleCount());
+
+        Assert.assertEquals("<p>Goodbye a/1</p>", render(_pool, "a", "1"));
+    }
+
+    @Test
+    public void testBrokenReload() throws Exception {
+        FileOutputStream fos = new FileOutputStream(_xslt);
+        fos.write("<xsl:stylesheet".getBytes("UTF-8"));
+        fos.close();
+        Assert.assertTrue(_xslt.setLastModified(_xslt.lastModified() + 10000));
+
+        long failures = XsltCache.getFailures();
+        Assert.assertFalse(_pool.reloadIfRequired());
+        Assert.assertEquals(failures + 1, XsltCache.getFailures());
+
+        // The old transform is still used, and the broken file isn't compiled again.
+        Assert.assertEquals("<p>Hello a/1</p>", render(_pool, "a", "1"));
+        Assert.assertFalse(_pool.reloadIfRequired());
+        Assert.assertEquals(failures + 1, XsltCache.getFailures());
+    }
+
+}
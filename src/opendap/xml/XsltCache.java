@@ -0,0 +1,337 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.xml;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.slf4j.Logger;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process wide cache of compiled XSLT documents, keyed by file name or URL.
+ *
+ * Every stylesheet is compiled with the same Processor, so a compiled stylesheet
+ * can be loaded by any Transformer that uses that Processor, and the documents
+ * built for one transform can be handed to another. Loading an XsltExecutable
+ * is cheap; compiling one is not.
+ *
+ * A cached file is used for as long as its last modified time is unchanged. A
+ * cached URL is used for HTTP_REVALIDATE_INTERVAL milliseconds and is then
+ * revalidated with a conditional GET using the Last-Modified and ETag values
+ * the server sent. The least recently used entries are dropped once there are
+ * more than MAX_ENTRIES.
+ *
+ * Only one thread compiles or revalidates a given stylesheet at a time; the
+ * others that want it meanwhile wait for its result. When a changed file fails
+ * to compile, or a URL can't be revalidated, the stylesheet compiled before is
+ * kept in use until the file changes again or the URL is next due to be
+ * revalidated. A stylesheet that has never compiled is not cached, so the next
+ * request tries again.
+ */
+public class XsltCache {
+
+    private static Logger log;
+    static {
+        log = org.slf4j.LoggerFactory.getLogger(XsltCache.class);
+    }
+
+    public static final int MAX_ENTRIES = 64;
+    public static final long HTTP_REVALIDATE_INTERVAL = 60000;
+
+    private static final Processor processor = new Processor(false);
+
+    private static final HttpClient httpClient = new HttpClient(new MultiThreadedHttpConnectionManager());
+
+    private static final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // uri -> The compile or revalidation in progress for it.
+    private static final ConcurrentHashMap<String, FutureTask<Entry>> loads = new ConcurrentHashMap<>();
+
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong compiles = new AtomicLong(0);
+    private static final AtomicLong revalidations = new AtomicLong(0);
+    private static final AtomicLong failures = new AtomicLong(0);
+
+
+    private static class Entry {
+        final XsltExecutable executable;
+        final long fileLastModified;
+        final String httpLastModified;
+        final String etag;
+        final long checked;
+
+        Entry(XsltExecutable executable, long fileLastModified, String httpLastModified, String etag) {
+            this.executable = executable;
+            this.fileLastModified = fileLastModified;
+            this.httpLastModified = httpLastModified;
+            this.etag = etag;
+            checked = System.currentTimeMillis();
+        }
+    }
+
+
+    private XsltCache() {
+    }
+
+
+    /**
+     * @return The Processor that compiles the cached stylesheets.
+     */
+    public static Processor getProcessor() {
+        return processor;
+    }
+
+
+    private static boolean isUrl(String uri) {
+        return uri.startsWith("http://") || uri.startsWith("https://");
+    }
+
+
+    /**
+     * Gets the compiled stylesheet, compiling it if it isn't cached or has changed.
+     *
+     * @param uri The file name or http URL of the XSLT document.
+     * @return The compiled stylesheet. Call load() on it for a transformer.
+     * @throws SaxonApiException When the stylesheet can't be read or doesn't compile.
+     */
+    public static XsltExecutable get(final String uri) throws SaxonApiException {
+        final Entry entry;
+        synchronized (entries) {
+            entry = entries.get(uri);
+        }
+
+        if (entry != null) {
+            if (isUrl(uri) ? System.currentTimeMillis() - entry.checked < HTTP_REVALIDATE_INTERVAL
+                    : new File(uri).lastModified() == entry.fileLastModified) {
+                hits.incrementAndGet();
+                return entry.executable;
+            }
+        }
+
+        FutureTask<Entry> load = new FutureTask<>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws SaxonApiException {
+                return load(uri, entry);
+            }
+        });
+        FutureTask<Entry> inProgress = loads.putIfAbsent(uri, load);
+        if (inProgress == null) {
+            inProgress = load;
+            try {
+                load.run();
+            }
+            finally {
+                loads.remove(uri, load);
+            }
+        }
+
+        try {
+            return inProgress.get().executable;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SaxonApiException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof SaxonApiException)
+                throw (SaxonApiException) e.getCause();
+            throw new SaxonApiException(e.getCause());
+        }
+    }
+
+
+    /**
+     * Compiles or revalidates a stylesheet and caches the result.
+     *
+     * @param uri The file name or http URL of the XSLT document.
+     * @param cached What is cached for it now. May be null.
+     */
+    private static Entry load(String uri, Entry cached) throws SaxonApiException {
+        // Take the time first so a change made during the compile is seen next time.
+        long lastModified = isUrl(uri) ? 0 : new File(uri).lastModified();
+
+        Entry fresh;
+        try {
+            fresh = isUrl(uri) ? loadUrl(uri, cached) : loadFile(uri, lastModified);
+        }
+        catch (SaxonApiException e) {
+            failures.incrementAndGet();
+            if (cached == null) {
+                log.error("get() - Unable to compile XSLT document {} Msg: {}", uri, e.getMessage());
+                throw e;
+            }
+            log.error("get() - Unable to compile XSLT document {} Using the one compiled before. Msg: {}",
+                    uri, e.getMessage());
+            // Not tried again until the file changes, or the URL is due to be revalidated.
+            fresh = new Entry(cached.executable, lastModified, cached.httpLastModified, cached.etag);
+        }
+
+        synchronized (entries) {
+            entries.put(uri, fresh);
+        }
+        return fresh;
+    }
+
+
+    private static Entry loadFile(String fileName, long lastModified) throws SaxonApiException {
+        XsltExecutable executable = processor.newXsltCompiler().compile(new StreamSource(fileName));
+        compiles.incrementAndGet();
+        log.debug("loadFile() - Compiled {}", fileName);
+        return new Entry(executable, lastModified, null, null);
+    }
+
+
+    private static Entry loadUrl(String url, Entry cached) throws SaxonApiException {
+        GetMethod request = new GetMethod(url);
+        InputStream is = null;
+        try {
+            if (cached != null) {
+                if (cached.etag != null)
+                    request.setRequestHeader("If-None-Match", cached.etag);
+                if (cached.httpLastModified != null)
+                    request.setRequestHeader("If-Modified-Since", cached.httpLastModified);
+            }
+
+            int statusCode = httpClient.executeMethod(request);
+
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                revalidations.incrementAndGet();
+                log.debug("loadUrl() - {} has not changed.", url);
+                return new Entry(cached.executable, 0, cached.httpLastModified, cached.etag);
+            }
+
+            if (statusCode != HttpStatus.SC_OK) {
+                throw new SaxonApiException("Unable to retrieve XSLT document " + url +
+                        " Status: " + request.getStatusLine());
+            }
+
+            is = request.getResponseBodyAsStream();
+            // The URL is the system id, so that relative imports and includes can be found.
+            XsltExecutable executable = processor.newXsltCompiler().compile(new StreamSource(is, url));
+            compiles.incrementAndGet();
+            log.debug("loadUrl() - Compiled {}", url);
+
+            return new Entry(executable, 0, headerValue(request, "Last-Modified"), headerValue(request, "ETag"));
+        }
+        catch (IOException e) {
+            log.error("loadUrl() - Unable to retrieve XSLT document {} Msg: {}", url, e.getMessage());
+            throw new SaxonApiException(e);
+        }
+        finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    log.debug("loadUrl() - Failed to close the stream for {} Msg: {}", url, e.getMessage());
+                }
+            }
+            request.releaseConnection();
+        }
+    }
+
+    private static String headerValue(GetMethod request, String name) {
+        Header h = request.getResponseHeader(name);
+        return h == null ? null : h.getValue();
+    }
+
+
+    /**
+     * Drops every cached stylesheet.
+     */
+    public static void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public static int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @return The number of requests answered without compiling or asking the server.
+     */
+    public static long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of stylesheets compiled.
+     */
+    public static long getCompiles() {
+        return compiles.get();
+    }
+
+    /**
+     * @return The number of cached URLs the server said had not changed.
+     */
+    public static long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return The number of stylesheets that couldn't be read or compiled.
+     */
+    public static long getFailures() {
+        return failures.get();
+    }
+
+    public static String getStatistics() {
+        return "[XsltCache entries: " + getSize() + "/" + MAX_ENTRIES +
+                " hits: " + getHits() +
+                " compiles: " + getCompiles() +
+                " revalidations: " + getRevalidations() +
+                " failures: " + getFailures() +
+                "]";
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * /////////////////////////////////////////////////////////////////////////////
+ * // This file is part of the "Hyrax Data Server" project.
+ * //
+ * //
+ * // Copyright (c) 2013 OPeNDAP, Inc.
+ * // Author: Nathan David Potter  <ndp@opendap.org>
+ * //
+ * // This library is free software; you can redistribute it and/or
+ * // modify it under the terms of the GNU Lesser General Public
+ * // License as published by the Free Software Foundation; either
+ * // version 2.1 of the License, or (at your option) any later version.
+ * //
+ * // This library is distributed in the hope that it will be useful,
+ * // but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * // MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * // Lesser General Public License for more details.
+ * //
+ * // You should have received a copy of the GNU Lesser General Public
+ * // License along with this library; if not, write to the Free Software
+ * // Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301
+ * //
+ * // You can contact OPeNDAP, Inc. at PO Box 112, Saunderstown, RI. 02874-0112.
+ * /////////////////////////////////////////////////////////////////////////////
+ */
+package opendap.xml;
+
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XsltExecutable;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class XsltCacheTest {
+
+    private List<File> _files;
+
+    private File xslt(String greeting) throws Exception {
+        File f = File.createTempFile("XsltCacheTest", ".xsl");
+        _files.add(f);
+        write(f, greeting);
+        return f;
+    }
+
+    private static void write(File f, String greeting) throws Exception {
+        String xslt = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n" +
+                "  <xsl:template match=\"/\"><p>" + greeting + "</p></xsl:template>\n" +
+                "</xsl:stylesheet>\n";
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(xslt.getBytes("UTF-8"));
+        }
+        finally {
+            fos.close();
+        }
+    }
+
+    private static void touch(File f) {
+        Assert.assertTrue(f.setLastModified(f.lastModified() + 10000));
+    }
+
+    private static String transform(Transformer t) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        t.transform(t.build(new StreamSource(new StringReader("<doc/>"))), baos);
+        String out = baos.toString("UTF-8");
+        return out.substring(out.indexOf("?>") + 2).trim();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _files = new ArrayList<>();
+        XsltCache.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        XsltCache.clear();
+        for (File f : _files)
+            f.delete();
+    }
+
+    @Test
+    public void testCompiledOnce() throws Exception {
+        File f = xslt("Hello");
+        long compiles = XsltCache.getCompiles();
+
+        Transformer t1 = new Transformer(f.getAbsolutePath());
+        Transformer t2 = new Transformer(f.getAbsolutePath());
+
+        Assert.assertEquals(compiles + 1, XsltCache.getCompiles());
+        Assert.assertSame(t1.getExecutable(), t2.getExecutable());
+        Assert.assertSame(XsltCache.getProcessor(), t1.getProcessor());
+        Assert.assertEquals("<p>Hello</p>", transform(t1));
+        Assert.assertEquals("<p>Hello</p>", transform(t2));
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        File f = xslt("Hello");
+        Transformer t = new Transformer(f.getAbsolutePath());
+        XsltExecutable first = t.getExecutable();
+
+        t.reloadTransformIfRequired();
+        Assert.assertSame(first, t.getExecutable());
+
+        write(f, "Goodbye");
+        touch(f);
+        t.reloadTransformIfRequired();
+        Assert.assertNotSame(first, t.getExecutable());
+        Assert.assertEquals("<p>Goodbye</p>", transform(t));
+    }
+
+    private static void breakXslt(File f) throws Exception {
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write("<xsl:stylesheet".getBytes("UTF-8"));
+        fos.close();
+        touch(f);
+    }
+
+    @Test
+    public void testFailureNotCached() throws Exception {
+        File f = xslt("Hello");
+        String name = f.getAbsolutePath();
+        breakXslt(f);
+
+        long failures = XsltCache.getFailures();
+        for (int i = 0; i < 2; i++) {
+            try {
+                XsltCache.get(name);
+                Assert.fail("The broken XSLT should not compile");
+            }
+            catch (SaxonApiException e) {
+                // expected
+            }
+        }
+        // Each request tried again rather than getting a cached failure.
+        Assert.assertEquals(failures + 2, XsltCache.getFailures());
+
+        write(f, "Fixed");
+        touch(f);
+        XsltExecutable fixed = XsltCache.get(name);
+        Assert.assertSame(fixed, XsltCache.get(name));
+    }
+
+    @Test
+    public void testPreviousCompileKept() throws Exception {
+        File f = xslt("Hello");
+        String name = f.getAbsolutePath();
+        XsltExecutable good = XsltCache.get(name);
+
+        // A broken change is compiled once, and the old stylesheet stays in use.
+        breakXslt(f);
+        long failures = XsltCache.getFailures();
+        Assert.assertSame(good, XsltCache.get(name));
+        Assert.assertSame(good, XsltCache.get(name));
+        Assert.assertEquals(failures + 1, XsltCache.getFailures());
+
+        write(f, "Fixed");
+        touch(f);
+        Assert.assertNotSame(good, XsltCache.get(name));
+    }
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        final String name = xslt("Hello").getAbsolutePath();
+        long compiles = XsltCache.getCompiles();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<XsltExecutable>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<XsltExecutable>() {
+                    @Override
+                    public XsltExecutable call() throws Exception {
+                        return XsltCache.get(name);
+                    }
+                }));
+            }
+            for (Future<XsltExecutable> result : results)
+                Assert.assertSame(results.get(0).get(), result.get());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(compiles + 1, XsltCache.getCompiles());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        for (int i = 0; i < XsltCache.MAX_ENTRIES + 5; i++)
+            XsltCache.get(xslt("n" + i).getAbsolutePath());
+        Assert.assertEquals(XsltCache.MAX_ENTRIES, XsltCache.getSize());
+    }
+
+}